@@ -0,0 +1,196 @@
+/*
+ Virtual tables: huge tables are not rendered in html, the rows are loaded
+ from a separate script file, and only the visible rows are rendered.
+ */
+
+var vtables = {};
+var VT_ROW_H = 20; // Only used until the height of a rendered row is measured
+var VT_HEIGHT = 500;
+var VT_CHUNK = 5000;
+
+/* Called from the generated vtblNNNNN.js files */
+function vtableAdd(id, data) {
+	vtables[id] = data;
+	$(document).ready(function() { vtableCreate(id); });
+}
+
+function vtableCreate(id) {
+	var data = vtables[id];
+	var cnt = data.rows.length - data.footer;
+	var vt = {
+		data : data,
+		index : [],   // the indices of the visible (filtered and sorted) rows
+		keys : [],    // lazily created sort keys, per column
+		sortCol : -1,
+		sortAsc : true,
+		filterSeq : 0,
+		rowH : VT_ROW_H
+	};
+	for (var i = 0; i < cnt; i++) {
+		vt.index.push(i);
+	}
+
+	var root = $("#" + id);
+	vt.filter = $("<input type=\"text\" class=\"vtable-filter\" placeholder=\"Filter...\"/>").appendTo(root);
+	vt.status = $("<span class=\"vtable-status\"/>").appendTo(root);
+	vt.view = $("<div class=\"vtable-view\"/>").appendTo(root);
+	vt.view.css("max-height", VT_HEIGHT + "px");
+	vt.table = $("<table class=\"vtable-table " + data.cls + "\"/>").appendTo(vt.view);
+
+	var head = "<thead><tr>";
+	for (var c = 0; c < data.cols.length; c++) {
+		head += "<th data-col=\"" + c + "\">" + data.cols[c] + "</th>";
+	}
+	head += "</tr></thead>";
+	vt.table.append(head);
+	vt.body = $("<tbody/>").appendTo(vt.table);
+	vt.foot = $("<tfoot/>").appendTo(vt.table);
+	vtableRenderFooter(vt);
+
+	vt.table.find("th").click(function() {
+		vtableSort(vt, parseInt($(this).attr("data-col")));
+	});
+	vt.filter.keyup(function() {
+		vtableFilter(vt, $(this).val());
+	});
+	vt.view.scroll(function() {
+		vtableRender(vt);
+	});
+	vtableRender(vt);
+
+	// The row height depends on the style sheet, so measure it (the first row is the spacer)
+	var h = vt.body.children("tr").eq(1).outerHeight();
+	if (h > 0 && h != vt.rowH) {
+		vt.rowH = h;
+		vtableRender(vt);
+	}
+}
+
+function vtableRow(vt, idx) {
+	var data = vt.data;
+	var row = data.rows[idx];
+	var style = data.styles ? data.styles[idx] : null;
+	var ret = style ? "<tr class=\"" + style + "\">" : "<tr>";
+	for (var c = 0; c < row.length; c++) {
+		ret += data.right[c] ? "<td class=\"right\">" : "<td>";
+		ret += row[c] + "</td>";
+	}
+	return ret + "</tr>";
+}
+
+function vtableRenderFooter(vt) {
+	var data = vt.data;
+	var html = "";
+	for (var i = data.rows.length - data.footer; i < data.rows.length; i++) {
+		html += vtableRow(vt, i);
+	}
+	vt.foot.html(html);
+}
+
+/* Renders only the rows which are visible in the scrollable view */
+function vtableRender(vt) {
+	var cnt = vt.index.length;
+	var first = Math.floor(vt.view.scrollTop() / vt.rowH);
+	var visible = Math.ceil(VT_HEIGHT / vt.rowH) + 1;
+	first = Math.max(0, Math.min(first, cnt - visible));
+	var last = Math.min(cnt, first + visible);
+	var cols = vt.data.cols.length;
+	var html = "<tr style=\"height: " + (first * vt.rowH) + "px\"><td colspan=\"" + cols + "\"></td></tr>";
+	for (var i = first; i < last; i++) {
+		html += vtableRow(vt, vt.index[i]);
+	}
+	html += "<tr style=\"height: " + ((cnt - last) * vt.rowH) + "px\"><td colspan=\"" + cols + "\"></td></tr>";
+	vt.body.html(html);
+	vt.status.text(" " + cnt + " of " + (vt.data.rows.length - vt.data.footer) + " rows");
+}
+
+function vtableKey(vt, col) {
+	if (vt.keys[col]) {
+		return vt.keys[col];
+	}
+	// Strip the html tags and convert to number if every value is numeric
+	var rows = vt.data.rows;
+	var cnt = rows.length - vt.data.footer;
+	var keys = new Array(cnt);
+	var numeric = true;
+	for (var i = 0; i < cnt; i++) {
+		var s = rows[i][col].replace(/<[^>]*>/g, "");
+		keys[i] = s;
+		if (numeric && s.length > 0 && isNaN(s)) {
+			numeric = false;
+		}
+	}
+	if (numeric) {
+		for (var i = 0; i < cnt; i++) {
+			keys[i] = keys[i].length == 0 ? 0 : parseFloat(keys[i]);
+		}
+	} else {
+		for (var i = 0; i < cnt; i++) {
+			keys[i] = keys[i].toLowerCase();
+		}
+	}
+	vt.keys[col] = keys;
+	return keys;
+}
+
+function vtableSort(vt, col) {
+	if (vt.sortCol == col) {
+		vt.sortAsc = !vt.sortAsc;
+	} else {
+		vt.sortCol = col;
+		vt.sortAsc = true;
+	}
+	var keys = vtableKey(vt, col);
+	var dir = vt.sortAsc ? 1 : -1;
+	vt.index.sort(function(a, b) {
+		var ka = keys[a], kb = keys[b];
+		if (ka < kb) return -dir;
+		if (ka > kb) return dir;
+		return a - b;
+	});
+	vt.table.find("th").removeClass("headerSortDown headerSortUp");
+	vt.table.find("th[data-col=" + col + "]").addClass(vt.sortAsc ? "headerSortDown" : "headerSortUp");
+	vtableRender(vt);
+}
+
+/* Filters the rows in chunks, so the browser stays responsive even with huge tables */
+function vtableFilter(vt, text) {
+	var seq = ++vt.filterSeq;
+	var rows = vt.data.rows;
+	var cnt = rows.length - vt.data.footer;
+	var needle = text.toLowerCase();
+	var result = [];
+	var pos = 0;
+	var order = null;
+	if (vt.sortCol >= 0) {
+		// Keep the current sort order: filter the full sorted index
+		order = [];
+		for (var i = 0; i < cnt; i++) order.push(i);
+		var keys = vtableKey(vt, vt.sortCol);
+		var dir = vt.sortAsc ? 1 : -1;
+		order.sort(function(a, b) {
+			var ka = keys[a], kb = keys[b];
+			if (ka < kb) return -dir;
+			if (ka > kb) return dir;
+			return a - b;
+		});
+	}
+	function step() {
+		if (seq != vt.filterSeq) return; // A newer filter was started
+		var end = Math.min(cnt, pos + VT_CHUNK);
+		for (; pos < end; pos++) {
+			var idx = order ? order[pos] : pos;
+			if (needle.length == 0 || rows[idx].join("\t").toLowerCase().indexOf(needle) >= 0) {
+				result.push(idx);
+			}
+		}
+		if (pos < cnt) {
+			setTimeout(step, 0);
+		} else {
+			vt.index = result;
+			vt.view.scrollTop(0);
+			vtableRender(vt);
+		}
+	}
+	step();
+}
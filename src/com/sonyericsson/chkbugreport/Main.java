@@ -21,8 +21,10 @@ package com.sonyericsson.chkbugreport;
 import com.sonyericsson.chkbugreport.Module.OutputListener;
 import com.sonyericsson.chkbugreport.doc.Bug;
 import com.sonyericsson.chkbugreport.doc.PreText;
+import com.sonyericsson.chkbugreport.plugins.ftrace.FTracePlugin;
 import com.sonyericsson.chkbugreport.settings.BoolSetting;
 import com.sonyericsson.chkbugreport.settings.Settings;
+import com.sonyericsson.chkbugreport.traceview.MainLooplugin;
 import com.sonyericsson.chkbugreport.traceview.TraceModule;
 
 import java.io.BufferedInputStream;
@@ -69,6 +71,14 @@ public class Main implements OutputListener {
     private int mMode = MODE_BUGREPORT;
     private boolean mSilent = false;
     private boolean mLimit = true;
+    private boolean mJson = false;
+    private int mDBBatchSize = 0;
+    private boolean mSvg = false;
+    private String mSvgTypes = null;
+    private boolean mVCDGz = false;
+    private boolean mTraceEvents = false;
+    private String mTraceBaseline = null;
+    private float mFrameBudgets[] = null;
     private Settings mSettings = new Settings();
     private BoolSetting mShowGui = new BoolSetting(false, mSettings, "showGui", "Launch the GUI automatically when no file name was specified.");
     private BoolSetting mOpenBrowser = new BoolSetting(false, mSettings, "openBrowser", "Launch the browser when output is generated.");
@@ -131,6 +141,9 @@ public class Main implements OutputListener {
                 }
                 if ("t".equals(key)) {
                     mMode = MODE_TRACEVIEW;
+                } else if ("td".equals(key)) {
+                    mMode = MODE_TRACEVIEW;
+                    mTraceBaseline = param;
                 } else if ("sl".equals(key)) {
                     addSection(Section.SYSTEM_LOG, param, MAX_LOG_SIZE);
                 } else if ("ml".equals(key)) {
@@ -139,6 +152,11 @@ public class Main implements OutputListener {
                     addSection(Section.EVENT_LOG, param, MAX_LOG_SIZE);
                 } else if ("ft".equals(key)) {
                     addSection(Section.FTRACE, param, MAX_FTRACE_SIZE);
+                } else if ("fs".equals(key)) {
+                    mMode = MODE_MANUAL;
+                    BugReportModule br = getDummyBugReport();
+                    br.addMetaInfo(FTracePlugin.META_STREAM_FILE, param);
+                    br.addHeaderLine(Section.FTRACE + ": " + param + " (streamed)");
                 } else if ("pk".equals(key)) {
                     addSection(Section.PACKAGE_SETTINGS, param, NO_LIMIT);
                 } else if ("ps".equals(key)) {
@@ -171,6 +189,30 @@ public class Main implements OutputListener {
                     mLimit = false;
                 } else if ("-limit".equals(key)) {
                     mLimit = true;
+                } else if ("-db-batch".equals(key)) {
+                    try {
+                        mDBBatchSize = Integer.parseInt(param);
+                    } catch (NumberFormatException e) {
+                        onPrint(1, TYPE_ERR, "Invalid batch size '" + param + "'!");
+                        usage();
+                        System.exit(1);
+                    }
+                } else if ("-frame-budget".equals(key)) {
+                    mFrameBudgets = parseFrameBudgets(param);
+                    if (mFrameBudgets == null) {
+                        onPrint(1, TYPE_ERR, "Invalid frame budget '" + param + "'!");
+                        usage();
+                        System.exit(1);
+                    }
+                } else if ("-json".equals(key)) {
+                    mJson = true;
+                } else if ("-svg".equals(key)) {
+                    mSvg = true;
+                    mSvgTypes = param;
+                } else if ("-vcd-gz".equals(key)) {
+                    mVCDGz = true;
+                } else if ("-trace-events".equals(key)) {
+                    mTraceEvents = true;
                 } else if ("-browser".equals(key)) {
                     mOpenBrowser.set(true);
                 } else if ("-gui".equals(key)) {
@@ -212,7 +254,16 @@ public class Main implements OutputListener {
                 processFile(br);
             } else {
                 Module br = createReportInstance(fileName, mMode);
+                BaselineLoader baseline = null;
+                if (mMode == MODE_TRACEVIEW && mTraceBaseline != null) {
+                    // Parse the baseline trace while loading the current one
+                    baseline = new BaselineLoader(mTraceBaseline);
+                    baseline.start();
+                }
                 int ret = loadReportFrom(br, fileName, mMode);
+                if (baseline != null && !baseline.finish((TraceModule)br)) {
+                    return false;
+                }
                 if (ret != RET_TRUE && ret != RET_WAIT) {
                     return false;
                 }
@@ -227,7 +278,71 @@ public class Main implements OutputListener {
         return true;
     }
 
+    /**
+     * Loads the baseline trace (used for comparing traces) on a background thread
+     */
+    private class BaselineLoader extends Thread {
+
+        private String mFileName;
+        private TraceModule mBase;
+        private int mRet = RET_FALSE;
+        private Exception mError;
+
+        public BaselineLoader(String fileName) {
+            super("BaselineLoader");
+            mFileName = fileName;
+            mBase = (TraceModule)createReportInstance(fileName, MODE_TRACEVIEW);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRet = loadReportFrom(mBase, mFileName, MODE_TRACEVIEW);
+            } catch (Exception e) {
+                mError = e;
+                onPrint(1, TYPE_ERR, "Error reading baseline trace '" + mFileName + "': " + e);
+            }
+        }
+
+        /**
+         * Waits until the baseline is loaded, and sets it in the report
+         * @return false if the baseline could not be loaded
+         */
+        public boolean finish(TraceModule br) {
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    // Keep waiting, the baseline is still being parsed
+                }
+            }
+            if (mRet != RET_TRUE || !mBase.isLoaded()) {
+                if (mError != null) {
+                    onPrint(1, TYPE_ERR, "Failed to load baseline trace '" + mFileName + "' due to: " + mError);
+                } else {
+                    onPrint(1, TYPE_ERR, "Failed to load baseline trace '" + mFileName + "'!");
+                }
+                return false;
+            }
+            br.setBaseline(mBase, mFileName);
+            return true;
+        }
+
+    }
+
     public void processFile(Module br) throws IOException {
+        br.setJsonExport(mJson);
+        if (mDBBatchSize > 0) {
+            br.setSQLBatchSize(mDBBatchSize);
+        }
+        if (mSvg) {
+            br.setVectorCharts(mSvgTypes);
+        }
+        if (mFrameBudgets != null) {
+            br.addMetaInfo(MainLooplugin.META_FRAME_BUDGETS, mFrameBudgets);
+        }
+        br.setVCDCompressed(mVCDGz);
+        br.setTraceEventExport(mTraceEvents);
         br.generate();
         String indexFile = br.getIndexHtmlFileName();
         if (mOpenBrowser.get() && indexFile != null) {
@@ -357,6 +472,25 @@ public class Main implements OutputListener {
         br.addHeaderLine(headerLine);
     }
 
+    /**
+     * Parses a comma separated list of frame budgets (in ms)
+     * @return The budgets, or null if the list is not valid
+     */
+    private static float[] parseFrameBudgets(String param) {
+        if (param == null || param.length() == 0) return null;
+        String fields[] = param.split(",");
+        float ret[] = new float[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            try {
+                ret[i] = Float.parseFloat(fields[i].trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (!(ret[i] > 0)) return null;
+        }
+        return ret;
+    }
+
     private void parseMonkey(String fileName) {
         mMode = MODE_MANUAL;
         BugReportModule br = getDummyBugReport();
@@ -485,12 +619,19 @@ public class Main implements OutputListener {
         System.err.println("  or");
         System.err.println("Usage: chkbugreport -t traceviewfile");
         System.err.println("  or");
+        System.err.println("Usage: chkbugreport -t adb://[processname|pid]");
+        System.err.println("Captures the method trace of a debuggable process through adb");
+        System.err.println("  or");
+        System.err.println("Usage: chkbugreport -td:baselinetraceviewfile traceviewfile");
+        System.err.println("Compares the traceview file with the baseline traceview file");
+        System.err.println("  or");
         System.err.println("Usage: chkbugreport [sections] dummybugreportfile");
         System.err.println("Where dummybugreportfile does not exists, but will be used to generate");
         System.err.println("a folder name and sections must contain at least one of the following:");
         System.err.println("  -ds:file    - Use file as dumsys output (almost same as -pb)");
         System.err.println("  -el:file    - Use file as event log");
         System.err.println("  -ft:file    - Use file as ftrace dump");
+        System.err.println("  -fs:file    - Use file as ftrace dump, processed while reading (no size limit)");
         System.err.println("  -ps:file    - Use file as \"processes\" section");
         System.err.println("  -pt:file    - Use file as \"processes and threads\" section");
         System.err.println("  -ml:file    - Use file as main log");
@@ -502,6 +643,18 @@ public class Main implements OutputListener {
         System.err.println("Extra options:");
         System.err.println("  --browser   - Launch the browser when done");
         System.err.println("  --gui       - Launch the Graphical User Interface if no file name is provided");
+        System.err.println("  --db-batch:N - Insert N rows per batch when creating the report database (default: 1000)");
+        System.err.println("  --frame-budget:ms[,ms...] - The frame budgets used when checking the frames drawn");
+        System.err.println("                in a traceview file (default: 16.6,11.1,8.3). The janky frames are");
+        System.err.println("                counted for each budget. The first one also sets the chart scale, and");
+        System.err.println("                the longest pause inside a frame if the frames are rebuilt from the");
+        System.err.println("                measure, layout and draw calls");
+        System.err.println("  --json      - Save the report in JSON format as well (report.json)");
+        System.err.println("  --svg[:types] - Save the charts in SVG format instead of PNG. Types is a comma");
+        System.err.println("                separated list of chart types (gc, ftrace, frames), default: all");
+        System.err.println("  --vcd-gz    - Save the VCD files compressed (gzip), GTKWave can open them directly");
+        System.err.println("  --trace-events - Export the ftrace and traceview data in trace event format");
+        System.err.println("                (json), which can be opened in chrome://tracing or Perfetto");
         System.err.println("  --frames    - Use HTML frames when processing bugreport (default)");
         System.err.println("  --no-frames - Don't use HTML frames when processing bugreport");
         System.err.println("  --silent    - Supress all output except fatal errors");
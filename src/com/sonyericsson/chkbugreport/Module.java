@@ -22,10 +22,13 @@ package com.sonyericsson.chkbugreport;
 import com.sonyericsson.chkbugreport.doc.Bug;
 import com.sonyericsson.chkbugreport.doc.Chapter;
 import com.sonyericsson.chkbugreport.doc.Doc;
+import com.sonyericsson.chkbugreport.doc.JsonExporter;
 import com.sonyericsson.chkbugreport.doc.ReportHeader;
 import com.sonyericsson.chkbugreport.doc.Link;
 import com.sonyericsson.chkbugreport.doc.List;
 import com.sonyericsson.chkbugreport.doc.SimpleText;
+import com.sonyericsson.chkbugreport.util.ChartService;
+import com.sonyericsson.chkbugreport.util.ExportQueue;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -34,6 +37,8 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -58,11 +63,20 @@ public abstract class Module {
     private Vector<Section> mSections = new Vector<Section>();
     private HashMap<String, Object> mMetaInfos = new HashMap<String, Object>();
     private boolean mSQLFailed = false;
+    private int mSQLBatchSize = 1000;
+    private ExportQueue mExportQueue = new ExportQueue(this);
+    private ChartService mChartService = new ChartService(this);
+    private HashSet<String> mVectorCharts = new HashSet<String>();
+    private boolean mAllVectorCharts = false;
+    private boolean mVCDCompressed = false;
     private Connection mSQLConnection;
     private int mNextChapterId = 1;
     private int mNextSectionId = 1;
+    private int mNextTableId = 1;
     private OutputListener mOutListener;
     private HashSet<Plugin> mCrashedPlugins;
+    private boolean mJsonExport = false;
+    private boolean mTraceEventExport = false;
 
     public interface OutputListener {
         /** Constant used for log messages targeted to the standard output */
@@ -130,6 +144,10 @@ public abstract class Module {
         return mNextSectionId++;
     }
 
+    public int allocTableId() {
+        return mNextTableId++;
+    }
+
     /**
      * Prints a message on the standard output
      * @param level The detail level of the message
@@ -210,13 +228,25 @@ public abstract class Module {
     public final void generate() throws IOException {
         mDoc.begin();
 
-        // This will do build some extra chapters and save some non-html files
-        collectData();
+        try {
+            // This will do build some extra chapters and save some non-html files
+            collectData();
 
-        // Save the generated report
-        mDoc.end();
+            // Save the generated report
+            mDoc.end();
 
-        finish();
+            // Save the structured version of the report as well, if requested
+            if (mJsonExport) {
+                new JsonExporter(mDoc).export(mDoc.getOutDir() + "report.json");
+            }
+
+            finish();
+        } finally {
+            // Stop the background writers even if the report could not be generated
+            // (if finish() was called, these do nothing)
+            mExportQueue.drain();
+            mChartService.drain();
+        }
 
         printOut(1, "DONE!");
     }
@@ -226,6 +256,11 @@ public abstract class Module {
     }
 
     protected void finish() {
+        // Wait until all the CSV files, DB tables and images are written
+        printOut(1, "Waiting for data export to finish...");
+        mExportQueue.drain();
+        mChartService.drain();
+
         // Call finish on each plugin
         // Let's not log this, since this is not used often
         for (Plugin p : mPlugins) {
@@ -373,6 +408,7 @@ public abstract class Module {
             f.delete(); // We must create a new database every time
             mSQLConnection = DriverManager.getConnection("jdbc:sqlite:" + fn);
             if (mSQLConnection != null) {
+                setupSQLConnection(mSQLConnection);
                 mSQLConnection.setAutoCommit(false);
                 addHeaderLine("Note: SQLite report database created as " + fnBase);
             }
@@ -383,6 +419,89 @@ public abstract class Module {
         return mSQLConnection;
     }
 
+    private void setupSQLConnection(Connection conn) {
+        // The database is written only by us and recreated on each run, so there is
+        // no need for a rollback journal and for syncing after each transaction
+        try {
+            Statement stat = conn.createStatement();
+            stat.execute("PRAGMA journal_mode=WAL");
+            stat.execute("PRAGMA synchronous=OFF");
+            stat.close();
+        } catch (SQLException e) {
+            printErr(3, "Failed to configure DB connection: " + e);
+        }
+    }
+
+    /**
+     * Returns the queue used to export data (CSV files, DB tables) on a background thread.
+     * All access to the report database must go through this queue.
+     * @return the export queue
+     */
+    public ExportQueue getExportQueue() {
+        return mExportQueue;
+    }
+
+    /**
+     * Returns the service used to draw and save the chart images on worker threads.
+     * @return the chart service
+     */
+    public ChartService getChartService() {
+        return mChartService;
+    }
+
+    /**
+     * Selects which charts should be saved in vector (svg) format instead of png.
+     * @param types A comma separated list of chart types (for example "gc,ftrace"),
+     * or null or "all" to use the vector format for all the supported charts.
+     */
+    public void setVectorCharts(String types) {
+        mVectorCharts.clear();
+        mAllVectorCharts = false;
+        if (types == null || "all".equals(types)) {
+            mAllVectorCharts = true;
+            return;
+        }
+        for (String type : types.split(",")) {
+            type = type.trim();
+            if (type.length() > 0) {
+                mVectorCharts.add(type);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the charts of the given type should be saved in vector (svg) format.
+     * @param type The chart type
+     */
+    public boolean isVectorChart(String type) {
+        return mAllVectorCharts || mVectorCharts.contains(type);
+    }
+
+    /**
+     * Enable or disable saving the VCD files in gzip format
+     * @param enable If true, the VCD files are compressed (and ".gz" is appended to their names)
+     */
+    public void setVCDCompressed(boolean enable) {
+        mVCDCompressed = enable;
+    }
+
+    public boolean isVCDCompressed() {
+        return mVCDCompressed;
+    }
+
+    /**
+     * Returns the number of rows which are inserted in one batch
+     * when exporting tables into the database
+     * @return the batch size
+     */
+    public int getSQLBatchSize() {
+        return mSQLBatchSize;
+    }
+
+    public void setSQLBatchSize(int size) {
+        mSQLBatchSize = Math.max(1, size);
+    }
+
     public int getBugCount() {
         return mBugs.size();
     }
@@ -391,6 +510,28 @@ public abstract class Module {
         return mBugs.get(idx);
     }
 
+    /**
+     * Enable or disable saving the report in JSON format (in the output folder,
+     * next to index.html), in addition to the html files.
+     * @param enable If true, the JSON file will be generated
+     */
+    public void setJsonExport(boolean enable) {
+        mJsonExport = enable;
+    }
+
+    /**
+     * Enable or disable exporting the traces (ftrace, traceview) in trace event format,
+     * which can be opened in chrome://tracing or Perfetto.
+     * @param enable If true, the trace event files will be generated
+     */
+    public void setTraceEventExport(boolean enable) {
+        mTraceEventExport = enable;
+    }
+
+    public boolean isTraceEventExport() {
+        return mTraceEventExport;
+    }
+
     public void setOutputListener(OutputListener listener) {
         mOutListener = listener;
     }
@@ -37,8 +37,6 @@ import java.util.Vector;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
-
 public class Util {
 
     public static final String COMMON_RES[] = {
@@ -70,6 +68,7 @@ public class Util {
         "/jquery.treeTable.js",
         "/jquery.treeTable.css",
         "/colResizable-1.3.source.js",
+        "/vtable.js",
         "/toggle-collapse-dark.png",
         "/toggle-collapse-light.png",
         "/toggle-expand-dark.png",
@@ -102,6 +101,7 @@ public class Util {
         sJS.add("jquery.tablednd.js");
         sJS.add("jquery.treeTable.js");
         sJS.add("colResizable-1.3.source.js");
+        sJS.add("vtable.js");
         sJS.add("main.js");
     }
 
@@ -251,11 +251,7 @@ public class Util {
         }
 
         // Save the image
-        try {
-            ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        br.getChartService().savePng(fn, img);
 
         return true;
     }
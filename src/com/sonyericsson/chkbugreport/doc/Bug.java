@@ -21,6 +21,7 @@ package com.sonyericsson.chkbugreport.doc;
 
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Map;
 
 public class Bug extends DocNode {
 
@@ -82,6 +83,10 @@ public class Bug extends DocNode {
         return mAttrs.get(key);
     }
 
+    public Iterable<Map.Entry<String, Object>> getAttrs() {
+        return mAttrs.entrySet();
+    }
+
     public static Comparator<? super Bug> getComparator() {
         if (mComparator == null) {
             mComparator = new BugComparator();
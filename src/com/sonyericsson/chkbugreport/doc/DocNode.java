@@ -1,17 +1,22 @@
 package com.sonyericsson.chkbugreport.doc;
 
 import java.io.IOException;
-import java.util.Vector;
+import java.util.ArrayList;
 
 /**
  * The DocNode class represents a piece of text or data from the generated report.
  * It can contain child nodes (for example a list can contain the list items as child nodes).
  * Currently it needs to support html rendering, but in the future it could support other formats
  * as well.
+ *
+ * Most nodes in a report are leaves (texts, anchors, log lines, etc) or have a single child,
+ * so the children are stored lazily: the first child is kept in a field, and the list is
+ * allocated only when a second child is added.
  */
 public class DocNode {
 
-    private Vector<DocNode> mChildren = new Vector<DocNode>();
+    private DocNode mFirstChild = null;
+    private ArrayList<DocNode> mChildren = null;
     private DocNode mParent = null;
 
     public DocNode() {
@@ -24,11 +29,20 @@ public class DocNode {
     }
 
     public int getChildCount() {
-        return mChildren.size();
+        if (mChildren != null) {
+            return mChildren.size();
+        }
+        return mFirstChild == null ? 0 : 1;
     }
 
     public DocNode getChild(int idx) {
-        return mChildren.get(idx);
+        if (mChildren != null) {
+            return mChildren.get(idx);
+        }
+        if (idx != 0 || mFirstChild == null) {
+            throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + getChildCount());
+        }
+        return mFirstChild;
     }
 
     public DocNode getParent() {
@@ -36,7 +50,16 @@ public class DocNode {
     }
 
     public DocNode add(DocNode child) {
-        mChildren.add(child);
+        if (mChildren != null) {
+            mChildren.add(child);
+        } else if (mFirstChild == null) {
+            mFirstChild = child;
+        } else {
+            mChildren = new ArrayList<DocNode>(4);
+            mChildren.add(mFirstChild);
+            mChildren.add(child);
+            mFirstChild = null;
+        }
         child.mParent = this;
         return this;
     }
@@ -56,8 +79,9 @@ public class DocNode {
      * @param r The Renderer
      */
     public void prepare(Renderer r) {
-        for (DocNode child : mChildren) {
-            child.prepare(r);
+        int cnt = getChildCount();
+        for (int i = 0; i < cnt; i++) {
+            getChild(i).prepare(r);
         }
     }
 
@@ -74,21 +98,29 @@ public class DocNode {
      * @param r The Renderer
      */
     protected void renderChildren(Renderer r) throws IOException {
-        for (DocNode child : mChildren) {
-            child.render(r);
+        int cnt = getChildCount();
+        for (int i = 0; i < cnt; i++) {
+            getChild(i).render(r);
         }
     }
 
     public String getText() {
-        StringBuffer sb = new StringBuffer();
-        for (DocNode child : mChildren) {
-            sb.append(child.getText());
+        int cnt = getChildCount();
+        if (cnt == 0) {
+            return "";
+        }
+        if (cnt == 1) {
+            return getChild(0).getText();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < cnt; i++) {
+            sb.append(getChild(i).getText());
         }
         return sb.toString();
     }
 
     public boolean isEmpty() {
-        return mChildren.isEmpty();
+        return getChildCount() == 0;
     }
 
 }
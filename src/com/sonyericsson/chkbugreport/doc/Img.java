@@ -1,5 +1,7 @@
 package com.sonyericsson.chkbugreport.doc;
 
+import com.sonyericsson.chkbugreport.Module;
+
 import java.io.IOException;
 
 public class Img extends DocNode {
@@ -12,6 +14,12 @@ public class Img extends DocNode {
 
     @Override
     public void render(Renderer r) throws IOException {
+        // Charts are saved in the background, don't link them if saving failed
+        Module mod = r.getModule();
+        if (mod != null && !mod.getChartService().waitFor(mFn)) {
+            r.print("<span class=\"hint\">(Failed to create image " + mFn + ")</span>");
+            return;
+        }
         r.print("<img src=\"" + mFn + "\"/>");
     }
 
@@ -0,0 +1,177 @@
+package com.sonyericsson.chkbugreport.doc;
+
+import com.sonyericsson.chkbugreport.Module;
+import com.sonyericsson.chkbugreport.Section;
+import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.util.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Map;
+
+/**
+ * Exports the already rendered document in a structured (JSON) format, so that the report
+ * can be processed by other tools without scraping the html files.
+ *
+ * <p>The output contains the header lines, the list of bugs and the chapter tree. The content
+ * of the chapters is stored as plain text blocks, except the tables, which are exported
+ * with their column titles and cell values.</p>
+ *
+ * <p>The text is streamed through a {@link Renderer} which strips the html tags on the fly,
+ * so the exporter reuses the existing rendering code without creating the html strings.</p>
+ */
+public class JsonExporter {
+
+    private Doc mDoc;
+    private JsonWriter mOut;
+    private JsonTextRenderer mText;
+
+    public JsonExporter(Doc doc) {
+        mDoc = doc;
+    }
+
+    /**
+     * Writes the JSON file. The document must have been prepared/rendered already,
+     * since the links and anchors are resolved in that step.
+     * @param fn The output file name
+     */
+    public void export(String fn) throws IOException {
+        Module mod = mDoc.getModule();
+        mod.printOut(1, "Writing JSON export...");
+        FileOutputStream fos = new FileOutputStream(fn);
+        mOut = new JsonWriter(new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"), 0x10000));
+        mText = new JsonTextRenderer(mod, mOut, true);
+        try {
+            mOut.beginObject();
+            mOut.name("file").value(mDoc.getFileName());
+            mOut.name("version").value(Module.VERSION);
+            mOut.name("versionCode").value(Module.VERSION_CODE);
+            exportBugs(mod);
+            mOut.name("chapters").beginArray();
+            int cnt = mDoc.getChapterCount();
+            for (int i = 0; i < cnt; i++) {
+                exportChapter(mDoc.getChapter(i));
+            }
+            mOut.endArray();
+            mOut.endObject();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void exportBugs(Module mod) throws IOException {
+        mOut.name("bugs").beginArray();
+        int cnt = mod.getBugCount();
+        for (int i = 0; i < cnt; i++) {
+            Bug bug = mod.getBug(i);
+            mOut.beginObject();
+            mOut.name("name").value(Util.stripHtml(bug.getName()));
+            mOut.name("prio").value(bug.getPrio());
+            mOut.name("ts").value(bug.getTimeStamp());
+            mOut.name("attrs").beginObject();
+            for (Map.Entry<String, Object> attr : bug.getAttrs()) {
+                mOut.name(attr.getKey());
+                exportValue(attr.getValue());
+            }
+            mOut.endObject();
+            mOut.name("content");
+            exportContent(bug);
+            mOut.endObject();
+        }
+        mOut.endArray();
+    }
+
+    private void exportValue(Object value) throws IOException {
+        if (value == null) {
+            mOut.nullValue();
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+            mOut.value(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            mOut.value(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            mOut.value(((Boolean) value).booleanValue());
+        } else if (value instanceof Section) {
+            mOut.value(((Section) value).getName());
+        } else {
+            mOut.value(value.toString());
+        }
+    }
+
+    private void exportChapter(Chapter ch) throws IOException {
+        mOut.beginObject();
+        mOut.name("id").value(ch.getId());
+        mOut.name("name").value(ch.getName());
+        String fn = ch.getAnchor().getFileName();
+        if (fn != null) {
+            mOut.name("href").value(fn + "#" + ch.getAnchor().getName());
+        }
+        mOut.name("content");
+        exportContent(ch);
+        int cnt = ch.getChapterCount();
+        if (cnt > 0) {
+            mOut.name("chapters").beginArray();
+            for (int i = 0; i < cnt; i++) {
+                exportChapter(ch.getChapter(i));
+            }
+            mOut.endArray();
+        }
+        mOut.endObject();
+    }
+
+    /**
+     * Exports the child nodes as an array of blocks. Consecutive non-table nodes
+     * are merged into a single text block.
+     */
+    private void exportContent(DocNode node) throws IOException {
+        mOut.beginArray();
+        int cnt = node.getChildCount();
+        for (int i = 0; i < cnt; i++) {
+            DocNode child = node.getChild(i);
+            if (child instanceof Anchor || child instanceof Header) {
+                // These are already described by the chapter itself
+                continue;
+            }
+            if (child instanceof Table) {
+                endText();
+                exportTable((Table) child);
+            } else {
+                beginText();
+                child.render(mText);
+            }
+        }
+        endText();
+        mOut.endArray();
+    }
+
+    private void beginText() throws IOException {
+        if (!mOut.isInString()) {
+            mOut.beginObject();
+            mOut.name("text").beginString();
+        }
+    }
+
+    private void endText() throws IOException {
+        if (mOut.isInString()) {
+            mText.flushEntity();
+            mOut.endString();
+            mOut.endObject();
+        }
+    }
+
+    private void exportTable(Table t) throws IOException {
+        mOut.beginObject();
+        mOut.name("columns").beginArray();
+        int colCnt = t.getColumnCount();
+        for (int i = 0; i < colCnt; i++) {
+            mOut.value(Util.stripHtml(t.getColumnTitle(i)));
+        }
+        mOut.endArray();
+        mOut.name("rows").beginArray();
+        t.writeRows(mOut, mText);
+        mOut.endArray();
+        mOut.endObject();
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.sonyericsson.chkbugreport.doc;
+
+import com.sonyericsson.chkbugreport.Module;
+import com.sonyericsson.chkbugreport.util.JsonWriter;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Renderer which writes the output directly into the currently open JSON string.
+ * Optionally it strips the html tags and decodes the most common html entities,
+ * so only the plain text is written.
+ */
+class JsonTextRenderer implements Renderer {
+
+    private static final int MAX_ENTITY = 8;
+
+    private Module mMod;
+    private JsonWriter mOut;
+    private boolean mStripHtml;
+    private boolean mInTag = false;
+    private char mEntity[] = new char[MAX_ENTITY];
+    private int mEntityLen = -1;
+
+    public JsonTextRenderer(Module mod, JsonWriter out, boolean stripHtml) {
+        mMod = mod;
+        mOut = out;
+        mStripHtml = stripHtml;
+    }
+
+    @Override
+    public Renderer addLevel(Chapter ch) {
+        return this;
+    }
+
+    @Override
+    public int getLevel() {
+        return 1;
+    }
+
+    @Override
+    public void begin() throws FileNotFoundException {
+        // NOP
+    }
+
+    @Override
+    public void end() {
+        // NOP
+    }
+
+    @Override
+    public void print(String string) {
+        if (string == null) return;
+        int len = string.length();
+        for (int i = 0; i < len; i++) {
+            print(string.charAt(i));
+        }
+    }
+
+    @Override
+    public void println(String string) {
+        print(string);
+        print('\n');
+    }
+
+    @Override
+    public void print(long v) {
+        print(Long.toString(v));
+    }
+
+    @Override
+    public void print(char c) {
+        try {
+            if (!mStripHtml) {
+                mOut.stringPart(c);
+            } else if (mInTag) {
+                if (c == '>') {
+                    mInTag = false;
+                }
+            } else if (mEntityLen >= 0) {
+                if (c == ';') {
+                    decodeEntity();
+                } else if (mEntityLen == MAX_ENTITY || !Character.isLetterOrDigit(c) && c != '#') {
+                    flushEntity();
+                    print(c);
+                } else {
+                    mEntity[mEntityLen++] = c;
+                }
+            } else if (c == '<') {
+                mInTag = true;
+            } else if (c == '&') {
+                mEntityLen = 0;
+            } else {
+                mOut.stringPart(c);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes out a pending, unterminated entity as plain text
+     */
+    public void flushEntity() throws IOException {
+        if (mEntityLen >= 0) {
+            mOut.stringPart('&');
+            for (int i = 0; i < mEntityLen; i++) {
+                mOut.stringPart(mEntity[i]);
+            }
+            mEntityLen = -1;
+        }
+        mInTag = false;
+    }
+
+    private void decodeEntity() throws IOException {
+        String name = new String(mEntity, 0, mEntityLen);
+        char c = 0;
+        if ("lt".equals(name)) {
+            c = '<';
+        } else if ("gt".equals(name)) {
+            c = '>';
+        } else if ("amp".equals(name)) {
+            c = '&';
+        } else if ("quot".equals(name)) {
+            c = '"';
+        } else if ("nbsp".equals(name)) {
+            c = ' ';
+        } else if (name.startsWith("#") && name.length() > 1) {
+            try {
+                c = (char) Integer.parseInt(name.substring(1));
+            } catch (NumberFormatException e) {
+                c = 0;
+            }
+        }
+        if (c == 0) {
+            mOut.stringPart('&').stringPart(name).stringPart(';');
+        } else {
+            mOut.stringPart(c);
+        }
+        mEntityLen = -1;
+    }
+
+    @Override
+    public String getFileName() {
+        return null; // Not supported
+    }
+
+    @Override
+    public Renderer getParent() {
+        return null; // Not supported
+    }
+
+    @Override
+    public boolean isStandalone() {
+        return false;
+    }
+
+    @Override
+    public Module getModule() {
+        return mMod;
+    }
+
+    @Override
+    public Chapter getChapter() {
+        return null; // Not supported
+    }
+
+}
@@ -28,6 +28,11 @@ public class Link extends DocNode {
         return this;
     }
 
+    @Override
+    public String getText() {
+        return mText == null ? super.getText() : Util.stripHtml(mText);
+    }
+
     @Override
     public void render(Renderer r) throws IOException {
         r.print("<a href=\"");
@@ -1,5 +1,6 @@
 package com.sonyericsson.chkbugreport.doc;
 
+import com.sonyericsson.chkbugreport.Util;
 
 public class SimpleText extends DocNode {
 
@@ -9,6 +10,11 @@ public class SimpleText extends DocNode {
         mText = text;
     }
 
+    @Override
+    public String getText() {
+        return Util.stripHtml(mText);
+    }
+
     @Override
     public void render(Renderer r) {
         r.print(mText);
@@ -2,25 +2,42 @@ package com.sonyericsson.chkbugreport.doc;
 
 import com.sonyericsson.chkbugreport.Module;
 import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.util.DBTableWriter;
+import com.sonyericsson.chkbugreport.util.ExportQueue;
+import com.sonyericsson.chkbugreport.util.JsonWriter;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Vector;
 
-// FIXME: the data should be exported into CSV/DB in "render" step,
-// when the links are correct
+/**
+ * A table in the report. Optionally the data can be exported into a CSV file and/or
+ * into the report database as well. The export is done on the export thread
+ * (see {@link ExportQueue}), the table only collects and posts the row values.
+ */
 public class Table extends DocNode {
 
     public static final int FLAG_NONE           = 0x0000;
     public static final int FLAG_SORT           = 0x0001;
     public static final int FLAG_COL_RESIZE     = 0x0002;
     public static final int FLAG_DND            = 0x0004;
+    /**
+     * Used for huge tables: the rows are not rendered as html, but saved in a separate
+     * javascript file, and only the visible rows are rendered by the browser.
+     * Sorting and filtering is done by the script as well.
+     */
+    public static final int FLAG_VIRTUAL        = 0x0008;
     public static final int FLAG_ALIGN_RIGHT    = 0x0100;
+    /** An index will be created on this column in the report database */
+    public static final int FLAG_DB_INDEX       = 0x0200;
 
     /* Table information */
     private int mTableFlags;
@@ -33,15 +50,22 @@ public class Table extends DocNode {
     private String mNextRowId;
     private TableBody mBody;
 
-    /* For CSV saving */
+    /* For virtual tables: the cells (html String or DocNode) in row-major order */
+    private ArrayList<Object> mCells;
+    private ArrayList<String> mRowStyles;
+    private int mRowCount;
+    private int mFooterRow = -1;
+    private String mVirtId;
+
+    /* For CSV saving and DB import (the files and DB are accessed only from the export thread) */
+    private ExportQueue mExport;
+    private String mRowValues[];
+    private String mCsvFn;
+    private Module mCsvMod;
     private FileOutputStream mCsvF;
     private PrintStream mCsvOut;
     private int mCsvCol;
-
-    /* For DB import */
-    private Connection mConn;
-    private String mTable;
-    private PreparedStatement mSqlInsert;
+    private DBTableWriter mDb;
     private TableRow mRow;
     private String mStyles = "";
 
@@ -156,12 +180,20 @@ public class Table extends DocNode {
                 r.print("\"");
             }
             r.print(">");
+            renderContent(r);
+            r.print("</td>");
+        }
+
+        /**
+         * Renders only the content of the cell, without the surrounding html tags
+         * @param r The Renderer
+         */
+        public void renderContent(Renderer r) throws IOException {
             if (mText != null) {
                 r.print(mText);
             } else {
                 super.render(r);
             }
-            r.print("</td>");
         }
 
     }
@@ -172,6 +204,9 @@ public class Table extends DocNode {
 
     public Table(int flag) {
         mTableFlags = flag;
+        if (isVirtual()) {
+            mCells = new ArrayList<Object>();
+        }
     }
 
     public Table(int flag, DocNode parent) {
@@ -184,24 +219,21 @@ public class Table extends DocNode {
     public void setCSVOutput(Module br, String csv) {
         if (csv == null) return;
         String fn = br.getRelRawDir() + csv + ".csv";
-        try {
-            mCsvF = new FileOutputStream(br.getBaseDir() + fn);
-            mCsvOut = new PrintStream(mCsvF);
-            new Hint(this)
-                .add("A CSV format version is saved as: ")
-                .add(new Link(fn, fn));
-        } catch (IOException e) {
-            br.printErr(4, "Failed creating CSV file `" + fn + "': " + e);
-            mCsvF = null;
-            mCsvOut = null;
-        }
+        mCsvFn = fn;
+        mCsvMod = br;
+        mExport = br.getExportQueue();
+        new Hint(this)
+            .add("A CSV format version is saved as: ")
+            .add(new Link(fn, fn));
     }
 
     public void setTableName(Module br, String name) {
-        mConn = br.getSQLConnection();
-        if (mConn != null) {
-            mTable = name;
-            new Hint(this).add("A table is created in the report database: " + mTable);
+        mDb = new DBTableWriter(br, name);
+        if (mDb.isValid()) {
+            mExport = br.getExportQueue();
+            new Hint(this).add("A table is created in the report database: " + name);
+        } else {
+            mDb = null;
         }
     }
 
@@ -223,104 +255,92 @@ public class Table extends DocNode {
 
     public void addColumn(String title, String hint, int flag, String dbSpec) {
         mColumns.add(new Column(title, hint, dbSpec, flag));
-        csvField(Util.stripHtml(title));
     }
 
-    public void begin() {
-        TableHeader header = new TableHeader();
-        add(header);
-        mBody = new TableBody();
-        add(mBody);
+    public int getColumnCount() {
+        return mColumns.size();
+    }
 
-        if (0 != (mTableFlags & FLAG_SORT)) {
-            new Hint(this).add("HINT: Click on the headers to sort the data. Shift+click to sort on multiple columns.");
-        }
-        if (0 != (mTableFlags & FLAG_DND)) {
-            new Hint(this).add("HINT: you can drag and move table rows to reorder them!");
-        }
-        mColIdx = 0;
-        csvEOL();
+    public String getColumnTitle(int idx) {
+        return mColumns.get(idx).title;
+    }
 
-        // Create db table as well
-        dbCreate();
+    public boolean isVirtual() {
+        return 0 != (mTableFlags & FLAG_VIRTUAL);
     }
 
-    private void dbCreate() {
-        if (mConn == null) {
-            return;
+    public void begin() {
+        if (isVirtual()) {
+            new Hint(this).add("HINT: This is a large table, only the visible rows are shown. Click on the headers to sort the data, use the filter box to search.");
+        } else {
+            TableHeader header = new TableHeader();
+            add(header);
+            mBody = new TableBody();
+            add(mBody);
+
+            if (0 != (mTableFlags & FLAG_SORT)) {
+                new Hint(this).add("HINT: Click on the headers to sort the data. Shift+click to sort on multiple columns.");
+            }
+            if (0 != (mTableFlags & FLAG_DND)) {
+                new Hint(this).add("HINT: you can drag and move table rows to reorder them!");
+            }
         }
-        try {
-            Statement stat = mConn.createStatement();
-            StringBuffer sqlCreate = new StringBuffer();
-            StringBuffer sqlInsert = new StringBuffer();
-            sqlCreate.append("CREATE TABLE ");
-            sqlCreate.append(mTable);
-            sqlCreate.append(" (");
-            sqlInsert.append("INSERT INTO ");
-            sqlInsert.append(mTable);
-            sqlInsert.append(" VALUES (");
-            for (int i = 0; i < mColumns.size(); i++) {
-                if (i > 0) {
-                    sqlCreate.append(",");
-                    sqlInsert.append(",");
+        mColIdx = 0;
+
+        // Create the CSV file (unless it's created when rendering) and the db table
+        if (mExport != null) {
+            final boolean csv = !isVirtual();
+            mExport.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (csv) {
+                        csvBegin();
+                    }
+                    dbCreate();
                 }
-                sqlCreate.append(mColumns.get(i).dbSpec);
-                sqlInsert.append("?");
-            }
-            sqlCreate.append(")");
-            sqlInsert.append(")");
-            stat.execute(sqlCreate.toString());
-            mSqlInsert = mConn.prepareStatement(sqlInsert.toString());
-        } catch (SQLException e) {
-            e.printStackTrace();
-            dbAbort();
+            });
         }
     }
 
-    private void dbField(int idx, String value) {
-        if (mConn == null) {
+    private void dbCreate() {
+        if (mDb == null) {
             return;
         }
-        try {
-            if (mSqlInsert != null) {
-                mSqlInsert.setString(idx + 1, value);
+        // Columns without explicit specification are named after their title
+        HashSet<String> names = new HashSet<String>();
+        for (int i = 0; i < mColumns.size(); i++) {
+            Column c = mColumns.get(i);
+            String spec = c.dbSpec;
+            if (spec == null) {
+                String name = Util.stripHtml(c.title).toLowerCase().replaceAll("[^a-z0-9]+", "_");
+                name = name.replaceAll("^_+|_+$", "");
+                if (name.length() == 0 || names.contains(name) || Character.isDigit(name.charAt(0))) {
+                    name = "col" + i + (name.length() == 0 ? "" : "_" + name);
+                }
+                spec = name + " varchar";
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            dbAbort();
+            names.add(DBTableWriter.getColumnName(spec));
+            mDb.addColumn(spec, 0 != (c.flag & FLAG_DB_INDEX));
         }
+        mDb.create();
     }
 
-    private void dbEOL() {
-        if (mConn == null) {
-            return;
-        }
-        try {
-            mSqlInsert.addBatch();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            dbAbort();
+    private void dbRow(String values[]) {
+        if (mDb != null) {
+            // The last row might be incomplete, clear the missing cells
+            int cnt = mColumns.size();
+            for (int i = 0; i < cnt; i++) {
+                mDb.setString(i, i < values.length ? values[i] : null);
+            }
+            mDb.endRow();
         }
     }
 
     private void dbEnd() {
-        if (mConn == null) {
-            return;
-        }
-        try {
-            mSqlInsert.executeBatch();
-            mSqlInsert.close();
-            mConn.commit();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (mDb != null) {
+            mDb.finish();
+            mDb = null;
         }
-        dbAbort();
-    }
-
-    private void dbAbort() {
-        mConn = null;
-        mTable = null;
-        mSqlInsert = null;
     }
 
     public void addData(DocNode node) {
@@ -352,9 +372,22 @@ public class Table extends DocNode {
     }
 
     public void addData(String hint, String text, DocNode node, int flag) {
-        String plainText = node == null ? Util.stripHtml(text) : node.getText();
-        csvField(plainText);
-        dbField(mColIdx, plainText);
+        if (mExport != null) {
+            if (mColIdx == 0) {
+                mRowValues = new String[mColumns.size()];
+            }
+            mRowValues[mColIdx] = node == null ? Util.stripHtml(text) : node.getText();
+            if (mColIdx == mColumns.size() - 1) {
+                // Virtual tables write the CSV file from the row buffer when rendering
+                exportRow(mRowValues, !isVirtual(), true);
+                mRowValues = null;
+            }
+        }
+
+        if (isVirtual()) {
+            addVirtualData(text, node);
+            return;
+        }
 
         if (mColIdx == 0) {
             mRow = new TableRow();
@@ -375,21 +408,68 @@ public class Table extends DocNode {
             cell.addStyle("right");
         }
         mColIdx = (mColIdx + 1) % mColumns.size();
+        mEmpty = false;
+    }
+
+    private void addVirtualData(String text, DocNode node) {
         if (mColIdx == 0) {
-            csvEOL();
-            dbEOL();
+            if (mNextRowStyle != null) {
+                if (mRowStyles == null) {
+                    mRowStyles = new ArrayList<String>();
+                }
+                while (mRowStyles.size() < mRowCount) {
+                    mRowStyles.add(null);
+                }
+                mRowStyles.add(mNextRowStyle);
+                mNextRowStyle = null;
+            }
+            mNextRowId = null; // Not supported
+            mRowCount++;
         }
+        mCells.add(node == null ? text : node);
+        mColIdx = (mColIdx + 1) % mColumns.size();
         mEmpty = false;
     }
 
     public void addSeparator() {
+        if (isVirtual()) {
+            // The rows after the last separator are kept at the bottom of the table
+            mFooterRow = mRowCount;
+            return;
+        }
         mBody = new TableBody();
         add(mBody);
     }
 
+    private void exportRow(final String values[], final boolean csv, final boolean db) {
+        mExport.post(new Runnable() {
+            @Override
+            public void run() {
+                if (csv) {
+                    csvRow(values);
+                }
+                if (db) {
+                    dbRow(values);
+                }
+            }
+        });
+    }
+
     public void end() {
-        csvEnd();
-        dbEnd();
+        if (mExport != null) {
+            if (mRowValues != null) {
+                // The table ended in the middle of a row, export the cells added so far
+                exportRow(Arrays.copyOf(mRowValues, mColIdx), !isVirtual(), true);
+                mRowValues = null;
+            }
+            mExport.post(new Runnable() {
+                @Override
+                public void run() {
+                    csvEnd();
+                    dbEnd();
+                }
+            });
+        }
     }
 
     public void setNextRowStyle(String style) {
@@ -405,6 +485,31 @@ public class Table extends DocNode {
         return mEmpty;
     }
 
+    private void csvBegin() {
+        if (mCsvFn == null) return;
+        try {
+            mCsvF = new FileOutputStream(mCsvMod.getBaseDir() + mCsvFn);
+            mCsvOut = new PrintStream(new BufferedOutputStream(mCsvF));
+        } catch (IOException e) {
+            mCsvMod.printErr(4, "Failed creating CSV file `" + mCsvFn + "': " + e);
+            mCsvF = null;
+            mCsvOut = null;
+            return;
+        }
+        for (Column c : mColumns) {
+            csvField(Util.stripHtml(c.title));
+        }
+        csvEOL();
+    }
+
+    private void csvRow(String values[]) {
+        if (mCsvOut == null) return;
+        for (String value : values) {
+            csvField(value);
+        }
+        csvEOL();
+    }
+
     private void csvField(String text) {
         if (mCsvOut == null) return;
         if (mCsvCol > 0) {
@@ -427,13 +532,162 @@ public class Table extends DocNode {
         try {
             mCsvOut.close();
             mCsvF.close();
+            mCsvOut = null;
+            mCsvF = null;
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes the cells of each row as an array of JSON strings.
+     * @param out The JSON writer where the rows are written
+     * @param r The renderer used to render the cell content into the JSON strings
+     */
+    void writeRows(JsonWriter out, JsonTextRenderer r) throws IOException {
+        if (isVirtual()) {
+            int colCnt = mColumns.size();
+            int cnt = mCells.size();
+            for (int i = 0; i < cnt; i++) {
+                if (i % colCnt == 0) {
+                    if (i > 0) {
+                        out.endArray();
+                    }
+                    out.beginArray();
+                }
+                Object cell = mCells.get(i);
+                out.beginString();
+                if (cell instanceof DocNode) {
+                    ((DocNode) cell).render(r);
+                } else if (cell != null) {
+                    r.print((String) cell);
+                }
+                r.flushEntity();
+                out.endString();
+            }
+            if (cnt > 0) {
+                out.endArray();
+            }
+            return;
+        }
+        int cnt = getChildCount();
+        for (int i = 0; i < cnt; i++) {
+            DocNode body = getChild(i);
+            if (!(body instanceof TableBody)) continue;
+            int rowCnt = body.getChildCount();
+            for (int j = 0; j < rowCnt; j++) {
+                DocNode row = body.getChild(j);
+                out.beginArray();
+                int cellCnt = row.getChildCount();
+                for (int k = 0; k < cellCnt; k++) {
+                    out.beginString();
+                    ((TableCell) row.getChild(k)).renderContent(r);
+                    r.flushEntity();
+                    out.endString();
+                }
+                out.endArray();
+            }
+        }
+    }
+
+    @Override
+    public void prepare(Renderer r) {
+        super.prepare(r);
+        if (isVirtual()) {
+            mVirtId = String.format("vtbl%05d", r.getModule().allocTableId());
+            for (Object cell : mCells) {
+                if (cell instanceof DocNode) {
+                    ((DocNode) cell).prepare(r);
+                }
+            }
+        }
+    }
+
+    private void renderVirtual(Renderer r) throws IOException {
+        Module mod = r.getModule();
+        String fn = mVirtId + ".js";
+        FileOutputStream fos = new FileOutputStream(mod.getBaseDir() + fn);
+        Writer w = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"), 0x10000);
+        w.write("vtableAdd(\"" + mVirtId + "\",");
+        JsonWriter out = new JsonWriter(w);
+        out.beginObject();
+        out.name("cls").value(mStyles);
+        out.name("cols").beginArray();
+        for (Column c : mColumns) {
+            out.value(c.title);
+        }
+        out.endArray();
+        out.name("right").beginArray();
+        for (Column c : mColumns) {
+            out.value(0 != (c.flag & FLAG_ALIGN_RIGHT));
+        }
+        out.endArray();
+        out.name("rows").beginArray();
+        writeRows(out, new JsonTextRenderer(mod, out, false));
+        out.endArray();
+        if (mRowStyles != null) {
+            out.name("styles").beginArray();
+            for (String style : mRowStyles) {
+                out.value(style);
+            }
+            out.endArray();
+        }
+        out.name("footer").value(mFooterRow < 0 ? 0 : mRowCount - mFooterRow);
+        out.endObject();
+        w.write(");\n");
+        out.close();
+
+        // Render the hints and the placeholder, the script will do the rest
+        super.render(r);
+        r.println("<div class=\"vtable\" id=\"" + mVirtId + "\"></div>");
+        r.println("<script type=\"text/javascript\" src=\"" + fn + "\"></script>");
+
+        virtualCsv();
+    }
+
+    private void virtualCsv() {
+        if (mCsvFn == null) return;
+        mExport.post(new Runnable() {
+            @Override
+            public void run() {
+                csvBegin();
+            }
+        });
+        int colCnt = mColumns.size();
+        int cnt = mCells.size();
+        String values[] = null;
+        for (int i = 0; i < cnt; i++) {
+            if (i % colCnt == 0) {
+                values = new String[colCnt];
+            }
+            Object cell = mCells.get(i);
+            if (cell instanceof DocNode) {
+                values[i % colCnt] = ((DocNode) cell).getText();
+            } else {
+                values[i % colCnt] = cell == null ? "" : Util.stripHtml((String) cell);
+            }
+            if ((i + 1) % colCnt == 0) {
+                exportRow(values, true, false);
+            }
+        }
+        if (cnt % colCnt != 0) {
+            // The last row is not complete
+            exportRow(Arrays.copyOf(values, cnt % colCnt), true, false);
+        }
+        mExport.post(new Runnable() {
+            @Override
+            public void run() {
+                csvEnd();
+            }
+        });
+    }
+
     @Override
     public void render(Renderer r) throws IOException {
+        if (isVirtual()) {
+            renderVirtual(r);
+            return;
+        }
         String tblCls = mStyles;
         if (0 != (mTableFlags & FLAG_SORT)) {
             tblCls += " tablesorter";
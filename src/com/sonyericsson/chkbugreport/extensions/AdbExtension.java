@@ -1,6 +1,7 @@
 package com.sonyericsson.chkbugreport.extensions;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.Client;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.RawImage;
@@ -9,8 +10,11 @@ import com.sonyericsson.chkbugreport.Extension;
 import com.sonyericsson.chkbugreport.Main;
 import com.sonyericsson.chkbugreport.Module;
 import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.traceview.TraceModule;
 
+import java.awt.GraphicsEnvironment;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -25,10 +29,9 @@ public class AdbExtension extends Extension {
                 BugReportModule br = (BugReportModule)report;
                 loadFromADB(br, fileName);
                 return Main.RET_TRUE; // Done
-//            } else if (mode == Main.MODE_TRACEVIEW) { // FIXME
-//                TraceReport tr = (TraceReport)report;
-//                new TraceUI(tr, fileName).run();
-//                return Main.RET_WAIT; // Do not exit yet, GUI still running
+            } else if (mode == Main.MODE_TRACEVIEW) {
+                TraceModule tr = (TraceModule)report;
+                return loadTraceFromADB(tr, fileName) ? Main.RET_TRUE : Main.RET_FALSE;
             }
         }
 
@@ -107,6 +110,52 @@ public class AdbExtension extends Extension {
         AndroidDebugBridge.terminate();
     }
 
+    /**
+     * Captures a method trace from a process running on the device, and loads it
+     * directly from memory. The process is either specified in the file name
+     * ("adb://processname" or "adb://pid", then the profiling is stopped when Enter is
+     * pressed), or it's selected in a small window ("adb://").
+     */
+    public boolean loadTraceFromADB(TraceModule tr, String fileName) throws IOException {
+        String procName = fileName.substring(6); // strip "adb://"
+        TraceCapture capture = new TraceCapture(tr);
+        byte data[] = null;
+        try {
+            capture.connect();
+            if (procName.length() == 0 && !GraphicsEnvironment.isHeadless()) {
+                data = new TraceUI(capture).run();
+            } else {
+                Client client = procName.length() == 0 ? null : capture.findClient(procName);
+                if (client == null) {
+                    String reason = procName.length() == 0 ? "No process specified" : "Process '" + procName + "' not found";
+                    tr.printErr(1, reason + ", use adb://<name> or adb://<pid> with one of the following:");
+                    for (Client c : capture.getClients()) {
+                        tr.printErr(1, "  " + TraceCapture.getName(c) + " (" + c.getClientData().getPid() + ")");
+                    }
+                    return false;
+                }
+                capture.start(client);
+                tr.printOut(1, "Profiling " + TraceCapture.getName(client) + ", press Enter to stop ...");
+                int c;
+                do {
+                    c = System.in.read();
+                } while (c != '\n' && c != -1);
+                data = capture.stop();
+            }
+        } finally {
+            // Close the ADB connection
+            capture.disconnect();
+        }
+        if (data == null) {
+            return false; // Cancelled
+        }
+
+        // Now generate a filename
+        tr.setFileName("adb_" + Util.createTimeStamp() + ".trace");
+        tr.load(new ByteArrayInputStream(data));
+        return tr.isLoaded();
+    }
+
     private BufferedImage convertImage(RawImage img) {
         int w = img.width;
         int h = img.height;
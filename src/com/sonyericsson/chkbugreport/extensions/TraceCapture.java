@@ -0,0 +1,276 @@
+package com.sonyericsson.chkbugreport.extensions;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.Client;
+import com.android.ddmlib.ClientData;
+import com.android.ddmlib.ClientData.IMethodProfilingHandler;
+import com.android.ddmlib.ClientData.MethodProfilingStatus;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import com.sonyericsson.chkbugreport.Module;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * Captures a method trace of a debuggable process through ADB (using ddmlib).
+ *
+ * <p>The trace is received in memory: newer VMs stream the trace data directly through
+ * the debugger connection. Older VMs save it in a file on the device, in that case it's
+ * pulled from the device and read back.</p>
+ *
+ * <p>The ADB server is reached through the usual port (or the one specified in the
+ * ANDROID_ADB_SERVER_PORT environment variable), so this works with any server speaking
+ * the ADB protocol, not only with the real one.</p>
+ */
+public class TraceCapture implements IMethodProfilingHandler {
+
+    /* How long to wait for the device and the process to respond (in ms) */
+    private static final int TIMEOUT = 10000;
+    private static final int POLL_INTERVAL = 100;
+
+    private Module mMod;
+    private IDevice mDev;
+    private Client mClient;
+    private byte mData[];
+    private String mRemoteFile;
+    private String mError;
+    private boolean mDone;
+
+    public TraceCapture(Module mod) {
+        mMod = mod;
+    }
+
+    /**
+     * Connects to the ADB server, and waits until the debuggable processes of the
+     * device are known
+     */
+    public void connect() throws IOException {
+        AndroidDebugBridge.init(true);
+        AndroidDebugBridge adb = AndroidDebugBridge.createBridge();
+        if (adb == null) {
+            throw new IOException("Failed connecting to adb. Maybe you need to run it from the command line first.");
+        }
+
+        // Now find a device
+        long until = System.currentTimeMillis() + TIMEOUT;
+        while (!adb.hasInitialDeviceList() && System.currentTimeMillis() < until) {
+            sleep();
+        }
+        IDevice[] devs = adb.getDevices();
+        if (devs == null || devs.length == 0) {
+            throw new IOException("No ADB device found.");
+        }
+        if (devs.length > 1) {
+            throw new IOException("Too many ADB devices found.");
+        }
+        mDev = devs[0];
+
+        // The processes are reported asynchronously, and their names arrive even later
+        until = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < until) {
+            if (mDev.hasClients() && allClientsKnown()) break;
+            sleep();
+        }
+        ClientData.setMethodProfilingHandler(this);
+    }
+
+    private boolean allClientsKnown() {
+        for (Client c : mDev.getClients()) {
+            if (c.getClientData().getClientDescription() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Disconnects from the ADB server
+     */
+    public void disconnect() {
+        AndroidDebugBridge.terminate();
+    }
+
+    /**
+     * Returns the debuggable processes which support method profiling, sorted by name
+     */
+    public Vector<Client> getClients() {
+        Vector<Client> ret = new Vector<Client>();
+        for (Client c : mDev.getClients()) {
+            if (c.isValid() && c.getClientData().hasFeature(ClientData.FEATURE_PROFILING)) {
+                ret.add(c);
+            }
+        }
+        Collections.sort(ret, new Comparator<Client>() {
+            @Override
+            public int compare(Client o1, Client o2) {
+                return getName(o1).compareTo(getName(o2));
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Finds a debuggable process
+     * @param name The name or the pid of the process
+     * @return The process or null if not found
+     */
+    public Client findClient(String name) {
+        for (Client c : getClients()) {
+            if (name.equals(c.getClientData().getClientDescription())
+                    || name.equals(Integer.toString(c.getClientData().getPid()))) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the process (or the pid if the name is not known)
+     */
+    public static String getName(Client c) {
+        String name = c.getClientData().getClientDescription();
+        return name == null ? "pid " + c.getClientData().getPid() : name;
+    }
+
+    /**
+     * Starts the method profiling in the given process
+     */
+    public void start(Client c) throws IOException {
+        synchronized (this) {
+            mClient = c;
+            mData = null;
+            mRemoteFile = null;
+            mError = null;
+            mDone = false;
+        }
+        mMod.printOut(1, "Starting method profiling in " + getName(c) + " ...");
+        c.toggleMethodProfiling();
+
+        // Wait until the process confirms it
+        long until = System.currentTimeMillis() + TIMEOUT;
+        while (c.getClientData().getMethodProfilingStatus() != MethodProfilingStatus.ON) {
+            synchronized (this) {
+                if (mError != null) {
+                    throw new IOException("Failed to start method profiling: " + mError);
+                }
+            }
+            if (System.currentTimeMillis() > until) {
+                throw new IOException("Timeout while starting method profiling in " + getName(c));
+            }
+            sleep();
+        }
+    }
+
+    /**
+     * Stops the method profiling and waits for the trace data
+     * @return The content of the trace file
+     */
+    public byte[] stop() throws IOException {
+        mMod.printOut(1, "Stopping method profiling in " + getName(mClient) + " ...");
+        mClient.toggleMethodProfiling();
+        synchronized (this) {
+            // Transferring a big trace can take a while, so no timeout as long as the process is alive
+            while (!mDone && mClient.isValid()) {
+                try {
+                    wait(POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Keep waiting
+                }
+            }
+            if (mError != null) {
+                throw new IOException("Failed to stop method profiling: " + mError);
+            }
+            if (mData == null && mRemoteFile == null) {
+                throw new IOException("The process died before sending the trace data");
+            }
+        }
+        if (mData == null) {
+            // The VM doesn't support streaming, so fetch the trace file from the device
+            mMod.printOut(1, "Fetching " + mRemoteFile + " from device ...");
+            mData = pull(mRemoteFile);
+        }
+        mMod.printOut(1, "Received " + mData.length + " bytes of trace data");
+        return mData;
+    }
+
+    @Override
+    public void onSuccess(byte[] data, Client client) {
+        synchronized (this) {
+            if (client != mClient) return;
+            mData = data;
+            mDone = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onSuccess(String remoteFilePath, Client client) {
+        synchronized (this) {
+            if (client != mClient) return;
+            mRemoteFile = remoteFilePath;
+            mDone = true;
+            notifyAll();
+        }
+    }
+
+    private byte[] pull(String remoteFilePath) throws IOException {
+        // The sync service can save only to a file
+        File tmp = File.createTempFile("chkbugreport", ".trace");
+        try {
+            SyncService ss = mDev.getSyncService();
+            if (ss == null) {
+                throw new IOException("Cannot open sync connection to the device");
+            }
+            try {
+                ss.pullFile(remoteFilePath, tmp.getAbsolutePath(), SyncService.getNullProgressMonitor());
+            } finally {
+                ss.close();
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            FileInputStream is = new FileInputStream(tmp);
+            byte buff[] = new byte[0x10000];
+            int read;
+            while ((read = is.read(buff)) > 0) {
+                os.write(buff, 0, read);
+            }
+            is.close();
+            return os.toByteArray();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Cannot fetch " + remoteFilePath + ": " + e);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Override
+    public void onStartFailure(Client client, String message) {
+        onFailure(client, message);
+    }
+
+    @Override
+    public void onEndFailure(Client client, String message) {
+        onFailure(client, message);
+    }
+
+    private synchronized void onFailure(Client client, String message) {
+        if (client != mClient) return;
+        mError = message == null ? "unknown error" : message;
+        mDone = true;
+        notifyAll();
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(POLL_INTERVAL);
+        } catch (InterruptedException e) { }
+    }
+
+}
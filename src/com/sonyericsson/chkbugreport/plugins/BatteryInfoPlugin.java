@@ -45,14 +45,10 @@ import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
-
 public class BatteryInfoPlugin extends Plugin {
 
     private static final String TAG = "[BatteryInfoPlugin]";
@@ -315,13 +311,7 @@ public class BatteryInfoPlugin extends Plugin {
             }
 
             // Finish and save the graph
-            String fn = "batteryhistory.png";
-            try {
-                ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
-            }
+            String fn = br.getChartService().savePng("batteryhistory.png", img);
 
             // Add the graph
             Chapter cch = new Chapter(br, "Battery History");
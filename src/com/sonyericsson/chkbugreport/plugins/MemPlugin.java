@@ -42,14 +42,11 @@ import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Vector;
 
-import javax.imageio.ImageIO;
-
 /*
  * Note: some of the explanation is taken from: http://www.redhat.com/advice/tips/meminfo.html
  */
@@ -272,7 +269,6 @@ public class MemPlugin extends Plugin {
         }
         t.end();
 
-
         // Create some nice chart about it as well
         BufferedImage img = new BufferedImage(IW, IH, BufferedImage.TYPE_INT_RGB);
         Graphics2D g = (Graphics2D)img.getGraphics();
@@ -322,13 +318,8 @@ public class MemPlugin extends Plugin {
         g.drawString("overview", 10, 10 + fm.getAscent() + fm.getHeight());
 
         // Save the chart
-        try {
-            String fn = "meminfo.png";
-            ImageIO.write(img, "png", new File(mod.getBaseDir() + fn));
-            ch.add(new Block().add(new Img(fn)));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        String fn = mod.getChartService().savePng("meminfo.png", img);
+        ch.add(new Block().add(new Img(fn)));
 
         mainCh.addChapter(ch);
     }
@@ -830,7 +821,7 @@ public class MemPlugin extends Plugin {
             ret.add(list.fileAnchor);
         }
 
-        Table t = new Table(Table.FLAG_SORT);
+        Table t = new Table(standalone ? Table.FLAG_VIRTUAL : Table.FLAG_SORT);
         ret.add(t);
         t.addColumn("Memory", Table.FLAG_NONE);
         t.addColumn("VSS (KB)", Table.FLAG_ALIGN_RIGHT);
@@ -887,5 +878,4 @@ public class MemPlugin extends Plugin {
         return mTotMem;
     }
 
-
 }
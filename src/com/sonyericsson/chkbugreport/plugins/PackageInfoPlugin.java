@@ -351,12 +351,12 @@ public class PackageInfoPlugin extends Plugin {
         // Create a ToC for the packages
         new Para(ch).add("Installed packages:");
 
-        Table tg = new Table(Table.FLAG_SORT, ch);
+        Table tg = new Table(Table.FLAG_VIRTUAL, ch);
         tg.setCSVOutput(br, "package_list");
         tg.setTableName(br, "package_list");
         tg.addColumn("Package", null, Table.FLAG_NONE, "pkg varchar");
         tg.addColumn("Path", null, Table.FLAG_NONE, "path varchar");
-        tg.addColumn("UID", null, Table.FLAG_ALIGN_RIGHT, "uid int");
+        tg.addColumn("UID", null, Table.FLAG_ALIGN_RIGHT | Table.FLAG_DB_INDEX, "uid int");
         tg.addColumn("Flags", null, Table.FLAG_ALIGN_RIGHT, "flags int");
         tg.begin();
 
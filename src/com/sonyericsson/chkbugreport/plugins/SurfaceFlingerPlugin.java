@@ -40,14 +40,10 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Stroke;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.util.HashSet;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
-import javax.imageio.ImageIO;
-
 public class SurfaceFlingerPlugin extends Plugin {
 
     private static final String TAG = "[SurfaceFlingerPlugin]";
@@ -297,7 +293,6 @@ public class SurfaceFlingerPlugin extends Plugin {
         generateLogs(br, mainCh, "MainLogPlugin");
     }
 
-
     private void generateLogs(Module br, Chapter mainCh, String pluginName) {
         LogPlugin plugin = (LogPlugin)br.getPlugin(pluginName);
         if (plugin == null) return;
@@ -404,7 +399,7 @@ public class SurfaceFlingerPlugin extends Plugin {
 
         // Save the image
         String fn = "sf_layer_all_" + opacity + ".png";
-        endPng(br.getBaseDir() + fn);
+        endPng(br, fn);
         return fn;
     }
 
@@ -446,7 +441,7 @@ public class SurfaceFlingerPlugin extends Plugin {
 
         // Save the image
         String fn = "sf_layer_" + Integer.toHexString(l.hashCode()) + "_" + Integer.toHexString(reg.hashCode()) + ".png";
-        endPng(br.getBaseDir() + fn);
+        endPng(br, fn);
         return fn;
     }
 
@@ -474,12 +469,10 @@ public class SurfaceFlingerPlugin extends Plugin {
         mG.drawRect(0, 0, mWidth - 1, mHeight - 1);
     }
 
-    private void endPng(String fn) {
-        try {
-            ImageIO.write(mImg, "png", new File(fn));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private void endPng(Module br, String fn) {
+        br.getChartService().savePng(fn, mImg);
+        mImg = null;
+        mG = null;
     }
 
     private void calcScaleFactor() {
@@ -2,10 +2,14 @@ package com.sonyericsson.chkbugreport.plugins.ftrace;
 
 public class Const {
 
+    /** The number of possible pids (the pids are between 0 and MAX_PID - 1) */
+    public static final int MAX_PID = 65536;
+
     // Event types
     public static final int UNKNOWN = 0;
     public static final int WAKEUP = 1;
     public static final int SWITCH = 2;
+    public static final int MIGRATE = 3;
 
     // Process states
     public static final int STATE_SLEEP = 0;
@@ -0,0 +1,312 @@
+package com.sonyericsson.chkbugreport.plugins.ftrace;
+
+import com.sonyericsson.chkbugreport.util.ChartCanvas;
+
+import java.awt.Color;
+
+/**
+ * Collects the per CPU statistics: the utilization (how long the CPU was running
+ * something else than the idle task) and the run queue occupancy (how many processes
+ * were running or waiting on the CPU), both in total and per pixel column of the
+ * timeline charts.
+ *
+ * <p>The run queue of each process is followed through the context switches, the
+ * wakeups (which queue the process on the target CPU) and the migrations. The processes
+ * which were running or waiting before the trace started are unknown until they appear
+ * in an event, so the run queue length can be underestimated at the beginning of the
+ * trace. The utilization is exact, since the process running on a CPU before its first
+ * context switch is known from the switch itself (and the time is accounted afterwards).</p>
+ *
+ * <p>The memory used doesn't depend on the length of the trace, so this works in
+ * streaming mode as well.</p>
+ */
+public class CpuCollector implements TraceListener {
+
+    private static final short NO_CPU = -1;
+
+    private static final int COL_BUSY = 0xff0000;
+    private static final int COL_RQ_AVG = 0xff0000;
+    private static final int COL_RQ_MAX = 0x800000;
+
+    /* The collected data of one CPU */
+    static class CpuStat {
+        int cpu;
+        /* The pid of the running process, or -1 if not known yet */
+        int running = -1;
+        /* The time until which the data is collected */
+        long lastTime;
+        /* The number of processes running or waiting on this CPU (without the idle task) */
+        int rqLen;
+        int rqMax;
+        long rqArea;
+        long busyTime;
+        int switches;
+        int wakeups;
+        /* The same per pixel column */
+        long busyCol[];
+        long rqAreaCol[];
+        int rqMaxCol[];
+    }
+
+    private int mWidth;
+    private long mStartTime;
+    private long mDuration;
+    private FTraceData mData;
+    private CpuStat mCpus[] = new CpuStat[0];
+    /* The CPU on which the process is running or waiting, or NO_CPU if it's sleeping */
+    private short mQueue[] = new short[Const.MAX_PID];
+
+    /**
+     * Creates a new collector
+     * @param w The width of the timeline charts
+     * @param data The trace data, used to find out the number of CPUs
+     * @param startTime The time of the first event
+     * @param duration The duration of the trace
+     */
+    public CpuCollector(int w, FTraceData data, long startTime, long duration) {
+        mWidth = w;
+        mData = data;
+        mStartTime = startTime;
+        mDuration = duration;
+        for (int i = 0; i < Const.MAX_PID; i++) {
+            mQueue[i] = NO_CPU;
+        }
+    }
+
+    private CpuStat getCpu(int cpu) {
+        if (cpu >= mCpus.length) {
+            CpuStat tmp[] = new CpuStat[cpu + 1];
+            System.arraycopy(mCpus, 0, tmp, 0, mCpus.length);
+            mCpus = tmp;
+        }
+        CpuStat c = mCpus[cpu];
+        if (c == null) {
+            c = new CpuStat();
+            c.cpu = cpu;
+            c.lastTime = mStartTime;
+            c.busyCol = new long[mWidth];
+            c.rqAreaCol = new long[mWidth];
+            c.rqMaxCol = new int[mWidth];
+            mCpus[cpu] = c;
+        }
+        return c;
+    }
+
+    @Override
+    public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        if (event == Const.SWITCH) {
+            CpuStat c = getCpu(cpu);
+            if (c.running < 0) {
+                // First switch on this CPU: the previous process was running since the beginning
+                if (prevPid != 0) {
+                    account(c, mStartTime, c.lastTime, true, 0);
+                }
+                c.running = prevPid;
+            }
+            advance(c, time);
+            c.switches++;
+            // The previous process stays in the run queue only if it was preempted
+            if (prevPid != 0) {
+                if (prevState == 'R') {
+                    enqueue(prevPid, cpu, time);
+                } else {
+                    dequeue(prevPid, time);
+                }
+            }
+            if (nextPid != 0) {
+                enqueue(nextPid, cpu, time);
+            }
+            c.running = nextPid;
+        } else if (event == Const.WAKEUP) {
+            getCpu(cpu).wakeups++;
+            if (nextPid != 0) {
+                enqueue(nextPid, cpu, time);
+            }
+        } else if (event == Const.MIGRATE) {
+            // Only the processes in a run queue are moved, the sleeping ones will be queued by the wakeup
+            if (nextPid != 0 && mQueue[nextPid] != NO_CPU) {
+                enqueue(nextPid, cpu, time);
+            }
+        }
+    }
+
+    @Override
+    public void onNrRunWaitAdjusted(int delta) {
+        // NOP
+    }
+
+    /**
+     * Puts the process in the run queue of the given CPU, removing it from the
+     * previous one (if any)
+     */
+    private void enqueue(int pid, int cpu, long time) {
+        int old = mQueue[pid];
+        if (old == cpu) return;
+        if (old != NO_CPU) {
+            CpuStat o = getCpu(old);
+            advance(o, time);
+            o.rqLen--;
+        }
+        CpuStat c = getCpu(cpu);
+        advance(c, time);
+        c.rqLen++;
+        c.rqMax = Math.max(c.rqMax, c.rqLen);
+        mQueue[pid] = (short)cpu;
+    }
+
+    /**
+     * Removes the process from the run queue it's in (if any)
+     */
+    private void dequeue(int pid, long time) {
+        int old = mQueue[pid];
+        if (old == NO_CPU) return;
+        CpuStat o = getCpu(old);
+        advance(o, time);
+        o.rqLen--;
+        mQueue[pid] = NO_CPU;
+    }
+
+    /**
+     * Accounts the time since the last change of the CPU state, using the current state.
+     * Until the first context switch the CPU is considered idle, see {@link #onEvent}.
+     */
+    private void advance(CpuStat c, long time) {
+        long from = c.lastTime;
+        if (time <= from) return;
+        c.lastTime = time;
+        account(c, from, time, c.running > 0, c.rqLen);
+    }
+
+    /**
+     * Adds the busy time and the run queue length of the given time interval to the
+     * collected data
+     */
+    private void account(CpuStat c, long from, long time, boolean busy, int rqLen) {
+        if (time <= from) return;
+        if (busy) {
+            c.busyTime += time - from;
+        }
+        c.rqArea += rqLen * (time - from);
+        int x0 = getColumn(from);
+        int x1 = getColumn(time);
+        for (int x = x0; x <= x1; x++) {
+            long dt = Math.min(time, getColumnStart(x + 1)) - Math.max(from, getColumnStart(x));
+            if (dt <= 0) continue;
+            if (busy) {
+                c.busyCol[x] += dt;
+            }
+            c.rqAreaCol[x] += rqLen * dt;
+            c.rqMaxCol[x] = Math.max(c.rqMaxCol[x], rqLen);
+        }
+    }
+
+    private int getColumn(long time) {
+        int x = (int)((time - mStartTime) * mWidth / mDuration);
+        return Math.max(0, Math.min(mWidth - 1, x));
+    }
+
+    private long getColumnStart(int x) {
+        return mStartTime + x * mDuration / mWidth;
+    }
+
+    /**
+     * Finishes the data collection: accounts the time until the end of the trace.
+     * Must be called after the last event.
+     */
+    public void end() {
+        // Make sure that every CPU exists, even the ones seen only in migrations
+        if (mData.getCpuCount() > 0) {
+            getCpu(mData.getCpuCount() - 1);
+        }
+        for (int i = 0; i < mCpus.length; i++) {
+            advance(getCpu(i), mStartTime + mDuration);
+        }
+    }
+
+    /**
+     * Returns the number of CPUs
+     */
+    public int getCpuCount() {
+        return mCpus.length;
+    }
+
+    CpuStat getStat(int cpu) {
+        return mCpus[cpu];
+    }
+
+    /**
+     * Returns the longest run queue of all the CPUs
+     */
+    public int getMaxRunQueue() {
+        int ret = 0;
+        for (CpuStat c : mCpus) {
+            ret = Math.max(ret, c.rqMax);
+        }
+        return ret;
+    }
+
+    /**
+     * Draws the utilization chart of a CPU: the height of each column is proportional
+     * to the time the CPU was busy. This can be called from any thread after {@link #end()}.
+     * @param g The canvas to draw on
+     * @param cpu The CPU number
+     */
+    public void drawUtilization(ChartCanvas g, int cpu) {
+        CpuStat c = mCpus[cpu];
+        int h = g.getHeight();
+        int heights[] = new int[mWidth];
+        for (int x = 0; x < mWidth; x++) {
+            long colDur = getColumnStart(x + 1) - getColumnStart(x);
+            heights[x] = colDur <= 0 ? 0 : (int)(c.busyCol[x] * h / colDur);
+        }
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, g.getWidth(), h);
+        g.setColor(new Color(COL_BUSY));
+        drawBars(g, heights);
+    }
+
+    /**
+     * Draws the run queue chart of a CPU: the dark bars show the maximum, the bright
+     * bars the average length of the run queue in each column. This can be called from
+     * any thread after {@link #end()}.
+     * @param g The canvas to draw on
+     * @param cpu The CPU number
+     * @param max The run queue length matching the full height of the chart
+     */
+    public void drawRunQueue(ChartCanvas g, int cpu, int max) {
+        CpuStat c = mCpus[cpu];
+        int h = g.getHeight();
+        max = Math.max(1, max);
+        int maxHeights[] = new int[mWidth];
+        int avgHeights[] = new int[mWidth];
+        for (int x = 0; x < mWidth; x++) {
+            long colDur = getColumnStart(x + 1) - getColumnStart(x);
+            maxHeights[x] = c.rqMaxCol[x] * h / max;
+            avgHeights[x] = colDur <= 0 ? 0 : (int)(c.rqAreaCol[x] * h / colDur / max);
+        }
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, g.getWidth(), h);
+        g.setColor(new Color(COL_RQ_MAX));
+        drawBars(g, maxHeights);
+        g.setColor(new Color(COL_RQ_AVG));
+        drawBars(g, avgHeights);
+    }
+
+    /**
+     * Draws the bars from the bottom of the chart. Consecutive columns with the same
+     * height are drawn as one shape.
+     */
+    private void drawBars(ChartCanvas g, int heights[]) {
+        int h = g.getHeight();
+        int x = 0;
+        while (x < mWidth) {
+            int end = x + 1;
+            while (end < mWidth && heights[end] == heights[x]) end++;
+            if (heights[x] > 0) {
+                g.fillRect(x, h - heights[x], end - x, heights[x]);
+            }
+            x = end;
+        }
+    }
+
+}
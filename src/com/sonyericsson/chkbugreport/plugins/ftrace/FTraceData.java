@@ -9,18 +9,22 @@ import java.util.Vector;
 
 public class FTraceData {
 
-    private static final int MAX_PID = 65535;
+    /** The maximum number of events kept in the java heap, the rest is stored in a temporary file */
+    private static final int MAX_HEAP_EVENTS = 4 * 1024 * 1024;
 
-    private FTraceProcessRecord mPids[] = new FTraceProcessRecord[MAX_PID];
+    private FTraceProcessRecord mPids[] = new FTraceProcessRecord[Const.MAX_PID];
 
-    private int mLastProcId = 0;
+    private TraceStore mTrace;
+    private TraceListener mListener;
 
-    private TraceRecord mHead = null;
-    private TraceRecord mTail = null;
+    /* The number of CPUs seen in the trace, and the number of migrations per CPU */
+    private int mCpuCount = 0;
+    private int mMigrationsIn[] = new int[0];
+    private int mMigrationsOut[] = new int[0];
 
     public FTraceData(BugReportModule br) {
         getProc(0, br).name = "SLEEP";
-        mHead = mTail = new TraceRecord(0, 0, 0, 'S', 'S', 0);
+        mTrace = new TraceStore(br, MAX_HEAP_EVENTS);
     }
 
     public void setProcName(int pid, String s, BugReportModule br) {
@@ -30,6 +34,14 @@ public class FTraceData {
         }
     }
 
+    /**
+     * Returns true if the name of the process is already known, so there is no need
+     * to extract it again from the trace
+     */
+    public boolean hasProcName(int pid) {
+        return mPids[pid] != null && mPids[pid].name != null;
+    }
+
     public FTraceProcessRecord getProc(int pid) {
         return mPids[pid];
     }
@@ -74,18 +86,6 @@ public class FTraceData {
         return getProc(pid, br).getName();
     }
 
-    public String genId() {
-        StringBuffer sb = new StringBuffer();
-        int tmp = mLastProcId;
-        do {
-            sb.append((char)('A' + (tmp % 26)));
-            tmp /= 26;
-        } while (tmp > 0);
-
-        mLastProcId++;
-        return sb.toString();
-    }
-
     public int updateNr(FTraceProcessRecord proc, int newState, boolean newPid, char newCState, boolean guessInitState) {
         int ret = 0;
         int oldState = proc.state;
@@ -116,31 +116,93 @@ public class FTraceData {
         return ret;
     }
 
+    /**
+     * Sets the listener which receives the events directly, instead of storing them.
+     * This is used when the trace is streamed, so only the listener can collect data.
+     */
+    public void setListener(TraceListener listener) {
+        mListener = listener;
+    }
+
     public void incNrRunWait(int delta) {
-        TraceRecord cur = mHead.next;
-        while (cur != null) {
-            cur.nrRunWait += delta;
-            cur = cur.next;
+        if (mListener != null) {
+            mListener.onNrRunWaitAdjusted(delta);
+        } else {
+            mTrace.incNrRunWait(delta);
         }
     }
 
-    public void append(TraceRecord data) {
-        mTail.next = data;
-        mTail = data;
+    public void append(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        useCpu(cpu);
+        if (mListener != null) {
+            mListener.onEvent(time, cpu, prevPid, nextPid, prevState, nextState, event, nrRunWait);
+        } else {
+            mTrace.add(time, cpu, prevPid, nextPid, prevState, nextState, event, nrRunWait);
+        }
+    }
+
+    /**
+     * Counts a task migration (the event itself must be appended as well, with the
+     * destination CPU, so the listeners can follow the run queues)
+     */
+    public void addMigration(int origCpu, int destCpu) {
+        useCpu(origCpu);
+        useCpu(destCpu);
+        mMigrationsOut[origCpu]++;
+        mMigrationsIn[destCpu]++;
+    }
+
+    private void useCpu(int cpu) {
+        if (cpu >= mCpuCount) {
+            mCpuCount = cpu + 1;
+            if (mCpuCount > mMigrationsIn.length) {
+                int size = Math.max(mCpuCount, 2 * mMigrationsIn.length);
+                mMigrationsIn = grow(mMigrationsIn, size);
+                mMigrationsOut = grow(mMigrationsOut, size);
+            }
+        }
+    }
+
+    private static int[] grow(int arr[], int size) {
+        int ret[] = new int[size];
+        System.arraycopy(arr, 0, ret, 0, arr.length);
+        return ret;
+    }
+
+    /**
+     * Returns the number of CPUs (the highest CPU number seen in the trace + 1)
+     */
+    public int getCpuCount() {
+        return mCpuCount;
+    }
+
+    public int getMigrationsIn(int cpu) {
+        return mMigrationsIn[cpu];
+    }
+
+    public int getMigrationsOut(int cpu) {
+        return mMigrationsOut[cpu];
     }
 
     public long getDuration() {
-        return (mTail.time - mHead.next.time);
+        return (mTrace.getTime(mTrace.size() - 1) - mTrace.getTime(0));
+    }
+
+    public TraceStore getTrace() {
+        return mTrace;
     }
 
-    public TraceRecord getFirstTraceRecord() {
-        return mHead.next;
+    /**
+     * Releases the trace data (including the temporary file, if any)
+     */
+    public void dispose() {
+        mTrace.close();
     }
 
     public Vector<FTraceProcessRecord> sort() {
         // Collect process statistics
         Vector<FTraceProcessRecord> list = new Vector<FTraceProcessRecord>();
-        for (int i = 0; i < 65535; i++) {
+        for (int i = 0; i < Const.MAX_PID; i++) {
             if (mPids[i] != null && mPids[i].used > 0) {
                 list.add(mPids[i]);
             }
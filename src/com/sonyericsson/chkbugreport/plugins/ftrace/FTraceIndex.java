@@ -0,0 +1,281 @@
+package com.sonyericsson.chkbugreport.plugins.ftrace;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * Index over the trace which answers how much time a process spent running, waiting
+ * and in disk (uninterruptible) sleep inside any time window, without processing the
+ * trace again.
+ *
+ * <p>The trace is split into fixed size time buckets (at most {@link #MAX_BUCKETS}). For
+ * each process only the buckets in which it was not sleeping are stored, together with
+ * the cumulated times up to and including that bucket, so a query needs only a binary
+ * search at both ends of the window. The time inside the partially covered buckets at the
+ * ends of the window is interpolated, so the result is exact up to the bucket size
+ * (see {@link #getResolution()}).</p>
+ *
+ * <p>The index is built while receiving the events, and it's saved as meta info
+ * ({@link FTracePlugin#META_INDEX}), so other plugins can use it after the ftrace plugin
+ * has run. The states are followed the same way as for the process statistics, except
+ * that the time before the first and after the last event of a process is included as well.</p>
+ */
+public class FTraceIndex implements TraceListener {
+
+    /** The maximum number of time buckets */
+    public static final int MAX_BUCKETS = 16384;
+
+    /* The indexes of the stored times */
+    private static final int RUN = 0;
+    private static final int WAIT = 1;
+    private static final int DISK = 2;
+
+    /** The time spent by a process in each state in a time window */
+    public static class Usage {
+        public int pid;
+        public String name;
+        public long runTime;
+        public long waitTime;
+        public long diskTime;
+    }
+
+    /* The non empty buckets of a process, with the cumulated times */
+    private static class Series {
+        int count;
+        int buckets[] = new int[16];
+        long cum[][] = new long[3][16];
+
+        void add(int bucket, int type, long dt) {
+            if (count == 0 || buckets[count - 1] != bucket) {
+                if (count == buckets.length) {
+                    int tmp[] = new int[count * 2];
+                    System.arraycopy(buckets, 0, tmp, 0, count);
+                    buckets = tmp;
+                    for (int i = 0; i < 3; i++) {
+                        long tmpCum[] = new long[count * 2];
+                        System.arraycopy(cum[i], 0, tmpCum, 0, count);
+                        cum[i] = tmpCum;
+                    }
+                }
+                buckets[count] = bucket;
+                for (int i = 0; i < 3; i++) {
+                    cum[i][count] = count == 0 ? 0 : cum[i][count - 1];
+                }
+                count++;
+            }
+            cum[type][count - 1] += dt;
+        }
+
+        /**
+         * Returns the number of buckets stored before the given one
+         */
+        int find(int bucket) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (buckets[mid] < bucket) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private FTraceData mData;
+    private long mStartTime;
+    private long mEndTime;
+    private long mBucketSize;
+    private Series mSeries[] = new Series[Const.MAX_PID];
+    /* The current state of each process, and since when it's in that state (-1 if not seen yet) */
+    private byte mStates[] = new byte[Const.MAX_PID];
+    private long mSince[] = new long[Const.MAX_PID];
+
+    /**
+     * Creates a new index
+     * @param data The trace data, used to look up the names and the initial states of the processes
+     * @param startTime The time of the first event
+     * @param duration The duration of the trace
+     */
+    public FTraceIndex(FTraceData data, long startTime, long duration) {
+        mData = data;
+        mStartTime = startTime;
+        mEndTime = startTime + duration;
+        mBucketSize = Math.max(1, (duration + MAX_BUCKETS - 1) / MAX_BUCKETS);
+        for (int i = 0; i < Const.MAX_PID; i++) {
+            mSince[i] = -1;
+        }
+    }
+
+    @Override
+    public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        if (event == Const.MIGRATE) {
+            // Doesn't change the state of the process
+            return;
+        }
+        if (event == Const.SWITCH) {
+            setState(prevPid, Const.calcPrevState(prevState), time);
+        }
+        setState(nextPid, event == Const.WAKEUP ? Const.STATE_WAIT : Const.STATE_RUN, time);
+    }
+
+    @Override
+    public void onNrRunWaitAdjusted(int delta) {
+        // NOP
+    }
+
+    private void setState(int pid, int state, long time) {
+        if (mSince[pid] < 0) {
+            // First time we see this process, it was in its initial state since the beginning
+            FTraceProcessRecord pr = mData.getProc(pid);
+            mStates[pid] = (byte)(pr == null ? Const.STATE_SLEEP : pr.initState);
+            mSince[pid] = mStartTime;
+        }
+        if (mStates[pid] != state) {
+            account(pid, mStates[pid], mSince[pid], time);
+            mStates[pid] = (byte)state;
+            mSince[pid] = time;
+        }
+    }
+
+    private void account(int pid, int state, long from, long to) {
+        int type;
+        if (state == Const.STATE_RUN) {
+            type = RUN;
+        } else if (state == Const.STATE_WAIT) {
+            type = WAIT;
+        } else if (state == Const.STATE_DISK) {
+            type = DISK;
+        } else {
+            return;
+        }
+        if (to <= from) return;
+        Series s = mSeries[pid];
+        if (s == null) {
+            s = mSeries[pid] = new Series();
+        }
+        int b0 = getBucket(from);
+        int b1 = getBucket(to - 1);
+        for (int b = b0; b <= b1; b++) {
+            long dt = Math.min(to, getBucketStart(b + 1)) - Math.max(from, getBucketStart(b));
+            if (dt > 0) {
+                s.add(b, type, dt);
+            }
+        }
+    }
+
+    /**
+     * Finishes the index: accounts the time until the end of the trace.
+     * Must be called after the last event.
+     */
+    public void end() {
+        for (int pid = 0; pid < Const.MAX_PID; pid++) {
+            if (mSince[pid] >= 0) {
+                account(pid, mStates[pid], mSince[pid], mEndTime);
+                mSince[pid] = mEndTime;
+            }
+        }
+    }
+
+    private int getBucket(long time) {
+        long b = (time - mStartTime) / mBucketSize;
+        return (int)Math.max(0, Math.min(MAX_BUCKETS, b));
+    }
+
+    private long getBucketStart(int bucket) {
+        return mStartTime + bucket * mBucketSize;
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    /**
+     * Returns the size of the time buckets, i.e. the precision of the queries (in us)
+     */
+    public long getResolution() {
+        return mBucketSize;
+    }
+
+    /**
+     * Returns the time spent by the process in the given state from the beginning of the
+     * trace until the given time
+     */
+    private long getCumulated(Series s, int type, long time) {
+        if (time <= mStartTime) return 0;
+        if (time >= mEndTime) {
+            return s.count == 0 ? 0 : s.cum[type][s.count - 1];
+        }
+        int b = getBucket(time);
+        int pos = s.find(b);
+        long ret = pos == 0 ? 0 : s.cum[type][pos - 1];
+        if (pos < s.count && s.buckets[pos] == b) {
+            // Interpolate inside the bucket
+            long start = getBucketStart(b);
+            long size = Math.min(mBucketSize, mEndTime - start);
+            long inBucket = s.cum[type][pos] - ret;
+            ret += inBucket * (time - start) / size;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the time the process spent running, waiting and in disk sleep in the
+     * given time window.
+     * @param pid The pid of the process
+     * @param from The start of the window (trace time, in us)
+     * @param to The end of the window (trace time, in us)
+     * @return The collected times, or null if the process was sleeping all the time
+     */
+    public Usage query(int pid, long from, long to) {
+        Series s = mSeries[pid];
+        if (s == null || to <= from) return null;
+        Usage ret = new Usage();
+        ret.pid = pid;
+        FTraceProcessRecord pr = mData.getProc(pid);
+        ret.name = pr == null ? Integer.toString(pid) : pr.getName();
+        ret.runTime = getCumulated(s, RUN, to) - getCumulated(s, RUN, from);
+        ret.waitTime = getCumulated(s, WAIT, to) - getCumulated(s, WAIT, from);
+        ret.diskTime = getCumulated(s, DISK, to) - getCumulated(s, DISK, from);
+        if (ret.runTime == 0 && ret.waitTime == 0 && ret.diskTime == 0) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the usage of all the processes (except the idle task) which were not
+     * sleeping all the time in the given time window, sorted by the run time (and wait
+     * time) in descending order.
+     * @param from The start of the window (trace time, in us)
+     * @param to The end of the window (trace time, in us)
+     * @return The list of process usages
+     */
+    public Vector<Usage> queryAll(long from, long to) {
+        Vector<Usage> ret = new Vector<Usage>();
+        for (int pid = 1; pid < Const.MAX_PID; pid++) {
+            Usage u = query(pid, from, to);
+            if (u != null) {
+                ret.add(u);
+            }
+        }
+        Collections.sort(ret, new Comparator<Usage>() {
+            @Override
+            public int compare(Usage o1, Usage o2) {
+                if (o1.runTime < o2.runTime) return 1;
+                if (o1.runTime > o2.runTime) return -1;
+                if (o1.waitTime < o2.waitTime) return 1;
+                if (o1.waitTime > o2.waitTime) return -1;
+                return o1.pid - o2.pid;
+            }
+        });
+        return ret;
+    }
+
+}
@@ -35,23 +35,31 @@ import com.sonyericsson.chkbugreport.doc.ProcessLink;
 import com.sonyericsson.chkbugreport.doc.ShadedValue;
 import com.sonyericsson.chkbugreport.doc.Table;
 import com.sonyericsson.chkbugreport.ps.PSRecord;
+import com.sonyericsson.chkbugreport.util.ChartCanvas;
+import com.sonyericsson.chkbugreport.util.ChartService;
 
 import java.awt.Color;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Vector;
 
-import javax.imageio.ImageIO;
-
 public class FTracePlugin extends Plugin {
 
     public static final String TAG = "[FTracePlugin]";
 
+    /** The chart type of the per process trace charts (see Module.setVectorCharts) */
+    public static final String CHART_TRACE = "ftrace";
+
+    /** The meta info containing the name of the file to stream the trace from (instead of the section) */
+    public static final String META_STREAM_FILE = "ftrace-stream";
+
+    /** The meta info containing the time window index of the trace (see {@link FTraceIndex}) */
+    public static final String META_INDEX = "ftrace-index";
+
     private static final int TRACE_W = 600;
     private static final int TRACE_H = 24;
 
@@ -76,28 +84,107 @@ public class FTracePlugin extends Plugin {
     public void generate(Module rep) {
         BugReportModule br = (BugReportModule)rep;
 
-        // Locate the ftrace section
+        // Locate the ftrace section (or the file to stream it from)
         Section ftrace = br.findSection(Section.FTRACE);
-        if (ftrace == null) {
+        String streamFile = (String)br.getMetaInfo(META_STREAM_FILE);
+        if (ftrace == null && streamFile == null) {
             br.printErr(3, TAG + "Cannot find section: " + Section.FTRACE);
             return;
         }
 
-        OldParser parser = new OldParser(br, this);
-        FTraceData data = parser.parse(ftrace);
-        if (data == null) {
-            NewParser newParser = new NewParser(br, this);
-            data = newParser.parse(ftrace);
+        // Parse the trace, and process the events: generate the VCD file, collect the statistics
+        // and render the charts
+        FTraceData data;
+        long duration;
+        VCDGenerator vcdGen = new VCDGenerator(br);
+        TraceRasterizer raster;
+        RunWaitCollector runWait;
+        CpuCollector cpus;
+        FTraceIndex index;
+        TraceEventExporter events = null;
+        if (br.isTraceEventExport()) {
+            events = new TraceEventExporter(br);
         }
-        if (data == null) {
-            // Give up
-            return;
+        if (streamFile != null) {
+            // In streaming mode the events are processed while parsing, without storing them
+            NewParser parser = new NewParser(br, this);
+            long range[] = null;
+            try {
+                range = parser.scanTimeRange(streamFile);
+            } catch (IOException e) {
+                br.printErr(3, TAG + "Cannot read trace file " + streamFile + ": " + e);
+                return;
+            }
+            if (range == null) {
+                br.printErr(3, TAG + "No sched events found in the trace!");
+                return;
+            }
+            long startTime = range[0];
+            duration = range[1] - startTime;
+            data = new FTraceData(br);
+            raster = new TraceRasterizer(TRACE_W, data, startTime, duration);
+            runWait = new RunWaitCollector(TRACE_W, startTime, duration);
+            cpus = new CpuCollector(TRACE_W, data, startTime, duration);
+            index = new FTraceIndex(data, startTime, duration);
+            vcdGen.begin(data, startTime, true);
+            if (events != null && !events.begin(data, startTime)) {
+                events = null;
+            }
+            data.setListener(multiplex(vcdGen, raster, runWait, cpus, index, events));
+            try {
+                data = parser.parseStream(streamFile, data);
+            } catch (IOException e) {
+                br.printErr(3, TAG + "Error reading trace file " + streamFile + ": " + e);
+                data = null;
+            }
+            vcdGen.end();
+            if (events != null && !events.end(range[1])) {
+                events = null;
+            }
+            if (data == null) {
+                return;
+            }
+            cpus.end();
+            index.end();
+        } else {
+            OldParser parser = new OldParser(br, this);
+            data = parser.parse(ftrace);
+            if (data == null) {
+                NewParser newParser = new NewParser(br, this);
+                data = newParser.parse(ftrace);
+            }
+            if (data == null) {
+                // Give up
+                return;
+            }
+            TraceStore trace = data.getTrace();
+            if (trace.size() == 0) {
+                br.printErr(3, TAG + "No sched events found in the trace!");
+                data.dispose();
+                return;
+            }
+            long startTime = trace.getTime(0);
+            duration = data.getDuration();
+            raster = new TraceRasterizer(TRACE_W, data, startTime, duration);
+            runWait = new RunWaitCollector(TRACE_W, startTime, duration);
+            cpus = new CpuCollector(TRACE_W, data, startTime, duration);
+            index = new FTraceIndex(data, startTime, duration);
+            vcdGen.begin(data, startTime, false);
+            if (events != null && !events.begin(data, startTime)) {
+                events = null;
+            }
+            trace.replay(multiplex(vcdGen, raster, runWait, cpus, index, events));
+            vcdGen.end();
+            if (events != null && !events.end(startTime + duration)) {
+                events = null;
+            }
+            cpus.end();
+            index.end();
+            data.dispose();
         }
-        long duration = data.getDuration();
-
-        VCDGenerator vcdGen = new VCDGenerator(br);
-        vcdGen.execute(data);
 
+        // Let the other plugins query the trace
+        br.addMetaInfo(META_INDEX, index);
 
         // Map ftrace process records to bugreport process records
         Vector<FTraceProcessRecord> list = data.sort();
@@ -129,6 +216,11 @@ public class FTracePlugin extends Plugin {
         new Hint(ch)
             .add("VCD file saved as (you can use GTKWave to open it): ")
             .add(new Link(vcdGen.getFileName(), vcdGen.getFileName()));
+        if (events != null) {
+            new Hint(ch)
+                .add("Trace event file saved as (you can open it in chrome://tracing or Perfetto): ")
+                .add(new Link(events.getFileName(), events.getFileName()));
+        }
 
         Table t = beginStatTbl(ch, br, duration, true, true, 0);
         for (FTraceProcessRecord pr : list) {
@@ -140,10 +232,17 @@ public class FTracePlugin extends Plugin {
         ch = new Chapter(br, "Trace");
         main.addChapter(ch);
         t = beginTraceTbl(ch, br, duration, true, true, true);
+        final TraceRasterizer fRaster = raster;
         for (FTraceProcessRecord pr : list) {
-            // Create the trace image
-            String png = "ftrace_" + pr.pid + ".png";
-            createTracePng(br.getBaseDir() + png, pr, data.getFirstTraceRecord(), duration);
+            // Create the trace image (the collected data is not modified anymore, so it can be drawn in parallel)
+            final FTraceProcessRecord fpr = pr;
+            ChartCanvas canvas = ChartCanvas.create(br, CHART_TRACE, TRACE_W, TRACE_H);
+            br.getChartService().submit(getTraceChartName(br, pr), canvas, new ChartService.Job() {
+                @Override
+                public void draw(ChartCanvas c) {
+                    fRaster.draw(c, fpr);
+                }
+            });
             // Add the table row
             addTraceTblRow(br, t, pr, true);
         }
@@ -177,11 +276,45 @@ public class FTracePlugin extends Plugin {
         // Create the parallel-histogrram
         ch = new Chapter(br, "Parallel process histogram");
         main.addChapter(ch);
-        createParallelHist(ch, br, data.getFirstTraceRecord(), duration, TRACE_W);
+        createParallelHist(ch, br, runWait, duration, TRACE_W);
+
+        // Create the per CPU statistics
+        ch = new Chapter(br, "CPU statistics");
+        main.addChapter(ch);
+        createCpuStats(ch, br, data, cpus, duration);
 
         br.addChapter(main);
     }
 
+    /**
+     * Creates a listener which passes the events to all the given listeners (null
+     * listeners are skipped)
+     */
+    private static TraceListener multiplex(TraceListener... all) {
+        Vector<TraceListener> tmp = new Vector<TraceListener>();
+        for (TraceListener l : all) {
+            if (l != null) {
+                tmp.add(l);
+            }
+        }
+        final TraceListener listeners[] = tmp.toArray(new TraceListener[tmp.size()]);
+        return new TraceListener() {
+            @Override
+            public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+                for (TraceListener l : listeners) {
+                    l.onEvent(time, cpu, prevPid, nextPid, prevState, nextState, event, nrRunWait);
+                }
+            }
+
+            @Override
+            public void onNrRunWaitAdjusted(int delta) {
+                for (TraceListener l : listeners) {
+                    l.onNrRunWaitAdjusted(delta);
+                }
+            }
+        };
+    }
+
     private DocNode makeProcName(BugReportModule br, FTraceProcessRecord pr, boolean addLink) {
         DocNode ret = new DocNode();
 
@@ -210,7 +343,8 @@ public class FTracePlugin extends Plugin {
             csv += "_pid_" + pid;
         }
 
-        Table t = new Table(Table.FLAG_SORT, ch);
+        // The global statistics contain every thread, which can be a huge list
+        Table t = new Table(pid == 0 ? Table.FLAG_VIRTUAL : Table.FLAG_SORT, ch);
         t.setCSVOutput(br, csv);
         t.setTableName(br, csv);
         t.addColumn("Name", Table.FLAG_NONE);
@@ -294,9 +428,12 @@ public class FTracePlugin extends Plugin {
     }
 
     private void addTraceTblRow(BugReportModule br, Table t, FTraceProcessRecord pr, boolean addLink) {
-        String png = "ftrace_" + pr.pid + ".png";
         t.addData(makeProcName(br, pr, addLink));
-        t.addData(new Img(png));
+        t.addData(new Img(getTraceChartName(br, pr)));
+    }
+
+    private String getTraceChartName(Module br, FTraceProcessRecord pr) {
+        return "ftrace_" + pr.pid + "." + ChartCanvas.getExtension(br, CHART_TRACE);
     }
 
     private String getParallelChartName() {
@@ -313,137 +450,108 @@ public class FTracePlugin extends Plugin {
         return mTimeBarName;
     }
 
-    private void createTracePng(String fileName, FTraceProcessRecord pr, TraceRecord head, long duration) {
-        // Setup initial data
-        int w = TRACE_W;
-        int h = TRACE_H;
-        long startTime = head.time;
-        int pid = pr.pid;
-        int lastState = 'S';
-        if (pr.initState == Const.STATE_RUN) {
-            lastState = 'R';
-        } else if (pr.initState == Const.STATE_DISK) {
-            lastState = 'D';
-        }
-        int lastX = 0;
+    private void createCpuStats(Chapter ch, BugReportModule br, FTraceData data, final CpuCollector cpus, long duration) {
+        int cnt = cpus.getCpuCount();
+        new Para(ch)
+            .add("Per CPU statistics (total trace duration: ")
+            .add(new ShadedValue(duration))
+            .add("us). The run queue contains the processes running or waiting on the CPU, the idle task is not counted:");
 
-        // Create the empty image
-        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = (Graphics2D)img.getGraphics();
-        g.setColor(Color.BLACK);
-        g.fillRect(0, 0, w, h);
+        Table t = new Table(Table.FLAG_SORT, ch);
+        t.setCSVOutput(br, "ftrace_cpu_stat");
+        t.setTableName(br, "ftrace_cpu_stat");
+        t.addColumn("CPU", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Busy time (us)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Utilization (%)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Context switches", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Wakeups", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Migrations in", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Migrations out", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Avg. run queue", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Max. run queue", Table.FLAG_ALIGN_RIGHT);
+        t.begin();
+        for (int i = 0; i < cnt; i++) {
+            CpuCollector.CpuStat c = cpus.getStat(i);
+            t.addData(i);
+            t.addData(new ShadedValue(c.busyTime));
+            t.addData(String.format("%3.1f", (c.busyTime * 100.0 / duration)));
+            t.addData(c.switches);
+            t.addData(c.wakeups);
+            t.addData(data.getMigrationsIn(i));
+            t.addData(data.getMigrationsOut(i));
+            t.addData(String.format("%3.2f", (c.rqArea * 1.0 / duration)));
+            t.addData(c.rqMax);
+        }
+        t.end();
 
-        // Render the trace
-        Color darkRed = new Color(0x800000);
-        Color darkCyan = new Color(0x008080);
-        while (head != null) {
-            if (head.prevPid == pid) {
-                // This process was switched away, render something
-                int x = (int)((head.time - startTime) * w / duration);
-                if (lastX != -1) {
-                    if (lastX == x) {
-                        g.setColor(darkRed);
-                        g.fillRect(lastX, 0, 1, h);
-                    } else {
-                        g.setColor(Color.RED);
-                        g.fillRect(lastX + 1, 0, x - lastX + 1, h);
-                    }
+        // Create the timelines
+        final int maxRq = cpus.getMaxRunQueue();
+        new Para(ch)
+            .add("Per CPU timelines: the utilization, and the average (bright) and maximum (dark) run queue length (full height: ")
+            .add("" + maxRq)
+            .add(" processes):");
+        t = new Table(Table.FLAG_DND, ch);
+        t.addColumn("Name", Table.FLAG_NONE);
+        t.addColumn("Trace", Table.FLAG_NONE);
+        t.begin();
+        String fnTimeBar = getTimeBarName(br, duration);
+        if (fnTimeBar != null) {
+            t.addData("Relative time");
+            t.addData(new Img(fnTimeBar));
+        }
+        String ext = ChartCanvas.getExtension(br, CHART_TRACE);
+        for (int i = 0; i < cnt; i++) {
+            final int cpu = i;
+            String fn = "ftrace_cpu" + i + "_util." + ext;
+            br.getChartService().submit(fn, ChartCanvas.create(br, CHART_TRACE, TRACE_W, TRACE_H), new ChartService.Job() {
+                @Override
+                public void draw(ChartCanvas c) {
+                    cpus.drawUtilization(c, cpu);
                 }
-                lastX = x;
-                lastState = head.prevState;
-            }
-            if (head.nextPid == pid) {
-                // This process was resumed (or at least woken up),
-                int x = (int)((head.time - startTime) * w / duration);
-                if (lastX != -1) {
-                    if (lastState == 'D') {
-                        g.setColor(Color.YELLOW);
-                        g.drawLine(lastX, h/2, x, h/2);
-                    } else if (lastState == 'R' && pid != 0) {
-                        if (lastX == x) {
-                            g.setColor(darkCyan);
-                            g.fillRect(lastX, 0, 1, h);
-                        } else {
-                            g.setColor(Color.CYAN);
-                            g.fillRect(lastX + 1, 0, x - lastX + 1, h);
-                        }
-                    }
+            });
+            t.addData("CPU " + i + " utilization");
+            t.addData(new Img(fn));
+            fn = "ftrace_cpu" + i + "_runq." + ext;
+            br.getChartService().submit(fn, ChartCanvas.create(br, CHART_TRACE, TRACE_W, TRACE_H), new ChartService.Job() {
+                @Override
+                public void draw(ChartCanvas c) {
+                    cpus.drawRunQueue(c, cpu, maxRq);
                 }
-                lastX = x;
-                lastState = head.nextState;
-            }
-            head = head.next;
-        }
-
-        // Save the image
-        try {
-            ImageIO.write(img, "png", new File(fileName));
-        } catch (IOException e) {
-            e.printStackTrace();
+            });
+            t.addData("CPU " + i + " run queue");
+            t.addData(new Img(fn));
         }
+        t.end();
     }
 
-    private void createParallelHist(Chapter ch, BugReportModule br, TraceRecord head, long duration, int w) {
+    private void createParallelHist(Chapter ch, BugReportModule br, RunWaitCollector runWait, long duration, int w) {
         // Setup initial data
-        int max = 16;
-        long durations[] = new long[max];
-        int count = 0;
-        int maxUsed = 0;
-        long startTime = head.time;
-        long lastTime = head.time;
-        int lastX = 0;
+        int max = RunWaitCollector.MAX;
+        long durations[] = runWait.getDurations();
+        int maxUsed = runWait.getMaxUsed();
 
         // Create the empty image
         int stepSize = 8;
         int h = stepSize * max;
         BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        int minNr[] = newIntArr(w, Integer.MAX_VALUE);
-        int maxNr[] = newIntArr(w, 0);
         Graphics2D g = (Graphics2D)img.getGraphics();
         g.setColor(Color.BLACK);
         g.fillRect(0, 0, w, h);
         g.setColor(Color.RED);
 
-        // Process the trace
-        while (head != null) {
-            long now = head.time;
-
-            int newCount = head.nrRunWait;
-            if (newCount != count) {
-                int x = (int)((head.time - startTime) * w / duration);
-                fillMinMax(lastX, x, count, minNr, maxNr);
-                lastX = x;
-
-                // We need to add the duration with the previous count
-                long dur = now - lastTime;
-                lastTime = now;
-                int idx = count;
-                if (idx >= max) {
-                    idx = max-1;
-                }
-                if (idx > maxUsed) {
-                    maxUsed = idx;
-                }
-                durations[idx] += dur;
-
-                // And only now we update the count to the new value
-                count = newCount;
-            }
-
-            head = head.next;
-        }
-
         // Now do the actuall rendering
         Color cmin = new Color(0xff0000);
         Color cmax = new Color(0x800000);
         for (int i = 0; i < w; i++) {
-            if (minNr[i] > maxNr[i]) {
+            int minNr = runWait.getMinNr(i);
+            int maxNr = runWait.getMaxNr(i);
+            if (minNr > maxNr) {
                 // Skip -> no data
                 continue;
             }
-            int ymin = h - 1 - stepSize * minNr[i];
+            int ymin = h - 1 - stepSize * minNr;
             if (ymin < 0) ymin = 0;
-            int ymax = h - 1 - stepSize * maxNr[i];
+            int ymax = h - 1 - stepSize * maxNr;
             if (ymax < 0) ymax = 0;
             g.setColor(cmin);
             g.fillRect(i, ymin, 1, h - ymin);
@@ -476,11 +584,7 @@ public class FTracePlugin extends Plugin {
         }
 
         // Save the image
-        try {
-            ImageIO.write(img, "png", new File(br.getBaseDir() + getParallelChartName()));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        br.getChartService().savePng(getParallelChartName(), img);
 
         // Create the histogram image
         int hw = 400, hh = 400, hmax = 350;
@@ -536,33 +640,8 @@ public class FTracePlugin extends Plugin {
         // Draw the title
         g.drawString("Parallel process histogram", 10, 10 + fm.getAscent());
 
-        try {
-            ImageIO.write(img, "png", new File(br.getBaseDir() + fnHist));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        br.getChartService().savePng(fnHist, img);
 
     }
 
-    private int[] newIntArr(int size, int defValue) {
-        int ret[] = new int[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = defValue;
-        }
-        return ret;
-    }
-
-    private void fillMinMax(int from, int to, int value, int[] minNr, int[] maxNr) {
-        from = Math.max(0, from);
-        to = Math.min(minNr.length - 1, to);
-        for (int i = from; i <= to; i++) {
-            if (value < minNr[i]) {
-                minNr[i] = value;
-            }
-            if (value > maxNr[i]) {
-                maxNr[i] = value;
-            }
-        }
-    }
-
 }
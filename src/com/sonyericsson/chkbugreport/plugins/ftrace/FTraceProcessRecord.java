@@ -7,7 +7,7 @@ public class FTraceProcessRecord {
     int pid;
     String name;
     int used;
-    String id;
+    int vcdId = -1;
     int state = Const.STATE_SLEEP;
     long lastTime;
     long runTime;
@@ -3,15 +3,64 @@ package com.sonyericsson.chkbugreport.plugins.ftrace;
 import com.sonyericsson.chkbugreport.BugReportModule;
 import com.sonyericsson.chkbugreport.Section;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 
+/**
+ * Parser for the newer ftrace format (used by the "nop" tracer with the sched events enabled).
+ *
+ * <p>The lines are scanned by hand, without using regular expressions or creating
+ * temporary strings for every field: the numbers are parsed directly from the line,
+ * the timestamp is converted to microseconds using fixed point arithmetic, and the
+ * event names are matched against the known names in place.</p>
+ */
 public class NewParser extends Parser {
 
     private static final String NO_PROC_NAME = "<...>";
 
+    /* The CPU number is stored in one byte, see TraceStore */
+    private static final int MAX_CPU = 256;
+
+    private static final int EV_SWITCH = 1;
+    private static final int EV_WAKEUP = 2;
+    private static final int EV_MIGRATE = 3;
+    private static final int EV_STAT = 4;
+
+    /* The known event names, and the matching event codes */
+    private static final String EVENT_NAMES[] = {
+        "sched_switch", "sched_wakeup", "sched_wakeup_new", "sched_migrate_task",
+    };
+    private static final int EVENT_CODES[] = {
+        EV_SWITCH, EV_WAKEUP, EV_WAKEUP, EV_MIGRATE,
+    };
+    private static final String EVENT_STAT_PREFIX = "sched_stat_";
+
+    /* The amount of data read when looking for the first/last event in streaming mode */
+    private static final int SCAN_BLOCK = 64*1024;
+    private static final int MAX_SCAN_BLOCK = 16*1024*1024;
+
     private BugReportModule mBr;
 
+    /* The parser state */
+    private FTraceData mData;
+    private int mAdjNoIdle;
+    private int mNrRunWait;
+    private char mLastState[];
+
+    /* The fields of the last parsed line, filled by the scan methods */
+    private int mSrcProcStart;
+    private int mSrcProcEnd;
+    private int mSrcPid;
+    private int mCpu;
+    private long mTimeUS;
+    private int mEventCode;
+    private int mPos;
+    private int mFieldStart;
+    private int mFieldEnd;
+
     public NewParser(BugReportModule br, FTracePlugin plugin) {
         mBr = br;
     }
@@ -24,141 +73,430 @@ public class NewParser extends Parser {
             return null;
         }
 
-        FTraceData ret = new FTraceData(mBr);
-        int adjNoIdle = 1;
-        int nrRunWait = 0;
-        Pattern ps = Pattern.compile("prev_comm=.* prev_pid=.* prev_state=(.*) ==> next_comm=(.*) next_pid=([0-9]*) next_prio=([0-9]*)");
-        Pattern pw = Pattern.compile("comm=(.*) pid=([0-9]*) prio=([0-9]*) success=.* target_cpu=([0-9]*)");
-        char lastState[] = new char[0x10000];
+        begin(new FTraceData(mBr));
         for (int i = 0; i < cnt; i++) {
-            String buff = section.getLine(i);
-            long timeUS;
+            if (!parseLine(section.getLine(i))) {
+                return null;
+            }
+        }
+        return end();
+    }
 
-            if (buff.length() == 0) continue; // skip comments
-            if (buff.charAt(0) == '#') continue; // skip comments
-            if (buff.charAt(0) < ' ') continue; // skip empty lines
+    /**
+     * Parses the trace directly from a file, in one pass. The events are not stored,
+     * they are passed to the listener set in the trace data (see {@link FTraceData#setListener}),
+     * so the memory usage doesn't depend on the size of the file.
+     * @param fileName The file containing the trace
+     * @param data The object which collects the process information
+     * @return The trace data, or null if the parsing failed
+     */
+    public FTraceData parseStream(String fileName, FTraceData data) throws IOException {
+        begin(data);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(fileName)), 0x10000);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!parseLine(line)) {
+                    return null;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return end();
+    }
 
-            // Parse the data
-            int p = 0, s = 0;
+    /**
+     * Finds the timestamps of the first and last sched events in the file, by reading
+     * only the beginning and the end of it. This is needed in streaming mode to scale
+     * the charts before the events are processed.
+     * @param fileName The file containing the trace
+     * @return The first and last timestamps, or null if not found
+     */
+    public long[] scanTimeRange(String fileName) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(fileName, "r");
+        try {
+            long size = f.length();
+            long first = -1, last = -1;
+            for (int block = SCAN_BLOCK; first < 0 || last < 0; block *= 2) {
+                boolean all = block >= size;
+                if (first < 0) {
+                    first = findEventTime(readLines(f, 0, Math.min(block, size)), true, true, all);
+                }
+                if (last < 0) {
+                    long ofs = Math.max(0, size - block);
+                    last = findEventTime(readLines(f, ofs, size - ofs), false, ofs == 0, true);
+                }
+                if (all || block >= MAX_SCAN_BLOCK) break;
+            }
+            if (first < 0 || last < 0) {
+                return null;
+            }
+            return new long[] { first, last };
+        } finally {
+            f.close();
+        }
+    }
 
-            // Parse SRC_PROC
-            while (buff.charAt(p) == ' ') p++;
-            s = 16;
-            String srcProc = buff.substring(p, s);
-            p = ++s;
+    private String[] readLines(RandomAccessFile f, long ofs, long len) throws IOException {
+        byte buff[] = new byte[(int)len];
+        f.seek(ofs);
+        f.readFully(buff);
+        return new String(buff, "ISO-8859-1").split("\r?\n");
+    }
 
-            // Parse SRC PID
-            while (buff.charAt(s) != ' ') s++;
-            int srcPid = Integer.parseInt(buff.substring(p, s));
-            p = ++s;
+    private long findEventTime(String lines[], boolean fromStart, boolean firstComplete, boolean lastComplete) {
+        int cnt = lines.length;
+        // When not reading from the beginning of the file, the first line might be partial,
+        // and when not reading until the end, the last line might be partial
+        int from = firstComplete ? 0 : 1;
+        int to = lastComplete ? cnt : cnt - 1;
+        for (int i = 0; i < to - from; i++) {
+            String line = lines[fromStart ? from + i : to - 1 - i];
+            try {
+                if (scanHeader(line) && (mEventCode == EV_SWITCH || mEventCode == EV_WAKEUP)) {
+                    return mTimeUS;
+                }
+            } catch (RuntimeException e) {
+                // Skip invalid lines
+            }
+        }
+        return -1;
+    }
 
-            // Skip CPU (not used)
-            while (buff.charAt(s) == ' ') s++;
+    /**
+     * Prepares the parser for a new trace
+     * @param data The object which will collect the data
+     */
+    void begin(FTraceData data) {
+        mData = data;
+        mAdjNoIdle = 1;
+        mNrRunWait = 0;
+        mLastState = new char[Const.MAX_PID];
+    }
+
+    /**
+     * Finishes the parsing, and returns the collected data
+     */
+    FTraceData end() {
+        if (mAdjNoIdle == 1) {
+            mData.incNrRunWait(mAdjNoIdle);
+        }
+
+        mBr.printErr(3, FTracePlugin.TAG + "WARNING: parsing of trace data with new format is still EXPERIMENTAL!");
+        FTraceData ret = mData;
+        mData = null;
+        mLastState = null;
+        return ret;
+    }
+
+    /**
+     * Parses the common part of a trace line: the source process, the timestamp and
+     * the event name. The current position is moved to the event arguments.
+     * @param buff The line to parse
+     * @return false if this is not a trace line (comment or empty line)
+     */
+    private boolean scanHeader(String buff) {
+        if (buff.length() == 0) return false; // skip comments
+        if (buff.charAt(0) == '#') return false; // skip comments
+        if (buff.charAt(0) < ' ') return false; // skip empty lines
+
+        // Parse the data
+        int p = 0, s = 0;
+
+        // Parse SRC_PROC
+        while (buff.charAt(p) == ' ') p++;
+        s = 16;
+        mSrcProcStart = p;
+        mSrcProcEnd = s;
+        p = ++s;
+
+        // Parse SRC PID
+        while (buff.charAt(s) != ' ') s++;
+        mSrcPid = parseInt(buff, p, s);
+        p = ++s;
+
+        // Parse CPU ("[001]")
+        while (buff.charAt(s) == ' ') s++;
+        p = s;
+        while (buff.charAt(s) != ' ') s++;
+        mCpu = parseInt(buff, p + 1, s - 1);
+        while (buff.charAt(s) == ' ') s++;
+
+        // Skip the irq-info flags (if present)
+        if (!isDigit(buff.charAt(s))) {
             while (buff.charAt(s) != ' ') s++;
             while (buff.charAt(s) == ' ') s++;
+        }
+
+        // Parse timestamp (seconds.micros)
+        p = s;
+        while (buff.charAt(s) != ':') s++;
+        mTimeUS = parseTimeUS(buff, p, s);
+        s++; // ':'
+        s++; // ' '
+
+        p = s;
+        while (buff.charAt(s) != ':') s++;
+        mEventCode = lookupEvent(buff, p, s);
+        s++; // ':'
+        s++; // ' '
+        mPos = s;
+        return true;
+    }
 
-            // Parse timestamp
-            double timestamp;
-            p = s;
-            while (buff.charAt(s) != ':') s++;
-            timestamp = Double.parseDouble(buff.substring(p, s));
-            s++; // ':'
-            s++; // ' '
-            timeUS = (long)(timestamp * 1000 * 1000);
-
-            p = s;
-            while (buff.charAt(s) != ':') s++;
-            String eventS = buff.substring(p, s);
-            int event = Const.UNKNOWN;
-            s++; // ':'
-            s++; // ' '
-            buff = buff.substring(s);
-            char srcState = 0;
-            char dstState = 0;
-            int dstPid = 0;
-            String dstProc = null;
-            if (eventS.equals("sched_switch")) {
-                event = Const.SWITCH;
-                Matcher m = ps.matcher(buff);
-                if (m.matches()) {
-                    srcState = m.group(1).charAt(0);
-                    dstPid = Integer.parseInt(m.group(3));
-                    dstState = 'R'; // The new process is definitely running
-                    dstProc = m.group(2);
-                    lastState[srcPid] = srcState;
+    /**
+     * Parses one line of the trace
+     * @param buff The line to parse
+     * @return false if the parsing must be aborted
+     */
+    boolean parseLine(String buff) {
+        FTraceData ret = mData;
+        if (!scanHeader(buff)) {
+            return true;
+        }
+        long timeUS = mTimeUS;
+        int srcPid = mSrcPid;
+        int srcProcStart = mSrcProcStart, srcProcEnd = mSrcProcEnd;
+        int eventCode = mEventCode;
+        int cpu = mCpu;
+        int event = Const.UNKNOWN;
+        int argsStart = mPos;
+        char srcState = 0;
+        char dstState = 0;
+        int dstPid = 0;
+        boolean dstOk = false;
+        int dstProcStart = 0, dstProcEnd = 0;
+        if (eventCode == EV_SWITCH) {
+            event = Const.SWITCH;
+            // prev_comm=.* prev_pid=.* prev_state=(.*) ==> next_comm=(.*) next_pid=([0-9]*) next_prio=([0-9]*)
+            if (scanField(buff, " prev_state=", " ==> next_comm=")) {
+                srcState = buff.charAt(mFieldStart);
+                if (scanField(buff, "", " next_pid=")) {
+                    dstProcStart = mFieldStart;
+                    dstProcEnd = mFieldEnd;
+                    if (scanField(buff, "", " next_prio=")) {
+                        dstPid = parseInt(buff, mFieldStart, mFieldEnd);
+                        dstState = 'R'; // The new process is definitely running
+                        mLastState[srcPid] = srcState;
+                        dstOk = true;
+                    }
                 }
-            } else if (eventS.equals("sched_wakeup") || eventS.equals("sched_wakeup_new")) {
-                event = Const.WAKEUP;
-                Matcher m = pw.matcher(buff);
-                if (m.matches()) {
-                    srcState = 'R'; // The previous/current process is definitely still running
-                    dstPid = Integer.parseInt(m.group(2));
-                    dstState = lastState[dstPid];
-                    if (dstState == 0) {
-                        // we are just guessing here...
-                        dstState = 'S';
+            }
+        } else if (eventCode == EV_WAKEUP) {
+            event = Const.WAKEUP;
+            // comm=(.*) pid=([0-9]*) prio=([0-9]*) ...
+            if (buff.startsWith("comm=", mPos)) {
+                mPos += 5;
+                if (scanField(buff, "", " pid=")) {
+                    dstProcStart = mFieldStart;
+                    dstProcEnd = mFieldEnd;
+                    if (scanField(buff, "", " prio=")) {
+                        srcState = 'R'; // The previous/current process is definitely still running
+                        dstPid = parseInt(buff, mFieldStart, mFieldEnd);
+                        // The woken up process is queued on the target CPU (if known)
+                        if (scanField(buff, " target_cpu=")) {
+                            cpu = parseInt(buff, mFieldStart, mFieldEnd);
+                        }
+                        dstState = mLastState[dstPid];
+                        if (dstState == 0) {
+                            // we are just guessing here...
+                            dstState = 'S';
+                        }
+                        dstOk = true;
                     }
-                    dstProc = m.group(1);
                 }
-            } else if (eventS.equals("sched_migrate_task")) {
-                // We are not interested in this one yet
-                continue;
-            } else if (eventS.startsWith("sched_stat_")) {
-                // We are not interested in this one yet
-                continue;
-            } else {
-                // System.out.println(("Ignoring unknown event: " + eventS));
-                continue;
             }
-
-            if (dstProc == null) {
-                mBr.printErr(3, FTracePlugin.TAG + "Cannot parse line, I better abort missiong!: " + buff);
-                return null;
+        } else if (eventCode == EV_MIGRATE) {
+            // comm=(.*) pid=([0-9]*) prio=([0-9]*) orig_cpu=([0-9]*) dest_cpu=([0-9]*)
+            if (scanField(buff, " orig_cpu=", " dest_cpu=")) {
+                int origCpu = parseInt(buff, mFieldStart, mFieldEnd);
+                int destCpu = parseInt(buff, mPos, buff.length());
+                mPos = argsStart;
+                if (scanField(buff, " pid=", " prio=") && checkCpu(origCpu, buff) && checkCpu(destCpu, buff)) {
+                    int pid = parseInt(buff, mFieldStart, mFieldEnd);
+                    ret.addMigration(origCpu, destCpu);
+                    ret.append(timeUS, destCpu, pid, pid, (char)0, (char)0, Const.MIGRATE, mNrRunWait - 1);
+                    return true;
+                }
             }
+            mBr.printErr(3, FTracePlugin.TAG + "Cannot parse line, I better abort missiong!: " + buff.substring(argsStart));
+            return false;
+        } else if (eventCode == EV_STAT) {
+            // We are not interested in this one yet
+            return true;
+        } else {
+            // System.out.println(("Ignoring unknown event: " + eventS));
+            return true;
+        }
 
-            if (!srcProc.equals(NO_PROC_NAME)) {
-                ret.setProcName(srcPid, srcProc, mBr);
-            }
-            if (!dstProc.equals(NO_PROC_NAME)) {
-                ret.setProcName(dstPid, dstProc, mBr);
-            }
+        if (!dstOk || !checkCpu(cpu, buff)) {
+            mBr.printErr(3, FTracePlugin.TAG + "Cannot parse line, I better abort missiong!: " + buff.substring(argsStart));
+            return false;
+        }
+
+        // Create the process names only when they are not known yet
+        if (!ret.hasProcName(srcPid) && !buff.startsWith(NO_PROC_NAME, srcProcStart)) {
+            ret.setProcName(srcPid, buff.substring(srcProcStart, srcProcEnd), mBr);
+        }
+        if (!ret.hasProcName(dstPid) && !buff.startsWith(NO_PROC_NAME, dstProcStart)) {
+            ret.setProcName(dstPid, buff.substring(dstProcStart, dstProcEnd), mBr);
+        }
 
-            // System.out.println(String.format("src_proc='%s' src_pid='%d' ts='%d' src_state='%c' event='%d' dst_pid='%d' dst_state='%c' dst_proc='%s'", src_proc, src_pid, time_us, src_state, event, dst_pid, dst_state, dst_proc));
+        // Calculate the number of processes running
+        int newNr = mNrRunWait;
+        FTraceProcessRecord proc = ret.getProc(srcPid, mBr);
+        if (event == Const.SWITCH) {
+            int prevState = Const.calcPrevState(srcState);
+            newNr += ret.updateNr(proc, prevState, false, srcState, false);
+        }
+        int nextState = (event == Const.WAKEUP) ? Const.STATE_WAIT : Const.STATE_RUN; // Next state could be STATE_DISK as well, but in this case it doesn't matter
+        proc = ret.getProc(dstPid, mBr);
+        newNr += ret.updateNr(proc, nextState, true, dstState, false);
+        if (newNr <= 0) {
+            // This shouldn't happen!
+            // incNrRunWait(1 - newNr); // This could be used as a workaround (but again, this should never happen)
+            mBr.printErr(4, FTracePlugin.TAG + "Needs adjusting! newNr=" + newNr + " @" + timeUS);
+            newNr = 1;
+        }
+        mNrRunWait = newNr;
 
-            // Calculate the number of processes running
-            int newNr = nrRunWait;
-            FTraceProcessRecord proc = ret.getProc(srcPid, mBr);
-            if (event == Const.SWITCH) {
-                int prevState = Const.calcPrevState(srcState);
-                newNr += ret.updateNr(proc, prevState, false, srcState, false);
-            }
-            int nextState = (event == Const.WAKEUP) ? Const.STATE_WAIT : Const.STATE_RUN; // Next state could be STATE_DISK as well, but in this case it doesn't matter
-            proc = ret.getProc(dstPid, mBr);
-            newNr += ret.updateNr(proc, nextState, true, dstState, false);
-            if (newNr <= 0) {
-                // This shouldn't happen!
-                // incNrRunWait(1 - newNr); // This could be used as a workaround (but again, this should never happen)
-                mBr.printErr(4, FTracePlugin.TAG + "Needs adjusting! newNr=" + newNr + " @" + timeUS);
-                newNr = 1;
-            }
-            nrRunWait = newNr;
+        // nrRunWait - 1 due to not counting the idle process (which is either running or waiting)
+        ret.append(timeUS, cpu, srcPid, dstPid, srcState, dstState, event, mNrRunWait - 1);
+        ret.getProc(srcPid, mBr).used++;
+        ret.getProc(dstPid, mBr).used++;
+
+        if (srcPid == 0 || dstPid == 0) {
+            mAdjNoIdle = 0; // No need to adjust due to idle not "running"
+        }
+        return true;
+    }
+
+    /**
+     * Locates the next field in the line, starting from the current position.
+     * The field value starts after the (first occurrence of the) key, and ends before
+     * the last occurrence of the terminator (so the value may contain spaces, just like
+     * the process names). On success the current position is moved after the terminator.
+     * @param buff The line
+     * @param key The text preceding the value (may be empty)
+     * @param term The text following the value
+     * @return true if the field was found
+     */
+    private boolean scanField(String buff, String key, String term) {
+        int start = mPos;
+        if (key.length() > 0) {
+            start = buff.indexOf(key, mPos);
+            if (start < 0) return false;
+            start += key.length();
+        }
+        int end = buff.lastIndexOf(term);
+        if (end < start) return false;
+        mFieldStart = start;
+        mFieldEnd = end;
+        mPos = end + term.length();
+        return true;
+    }
+
+    /**
+     * Locates a numeric field which is terminated by a space or by the end of the line.
+     * The current position is not changed.
+     * @param buff The line
+     * @param key The text preceding the value
+     * @return true if the field was found
+     */
+    private boolean scanField(String buff, String key) {
+        int start = buff.indexOf(key, mPos);
+        if (start < 0) return false;
+        start += key.length();
+        int end = start;
+        while (end < buff.length() && buff.charAt(end) != ' ') end++;
+        mFieldStart = start;
+        mFieldEnd = end;
+        return true;
+    }
 
-            TraceRecord data = new TraceRecord(timeUS, srcPid, dstPid, srcState, dstState, event);
-            data.nrRunWait = nrRunWait - 1; // -1 due to not counting the idle process (which is either running or waiting)
-            ret.append(data);
-            ret.getProc(srcPid, mBr).used++;
-            ret.getProc(dstPid, mBr).used++;
+    private boolean checkCpu(int cpu, String buff) {
+        if (cpu < 0 || cpu >= MAX_CPU) {
+            mBr.printErr(4, FTracePlugin.TAG + "Invalid CPU number: " + cpu);
+            return false;
+        }
+        return true;
+    }
 
-            if (srcPid == 0 || dstPid == 0) {
-                adjNoIdle = 0; // No need to adjust due to idle not "running"
+    private static int lookupEvent(String buff, int from, int to) {
+        int len = to - from;
+        for (int i = 0; i < EVENT_NAMES.length; i++) {
+            String name = EVENT_NAMES[i];
+            if (name.length() == len && buff.startsWith(name, from)) {
+                return EVENT_CODES[i];
             }
         }
-        if (adjNoIdle == 1) {
-            ret.incNrRunWait(adjNoIdle);
+        if (buff.startsWith(EVENT_STAT_PREFIX, from)) {
+            return EV_STAT;
         }
+        return Const.UNKNOWN;
+    }
 
-        mBr.printErr(3, FTracePlugin.TAG + "WARNING: parsing of trace data with new format is still EXPERIMENTAL!");
-        return ret;
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Parses a decimal integer, ignoring the spaces around it
+     */
+    static int parseInt(String buff, int from, int to) {
+        while (from < to && buff.charAt(from) == ' ') from++;
+        while (to > from && buff.charAt(to - 1) == ' ') to--;
+        if (from == to) {
+            throw new NumberFormatException("Empty number");
+        }
+        boolean neg = false;
+        if (buff.charAt(from) == '-') {
+            neg = true;
+            from++;
+        }
+        int ret = 0;
+        for (int i = from; i < to; i++) {
+            char c = buff.charAt(i);
+            if (!isDigit(c)) {
+                throw new NumberFormatException("Invalid number: " + buff.substring(from, to));
+            }
+            ret = ret * 10 + (c - '0');
+        }
+        return neg ? -ret : ret;
+    }
+
+    /**
+     * Parses a timestamp in "seconds.fraction" format, and converts it to microseconds.
+     * Digits after the microseconds are ignored.
+     */
+    static long parseTimeUS(String buff, int from, int to) {
+        while (from < to && buff.charAt(from) == ' ') from++;
+        long sec = 0;
+        int i = from;
+        while (i < to && isDigit(buff.charAt(i))) {
+            sec = sec * 10 + (buff.charAt(i++) - '0');
+        }
+        long us = 0;
+        int digits = 0;
+        if (i < to && buff.charAt(i) == '.') {
+            i++;
+            while (i < to && isDigit(buff.charAt(i))) {
+                if (digits < 6) {
+                    us = us * 10 + (buff.charAt(i) - '0');
+                    digits++;
+                }
+                i++;
+            }
+        }
+        if (i == from || (i < to && buff.charAt(i) != ' ')) {
+            throw new NumberFormatException("Invalid timestamp: " + buff.substring(from, to));
+        }
+        while (digits < 6) {
+            us *= 10;
+            digits++;
+        }
+        return sec * 1000000L + us;
     }
 
 }
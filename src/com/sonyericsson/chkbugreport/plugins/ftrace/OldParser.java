@@ -54,9 +54,11 @@ public class OldParser extends Parser {
             int srcPid = Integer.parseInt(buff.substring(p, s));
             p = ++s;
 
-            // Skip CPU (not used)
+            // Parse CPU ("[001]")
             while (buff.charAt(s) == ' ') s++;
+            p = s;
             while (buff.charAt(s) != ' ') s++;
+            int cpu = Integer.parseInt(buff.substring(p + 1, s - 1));
             while (buff.charAt(s) == ' ') s++;
 
             // Parse timestamp
@@ -89,10 +91,15 @@ public class OldParser extends Parser {
             }
             s += 3;
 
-            // Skip CPU (not used)
+            // Parse DST CPU (in case of wakeup, the process is queued on this CPU)
             while (buff.charAt(s) == ' ') s++;
+            p = s;
             while (buff.charAt(s) != ' ') s++;
+            int dstCpu = Integer.parseInt(buff.substring(p + 1, s - 1));
             while (buff.charAt(s) == ' ') s++;
+            if (event == Const.WAKEUP) {
+                cpu = dstCpu;
+            }
 
             // Parse DST PID
             p = s;
@@ -139,9 +146,8 @@ public class OldParser extends Parser {
             }
             nrRunWait = newNr;
 
-            TraceRecord data = new TraceRecord(timeUS, srcPid, dstPid, srcState, dstState, event);
-            data.nrRunWait = nrRunWait - 1; // -1 due to not counting the idle process (which is either running or waiting)
-            ret.append(data);
+            // nrRunWait - 1 due to not counting the idle process (which is either running or waiting)
+            ret.append(timeUS, cpu, srcPid, dstPid, srcState, dstState, event, nrRunWait - 1);
             ret.getProc(srcPid, mBr).used++;
             ret.getProc(dstPid, mBr).used++;
 
@@ -0,0 +1,112 @@
+package com.sonyericsson.chkbugreport.plugins.ftrace;
+
+/**
+ * Collects how many processes were running or waiting at the same time, both as
+ * a histogram over the whole trace, and as minimum/maximum values per pixel column
+ * for the parallel process chart.
+ */
+public class RunWaitCollector implements TraceListener {
+
+    /** The size of the histogram, the last bucket includes the higher values as well */
+    public static final int MAX = 16;
+
+    private int mWidth;
+    private long mStartTime;
+    private long mDuration;
+    private long mDurations[] = new long[MAX];
+    private int mCount = 0;
+    private int mMaxUsed = 0;
+    private long mLastTime;
+    private int mLastX = 0;
+    private int mMinNr[];
+    private int mMaxNr[];
+
+    public RunWaitCollector(int w, long startTime, long duration) {
+        mWidth = w;
+        mStartTime = startTime;
+        mLastTime = startTime;
+        mDuration = duration;
+        mMinNr = new int[w];
+        mMaxNr = new int[w];
+        for (int i = 0; i < w; i++) {
+            mMinNr[i] = Integer.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        if (event == Const.MIGRATE) {
+            // Doesn't change the number of running processes
+            return;
+        }
+        int newCount = nrRunWait;
+        if (newCount != mCount) {
+            int x = (int)((time - mStartTime) * mWidth / mDuration);
+            fillMinMax(mLastX, x, mCount);
+            mLastX = x;
+
+            // We need to add the duration with the previous count
+            long dur = time - mLastTime;
+            mLastTime = time;
+            int idx = mCount;
+            if (idx >= MAX) {
+                idx = MAX-1;
+            }
+            if (idx > mMaxUsed) {
+                mMaxUsed = idx;
+            }
+            mDurations[idx] += dur;
+
+            // And only now we update the count to the new value
+            mCount = newCount;
+        }
+    }
+
+    /**
+     * When streaming, the events cannot be adjusted before they are processed, so the
+     * collected values are shifted instead.
+     */
+    @Override
+    public void onNrRunWaitAdjusted(int delta) {
+        for (int i = 0; i < mWidth; i++) {
+            if (mMinNr[i] <= mMaxNr[i]) {
+                mMinNr[i] += delta;
+                mMaxNr[i] += delta;
+            }
+        }
+        long tmp[] = new long[MAX];
+        for (int i = 0; i < MAX; i++) {
+            int idx = Math.max(0, Math.min(MAX - 1, i + delta));
+            tmp[idx] += mDurations[i];
+        }
+        mDurations = tmp;
+        mMaxUsed = Math.max(0, Math.min(MAX - 1, mMaxUsed + delta));
+        mCount += delta;
+    }
+
+    private void fillMinMax(int from, int to, int value) {
+        from = Math.max(0, from);
+        to = Math.min(mWidth - 1, to);
+        for (int i = from; i <= to; i++) {
+            mMinNr[i] = Math.min(mMinNr[i], value);
+            mMaxNr[i] = Math.max(mMaxNr[i], value);
+        }
+    }
+
+    public long[] getDurations() {
+        return mDurations;
+    }
+
+    public int getMaxUsed() {
+        return mMaxUsed;
+    }
+
+    public int getMinNr(int x) {
+        return mMinNr[x];
+    }
+
+    public int getMaxNr(int x) {
+        return mMaxNr[x];
+    }
+
+}
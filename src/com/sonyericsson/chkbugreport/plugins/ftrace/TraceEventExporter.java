@@ -0,0 +1,161 @@
+package com.sonyericsson.chkbugreport.plugins.ftrace;
+
+import com.sonyericsson.chkbugreport.BugReportModule;
+import com.sonyericsson.chkbugreport.ProcessRecord;
+import com.sonyericsson.chkbugreport.ps.PSRecord;
+import com.sonyericsson.chkbugreport.util.TraceEventWriter;
+
+/**
+ * Exports the sched slices of each thread in trace event format (see {@link TraceEventWriter}),
+ * so the trace can be browsed in chrome://tracing or Perfetto.
+ *
+ * <p>For each thread a "Running" slice is written for every interval it spent on a CPU
+ * (the CPU is saved as argument), and a "Runnable" slice for every interval it spent
+ * waiting in a run queue (after a wakeup or a preemption). The threads are grouped by
+ * their process, as found in the ps output. The slices are written as soon as they end,
+ * so this works in streaming mode as well.</p>
+ */
+public class TraceEventExporter implements TraceListener {
+
+    private static final String CAT = "sched";
+
+    private BugReportModule mBr;
+    private FTraceData mData;
+    private TraceEventWriter mOut;
+    private long mStartTime;
+    /* The start of the current slices, or -1 if the thread is not running/waiting */
+    private long mRunStart[] = new long[Const.MAX_PID];
+    private long mWaitStart[] = new long[Const.MAX_PID];
+    private short mRunCpu[] = new short[Const.MAX_PID];
+    /* The pid of the process the thread belongs to, or 0 if the thread is not seen yet */
+    private int mGroup[] = new int[Const.MAX_PID];
+
+    public TraceEventExporter(BugReportModule br) {
+        mBr = br;
+        mOut = new TraceEventWriter(br, br.getRelRawDir() + "ftrace.json");
+        for (int i = 0; i < Const.MAX_PID; i++) {
+            mRunStart[i] = -1;
+            mWaitStart[i] = -1;
+        }
+    }
+
+    public String getFileName() {
+        return mOut.getFileName();
+    }
+
+    /**
+     * Creates the file
+     * @param data The trace data, used to find the names of the threads at the end
+     * @param startTime The time of the first event
+     * @return false if the file cannot be created
+     */
+    public boolean begin(FTraceData data, long startTime) {
+        mData = data;
+        mStartTime = startTime;
+        return mOut.begin();
+    }
+
+    @Override
+    public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        if (event == Const.SWITCH) {
+            if (prevPid != 0) {
+                boolean seen = isSeen(prevPid);
+                if (mRunStart[prevPid] < 0 && !seen) {
+                    // The first event of this thread: it was running since the beginning
+                    mRunStart[prevPid] = mStartTime;
+                    mRunCpu[prevPid] = (short)cpu;
+                }
+                endRun(prevPid, time);
+                if (prevState == 'R') {
+                    mWaitStart[prevPid] = time;
+                }
+            }
+            if (nextPid != 0) {
+                isSeen(nextPid);
+                endWait(nextPid, time);
+                mRunStart[nextPid] = time;
+                mRunCpu[nextPid] = (short)cpu;
+            }
+        } else if (event == Const.WAKEUP) {
+            if (nextPid != 0) {
+                isSeen(nextPid);
+                if (mRunStart[nextPid] < 0 && mWaitStart[nextPid] < 0) {
+                    mWaitStart[nextPid] = time;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onNrRunWaitAdjusted(int delta) {
+        // NOP
+    }
+
+    /**
+     * Returns true if the thread was already seen, otherwise registers it
+     */
+    private boolean isSeen(int pid) {
+        if (mGroup[pid] != 0) return true;
+        mGroup[pid] = findGroup(pid);
+        return false;
+    }
+
+    /**
+     * Finds the process the thread belongs to, the same way as the ftrace records
+     * are mapped to the process records
+     */
+    private int findGroup(int pid) {
+        PSRecord psr = mBr.getPSRecord(pid);
+        if (psr != null) {
+            ProcessRecord parent = mBr.getProcessRecord(psr.getParentPid(), false, false);
+            if (parent != null && !"zygote".equals(parent.getProcName())) {
+                return parent.getPid();
+            }
+        }
+        return pid;
+    }
+
+    private void endRun(int pid, long time) {
+        long start = mRunStart[pid];
+        if (start < 0) return;
+        mOut.complete("Running", CAT, mGroup[pid], pid, start, time - start, "cpu", mRunCpu[pid]);
+        mRunStart[pid] = -1;
+    }
+
+    private void endWait(int pid, long time) {
+        long start = mWaitStart[pid];
+        if (start < 0) return;
+        mOut.complete("Runnable", CAT, mGroup[pid], pid, start, time - start);
+        mWaitStart[pid] = -1;
+    }
+
+    /**
+     * Closes the slices which are still open at the end of the trace, writes the
+     * names of the threads and processes, and finishes the file.
+     * @param endTime The time of the last event
+     * @return true if the file was saved successfully
+     */
+    public boolean end(long endTime) {
+        boolean named[] = new boolean[Const.MAX_PID];
+        for (int pid = 1; pid < Const.MAX_PID; pid++) {
+            int group = mGroup[pid];
+            if (group == 0) continue;
+            endRun(pid, endTime);
+            endWait(pid, endTime);
+            mOut.threadName(group, pid, getName(pid));
+            if (!named[group]) {
+                named[group] = true;
+                ProcessRecord procRec = mBr.getProcessRecord(group, false, false);
+                String name = procRec != null ? procRec.getProcName() : null;
+                mOut.processName(group, name != null ? name : getName(group));
+            }
+        }
+        return mOut.end();
+    }
+
+    private String getName(int pid) {
+        FTraceProcessRecord pr = mData.getProc(pid);
+        return pr != null ? pr.getName() : Integer.toString(pid);
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.sonyericsson.chkbugreport.plugins.ftrace;
+
+/**
+ * Receives the sched events of the trace one by one, in chronological order.
+ *
+ * <p>The events either come from a {@link TraceStore} (see {@link TraceStore#replay}),
+ * or directly from the parser when the trace is streamed from a file.</p>
+ */
+public interface TraceListener {
+
+    /**
+     * Called for each sched event.
+     *
+     * <p>The cpu is the CPU whose run queue is affected by the event: the CPU executing the
+     * context switch, the target CPU of the wakeup, or the destination CPU of the migration.
+     * In case of {@link Const#MIGRATE} events both pids are the pid of the migrated process,
+     * and the states are not used.</p>
+     */
+    public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait);
+
+    /**
+     * Called when the number of running and waiting processes must be adjusted in all
+     * the events received so far (see {@link FTraceData#incNrRunWait(int)}).
+     */
+    public void onNrRunWaitAdjusted(int delta);
+
+}
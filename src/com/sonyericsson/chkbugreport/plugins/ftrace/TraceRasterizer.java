@@ -0,0 +1,176 @@
+package com.sonyericsson.chkbugreport.plugins.ftrace;
+
+import com.sonyericsson.chkbugreport.util.ChartCanvas;
+
+import java.awt.Color;
+
+/**
+ * Renders the trace charts of all the processes in a single pass over the trace.
+ *
+ * <p>While receiving the trace events, the state of each process and the color of each
+ * pixel column of its chart is updated. The charts are drawn only after that, from the
+ * collected pixel columns, so the trace is processed only once, instead of once per
+ * process. The memory used doesn't depend on the length of the trace, so this works
+ * in streaming mode as well.</p>
+ */
+public class TraceRasterizer implements TraceListener {
+
+    private static final int NONE = -1;
+    private static final int COL_RUN = 0xff0000;
+    private static final int COL_RUN_PART = 0x800000;
+    private static final int COL_WAIT = 0x00ffff;
+    private static final int COL_WAIT_PART = 0x008080;
+    private static final int COL_DISK = 0xffff00;
+
+    /* The pixel columns of a single chart */
+    private static class Raster {
+        int pid;
+        int lastX = 0;
+        int lastState = 'S';
+        /* The color of the full height bars */
+        int bars[];
+        /* The color of the line in the middle (the bars drawn later hide them) */
+        int lines[];
+    }
+
+    private int mWidth;
+    private long mStartTime;
+    private long mDuration;
+    private FTraceData mData;
+    private Raster mRasters[] = new Raster[Const.MAX_PID];
+
+    /**
+     * Creates a new rasterizer
+     * @param w The width of the charts
+     * @param data The trace data, used to look up the initial state of the processes
+     * @param startTime The time of the first event
+     * @param duration The duration of the trace
+     */
+    public TraceRasterizer(int w, FTraceData data, long startTime, long duration) {
+        mWidth = w;
+        mData = data;
+        mStartTime = startTime;
+        mDuration = duration;
+    }
+
+    private Raster getRaster(int pid) {
+        Raster r = mRasters[pid];
+        if (r == null) {
+            r = new Raster();
+            r.pid = pid;
+            FTraceProcessRecord pr = mData.getProc(pid);
+            if (pr != null) {
+                if (pr.initState == Const.STATE_RUN) {
+                    r.lastState = 'R';
+                } else if (pr.initState == Const.STATE_DISK) {
+                    r.lastState = 'D';
+                }
+            }
+            r.bars = newIntArr(mWidth, NONE);
+            r.lines = newIntArr(mWidth, NONE);
+            mRasters[pid] = r;
+        }
+        return r;
+    }
+
+    /**
+     * Updates the charts of the two processes affected by the event
+     */
+    @Override
+    public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        if (event == Const.MIGRATE) {
+            // Doesn't change the state of the process
+            return;
+        }
+        int x = (int)((time - mStartTime) * mWidth / mDuration);
+
+        // This process was switched away, render something
+        Raster r = getRaster(prevPid);
+        if (r.lastX == x) {
+            fillColumns(r.bars, r.lines, x, x, COL_RUN_PART);
+        } else {
+            fillColumns(r.bars, r.lines, r.lastX + 1, x + 1, COL_RUN);
+        }
+        r.lastX = x;
+        r.lastState = prevState;
+
+        // This process was resumed (or at least woken up),
+        r = getRaster(nextPid);
+        if (r.lastState == 'D') {
+            fillColumns(r.lines, null, r.lastX, x, COL_DISK);
+        } else if (r.lastState == 'R' && r.pid != 0) {
+            if (r.lastX == x) {
+                fillColumns(r.bars, r.lines, x, x, COL_WAIT_PART);
+            } else {
+                fillColumns(r.bars, r.lines, r.lastX + 1, x + 1, COL_WAIT);
+            }
+        }
+        r.lastX = x;
+        r.lastState = nextState;
+    }
+
+    @Override
+    public void onNrRunWaitAdjusted(int delta) {
+        // NOP
+    }
+
+    /**
+     * Draws the chart of one process. Consecutive pixel columns with the same color
+     * are drawn as one shape. This can be called from any thread after all the events
+     * were processed.
+     * @param g The canvas to draw on
+     * @param pr The process
+     */
+    public void draw(ChartCanvas g, FTraceProcessRecord pr) {
+        int w = mWidth;
+        int h = g.getHeight();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, g.getWidth(), h);
+        Raster r = mRasters[pr.pid];
+        if (r == null) return;
+        int x = 0;
+        while (x < w) {
+            int end = x + 1;
+            while (end < w && r.bars[end] == r.bars[x]) end++;
+            if (r.bars[x] != NONE) {
+                g.setColor(new Color(r.bars[x]));
+                g.fillRect(x, 0, end - x, h);
+            }
+            x = end;
+        }
+        x = 0;
+        while (x < w) {
+            int end = x + 1;
+            while (end < w && r.lines[end] == r.lines[x]) end++;
+            if (r.lines[x] != NONE) {
+                g.setColor(new Color(r.lines[x]));
+                g.drawLine(x, h/2, end - 1, h/2);
+            }
+            x = end;
+        }
+    }
+
+    /**
+     * Sets the color of the pixel columns between from and to (inclusive), and clears
+     * the same columns in the other array (if any), since the new shape covers them.
+     */
+    private void fillColumns(int cols[], int covered[], int from, int to, int color) {
+        from = Math.max(0, from);
+        to = Math.min(cols.length - 1, to);
+        for (int x = from; x <= to; x++) {
+            cols[x] = color;
+            if (covered != null) {
+                covered[x] = NONE;
+            }
+        }
+    }
+
+    private int[] newIntArr(int size, int defValue) {
+        int ret[] = new int[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = defValue;
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,265 @@
+package com.sonyericsson.chkbugreport.plugins.ftrace;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores the sched events of the trace in a column oriented way (one primitive array
+ * per field), instead of one object per event.
+ *
+ * <p>The arrays are allocated in fixed size chunks, so the store never needs to copy the
+ * already stored data when it grows. When the number of events exceeds the configured
+ * limit, the new chunks are allocated in a memory mapped temporary file instead of the
+ * java heap, so even huge traces can be processed. The temporary file is deleted by
+ * {@link #close()}.</p>
+ *
+ * <p>The events are accessed by index, from 0 to {@link #size()} - 1. The CPU number is
+ * stored in a single byte, so at most 256 CPUs are supported.</p>
+ */
+public class TraceStore {
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /* Layout of an event in the memory mapped file */
+    private static final int OFS_TIME = 0;
+    private static final int OFS_PREV_PID = 8;
+    private static final int OFS_NEXT_PID = 12;
+    private static final int OFS_NR_RUN_WAIT = 16;
+    private static final int OFS_PREV_STATE = 20;
+    private static final int OFS_NEXT_STATE = 21;
+    private static final int OFS_EVENT = 22;
+    private static final int OFS_CPU = 23;
+    private static final int RECORD_SIZE = 24;
+
+    /* A chunk of events, either stored in the java heap or in the memory mapped file */
+    private static abstract class Chunk {
+        abstract void set(int idx, long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait);
+        abstract long getTime(int idx);
+        abstract int getCpu(int idx);
+        abstract int getPrevPid(int idx);
+        abstract int getNextPid(int idx);
+        abstract char getPrevState(int idx);
+        abstract char getNextState(int idx);
+        abstract int getEvent(int idx);
+        abstract int getNrRunWait(int idx);
+    }
+
+    private static class HeapChunk extends Chunk {
+        long time[] = new long[CHUNK_SIZE];
+        int prevPid[] = new int[CHUNK_SIZE];
+        int nextPid[] = new int[CHUNK_SIZE];
+        int nrRunWait[] = new int[CHUNK_SIZE];
+        byte prevState[] = new byte[CHUNK_SIZE];
+        byte nextState[] = new byte[CHUNK_SIZE];
+        byte event[] = new byte[CHUNK_SIZE];
+        byte cpu[] = new byte[CHUNK_SIZE];
+
+        @Override
+        void set(int idx, long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+            this.time[idx] = time;
+            this.cpu[idx] = (byte)cpu;
+            this.prevPid[idx] = prevPid;
+            this.nextPid[idx] = nextPid;
+            this.prevState[idx] = (byte)prevState;
+            this.nextState[idx] = (byte)nextState;
+            this.event[idx] = (byte)event;
+            this.nrRunWait[idx] = nrRunWait;
+        }
+
+        @Override long getTime(int idx) { return time[idx]; }
+        @Override int getCpu(int idx) { return cpu[idx] & 0xff; }
+        @Override int getPrevPid(int idx) { return prevPid[idx]; }
+        @Override int getNextPid(int idx) { return nextPid[idx]; }
+        @Override char getPrevState(int idx) { return (char)prevState[idx]; }
+        @Override char getNextState(int idx) { return (char)nextState[idx]; }
+        @Override int getEvent(int idx) { return event[idx]; }
+        @Override int getNrRunWait(int idx) { return nrRunWait[idx]; }
+    }
+
+    private static class MappedChunk extends Chunk {
+        ByteBuffer buff;
+
+        MappedChunk(ByteBuffer buff) {
+            this.buff = buff;
+        }
+
+        @Override
+        void set(int idx, long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+            int ofs = idx * RECORD_SIZE;
+            buff.putLong(ofs + OFS_TIME, time);
+            buff.put(ofs + OFS_CPU, (byte)cpu);
+            buff.putInt(ofs + OFS_PREV_PID, prevPid);
+            buff.putInt(ofs + OFS_NEXT_PID, nextPid);
+            buff.putInt(ofs + OFS_NR_RUN_WAIT, nrRunWait);
+            buff.put(ofs + OFS_PREV_STATE, (byte)prevState);
+            buff.put(ofs + OFS_NEXT_STATE, (byte)nextState);
+            buff.put(ofs + OFS_EVENT, (byte)event);
+        }
+
+        @Override long getTime(int idx) { return buff.getLong(idx * RECORD_SIZE + OFS_TIME); }
+        @Override int getCpu(int idx) { return buff.get(idx * RECORD_SIZE + OFS_CPU) & 0xff; }
+        @Override int getPrevPid(int idx) { return buff.getInt(idx * RECORD_SIZE + OFS_PREV_PID); }
+        @Override int getNextPid(int idx) { return buff.getInt(idx * RECORD_SIZE + OFS_NEXT_PID); }
+        @Override char getPrevState(int idx) { return (char)buff.get(idx * RECORD_SIZE + OFS_PREV_STATE); }
+        @Override char getNextState(int idx) { return (char)buff.get(idx * RECORD_SIZE + OFS_NEXT_STATE); }
+        @Override int getEvent(int idx) { return buff.get(idx * RECORD_SIZE + OFS_EVENT); }
+        @Override int getNrRunWait(int idx) { return buff.getInt(idx * RECORD_SIZE + OFS_NR_RUN_WAIT); }
+    }
+
+    private Module mMod;
+    private Chunk mChunks[] = new Chunk[16];
+    private int mChunkCount = 0;
+    private int mCount = 0;
+    private int mMaxHeapChunks;
+    private int mNrRunWaitBias = 0;
+    private File mSpillFile;
+    private RandomAccessFile mSpillRaf;
+    private int mSpillChunks = 0;
+
+    /**
+     * Creates a new empty store
+     * @param mod The module (used for logging)
+     * @param maxHeapEvents The maximum number of events stored in the java heap, the rest
+     * is stored in a memory mapped file
+     */
+    public TraceStore(Module mod, int maxHeapEvents) {
+        mMod = mod;
+        mMaxHeapChunks = Math.max(1, maxHeapEvents / CHUNK_SIZE);
+    }
+
+    /**
+     * Appends a new event at the end of the store
+     */
+    public void add(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        int idx = mCount & CHUNK_MASK;
+        if (idx == 0) {
+            allocChunk();
+        }
+        // The stored value is relative to the current bias, see incNrRunWait()
+        mChunks[mChunkCount - 1].set(idx, time, cpu, prevPid, nextPid, prevState, nextState, event, nrRunWait - mNrRunWaitBias);
+        mCount++;
+    }
+
+    private void allocChunk() {
+        if (mChunkCount == mChunks.length) {
+            Chunk tmp[] = new Chunk[mChunks.length * 2];
+            System.arraycopy(mChunks, 0, tmp, 0, mChunkCount);
+            mChunks = tmp;
+        }
+        Chunk chunk = null;
+        if (mChunkCount >= mMaxHeapChunks) {
+            chunk = allocMappedChunk();
+        }
+        if (chunk == null) {
+            chunk = new HeapChunk();
+        }
+        mChunks[mChunkCount++] = chunk;
+    }
+
+    private Chunk allocMappedChunk() {
+        try {
+            if (mSpillRaf == null) {
+                mSpillFile = File.createTempFile("chkbugreport_ftrace", ".bin");
+                mSpillFile.deleteOnExit();
+                mSpillRaf = new RandomAccessFile(mSpillFile, "rw");
+            }
+            long size = (long)CHUNK_SIZE * RECORD_SIZE;
+            long ofs = mSpillChunks * size;
+            ByteBuffer buff = mSpillRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, ofs, size);
+            mSpillChunks++;
+            return new MappedChunk(buff);
+        } catch (IOException e) {
+            // Fall back to the heap
+            mMod.printErr(4, FTracePlugin.TAG + "Cannot create memory mapped trace storage: " + e);
+            mMaxHeapChunks = Integer.MAX_VALUE;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of stored events
+     */
+    public int size() {
+        return mCount;
+    }
+
+    public long getTime(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getTime(idx & CHUNK_MASK);
+    }
+
+    public int getCpu(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getCpu(idx & CHUNK_MASK);
+    }
+
+    public int getPrevPid(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getPrevPid(idx & CHUNK_MASK);
+    }
+
+    public int getNextPid(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getNextPid(idx & CHUNK_MASK);
+    }
+
+    public char getPrevState(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getPrevState(idx & CHUNK_MASK);
+    }
+
+    public char getNextState(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getNextState(idx & CHUNK_MASK);
+    }
+
+    public int getEvent(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getEvent(idx & CHUNK_MASK);
+    }
+
+    public int getNrRunWait(int idx) {
+        return mChunks[idx >>> CHUNK_BITS].getNrRunWait(idx & CHUNK_MASK) + mNrRunWaitBias;
+    }
+
+    /**
+     * Passes all the stored events, in order, to the listener
+     */
+    public void replay(TraceListener listener) {
+        for (int i = 0; i < mCount; i++) {
+            Chunk chunk = mChunks[i >>> CHUNK_BITS];
+            int idx = i & CHUNK_MASK;
+            listener.onEvent(chunk.getTime(idx), chunk.getCpu(idx), chunk.getPrevPid(idx), chunk.getNextPid(idx),
+                    chunk.getPrevState(idx), chunk.getNextState(idx), chunk.getEvent(idx),
+                    chunk.getNrRunWait(idx) + mNrRunWaitBias);
+        }
+    }
+
+    /**
+     * Adds delta to the number of running and waiting processes in all the events stored
+     * so far. This doesn't touch the stored events, only the bias which is applied when
+     * reading them (and removed when storing new ones).
+     */
+    public void incNrRunWait(int delta) {
+        mNrRunWaitBias += delta;
+    }
+
+    /**
+     * Releases the stored data, and deletes the temporary file (if any)
+     */
+    public void close() {
+        mChunks = new Chunk[16];
+        mChunkCount = 0;
+        mCount = 0;
+        if (mSpillRaf != null) {
+            try {
+                mSpillRaf.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            mSpillRaf = null;
+            mSpillFile.delete();
+        }
+    }
+
+}
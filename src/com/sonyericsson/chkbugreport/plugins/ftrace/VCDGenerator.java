@@ -1,23 +1,33 @@
 package com.sonyericsson.chkbugreport.plugins.ftrace;
 
 import com.sonyericsson.chkbugreport.BugReportModule;
-import com.sonyericsson.chkbugreport.Util;
-
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.PrintStream;
-
-public class VCDGenerator {
+import com.sonyericsson.chkbugreport.util.VCDWriter;
+
+/**
+ * Generates the VCD file from the trace, and collects the per process statistics
+ * (run time, wait time, etc) at the same time.
+ *
+ * <p>Normally all the processes are known before the first event is received, so the
+ * signals are declared in advance. In streaming mode the processes are discovered while
+ * the events are received, so the header of the VCD file is deferred (see {@link VCDWriter}).</p>
+ */
+public class VCDGenerator implements TraceListener {
 
     private static final char STATE_SIGNALS[] = {'0', 'Z', 'W', 'X' };
     private static final char STATE_SIGNALS_IDLE[] = {'0', '0', '0', 'X' };
+    private static final int RUN_WAIT_BITS = 8;
 
     private BugReportModule mBr;
-    private String mFn;
+    private VCDWriter mOut;
+    private FTraceData mData;
+    private int mRunWaitId;
+    private long mLastTime = 0;
+    /* The state of the processes, as seen by the generator */
+    private int mStates[];
 
     public VCDGenerator(BugReportModule br) {
         mBr = br;
-        mFn = mBr.getRelRawDir() + "ftrace.vcd";
+        mOut = new VCDWriter(br, br.getRelRawDir() + "ftrace.vcd", "1us", "mytrace");
     }
 
     private char getSignal(int pid, int state) {
@@ -25,124 +35,114 @@ public class VCDGenerator {
         return STATE_SIGNALS[state];
     }
 
-    public void execute(FTraceData data) {
-
-        // Save the VCD file
-        try {
-            int runWaitBits = 8;
-            FileOutputStream fos = new FileOutputStream(mBr.getBaseDir() + mFn);
-            PrintStream fo = new PrintStream(fos);
-
-            // write header
-            fo.println("$timescale 1us $end");
-            fo.println("$scope mytrace $end");
-
-            fo.println("$var wire " + runWaitBits + " RUNWAIT Processes.Running.And.Waiting $end");
-
-            for (int i = 0; i < 65535; i++) {
-                FTraceProcessRecord proc = data.getProc(i);
+    /**
+     * Starts generating the VCD file
+     * @param data The trace data
+     * @param startTime The time of the first event
+     * @param streaming If true, the list of processes is not known yet
+     */
+    public void begin(FTraceData data, long startTime, boolean streaming) {
+        mData = data;
+        mStates = new int[Const.MAX_PID];
+        for (int i = 0; i < Const.MAX_PID; i++) {
+            mStates[i] = -1;
+        }
+        mRunWaitId = mOut.addSignal("Processes.Running.And.Waiting", RUN_WAIT_BITS);
+        mOut.setInitialValue(mRunWaitId, 0);
+        if (!streaming) {
+            for (int i = 0; i < Const.MAX_PID; i++) {
+                FTraceProcessRecord proc = mData.getProc(i);
                 if (proc != null && proc.used > 0) {
-                    String id = data.genId();
-                    String name = data.getProc(i, mBr).getVCDName();
-                    proc.id = id;
-                    fo.println("$var wire 1 " + id + " " + name + " $end");
+                    addSignal(proc);
                 }
             }
+        }
+        mOut.begin(startTime, streaming);
+    }
 
-            fo.println("$upscope $end");
-            fo.println("$enddefinitions $end");
-
-            TraceRecord cur = data.getFirstTraceRecord();
+    private void addSignal(FTraceProcessRecord proc) {
+        proc.vcdId = mOut.addSignal(proc.getVCDName(), 1);
+        mOut.setInitialState(proc.vcdId, getSignal(proc.pid, proc.initState));
+    }
 
-            fo.println("#" + cur.time);
-            fo.println("b" + Util.toBinary(0, runWaitBits) + " RUNWAIT");
-            for (int i = 0; i < 65535; i++) {
-                FTraceProcessRecord proc = data.getProc(i);
-                if (proc != null && proc.used > 0) {
-                    fo.println("b" + getSignal(i, proc.initState) + " " + proc.id);
-                }
-            }
+    @Override
+    public void onEvent(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int event, int nrRunWait) {
+        if (event == Const.MIGRATE) {
+            // Doesn't change the state of the process
+            return;
+        }
+        mLastTime = time;
+        mOut.setTime(time);
 
-            long lastTime = 0;
-            int lastNrRunWait = 0;
-            while (cur != null) {
-                if (lastTime != cur.time) {
-                    lastTime = cur.time;
-                    fo.println("#" + cur.time);
-                }
+        // Update the number of processes running
+        mOut.setValue(mRunWaitId, Math.max(0, nrRunWait));
 
-                // Update the number of processes running
-                if (cur.nrRunWait != lastNrRunWait) {
-                    lastNrRunWait = cur.nrRunWait;
-                    fo.println("b" + Util.toBinary(lastNrRunWait, runWaitBits) + " RUNWAIT");
-                }
+        // Now check what happens with the prev task
+        // In case of wakeup, nothing happens with the previous task, so we are
+        // interested only in context switches
+        if (event == Const.SWITCH) {
+            updateState(mData.getProc(prevPid, mBr), Const.calcPrevState(prevState));
+        }
 
-                // Now check what happens with the prev task
-                // In case of wakeup, nothing happens with the previous task, so we are
-                // interested only in context switches
-                if (cur.event == Const.SWITCH) {
-                    FTraceProcessRecord prev = data.getProc(cur.prevPid, mBr);
-                    int prevState = Const.calcPrevState(cur.prevState);
-                    if (prevState != prev.state) {
-                        // Change in state
-                        if (prev.lastTime != 0) {
-                            long elapsed = lastTime - prev.lastTime;
-                            if (prev.state == Const.STATE_RUN) {
-                                prev.runTime += elapsed;
-                            } else if (prev.state == Const.STATE_WAIT) {
-                                prev.waitTime += elapsed;
-                                prev.waitTimeCnt++;
-                                prev.waitTimeMax = Math.max(prev.waitTimeMax, (int)elapsed);
-                            } else if (prev.state == Const.STATE_DISK) {
-                                prev.diskTime += elapsed;
-                                prev.diskTimeCnt++;
-                                prev.diskTimeMax = Math.max(prev.diskTimeMax, (int)elapsed);
-                            }
-                        }
-                        prev.state = prevState;
-                        prev.lastTime = lastTime;
-                        fo.println("b" + getSignal(prev.pid, prevState) + " " + prev.id);
-                    }
-                }
+        // And let's see what happens with the new task
+        int nextStateId = Const.STATE_RUN;
+        if (event == Const.WAKEUP) {
+            // Not running yet, so it must be waiting
+            nextStateId = Const.STATE_WAIT;
+        }
+        updateState(mData.getProc(nextPid, mBr), nextStateId);
+    }
 
-                // And let's see what happens with the new task
-                FTraceProcessRecord next = data.getProc(cur.nextPid, mBr);
-                int nextState = Const.STATE_RUN;
-                if (cur.event == Const.WAKEUP) {
-                    // Not running yet, so it must be waiting
-                    nextState = Const.STATE_WAIT;
-                }
-                if (nextState != next.state) {
-                    // Change in state
-                    if (next.lastTime != 0) {
-                        long elapsed = lastTime - next.lastTime;
-                        if (next.state == Const.STATE_RUN) {
-                            next.runTime += elapsed;
-                        } else if (next.state == Const.STATE_WAIT) {
-                            next.waitTime += elapsed;
-                            next.waitTimeCnt++;
-                            next.waitTimeMax = Math.max(next.waitTimeMax, (int)elapsed);
-                        } else if (next.state == Const.STATE_DISK) {
-                            next.diskTime += elapsed;
-                            next.diskTimeCnt++;
-                            next.diskTimeMax = Math.max(next.diskTimeMax, (int)elapsed);
-                        }
-                    }
-                    next.state = nextState;
-                    next.lastTime = lastTime;
-                    fo.println("b" + getSignal(next.pid, nextState) + " " + next.id);
+    private void updateState(FTraceProcessRecord proc, int newState) {
+        int state = mStates[proc.pid];
+        if (state < 0) {
+            // First time we see this process
+            state = proc.initState;
+            if (proc.vcdId < 0) {
+                addSignal(proc);
+            }
+        }
+        if (newState != state) {
+            // Change in state
+            if (proc.lastTime != 0) {
+                long elapsed = mLastTime - proc.lastTime;
+                if (state == Const.STATE_RUN) {
+                    proc.runTime += elapsed;
+                } else if (state == Const.STATE_WAIT) {
+                    proc.waitTime += elapsed;
+                    proc.waitTimeCnt++;
+                    proc.waitTimeMax = Math.max(proc.waitTimeMax, (int)elapsed);
+                } else if (state == Const.STATE_DISK) {
+                    proc.diskTime += elapsed;
+                    proc.diskTimeCnt++;
+                    proc.diskTimeMax = Math.max(proc.diskTimeMax, (int)elapsed);
                 }
-                cur = cur.next;
             }
-            fo.close();
-            fos.close();
-        } catch (IOException e) {
-            mBr.printErr(3, FTracePlugin.TAG + "Error saving vcd file: " + e);
+            state = newState;
+            proc.lastTime = mLastTime;
+            mOut.setState(proc.vcdId, getSignal(proc.pid, newState));
         }
+        mStates[proc.pid] = state;
+    }
+
+    /**
+     * The value changes are already written when streaming, so the RUNWAIT signal is
+     * not adjusted in that case.
+     */
+    @Override
+    public void onNrRunWaitAdjusted(int delta) {
+        // NOP
+    }
+
+    /**
+     * Finishes the VCD file
+     */
+    public void end() {
+        mOut.end();
     }
 
     public String getFileName() {
-        return mFn;
+        return mOut.getFileName();
     }
 
 }
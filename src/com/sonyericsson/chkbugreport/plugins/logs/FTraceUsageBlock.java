@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins.logs;
+
+import com.sonyericsson.chkbugreport.BugReportModule;
+import com.sonyericsson.chkbugreport.doc.Block;
+import com.sonyericsson.chkbugreport.doc.DocNode;
+import com.sonyericsson.chkbugreport.doc.Para;
+import com.sonyericsson.chkbugreport.doc.Renderer;
+import com.sonyericsson.chkbugreport.doc.ShadedValue;
+import com.sonyericsson.chkbugreport.doc.Table;
+import com.sonyericsson.chkbugreport.plugins.ftrace.FTraceIndex;
+import com.sonyericsson.chkbugreport.plugins.ftrace.FTracePlugin;
+
+import java.util.Calendar;
+import java.util.Vector;
+
+/**
+ * Shows which processes were running (according to the ftrace) in the given amount
+ * of time before a log line.
+ *
+ * <p>The ftrace is processed only after the logs, so the content is created when the
+ * report is rendered (see {@link #prepare(Renderer)}). If there is no ftrace, or it doesn't
+ * cover the log line, nothing is shown.</p>
+ *
+ * <p>The kernel timestamps of the trace are not related to the wall clock, so the trace
+ * is aligned to the log assuming it ends when the bugreport was taken.</p>
+ */
+public class FTraceUsageBlock extends DocNode {
+
+    private static final int MAX_ROWS = 10;
+
+    private BugReportModule mBr;
+    private long mLogTs;
+    private int mWindow;
+    private boolean mPrepared = false;
+
+    /**
+     * Creates a new block
+     * @param parent The parent node
+     * @param br The bugreport
+     * @param logTs The timestamp of the log line (see {@link LogLineBase#ts})
+     * @param window The size of the time window before the log line, in seconds
+     */
+    public FTraceUsageBlock(DocNode parent, BugReportModule br, long logTs, int window) {
+        parent.add(this);
+        mBr = br;
+        mLogTs = logTs;
+        mWindow = window;
+    }
+
+    @Override
+    public void prepare(Renderer r) {
+        if (!mPrepared) {
+            mPrepared = true;
+            create();
+        }
+        super.prepare(r);
+    }
+
+    private void create() {
+        FTraceIndex index = (FTraceIndex)mBr.getMetaInfo(FTracePlugin.META_INDEX);
+        Calendar cal = mBr.getTimestamp();
+        if (index == null || cal == null) return;
+
+        // Convert the time of the bugreport to the same format as the log timestamps
+        long brTs = cal.get(Calendar.MONTH) + 1;
+        brTs = brTs * 31 + cal.get(Calendar.DAY_OF_MONTH);
+        brTs = brTs * 24 + cal.get(Calendar.HOUR_OF_DAY);
+        brTs = brTs * 60 + cal.get(Calendar.MINUTE);
+        brTs = brTs * 60 + cal.get(Calendar.SECOND);
+        brTs = brTs * 1000;
+        long diff = brTs - mLogTs;
+        if (diff < 0) return;
+
+        long to = index.getEndTime() - diff * 1000;
+        long from = Math.max(index.getStartTime(), to - mWindow * 1000000L);
+        if (to <= from) return;
+        Vector<FTraceIndex.Usage> list = index.queryAll(from, to);
+        if (list.isEmpty()) return;
+
+        DocNode block = new Block(this);
+        new Para(block)
+            .add("The most active processes in the ftrace during the ")
+            .add(new ShadedValue(to - from))
+            .add("us before this (the trace is aligned assuming it ends when the bugreport was taken," +
+                    " so the times are approximate):");
+        Table t = new Table(Table.FLAG_SORT, block);
+        t.addColumn("Name", Table.FLAG_NONE);
+        t.addColumn("Run time (us)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("(%)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Wait time (us)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("IOWait time (us)", Table.FLAG_ALIGN_RIGHT);
+        t.begin();
+        for (int i = 0; i < list.size() && i < MAX_ROWS; i++) {
+            FTraceIndex.Usage u = list.get(i);
+            t.addData(u.name);
+            t.addData(new ShadedValue(u.runTime));
+            t.addData(String.format("%3.1f", (u.runTime * 100.0 / (to - from))));
+            t.addData(new ShadedValue(u.waitTime));
+            t.addData(new ShadedValue(u.diskTime));
+        }
+        t.end();
+    }
+
+}
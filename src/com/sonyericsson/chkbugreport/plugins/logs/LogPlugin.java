@@ -34,25 +34,22 @@ import com.sonyericsson.chkbugreport.doc.Para;
 import com.sonyericsson.chkbugreport.doc.ProcessLink;
 import com.sonyericsson.chkbugreport.doc.Table;
 import com.sonyericsson.chkbugreport.plugins.SysPropsPlugin;
+import com.sonyericsson.chkbugreport.util.ChartCanvas;
+import com.sonyericsson.chkbugreport.util.ColumnDecimator;
 
 import java.awt.Color;
-import java.awt.FontMetrics;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Vector;
 
-import javax.imageio.ImageIO;
-
 public abstract class LogPlugin extends Plugin {
 
     public static final String TAG = "[LogPlugin]";
 
+    /** The chart type of the GC graphs (see Module.setVectorCharts) */
+    public static final String CHART_GC = "gc";
+
     private HashMap<Integer,ProcessLog> mLogs = new HashMap<Integer, ProcessLog>();
 
     private long mTsFirst = -1;
@@ -307,6 +304,12 @@ public abstract class LogPlugin extends Plugin {
         return mTsLast;
     }
 
+    private void plotGCValues(ChartCanvas g, ColumnDecimator values, Color color, int r) {
+        g.setColor(color);
+        values.drawLine(g);
+        values.drawMarkers(g, r);
+    }
+
     private int generateGCGraphs(BugReportModule br, Chapter ch) {
         int cnt = 0;
         for (GCRecords gcs : mGCs.values()) {
@@ -366,9 +369,8 @@ public abstract class LogPlugin extends Plugin {
         }
 
         // Create an empty image
-        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = (Graphics2D)img.getGraphics();
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        ChartCanvas g = ChartCanvas.create(br, CHART_GC, w, h);
+        g.setAntialias(true);
         g.setColor(Color.WHITE);
         g.fillRect(0, 0, w, h);
         g.setColor(Color.LIGHT_GRAY);
@@ -385,7 +387,6 @@ public abstract class LogPlugin extends Plugin {
         g.drawLine(cx + gw - as, cy + as, cx + gw, cy);
 
         // Draw the title
-        FontMetrics fm = g.getFontMetrics();
         String procName = "";
         ProcessRecord pr = br.getProcessRecord(pid, false, false);
         if (pr != null) {
@@ -393,7 +394,7 @@ public abstract class LogPlugin extends Plugin {
         } else {
             procName = Integer.toString(pid);
         }
-        g.drawString("Memory after GC in process " + procName, 10, 10 + fm.getAscent());
+        g.drawString("Memory after GC in process " + procName, 10, 10 + g.getAscent());
 
         // Draw the duration
         String dur;
@@ -407,7 +408,7 @@ public abstract class LogPlugin extends Plugin {
             dur = String.format("%.1fh", duration / 3600000.0f);
         }
         dur = "Log length: " + dur;
-        g.drawString(dur, w - 10 - fm.stringWidth(dur), 10 + fm.getAscent());
+        g.drawString(dur, w - 10 - g.stringWidth(dur), 10 + g.getAscent());
 
         // Collect the maximum value
         int max = 0;
@@ -432,7 +433,7 @@ public abstract class LogPlugin extends Plugin {
             g.drawLine(cx + 1, yv, cx + gw, yv);
             g.setColor(Color.BLACK);
             String s = "" + value + "K";
-            g.drawString(s, cx - fm.stringWidth(s) - 1, yv);
+            g.drawString(s, cx - g.stringWidth(s) - 1, yv);
         }
 
         // Draw the config changes (useful to see the correlation between config changes and memory usage)
@@ -456,110 +457,81 @@ public abstract class LogPlugin extends Plugin {
             g.drawString("" + heapLimit + "MB", cx + gw + 5, yv);
         }
 
-        // Plot the values (size)
+        // Plot the values (size). The values are reduced to one point per pixel column first,
+        // so the chart doesn't get more complex with longer logs.
         Color colFreeSize = new Color(0xc0c080);
         Color colTotalSize = new Color(0x8080d7);
-        int lastX = -1, lastYF = -1, lastYT = -1;
         int r = 3;
+        ColumnDecimator freeSize = new ColumnDecimator(w);
+        ColumnDecimator totalSize = new ColumnDecimator(w);
         for (GCRecord gc : gcs) {
-            int yf = cy - gc.memFreeSize * (gh - 1) / max;
             int x = cx + (int)((gc.ts - getFirstTs()) * (gw - 1) / duration);
-            g.setColor(colFreeSize);
-            if (lastX != -1) {
-                g.drawLine(lastX, lastYF, x, yf);
-            }
-            g.fillArc(x - r, yf - r, 2*r+1, 2*r+1, 0, 360);
-            lastYF = yf;
+            freeSize.add(x, cy - gc.memFreeSize * (gh - 1) / max);
             if (hasExternal) {
-                int yt = cy - (gc.memFreeSize + gc.memExtSize) * (gh - 1) / max;
-                g.setColor(colTotalSize);
-                if (lastX != -1) {
-                    g.drawLine(lastX, lastYT, x, yt);
-                }
-                g.fillArc(x - r, yt - r, 2*r+1, 2*r+1, 0, 360);
-                lastYT = yt;
+                totalSize.add(x, cy - (gc.memFreeSize + gc.memExtSize) * (gh - 1) / max);
             }
-            lastX = x;
         }
+        plotGCValues(g, freeSize, colFreeSize, r);
+        plotGCValues(g, totalSize, colTotalSize, r);
 
         // Plot the values (alloc)
         Color colFreeAlloc = new Color(0x808000);
         Color colTotalAlloc = new Color(0x0000c0);
-        lastX = -1; lastYF = -1; lastYT = -1;
+        ColumnDecimator freeAlloc = new ColumnDecimator(w);
+        ColumnDecimator totalAlloc = new ColumnDecimator(w);
         for (GCRecord gc : gcs) {
-            int yf = cy - gc.memFreeAlloc * (gh - 1) / max;
             int x = cx + (int)((gc.ts - firstTs) * (gw - 1) / (duration));
-            g.setColor(colFreeAlloc);
-            if (lastX != -1) {
-                g.drawLine(lastX, lastYF, x, yf);
-            }
-            g.fillArc(x - r, yf - r, 2*r+1, 2*r+1, 0, 360);
-            lastYF = yf;
+            freeAlloc.add(x, cy - gc.memFreeAlloc * (gh - 1) / max);
             if (hasExternal) {
-                int yt = cy - (gc.memFreeAlloc + gc.memExtAlloc) * (gh - 1) / max;
-                g.setColor(colTotalAlloc);
-                if (lastX != -1) {
-                    g.drawLine(lastX, lastYT, x, yt);
-                }
-                g.fillArc(x - r, yt - r, 2*r+1, 2*r+1, 0, 360);
-                lastYT = yt;
+                totalAlloc.add(x, cy - (gc.memFreeAlloc + gc.memExtAlloc) * (gh - 1) / max);
             }
-            lastX = x;
         }
+        plotGCValues(g, freeAlloc, colFreeAlloc, r);
+        plotGCValues(g, totalAlloc, colTotalAlloc, r);
 
         // Plot the values (alloc)
         Color colTotalAllocO = new Color(0xff4040);
         if (hasExternal) {
-            lastX = -1; lastYF = -1; lastYT = -1;
+            ColumnDecimator totalAllocO = new ColumnDecimator(w);
             for (GCRecord gc : gcs) {
-                int yt = cy - (gc.memFreeSize + gc.memExtAlloc) * (gh - 1) / max;
                 int x = cx + (int)((gc.ts - firstTs) * (gw - 1) / (duration));
-                g.setColor(colTotalAllocO);
-                if (lastX != -1) {
-                    g.drawLine(lastX, lastYT, x, yt);
-                }
-                g.fillArc(x - r, yt - r, 2*r+1, 2*r+1, 0, 360);
-                lastX = x;
-                lastYT = yt;
+                totalAllocO.add(x, cy - (gc.memFreeSize + gc.memExtAlloc) * (gh - 1) / max);
             }
+            plotGCValues(g, totalAllocO, colTotalAllocO, r);
         }
 
         // Draw the legend
-        int yl = h - 10 - fm.getDescent();
+        int yl = h - 10 - g.getDescent();
         String s = "VM Heap (alloc)";
         g.setColor(colFreeAlloc);
-        g.drawString(s, w * 1 / 4 - fm.stringWidth(s)/2, yl);
+        g.drawString(s, w * 1 / 4 - g.stringWidth(s)/2, yl);
         if (hasExternal) {
             s = "VM Heap + External (alloc)";
             g.setColor(colTotalAlloc);
-            g.drawString(s, w * 2 / 4 - fm.stringWidth(s)/2, yl);
+            g.drawString(s, w * 2 / 4 - g.stringWidth(s)/2, yl);
             s = "Mem footprint";
             g.setColor(colTotalAllocO);
-            g.drawString(s, w * 3 / 4 - fm.stringWidth(s)/2, yl);
+            g.drawString(s, w * 3 / 4 - g.stringWidth(s)/2, yl);
         }
-        yl -= fm.getHeight();
+        yl -= g.getFontHeight();
         s = "VM Heap (size)";
         g.setColor(colFreeSize);
-        g.drawString(s, w * 1 / 4 - fm.stringWidth(s)/2, yl);
+        g.drawString(s, w * 1 / 4 - g.stringWidth(s)/2, yl);
         if (hasExternal) {
             s = "VM Heap + External (size)";
             g.setColor(colTotalSize);
-            g.drawString(s, w * 2 / 4 - fm.stringWidth(s)/2, yl);
+            g.drawString(s, w * 2 / 4 - g.stringWidth(s)/2, yl);
         }
         if (ccCnt > 0) {
             // Draw legend for config changes
             s = "| Config changes";
             g.setColor(colConfigChange);
-            g.drawString(s, w * 3 / 4 - fm.stringWidth(s)/2, yl);
+            g.drawString(s, w * 3 / 4 - g.stringWidth(s)/2, yl);
         }
 
         // Save the image
-        String fn = "gc_" + mId + "_" + pid + ".png";
-        try {
-            ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        String fn = "gc_" + mId + "_" + pid + "." + g.getExtension();
+        br.getChartService().save(fn, g);
 
         // Append a link at the end of the system log
         ch.add(new Img(fn));
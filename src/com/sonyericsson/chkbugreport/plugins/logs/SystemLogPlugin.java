@@ -34,6 +34,9 @@ import com.sonyericsson.chkbugreport.doc.Table;
 
 public class SystemLogPlugin extends LogPlugin {
 
+    /** The time (in seconds) before an ANR for which the ftrace data is shown */
+    private static final int ANR_FTRACE_WINDOW = 10;
+
     private Section mKernelLog;
 
     public SystemLogPlugin() {
@@ -294,6 +297,7 @@ public class SystemLogPlugin extends LogPlugin {
             log.add(sl2.copy());
             end++;
         }
+        new FTraceUsageBlock(bug, br, sl.ts, ANR_FTRACE_WINDOW);
         bug.setAttr("firstLine", i);
         bug.setAttr("lastLine", end);
         bug.setAttr("section", s);
@@ -7,10 +7,8 @@ import com.sonyericsson.chkbugreport.doc.Img;
 import com.sonyericsson.chkbugreport.doc.Link;
 import com.sonyericsson.chkbugreport.doc.Para;
 import com.sonyericsson.chkbugreport.doc.Table;
+import com.sonyericsson.chkbugreport.util.VCDWriter;
 
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -48,7 +46,7 @@ public class ActivityManagerGraphGenerator {
 
         // Then we process each log record and add it to the chart
         // and to the VCD file
-        int vcdId = 1;
+        VCDWriter vcd = new VCDWriter(br, br.getRelRawDir() + "am_logs.vcd", "1ms", "am_logs");
         HashMap<String, Integer> vcdIds = new HashMap<String, Integer>();
         HashMap<String, AMChart> charts = new HashMap<String, AMChart>();
         for (int i = 0; i < cnt; i++) {
@@ -57,7 +55,7 @@ public class ActivityManagerGraphGenerator {
             String component = am.getComponent();
             if (pid < 0 || component == null) continue;
             if (null == vcdIds.get(component)) {
-                vcdIds.put(component, vcdId++);
+                vcdIds.put(component, vcd.addSignal(component, 1));
             }
             AMChart chart = charts.get(component);
             if (chart == null) {
@@ -68,35 +66,15 @@ public class ActivityManagerGraphGenerator {
         }
 
         // Write the VCD file
-        String fn = br.getRelRawDir() + "am_logs.vcd";
-        try {
-            FileOutputStream fos = new FileOutputStream(br.getBaseDir() + fn);
-            PrintStream fo = new PrintStream(fos);
-
-            // write header
-            fo.println("$timescale 1ms $end");
-            fo.println("$scope am_logs $end");
-            for (Entry<String, Integer> item : vcdIds.entrySet()) {
-                fo.println("$var wire 1 a" + item.getValue() + " " + item.getKey() + " $end");
-            }
-            fo.println("$upscope $end");
-            fo.println("$enddefinitions $end");
-
-            // Write initial values
-            fo.println("#" + firstTs);
-            for (Entry<String, Integer> item : vcdIds.entrySet()) {
-                int id = item.getValue();
-                String component = item.getKey();
-                AMChart chart = charts.get(component);
-                int initState = AMChart.STATE_UNKNOWN;
-                if (chart != null) {
-                    initState = chart.getInitState();
-                }
-                char state = getVCDState(initState);
-                fo.println("b" + state + " a" + id);
+        for (Entry<String, Integer> item : vcdIds.entrySet()) {
+            AMChart chart = charts.get(item.getKey());
+            int initState = AMChart.STATE_UNKNOWN;
+            if (chart != null) {
+                initState = chart.getInitState();
             }
-
-            // Write events
+            vcd.setInitialState(item.getValue(), getVCDState(initState));
+        }
+        if (vcd.begin(firstTs, false)) {
             for (int i = 0; i < cnt; i++) {
                 AMData am = mAmTrace.get(i);
                 int pid = am.getPid();
@@ -105,16 +83,16 @@ public class ActivityManagerGraphGenerator {
                 int id = vcdIds.get(component);
                 int state = AMChart.actionToState(am.getAction());
                 if (state != AMChart.STATE_UNKNOWN) {
-                    fo.println("#" + am.getTS());
-                    fo.println("b" + getVCDState(state) + " a" + id);
+                    vcd.setTime(am.getTS());
+                    vcd.setState(id, getVCDState(state));
                 }
             }
-
-            new Para(ch)
-                .add("AM logs converted to VCD file (you can use GTKWave to open it): ")
-                .add(new Link(fn, fn));
-        } catch (IOException e) {
-            br.printErr(3, "Error saving vcd file: " + e);
+            if (vcd.end()) {
+                String fn = vcd.getFileName();
+                new Para(ch)
+                    .add("AM logs converted to VCD file (you can use GTKWave to open it): ")
+                    .add(new Link(fn, fn));
+            }
         }
 
         // We need to finish the charts (fill in the end, save the image, etc)
@@ -122,7 +100,7 @@ public class ActivityManagerGraphGenerator {
         t.addColumn("Component", Table.FLAG_NONE);
         t.addColumn("Graph", Table.FLAG_NONE);
         t.begin();
-        fn = "amchart_time.png";
+        String fn = "amchart_time.png";
         if (Util.createTimeBar(br, fn, AMChart.W, firstTs, lastTs)) {
             t.addData("");
             t.addData(new Img(fn));
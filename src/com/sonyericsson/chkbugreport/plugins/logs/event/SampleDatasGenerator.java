@@ -7,23 +7,19 @@ import com.sonyericsson.chkbugreport.doc.Hint;
 import com.sonyericsson.chkbugreport.doc.Img;
 import com.sonyericsson.chkbugreport.doc.Link;
 import com.sonyericsson.chkbugreport.doc.Para;
+import com.sonyericsson.chkbugreport.util.VCDWriter;
 
 import java.awt.Color;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintStream;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.Vector;
 
-import javax.imageio.ImageIO;
-
 public class SampleDatasGenerator {
 
     private EventLogPlugin mPlugin;
@@ -51,20 +47,23 @@ public class SampleDatasGenerator {
 
             // create the graph
             // save the data as vcd file as well
-            String fnVcd = br.getRelRawDir() + "sample_graph_" + eventType + ".vcd";
-            generateSampleDataVCD(br, fnVcd, sds, eventType);
+            VCDWriter vcd = new VCDWriter(br, br.getRelRawDir() + "sample_graph_" + eventType + ".vcd", "1ms", "am_logs");
+            generateSampleDataVCD(vcd, sds, eventType);
+            String fnVcd = vcd.getFileName();
+            Para para = new Para(ch);
+            para.add("Graph built from " + eventType + " logs:")
+                .add(new Hint()
+                    .add("VCD file also generated: ")
+                    .add(new Link(fnVcd, fnVcd)));
             String fn = "sample_graph_" + eventType + ".png";
-            generateSampleDataGraph(br, fn, sds, eventType);
+            if (generateSampleDataGraph(br, fn, sds, eventType)) {
+                para.add(new Img(fn));
+            }
             // Alternative graph
             String fnAlt = "sample_graph_" + eventType + "___alt.png";
-            generateSampleDataGraphAlt(br, fnAlt, sds, eventType);
-            new Para(ch)
-                .add("Graph built from " + eventType + " logs:")
-                .add(new Hint()
-                    .add("VCD file also generated: ")
-                    .add(new Link(fnVcd, fnVcd)))
-                .add(new Img(fn))
-                .add(new Img(fnAlt));
+            if (generateSampleDataGraphAlt(br, fnAlt, sds, eventType)) {
+                para.add(new Img(fnAlt));
+            }
         }
     }
 
@@ -182,12 +181,7 @@ public class SampleDatasGenerator {
         }
 
         // Save the image
-        try {
-            ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        br.getChartService().savePng(fn, img);
 
         return true;
     }
@@ -286,12 +280,7 @@ public class SampleDatasGenerator {
         }
 
         // Save the image
-        try {
-            ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        br.getChartService().savePng(fn, img);
 
         return true;
     }
@@ -308,22 +297,23 @@ public class SampleDatasGenerator {
         return ret;
     }
 
-    private boolean generateSampleDataVCD(Module br, String fn, Vector<SampleData> sds, String eventType) {
+    private boolean generateSampleDataVCD(VCDWriter vcd, Vector<SampleData> sds, String eventType) {
         if (sds.size() == 0) return false;
 
         // In the first pass we need to find the unique ids, and also generate a sorted
         // list of events
         HashMap<String, Integer> ids = new HashMap<String, Integer>();
         Vector<SampleEvent> events = new Vector<SampleEvent>();
-        int idx = 0;
+        int bits = 8;
         for (SampleData sd : sds) {
             String name = sd.name;
 
             // Associate an id to the name
             Integer idObj = ids.get(name);
             if (idObj == null) {
-                idObj = new Integer(idx++);
+                idObj = vcd.addSignal(Util.fixVCDName(name), bits);
                 ids.put(name, idObj);
+                vcd.setInitialState(idObj, 'Z');
             }
 
             // Add the start and stop events
@@ -342,59 +332,36 @@ public class SampleDatasGenerator {
         });
 
         // Save the file
-        try {
-            PrintStream ps = new PrintStream(new File(br.getBaseDir() + fn));
-            int bits = 8;
-
-            // Write header
-            ps.println("$timescale 1ms $end");
-            ps.println("$scope am_logs $end");
-            for (Entry<String, Integer> entry : ids.entrySet()) {
-                String name = entry.getKey();
-                int id = entry.getValue();
-                name = Util.fixVCDName(name);
-                ps.println("$var wire " + bits + " n" + id + " " + name + " $end");
-            }
-            ps.println("$upscope $end");
-            ps.println("$enddefinitions $end");
-
-            // Write initial values
-            long lastTs = mPlugin.getFirstTs();
-            ps.println("#" + lastTs);
-            for (int id = 0; id < idx; id++) {
-                ps.println("bZ n" + id);
-            }
+        if (!vcd.begin(mPlugin.getFirstTs(), false)) {
+            return false;
+        }
 
-            // Write events
-            int count[] = new int[idx];
-            for (SampleEvent event : events) {
-                if (event.ts != lastTs) {
-                    ps.println("#" + event.ts);
-                    lastTs = event.ts;
-                }
-                int id = event.id;
-                if (event.start) {
-                    count[id]++;
-                } else {
-                    count[id]--;
-                }
-                ps.println("b" + (count[id] == 0 ? "Z" : Util.toBinary(count[id], bits)) + " n" + id);
+        // Write events
+        int idx = vcd.getSignalCount();
+        int count[] = new int[idx];
+        for (SampleEvent event : events) {
+            vcd.setTime(event.ts);
+            int id = event.id;
+            if (event.start) {
+                count[id]++;
+            } else {
+                count[id]--;
             }
-
-            // Write final values
-            lastTs = mPlugin.getLastTs();
-            ps.println("#" + lastTs);
-            for (int id = 0; id < idx; id++) {
-                ps.println("bZ n" + id);
+            if (count[id] == 0) {
+                vcd.setState(id, 'Z');
+            } else {
+                vcd.setValue(id, count[id]);
             }
+        }
 
-            // Finish
-            ps.close();
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+        // Write final values
+        vcd.setTime(mPlugin.getLastTs());
+        for (int id = 0; id < idx; id++) {
+            vcd.setState(id, 'Z');
         }
+
+        // Finish
+        return vcd.end();
     }
 
 }
@@ -1,94 +1,111 @@
 package com.sonyericsson.chkbugreport.plugins.stacktrace;
 
 import com.sonyericsson.chkbugreport.BugReportModule;
+import com.sonyericsson.chkbugreport.util.DBTableWriter;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 
 public class DBImporter {
 
-    private Connection mConn;
+    private BugReportModule mMod;
 
     public DBImporter(StackTracePlugin stackTracePlugin) {
     }
 
-    public void importIntoDB(BugReportModule br, HashMap<Integer, Processes> allProcesses) {
-        mConn = br.getSQLConnection();
-        if (mConn != null) {
-            try {
-                importIntoDBUnsafe(allProcesses);
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+    public void importIntoDB(BugReportModule br, final HashMap<Integer, Processes> allProcesses) {
+        mMod = br;
+        final Connection conn = br.getSQLConnection();
+        if (conn != null) {
+            // The DB can be accessed only from the export thread
+            br.getExportQueue().post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        importIntoDBUnsafe(conn, allProcesses);
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
         }
     }
 
-    private void importIntoDBUnsafe(HashMap<Integer,Processes> allProcesses) throws SQLException {
+    private void importIntoDBUnsafe(Connection conn, HashMap<Integer,Processes> allProcesses) throws SQLException {
         int nextProcessId = 0;
         int nextThreadId = 0;
         int nextItemId = 0;
 
         // Create the table structure
-        Statement stat = mConn.createStatement();
+        Statement stat = conn.createStatement();
         stat.execute("CREATE TABLE stacktrace_groups (id int, name varchar)");
         stat.execute("INSERT INTO stacktrace_groups VALUES (" + StackTracePlugin.ID_NOW + ", \"VM traces just now\")");
         stat.execute("INSERT INTO stacktrace_groups VALUES (" + StackTracePlugin.ID_ANR + ", \"VM traces at last ANR\")");
         stat.execute("INSERT INTO stacktrace_groups VALUES (" + StackTracePlugin.ID_OLD + ", \"VM traces\")");
-        stat.execute("CREATE TABLE stacktrace_processes (id int, pid int, name varchar, group_id int)");
-        stat.execute("CREATE TABLE stacktrace_threads (id int, tid int, name varchar, process_id int)");
-        stat.execute("CREATE TABLE stacktrace_items (id int, idx id, method varchar, file varchar, line int, thread_id int)");
         stat.close();
-        PreparedStatement insProc = mConn.prepareStatement("INSERT INTO stacktrace_processes(id,pid,name,group_id) VALUES (?,?,?,?)");
-        PreparedStatement insThread = mConn.prepareStatement("INSERT INTO stacktrace_threads(id,tid,name,process_id) VALUES (?,?,?,?)");
-        PreparedStatement insItem = mConn.prepareStatement("INSERT INTO stacktrace_items(id,idx,method,file,line,thread_id) VALUES (?,?,?,?,?,?)");
+        DBTableWriter insProc = new DBTableWriter(mMod, "stacktrace_processes");
+        insProc.addColumn("id int", true);
+        insProc.addColumn("pid int", false);
+        insProc.addColumn("name varchar", false);
+        insProc.addColumn("group_id int", false);
+        insProc.create();
+        DBTableWriter insThread = new DBTableWriter(mMod, "stacktrace_threads");
+        insThread.addColumn("id int", true);
+        insThread.addColumn("tid int", false);
+        insThread.addColumn("name varchar", false);
+        insThread.addColumn("process_id int", true);
+        insThread.create();
+        DBTableWriter insItem = new DBTableWriter(mMod, "stacktrace_items");
+        insItem.addColumn("id int", false);
+        insItem.addColumn("idx id", false);
+        insItem.addColumn("method varchar", false);
+        insItem.addColumn("file varchar", false);
+        insItem.addColumn("line int", false);
+        insItem.addColumn("thread_id int", true);
+        insItem.create();
 
         // Handle each process group
         for (Processes processes : allProcesses.values()) {
             for (Process process : processes) {
                 int processId = ++nextProcessId;
-                insProc.setInt(1, processId);
-                insProc.setInt(2, process.getPid());
-                insProc.setString(3, process.getName());
-                insProc.setInt(4, processes.getId());
-                insProc.addBatch();
+                insProc.setInt(0, processId);
+                insProc.setInt(1, process.getPid());
+                insProc.setString(2, process.getName());
+                insProc.setInt(3, processes.getId());
+                insProc.endRow();
 
                 int threadCnt = process.getCount();
                 for (int i = 0; i < threadCnt; i++) {
                     int threadId = ++nextThreadId;
                     StackTrace stack = process.get(i);
-                    insThread.setInt(1, threadId);
-                    insThread.setInt(2, stack.getTid());
-                    insThread.setString(3, stack.getName());
-                    insThread.setInt(4, processId);
-                    insThread.addBatch();
+                    insThread.setInt(0, threadId);
+                    insThread.setInt(1, stack.getTid());
+                    insThread.setString(2, stack.getName());
+                    insThread.setInt(3, processId);
+                    insThread.endRow();
 
                     int stackSize = stack.getCount();
                     for (int j = 0; j < stackSize; j++) {
                         int itemId = ++nextItemId;
                         StackTraceItem item = stack.get(j);
-                        insItem.setInt(1, itemId);
-                        insItem.setInt(2, j);
-                        insItem.setString(3, item.getMethod());
-                        insItem.setString(4, item.getFileName());
-                        insItem.setInt(5, item.getLine());
-                        insItem.setInt(6, threadId);
-                        insItem.addBatch();
+                        insItem.setInt(0, itemId);
+                        insItem.setInt(1, j);
+                        insItem.setString(2, item.getMethod());
+                        insItem.setString(3, item.getFileName());
+                        insItem.setInt(4, item.getLine());
+                        insItem.setInt(5, threadId);
+                        insItem.endRow();
                     }
                 }
             }
         }
 
         // Cleanup
-        insItem.executeBatch();
-        insItem.close();
-        insThread.executeBatch();
-        insThread.close();
-        insProc.executeBatch();
-        insProc.close();
-        mConn.commit();
+        insItem.finish();
+        insThread.finish();
+        insProc.finish();
     }
 
 
@@ -0,0 +1,94 @@
+package com.sonyericsson.chkbugreport.plugins.stacktrace;
+
+import java.util.Arrays;
+
+/**
+ * Hash-conses the frame sequences of the stack traces: identical sequences (the same
+ * method, file and line ids in the same order) are stored only once, so the threads
+ * with identical stacks share the same array, and can be compared by reference.
+ *
+ * <p>The hash is computed from the ids of the interned names (see
+ * {@link StackTracePlugin#getSymbols()}), so the names themselves are never compared.</p>
+ */
+public class FrameTable {
+
+    private int mSeqs[][];
+    private int mHashes[];
+    private int mSize;
+    /* The hash table: index + 1 of the sequences, 0 if empty */
+    private int mTable[];
+
+    public FrameTable() {
+        mSeqs = new int[64][];
+        mHashes = new int[64];
+        mTable = new int[128];
+    }
+
+    /**
+     * Returns the shared copy of the given frame sequence
+     * @param frames The frame data
+     * @param len The number of values used from the array
+     * @return An array with exactly len values, which must not be modified
+     */
+    public int[] intern(int frames[], int len) {
+        int hash = hash(frames, len);
+        int mask = mTable.length - 1;
+        int pos = hash & mask;
+        while (mTable[pos] != 0) {
+            int idx = mTable[pos] - 1;
+            if (mHashes[idx] == hash && matches(mSeqs[idx], frames, len)) {
+                return mSeqs[idx];
+            }
+            pos = (pos + 1) & mask;
+        }
+        if (mSize == mSeqs.length) {
+            mSeqs = Arrays.copyOf(mSeqs, mSize * 2);
+            mHashes = Arrays.copyOf(mHashes, mSize * 2);
+        }
+        int idx = mSize++;
+        mSeqs[idx] = frames.length == len ? frames : Arrays.copyOf(frames, len);
+        mHashes[idx] = hash;
+        mTable[pos] = idx + 1;
+        if (mSize * 2 > mTable.length) {
+            rehash();
+        }
+        return mSeqs[idx];
+    }
+
+    /**
+     * Returns the number of distinct frame sequences
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private void rehash() {
+        mTable = new int[mTable.length * 2];
+        int mask = mTable.length - 1;
+        for (int idx = 0; idx < mSize; idx++) {
+            int pos = mHashes[idx] & mask;
+            while (mTable[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            mTable[pos] = idx + 1;
+        }
+    }
+
+    private static boolean matches(int seq[], int frames[], int len) {
+        if (seq.length != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (seq[i] != frames[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(int frames[], int len) {
+        int h = len;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + frames[i];
+        }
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -17,6 +17,8 @@ import com.sonyericsson.chkbugreport.doc.Span;
 import com.sonyericsson.chkbugreport.ps.PSRecord;
 
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Vector;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -69,52 +71,17 @@ public class Generator {
             }
             new Para(pr).add(new Link(ch.getAnchor(), linkText));
 
-            int cnt = p.getCount();
-            for (int i = 0; i < cnt; i++) {
-                StackTrace stack = p.get(i);
-                Anchor anchorTrace = stack.getAnchor();
-                DocNode waiting = new DocNode();
-                int waitOn = stack.getWaitOn();
-                StackTrace aidlDep = stack.getAidlDependency();
-                if (waitOn >= 0) {
-                    StackTrace stackWaitOn = p.findTid(waitOn);
-                    waiting.add(" waiting on ");
-                    waiting.add(new Link(stackWaitOn.getAnchor(), "thread-" + waitOn));
-                } else if (aidlDep != null) {
-                    Process aidlDepProc = aidlDep.getProcess();
-                    waiting.add(" waiting on ");
-                    waiting.add(new Link(aidlDep.getAnchor(), aidlDepProc.getName() + "/" + aidlDep.getName()));
-                }
-                String sched = parseSched(stack.getProperty("sched"));
-                String nice = parseNice(stack.getProperty("nice"));
-                ch.add(anchorTrace);
-                DocNode st = new Block(ch).addStyle("stacktrace");
-                DocNode stName = new Block(st).addStyle("stacktrace-name");
-                new Span(stName).add("-");
-                new Span(stName).addStyle("stacktrace-name-name").add(stack.getName());
-                new Span(stName).addStyle("stacktrace-name-info")
-                    .add(
-                        "(tid=" + stack.getTid() +
-                        " pid=" + stack.getProperty("sysTid") +
-                        " prio=" + stack.getPrio() +
-                        " " + nice +
-                        " " + sched +
-                        " state=" + stack.getState())
-                    .add(waiting)
-                    .add(")");
-                DocNode stItems = new Block(st).addStyle("stacktrace-items");
-                int itemCnt = stack.getCount();
-                for (int j = 0; j < itemCnt; j++) {
-                    StackTraceItem item = stack.get(j);
-                    DocNode stItem = new Block(stItems).addStyle("stacktrace-item");
-                    new Span(stItem).addStyle("stacktrace-item-method").addStyle(item.getStyle()).add(item.getMethod());
-                    if (item.getFileName() != null) {
-                        new Span(stItem).addStyle("stacktrace-item-file").add(item.getFileName());
-                    }
+            // Threads with identical stacks are shown only once
+            Vector<Vector<StackTrace>> groups = groupStackTraces(p);
+            for (Vector<StackTrace> group : groups) {
+                if (group.size() == 1) {
+                    genStackTrace(ch, p, group.get(0));
+                } else {
+                    genStackTraceGroup(ch, group);
                 }
             }
 
-            cnt = p.getUnknownThreadCount();
+            int cnt = p.getUnknownThreadCount();
             if (cnt > 0) {
                 DocNode stu = new Block(ch).addStyle("stacktrace-unknown");
                 new Para(stu).add("Other/unknown threads:");
@@ -173,6 +140,121 @@ public class Generator {
 
     }
 
+    /**
+     * Splits the threads of the process into groups: the threads which have identical
+     * stacks (i.e. sharing the same items, see {@link FrameTable}) and are in the same
+     * state are in the same group. Threads which have some extra information (waiting on
+     * another thread, or highlighted by the analyzer) are always alone in their group.
+     * The groups are in the order of their first thread.
+     */
+    private Vector<Vector<StackTrace>> groupStackTraces(Process p) {
+        Vector<Vector<StackTrace>> ret = new Vector<Vector<StackTrace>>();
+        // Identical stacks share the same items, so the array identity can be used for the lookup
+        IdentityHashMap<int[], HashMap<String, Vector<StackTrace>>> groups = new IdentityHashMap<int[], HashMap<String, Vector<StackTrace>>>();
+        for (StackTrace stack : p) {
+            Vector<StackTrace> group = null;
+            HashMap<String, Vector<StackTrace>> byState = null;
+            int items[] = stack.getSharedItems();
+            if (items != null && canGroup(stack)) {
+                byState = groups.get(items);
+                if (byState == null) {
+                    byState = new HashMap<String, Vector<StackTrace>>();
+                    groups.put(items, byState);
+                }
+                group = byState.get(stack.getState());
+            }
+            if (group == null) {
+                group = new Vector<StackTrace>();
+                ret.add(group);
+                if (byState != null) {
+                    byState.put(stack.getState(), group);
+                }
+            }
+            group.add(stack);
+        }
+        return ret;
+    }
+
+    private boolean canGroup(StackTrace stack) {
+        return stack.getWaitOn() < 0 && stack.getAidlDependency() == null && !stack.hasStyle();
+    }
+
+    private void genStackTrace(Chapter ch, Process p, StackTrace stack) {
+        Anchor anchorTrace = stack.getAnchor();
+        DocNode waiting = new DocNode();
+        int waitOn = stack.getWaitOn();
+        StackTrace aidlDep = stack.getAidlDependency();
+        if (waitOn >= 0) {
+            StackTrace stackWaitOn = p.findTid(waitOn);
+            waiting.add(" waiting on ");
+            waiting.add(new Link(stackWaitOn.getAnchor(), "thread-" + waitOn));
+        } else if (aidlDep != null) {
+            Process aidlDepProc = aidlDep.getProcess();
+            waiting.add(" waiting on ");
+            waiting.add(new Link(aidlDep.getAnchor(), aidlDepProc.getName() + "/" + aidlDep.getName()));
+        }
+        String sched = parseSched(stack.getProperty("sched"));
+        String nice = parseNice(stack.getProperty("nice"));
+        ch.add(anchorTrace);
+        DocNode st = new Block(ch).addStyle("stacktrace");
+        DocNode stName = new Block(st).addStyle("stacktrace-name");
+        new Span(stName).add("-");
+        new Span(stName).addStyle("stacktrace-name-name").add(stack.getName());
+        new Span(stName).addStyle("stacktrace-name-info")
+            .add(
+                "(tid=" + stack.getTid() +
+                " pid=" + stack.getProperty("sysTid") +
+                " prio=" + stack.getPrio() +
+                " " + nice +
+                " " + sched +
+                " state=" + stack.getState())
+            .add(waiting)
+            .add(")");
+        DocNode stItems = new Block(st).addStyle("stacktrace-items");
+        genStackTraceItems(stItems, stack);
+    }
+
+    private void genStackTraceGroup(Chapter ch, Vector<StackTrace> group) {
+        StackTrace stack = group.get(0);
+        for (StackTrace member : group) {
+            // Keep the links to the individual threads working
+            ch.add(member.getAnchor());
+        }
+        DocNode st = new Block(ch).addStyle("stacktrace");
+        DocNode stName = new Block(st).addStyle("stacktrace-name");
+        new Span(stName).add("-");
+        new Span(stName).addStyle("stacktrace-name-name").add(group.size() + " threads in state " + stack.getState());
+        if (stack.getCount() > 0) {
+            new Span(stName).addStyle("stacktrace-name-info").add("(at " + stack.get(0).getMethod() + ")");
+        }
+        DocNode stItems = new Block(st).addStyle("stacktrace-items");
+        StringBuilder sb = new StringBuilder();
+        for (StackTrace member : group) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(member.getName())
+                .append(" (tid=").append(member.getTid())
+                .append(" pid=").append(member.getProperty("sysTid"))
+                .append(" prio=").append(member.getPrio())
+                .append(")");
+        }
+        new Block(stItems).addStyle("stacktrace-threads").add(sb.toString());
+        genStackTraceItems(stItems, stack);
+    }
+
+    private void genStackTraceItems(DocNode stItems, StackTrace stack) {
+        int itemCnt = stack.getCount();
+        for (int j = 0; j < itemCnt; j++) {
+            StackTraceItem item = stack.get(j);
+            DocNode stItem = new Block(stItems).addStyle("stacktrace-item");
+            new Span(stItem).addStyle("stacktrace-item-method").addStyle(item.getStyle()).add(item.getMethod());
+            if (item.getFileName() != null) {
+                new Span(stItem).addStyle("stacktrace-item-file").add(item.getFileName());
+            }
+        }
+    }
+
     private String detectAidlCall(StackTrace stack) {
         Pattern p = Pattern.compile("([^.]+)\\$Stub\\$Proxy\\.(.+)");
         for (StackTraceItem item : stack) {
@@ -1,15 +1,36 @@
 package com.sonyericsson.chkbugreport.plugins.stacktrace;
 
 import com.sonyericsson.chkbugreport.doc.Anchor;
+import com.sonyericsson.chkbugreport.util.SymbolTable;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.NoSuchElementException;
 
+/**
+ * The stack trace of one thread.
+ *
+ * <p>The items are stored as ids of the method and file names in the symbol table shared
+ * by all the stack traces (the same frames repeat a lot across threads and sections), and
+ * the {@link StackTraceItem} objects are created only when accessing them.</p>
+ */
 public class StackTrace implements Iterable<StackTraceItem> {
 
+    /* The fields of an item in mFrames */
+    private static final int FRAME_METHOD = 0;
+    private static final int FRAME_FILE = 1;
+    private static final int FRAME_LINE = 2;
+    private static final int FRAME_SIZE = 3;
+
     private String mName;
-    private Vector<StackTraceItem> mStack = new Vector<StackTraceItem>();
+    private SymbolTable mSymbols;
+    private int mFrames[] = new int[8 * FRAME_SIZE];
+    private int mCount;
+    /* True if mFrames is shared with other stack traces (see FrameTable) */
+    private boolean mShared;
+    /* Created only when the first item gets a style */
+    private String mStyles[];
     private int mTid;
     private int mPrio;
     private String mState;
@@ -20,8 +41,9 @@ public class StackTrace implements Iterable<StackTraceItem> {
     private StackTrace mAidlDep;
     private Anchor mAnchor;
 
-    public StackTrace(Process process, String name, int tid, int prio, String threadState) {
+    public StackTrace(Process process, SymbolTable symbols, String name, int tid, int prio, String threadState) {
         mProc = process;
+        mSymbols = symbols;
         mName = name;
         mTid = tid;
         mPrio = prio;
@@ -31,21 +53,38 @@ public class StackTrace implements Iterable<StackTraceItem> {
     }
 
     public void parseProperties(String s) {
-        String kvs[] = s.split(" ");
-        for (String kv : kvs) {
-            if (kv.length() == 0) continue;
-            String pair[] = kv.split("=");
-            if (pair.length != 2) continue;
-            mProps.put(pair[0], pair[1]);
-
-            // Handle some properties specially
-            if (pair[0].equals("sysTid")) {
-                try {
-                    mPid = Integer.parseInt(pair[1]);
-                } catch (NumberFormatException e) {
-                    e.printStackTrace();
+        parseProperties(s, 0);
+    }
+
+    /**
+     * Parses the space separated key=value pairs starting at the given position of the
+     * string (the keys are interned, since they are the same in all threads)
+     */
+    public void parseProperties(String s, int from) {
+        int len = s.length();
+        while (from < len) {
+            int end = s.indexOf(' ', from);
+            if (end < 0) {
+                end = len;
+            }
+            // Needs exactly one '=' between a non empty key and value
+            int eq = s.indexOf('=', from);
+            int eq2 = eq < 0 ? -1 : s.indexOf('=', eq + 1);
+            if (eq > from && eq < end - 1 && (eq2 < 0 || eq2 >= end)) {
+                String key = mSymbols.get(mSymbols.intern(s, from, eq));
+                String value = s.substring(eq + 1, end);
+                mProps.put(key, value);
+
+                // Handle some properties specially
+                if (key.equals("sysTid")) {
+                    try {
+                        mPid = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
+            from = end + 1;
         }
     }
 
@@ -56,15 +95,25 @@ public class StackTrace implements Iterable<StackTraceItem> {
     public void setStyle(int from, int to, String style) {
         from = Math.max(0, from);
         to = Math.min(getCount(), to);
+        if (from >= to) return;
+        if (mStyles == null) {
+            mStyles = new String[mCount];
+            Arrays.fill(mStyles, "");
+        }
         for (int i = from; i < to; i++) {
-            get(i).setStyle(style);
+            mStyles[i] = style;
         }
     }
 
+    public String getStyle(int idx) {
+        return mStyles == null ? "" : mStyles[idx];
+    }
+
     public int findMethod(String methodName) {
-        int cnt = getCount();
-        for (int i = 0; i < cnt; i++) {
-            if (get(i).getMethod().equals(methodName)) {
+        int id = mSymbols.find(methodName);
+        if (id < 0) return -1; // Not called by any thread
+        for (int i = 0; i < mCount; i++) {
+            if (mFrames[i * FRAME_SIZE + FRAME_METHOD] == id) {
                 return i;
             }
         }
@@ -103,16 +152,85 @@ public class StackTrace implements Iterable<StackTraceItem> {
         return mState;
     }
 
-    public void addStackTraceItem(StackTraceItem item) {
-        mStack.add(item);
+    /**
+     * Adds a new item to the end of the stack trace
+     * @param method The id of the method name
+     * @param file The id of the file name, or -1 if not known
+     * @param line The line number, or -1 if not known
+     */
+    public void addStackTraceItem(int method, int file, int line) {
+        if (mShared || (mCount + 1) * FRAME_SIZE > mFrames.length) {
+            mFrames = Arrays.copyOf(mFrames, Math.max(8, mCount * 2) * FRAME_SIZE);
+            mShared = false;
+        }
+        int pos = mCount * FRAME_SIZE;
+        mFrames[pos + FRAME_METHOD] = method;
+        mFrames[pos + FRAME_FILE] = file;
+        mFrames[pos + FRAME_LINE] = line;
+        mCount++;
+        mStyles = null;
     }
 
     public int getCount() {
-        return mStack.size();
+        return mCount;
     }
 
     public StackTraceItem get(int idx) {
-        return mStack.get(idx);
+        if (idx < 0 || idx >= mCount) {
+            throw new ArrayIndexOutOfBoundsException(idx);
+        }
+        return new StackTraceItem(this, idx);
+    }
+
+    /**
+     * Replaces the items with the shared copy from the frame table. Should be called
+     * when all the items are added.
+     */
+    public void compact(FrameTable table) {
+        mFrames = table.intern(mFrames, mCount * FRAME_SIZE);
+        mShared = true;
+    }
+
+    /**
+     * Returns the items shared through the frame table (see {@link #compact(FrameTable)}), or
+     * null if they are not shared. Stack traces with the same items return the same array.
+     * The returned array must not be modified.
+     */
+    public int[] getSharedItems() {
+        return mShared ? mFrames : null;
+    }
+
+    /**
+     * Returns true if any of the items has a style (i.e. it was highlighted by the analyzer)
+     */
+    public boolean hasStyle() {
+        if (mStyles == null) return false;
+        for (String style : mStyles) {
+            if (style.length() > 0) return true;
+        }
+        return false;
+    }
+
+    public SymbolTable getSymbols() {
+        return mSymbols;
+    }
+
+    /**
+     * Returns the id of the method name of the given item
+     */
+    public int getMethodId(int idx) {
+        return mFrames[idx * FRAME_SIZE + FRAME_METHOD];
+    }
+
+    /**
+     * Returns the id of the file name of the given item, or -1 if not known
+     */
+    public int getFileId(int idx) {
+        return mFrames[idx * FRAME_SIZE + FRAME_FILE];
+    }
+
+    public int getLine(int idx) {
+        return mFrames[idx * FRAME_SIZE + FRAME_LINE];
     }
 
     public void setAidlDependency(StackTrace dstThread) {
@@ -132,7 +250,27 @@ public class StackTrace implements Iterable<StackTraceItem> {
 
     @Override
     public Iterator<StackTraceItem> iterator() {
-        return mStack.iterator();
+        return new Iterator<StackTraceItem>() {
+            private int mNext = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mCount;
+            }
+
+            @Override
+            public StackTraceItem next() {
+                if (mNext >= mCount) {
+                    throw new NoSuchElementException();
+                }
+                return new StackTraceItem(StackTrace.this, mNext++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public Anchor getAnchor() {
@@ -1,39 +1,41 @@
 package com.sonyericsson.chkbugreport.plugins.stacktrace;
 
+/**
+ * One item (method call) of a stack trace. The items are stored by the stack trace
+ * in a compact form (see {@link StackTrace}), this is just a view of one of them.
+ */
 public class StackTraceItem {
 
     public static final String STYLE_ERR = "stacktrace-err";
     public static final String STYLE_BUSY = "stacktrace-busy";
 
-    private String mMethod;
-    private String mFileName;
-    private int mLine;
-    private String mStyle = "";
+    private StackTrace mStack;
+    private int mIdx;
 
-    public StackTraceItem(String method, String fileName, int line) {
-        mMethod = method;
-        mFileName = fileName;
-        mLine = line;
+    public StackTraceItem(StackTrace stack, int idx) {
+        mStack = stack;
+        mIdx = idx;
     }
 
     public String getStyle() {
-        return mStyle;
+        return mStack.getStyle(mIdx);
     }
 
     public void setStyle(String style) {
-        mStyle = style;
+        mStack.setStyle(mIdx, mIdx + 1, style);
     }
 
     public String getMethod() {
-        return mMethod;
+        return mStack.getSymbols().get(mStack.getMethodId(mIdx));
     }
 
     public String getFileName() {
-        return mFileName;
+        int id = mStack.getFileId(mIdx);
+        return id < 0 ? null : mStack.getSymbols().get(id);
     }
 
     public int getLine() {
-        return mLine;
+        return mStack.getLine(mIdx);
     }
 
 }
@@ -26,6 +26,7 @@ import com.sonyericsson.chkbugreport.ProcessRecord;
 import com.sonyericsson.chkbugreport.Section;
 import com.sonyericsson.chkbugreport.doc.Chapter;
 import com.sonyericsson.chkbugreport.ps.PSRecord;
+import com.sonyericsson.chkbugreport.util.SymbolTable;
 
 import java.util.Comparator;
 import java.util.HashMap;
@@ -59,6 +60,12 @@ public class StackTracePlugin extends Plugin {
 
     private HashMap<Integer, Processes> mProcesses = new HashMap<Integer, Processes>();
 
+    /* The method and file names, shared by all the stack traces */
+    private SymbolTable mSymbols = new SymbolTable();
+
+    /* The frame sequences, shared by all the stack traces */
+    private FrameTable mFrames = new FrameTable();
+
     private Chapter mSlowChapters;
 
     @Override
@@ -70,9 +77,19 @@ public class StackTracePlugin extends Plugin {
     public void reset() {
         // Reset state
         mProcesses.clear();
+        mSymbols = new SymbolTable();
+        mFrames = new FrameTable();
         mSlowChapters = null;
     }
 
+    public SymbolTable getSymbols() {
+        return mSymbols;
+    }
+
+    public FrameTable getFrameTable() {
+        return mFrames;
+    }
+
     @Override
     public void load(Module rep) {
         BugReportModule br = (BugReportModule)rep;
@@ -2,9 +2,16 @@ package com.sonyericsson.chkbugreport.plugins.stacktrace;
 
 import com.sonyericsson.chkbugreport.BugReportModule;
 import com.sonyericsson.chkbugreport.Section;
+import com.sonyericsson.chkbugreport.util.SymbolTable;
 
 /**
  * This class is responsible to scan the stack trace output and collect the data
+ *
+ * <p>The lines are processed one by one (see {@link #addLine(String)}), and only the
+ * current state is kept between them. The lines are parsed in place using indexes, the
+ * method and file names are interned in the symbol table of the plugin, so no temporary
+ * strings are created for the repeating names. When a stack trace is finished, its items
+ * are replaced with the shared copy from the frame table of the plugin.</p>
  */
 public class StackTraceScanner {
 
@@ -12,128 +19,254 @@ public class StackTraceScanner {
     private static final int STATE_PROC  = 1;
     private static final int STATE_STACK = 2;
 
+    private static final String PROC_START = "----- pid ";
+    private static final String PROC_END = "----- end ";
+    private static final String CMD_LINE = "Cmd line: ";
+    private static final String ITEM = "  at ";
+    private static final String PROPS = "  | ";
+    private static final String EXTRA = "  - ";
+
+    private SymbolTable mSymbols;
+    private FrameTable mFrames;
+    private BugReportModule mBr;
+    private Processes mProcesses;
+    private int mState;
+    private Process mCurProc;
+    private StackTrace mCurStackTrace;
+    /* The start and end of the space separated fields of the current line */
+    private int mFieldFrom[] = new int[16];
+    private int mFieldTo[] = new int[16];
 
     public StackTraceScanner(StackTracePlugin stackTracePlugin) {
+        mSymbols = stackTracePlugin.getSymbols();
+        mFrames = stackTracePlugin.getFrameTable();
     }
 
     public Processes scan(BugReportModule br, int id, Section sec, String chapterName) {
+        begin(br, id, sec.getName(), chapterName);
         int cnt = sec.getLineCount();
-        int state = STATE_INIT;
-        Processes processes = new Processes(br, id, chapterName, sec.getName());
-        Process curProc = null;
-        StackTrace curStackTrace = null;
         for (int i = 0; i < cnt; i++) {
-            String buff = sec.getLine(i);
-            switch (state) {
-                case STATE_INIT:
-                    if (buff.startsWith("----- pid ")) {
-                        state = STATE_PROC;
-                        String fields[] = buff.split(" ");
-                        int pid = Integer.parseInt(fields[2]);
-                        curProc = new Process(br, processes, pid, fields[4], fields[5]);
-                        processes.add(curProc);
-                    }
-                    break;
-                case STATE_PROC:
-                    if (buff.startsWith("----- end ")) {
-                        curProc = null;
-                        state = STATE_INIT;
-                    } else if (buff.startsWith("Cmd line: ")) {
-                        curProc.setName(buff.substring(10));
-                    } else if (buff.startsWith("\"")) {
-                        state = STATE_STACK;
-                        int idx = buff.indexOf('"', 1);
-                        String name = buff.substring(1, idx);
-                        String fields[] = buff.substring(idx + 2).split(" ");
-                        String threadState = "?";
-                        int prio = -1, tid = -1;
-                        String sysTid = null;
-                        int fieldCount = fields.length;
-
-                        // Check for native only threads
-                        if (fieldCount == 1 && fields[0].startsWith("sysTid=")) {
-                            threadState = "NATIVE_THREAD";
-                            sysTid = fields[0];
-                        }
-
-                        for (int fi = 0; fi < fieldCount; fi++) {
-                            String f = fields[fi];
-                            idx = f.indexOf('=');
-                            if (idx < 0) {
-                                // Keyword
-                                if (fi == fieldCount-1) {
-                                    threadState = f;
-                                }
-                            } else {
-                                // key=value
-                                String key = f.substring(0, idx);
-                                String value = f.substring(idx + 1);
-                                if (key.equals("prio")) {
-                                    prio = Integer.parseInt(value);
-                                } else if (key.equals("tid")) {
-                                    tid = Integer.parseInt(value);
-                                }
-                            }
-                        }
-                        curStackTrace = new StackTrace(curProc, name, tid, prio, threadState);
-                        curProc.addStackTrace(curStackTrace);
-                        if (sysTid != null) {
-                            curStackTrace.parseProperties(sysTid);
-                        }
-                    }
-                    break;
-                case STATE_STACK:
-                    if (!buff.startsWith("  ")) {
-                        state = STATE_PROC;
-                        curStackTrace = null;
-                    } else if (buff.startsWith("  | ")) {
-                        // Parse the extra properties
-                        curStackTrace.parseProperties(buff.substring(4));
-                    } else if (buff.startsWith("  - ")) {
-                        buff = buff.substring(4);
-                        if (buff.startsWith("waiting ")) {
-                            String needle = "held by threadid=";
-                            int idx = buff.indexOf(needle);
-                            if (idx < 0) {
-                                // try new variant
-                                needle = "held by tid=";
-                                idx = buff.indexOf(needle);
-                            }
-                            if (idx > 0) {
-                                idx += needle.length();
-                                int idx2 = buff.indexOf(' ', idx);
-                                if (idx2 > 0) {
-                                    int tid = Integer.parseInt(buff.substring(idx, idx2));
-                                    if (tid != curStackTrace.getTid()) {
-                                        curStackTrace.setWaitOn(tid);
-                                    }
-                                }
-                            }
-                        }
-                    } else if (buff.startsWith("  at ")) {
-                        int idx0 = buff.indexOf('(');
-                        int idx1 = buff.indexOf(':');
-                        int idx2 = buff.indexOf(')');
-                        if (idx0 >= 0 && idx2 >= 0 && idx2 > idx0) {
-                            String method = buff.substring(5, idx0);
-                            String fileName = null;
-                            int line = -1;
-                            if (idx1 >= 0 && idx1 > idx0 && idx2 > idx1) {
-                                fileName = buff.substring(idx0 + 1, idx1);
-                                String lineS = buff.substring(idx1 + 1, idx2);
-                                if (lineS.startsWith("~")) {
-                                    lineS = lineS.substring(1);
-                                }
-                                line = Integer.parseInt(lineS);
-                            }
-                            StackTraceItem item = new StackTraceItem(method, fileName, line);
-                            curStackTrace.addStackTraceItem(item);
-                        }
-                    }
+            addLine(sec.getLine(i));
+        }
+        return end();
+    }
+
+    /**
+     * Starts scanning a new stack trace dump
+     */
+    public void begin(BugReportModule br, int id, String sectionName, String chapterName) {
+        mBr = br;
+        mProcesses = new Processes(br, id, chapterName, sectionName);
+        mState = STATE_INIT;
+        mCurProc = null;
+        mCurStackTrace = null;
+    }
+
+    /**
+     * Finishes scanning, and returns the collected processes
+     */
+    public Processes end() {
+        finishStackTrace();
+        Processes ret = mProcesses;
+        mProcesses = null;
+        mCurProc = null;
+        mCurStackTrace = null;
+        return ret;
+    }
+
+    /**
+     * Processes the next line of the stack trace dump
+     */
+    public void addLine(String buff) {
+        switch (mState) {
+            case STATE_INIT:
+                if (buff.startsWith(PROC_START)) {
+                    // ----- pid <pid> at <date> <time> -----
+                    int cnt = split(buff, 0);
+                    if (cnt < 6) break;
+                    mState = STATE_PROC;
+                    int pid = parseInt(buff, mFieldFrom[2], mFieldTo[2]);
+                    String date = buff.substring(mFieldFrom[4], mFieldTo[4]);
+                    String time = buff.substring(mFieldFrom[5], mFieldTo[5]);
+                    mCurProc = new Process(mBr, mProcesses, pid, date, time);
+                    mProcesses.add(mCurProc);
+                }
+                break;
+            case STATE_PROC:
+                if (buff.startsWith(PROC_END)) {
+                    mCurProc = null;
+                    mState = STATE_INIT;
+                } else if (buff.startsWith(CMD_LINE)) {
+                    mCurProc.setName(buff.substring(CMD_LINE.length()));
+                } else if (buff.startsWith("\"")) {
+                    int idx = buff.indexOf('"', 1);
+                    if (idx < 0) break;
+                    mState = STATE_STACK;
+                    scanThreadHeader(buff, idx);
+                }
+                break;
+            case STATE_STACK:
+                if (!buff.startsWith("  ")) {
+                    mState = STATE_PROC;
+                    finishStackTrace();
+                } else if (buff.startsWith(PROPS)) {
+                    // Parse the extra properties
+                    mCurStackTrace.parseProperties(buff, PROPS.length());
+                } else if (buff.startsWith(EXTRA)) {
+                    scanExtra(buff);
+                } else if (buff.startsWith(ITEM)) {
+                    scanItem(buff);
+                }
+        }
+    }
+
+    private void finishStackTrace() {
+        if (mCurStackTrace != null) {
+            // Share the items with the identical stack traces
+            mCurStackTrace.compact(mFrames);
+            mCurStackTrace = null;
+        }
+    }
+
+    /**
+     * Parses the first line of a thread, for example:
+     * "main" prio=5 tid=1 NATIVE
+     */
+    private void scanThreadHeader(String buff, int nameEnd) {
+        String name = buff.substring(1, nameEnd);
+        String threadState = "?";
+        int prio = -1, tid = -1;
+        int sysTid = -1;
+        int fieldCount = split(buff, nameEnd + 2);
+
+        // Check for native only threads
+        if (fieldCount == 1 && buff.startsWith("sysTid=", mFieldFrom[0])) {
+            threadState = "NATIVE_THREAD";
+            sysTid = mFieldFrom[0];
+        }
+
+        for (int fi = 0; fi < fieldCount; fi++) {
+            int from = mFieldFrom[fi];
+            int to = mFieldTo[fi];
+            int idx = buff.indexOf('=', from);
+            if (idx < 0 || idx >= to) {
+                // Keyword
+                if (fi == fieldCount-1) {
+                    threadState = mSymbols.get(mSymbols.intern(buff, from, to));
+                }
+            } else {
+                // key=value
+                if (buff.startsWith("prio=", from)) {
+                    prio = parseInt(buff, idx + 1, to);
+                } else if (buff.startsWith("tid=", from)) {
+                    tid = parseInt(buff, idx + 1, to);
+                }
+            }
+        }
+        mCurStackTrace = new StackTrace(mCurProc, mSymbols, name, tid, prio, threadState);
+        mCurProc.addStackTrace(mCurStackTrace);
+        if (sysTid >= 0) {
+            mCurStackTrace.parseProperties(buff, sysTid);
+        }
+    }
+
+    /**
+     * Parses the extra information of a stack trace item, for example:
+     *   - waiting to lock <0x4051a3d0> (a java.lang.Object) held by threadid=9 (Thread-10)
+     */
+    private void scanExtra(String buff) {
+        if (!buff.startsWith("waiting ", EXTRA.length())) return;
+        String needle = "held by threadid=";
+        int idx = buff.indexOf(needle);
+        if (idx < 0) {
+            // try new variant
+            needle = "held by tid=";
+            idx = buff.indexOf(needle);
+        }
+        if (idx > 0) {
+            idx += needle.length();
+            int idx2 = buff.indexOf(' ', idx);
+            if (idx2 > 0) {
+                int tid = parseInt(buff, idx, idx2);
+                if (tid >= 0 && tid != mCurStackTrace.getTid()) {
+                    mCurStackTrace.setWaitOn(tid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a stack trace item, for example:
+     *   at android.os.Looper.loop(Looper.java:123)
+     */
+    private void scanItem(String buff) {
+        int idx0 = buff.indexOf('(', ITEM.length());
+        if (idx0 < 0) return;
+        int idx2 = buff.indexOf(')', idx0);
+        if (idx2 < 0) return;
+        int idx1 = buff.indexOf(':', idx0);
+        int method = mSymbols.intern(buff, ITEM.length(), idx0);
+        int fileName = -1;
+        int line = -1;
+        if (idx1 >= 0 && idx2 > idx1) {
+            fileName = mSymbols.intern(buff, idx0 + 1, idx1);
+            int from = idx1 + 1;
+            if (buff.charAt(from) == '~') {
+                from++;
             }
+            line = parseInt(buff, from, idx2);
+        }
+        mCurStackTrace.addStackTraceItem(method, fileName, line);
+    }
 
+    /**
+     * Splits the line at the spaces starting from the given position, and saves the
+     * position of the fields in mFieldFrom and mFieldTo
+     * @return The number of fields
+     */
+    private int split(String buff, int from) {
+        int cnt = 0;
+        int len = buff.length();
+        while (from <= len) {
+            int to = buff.indexOf(' ', from);
+            if (to < 0) {
+                to = len;
+            }
+            if (cnt == mFieldFrom.length) {
+                int tmp[] = new int[cnt * 2];
+                System.arraycopy(mFieldFrom, 0, tmp, 0, cnt);
+                mFieldFrom = tmp;
+                tmp = new int[cnt * 2];
+                System.arraycopy(mFieldTo, 0, tmp, 0, cnt);
+                mFieldTo = tmp;
+            }
+            mFieldFrom[cnt] = from;
+            mFieldTo[cnt] = to;
+            cnt++;
+            from = to + 1;
+        }
+        // Ignore the trailing empty fields (same as String.split)
+        while (cnt > 1 && mFieldFrom[cnt - 1] == mFieldTo[cnt - 1]) {
+            cnt--;
+        }
+        return cnt;
+    }
+
+    /**
+     * Parses a non negative decimal number in the given part of the string
+     * @return The number, or -1 if it's not a valid number
+     */
+    private static int parseInt(String buff, int from, int to) {
+        if (from >= to) return -1;
+        int ret = 0;
+        for (int i = from; i < to; i++) {
+            char c = buff.charAt(i);
+            if (c < '0' || c > '9' || ret > (Integer.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            ret = ret * 10 + (c - '0');
         }
-        return processes;
+        return ret;
     }
 
 }
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodInfo;
+import com.sonyericsson.chkbugreport.traceview.TraceModule.ThreadInfo;
+
+/**
+ * The method calls (runs) of all threads, stored as a forest in parallel arrays.
+ *
+ * <p>Each run is identified by its index. The tree structure is stored as parent,
+ * first child and next sibling indices (-1 if there is none), so no object is created
+ * per run. The top level runs of a thread are siblings of each other, the first one
+ * is stored in {@link ThreadInfo#firstCall}.</p>
+ *
+ * <p>None of the methods use recursion, so even very deep call trees can be processed:
+ * {@link #next(int)} walks the tree in pre-order, and {@link #collectStats(ThreadInfo, MethodStats)}
+ * aggregates the method statistics in an iterative post-order pass.</p>
+ */
+public class CallTree {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private MethodInfo mMethods[];
+
+    private int mCount;
+    private int mMethod[];
+    private int mParent[];
+    private int mFirstChild[];
+    private int mLastChild[];
+    private int mNextSibling[];
+    private int mStartTime[];
+    private int mEndTime[];
+    private int mStartLocalTime[];
+    private int mEndLocalTime[];
+    private int mNrCalls[];
+
+    /**
+     * Creates an empty call tree
+     * @param methods All the methods, the runs refer to them by their index (see {@link MethodInfo#index})
+     */
+    public CallTree(MethodInfo methods[]) {
+        mMethods = methods;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mMethod = grow(mMethod, capacity);
+        mParent = grow(mParent, capacity);
+        mFirstChild = grow(mFirstChild, capacity);
+        mLastChild = grow(mLastChild, capacity);
+        mNextSibling = grow(mNextSibling, capacity);
+        mStartTime = grow(mStartTime, capacity);
+        mEndTime = grow(mEndTime, capacity);
+        mStartLocalTime = grow(mStartLocalTime, capacity);
+        mEndLocalTime = grow(mEndLocalTime, capacity);
+        mNrCalls = grow(mNrCalls, capacity);
+    }
+
+    private int[] grow(int arr[], int capacity) {
+        int ret[] = new int[capacity];
+        if (arr != null) {
+            System.arraycopy(arr, 0, ret, 0, mCount);
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a new run, which is not linked into the tree yet
+     * @param method The index of the method
+     * @param startTime The start time (process time)
+     * @param startLocalTime The start time (thread time)
+     * @return The index of the new run
+     */
+    int newRun(int method, int startTime, int startLocalTime) {
+        if (mCount == mMethod.length) {
+            allocate(mCount * 2);
+        }
+        int r = mCount++;
+        mMethod[r] = method;
+        mParent[r] = -1;
+        mFirstChild[r] = -1;
+        mLastChild[r] = -1;
+        mNextSibling[r] = -1;
+        mStartTime[r] = startTime;
+        mStartLocalTime[r] = startLocalTime;
+        return r;
+    }
+
+    /**
+     * Adds a run as the last child of another run
+     */
+    void addChild(int parent, int run) {
+        mParent[run] = parent;
+        if (mLastChild[parent] == -1) {
+            mFirstChild[parent] = run;
+        } else {
+            mNextSibling[mLastChild[parent]] = run;
+        }
+        mLastChild[parent] = run;
+    }
+
+    /**
+     * Adds a run as the last top level run of the thread
+     */
+    void addRoot(ThreadInfo t, int run) {
+        if (t.lastCall == -1) {
+            t.firstCall = run;
+        } else {
+            mNextSibling[t.lastCall] = run;
+        }
+        t.lastCall = run;
+    }
+
+    /**
+     * Moves all the top level runs of the thread under the given run, which becomes
+     * the only top level run
+     */
+    void adoptRoots(ThreadInfo t, int run) {
+        for (int r = t.firstCall; r != -1; r = mNextSibling[r]) {
+            mParent[r] = run;
+        }
+        mFirstChild[run] = t.firstCall;
+        mLastChild[run] = t.lastCall;
+        t.firstCall = t.lastCall = run;
+    }
+
+    void setEnd(int run, int endTime, int endLocalTime) {
+        mEndTime[run] = endTime;
+        mEndLocalTime[run] = endLocalTime;
+    }
+
+    /**
+     * Returns the number of runs
+     */
+    public int size() {
+        return mCount;
+    }
+
+    public MethodInfo getMethod(int run) {
+        return mMethods[mMethod[run]];
+    }
+
+    /**
+     * Returns the method with the given index (see {@link MethodInfo#index})
+     */
+    public MethodInfo getMethodInfo(int index) {
+        return mMethods[index];
+    }
+
+    public int getMid(int run) {
+        return getMethod(run).id;
+    }
+
+    public int getParent(int run) {
+        return mParent[run];
+    }
+
+    public int getFirstChild(int run) {
+        return mFirstChild[run];
+    }
+
+    public int getNextSibling(int run) {
+        return mNextSibling[run];
+    }
+
+    public int getStartTime(int run) {
+        return mStartTime[run];
+    }
+
+    public int getEndTime(int run) {
+        return mEndTime[run];
+    }
+
+    public int getStartLocalTime(int run) {
+        return mStartLocalTime[run];
+    }
+
+    public int getEndLocalTime(int run) {
+        return mEndLocalTime[run];
+    }
+
+    /**
+     * Returns the duration of the run, measured in process time
+     */
+    public int getDuration(int run) {
+        return mEndTime[run] - mStartTime[run];
+    }
+
+    /**
+     * Returns the duration of the run, measured in thread time
+     */
+    public int getLocalDuration(int run) {
+        return mEndLocalTime[run] - mStartLocalTime[run];
+    }
+
+    /**
+     * Returns the number of method calls in the sub-tree of the run (including the run itself).
+     * Valid only after {@link #collectStats(ThreadInfo, MethodStats)}.
+     */
+    public int getNrCalls(int run) {
+        return mNrCalls[run];
+    }
+
+    /**
+     * Returns the next run in pre-order (i.e. the order in which the methods were called),
+     * staying inside the sub-tree of the given top level run and its following siblings.
+     * @param run The current run
+     * @return The next run, or -1 if there is no more
+     */
+    public int next(int run) {
+        if (mFirstChild[run] != -1) {
+            return mFirstChild[run];
+        }
+        return skip(run);
+    }
+
+    /**
+     * Returns the next run in pre-order after the sub-tree of the given run, i.e. the
+     * same as {@link #next(int)} but without visiting the children.
+     * @param run The current run
+     * @return The next run, or -1 if there is no more
+     */
+    public int skip(int run) {
+        while (run != -1) {
+            if (mNextSibling[run] != -1) {
+                return mNextSibling[run];
+            }
+            run = mParent[run];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the depth of the run (0 for the top level runs)
+     */
+    public int getDepth(int run) {
+        int ret = 0;
+        while (mParent[run] != -1) {
+            run = mParent[run];
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Creates an empty accumulator for the method statistics
+     */
+    public MethodStats createStats() {
+        return new MethodStats(mMethods.length);
+    }
+
+    /**
+     * Collects the statistics of each method called on the thread (see {@link MethodInfo})
+     * into the accumulator, and the number of calls in each sub-tree. The calls of a method
+     * from inside itself (directly or indirectly) are counted as recursive calls, and they
+     * are not included in the durations.
+     *
+     * <p>Different threads can be processed at the same time, as long as each of them
+     * uses its own accumulator.</p>
+     * @param t The thread whose runs are processed
+     * @param stats The accumulator
+     */
+    public void collectStats(ThreadInfo t, MethodStats stats) {
+        int stack[] = new int[64];
+        int cursor[] = new int[64];
+        for (int root = t.firstCall; root != -1; root = mNextSibling[root]) {
+            // Post-order traversal with an explicit stack: a run is finished when all its children are
+            int sp = 0;
+            stack[sp] = root;
+            cursor[sp] = mFirstChild[root];
+            stats.nesting[mMethod[root]]++;
+            while (sp >= 0) {
+                int child = cursor[sp];
+                if (child != -1) {
+                    cursor[sp] = mNextSibling[child];
+                    if (++sp == stack.length) {
+                        stack = grow(stack, sp * 2, sp);
+                        cursor = grow(cursor, sp * 2, sp);
+                    }
+                    stack[sp] = child;
+                    cursor[sp] = mFirstChild[child];
+                    stats.nesting[mMethod[child]]++;
+                } else {
+                    finishRun(stack[sp--], stats);
+                }
+            }
+        }
+    }
+
+    private static int[] grow(int arr[], int capacity, int count) {
+        int ret[] = new int[capacity];
+        System.arraycopy(arr, 0, ret, 0, count);
+        return ret;
+    }
+
+    private void finishRun(int run, MethodStats stats) {
+        int m = mMethod[run];
+        int dur = getDuration(run);
+        int durL = getLocalDuration(run);
+        int durC = 0;
+        int durLC = 0;
+        int nrCalls = 1;
+        for (int ch = mFirstChild[run]; ch != -1; ch = mNextSibling[ch]) {
+            durC += getDuration(ch);
+            durLC += getLocalDuration(ch);
+            nrCalls += mNrCalls[ch];
+        }
+        mNrCalls[run] = nrCalls;
+
+        stats.nesting[m]--;
+        if (stats.nesting[m] == 0) {
+            stats.nrCalls[m]++;
+            stats.dur[m] += dur;
+            stats.durL[m] += durL;
+            stats.maxDurL[m] = Math.max(stats.maxDurL[m], durL);
+            stats.durExc[m] += dur - durC;
+            stats.durExcL[m] += durL - durLC;
+        } else {
+            stats.nrRecCalls[m]++;
+        }
+    }
+
+    /**
+     * Adds the collected statistics to the methods. Must be called only after all the
+     * threads using this accumulator are processed, and from one thread at a time.
+     */
+    public void mergeStats(MethodStats stats) {
+        for (int i = 0; i < mMethods.length; i++) {
+            MethodInfo m = mMethods[i];
+            m.nrCalls += stats.nrCalls[i];
+            m.nrRecCalls += stats.nrRecCalls[i];
+            m.dur += stats.dur[i];
+            m.durL += stats.durL[i];
+            m.durExc += stats.durExc[i];
+            m.durExcL += stats.durExcL[i];
+            m.maxDurL = Math.max(m.maxDurL, stats.maxDurL[i]);
+        }
+    }
+
+    /**
+     * Partial method statistics, indexed by the method index
+     */
+    public static class MethodStats {
+        int nesting[];
+        int nrCalls[];
+        int nrRecCalls[];
+        int dur[];
+        int durL[];
+        int durExc[];
+        int durExcL[];
+        int maxDurL[];
+
+        MethodStats(int count) {
+            nesting = new int[count];
+            nrCalls = new int[count];
+            nrRecCalls = new int[count];
+            dur = new int[count];
+            durL = new int[count];
+            durExc = new int[count];
+            durExcL = new int[count];
+            maxDurL = new int[count];
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.Module;
+import com.sonyericsson.chkbugreport.Plugin;
+import com.sonyericsson.chkbugreport.doc.Block;
+import com.sonyericsson.chkbugreport.doc.Chapter;
+import com.sonyericsson.chkbugreport.doc.Hint;
+import com.sonyericsson.chkbugreport.doc.Img;
+import com.sonyericsson.chkbugreport.doc.Link;
+import com.sonyericsson.chkbugreport.doc.Para;
+import com.sonyericsson.chkbugreport.traceview.TraceModule.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.FlameGraph;
+import com.sonyericsson.chkbugreport.util.ParallelLoop;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Generates a flame graph and an icicle chart of the method calls of each thread, and
+ * saves the aggregated call paths in folded stack format (see {@link FoldedStacks}).
+ */
+public class FlameGraphPlugin extends Plugin {
+
+    @Override
+    public int getPrio() {
+        return 70;
+    }
+
+    @Override
+    public void reset() {
+        // NOP
+    }
+
+    @Override
+    public void load(Module br) {
+        // NOP
+    }
+
+    @Override
+    public void generate(Module br) {
+        final TraceModule rep = (TraceModule)br;
+        final CallTree calls = rep.getCallTree();
+        final Vector<ThreadInfo> threads = rep.getThreadInfos();
+        final boolean threadTime = rep.hasThreadTime();
+
+        // Aggregate and save the threads in parallel
+        final boolean ok[] = new boolean[threads.size()];
+        new ParallelLoop(rep, "TraceFlameGraph").run(threads.size(), new ParallelLoop.Body() {
+            @Override
+            public void run(int worker, int item) {
+                ThreadInfo t = threads.get(item);
+                if (t.firstCall == -1) return;
+                FoldedStacks stacks = new FoldedStacks(calls, t, threadTime);
+                FlameGraph graph = stacks.createFlameGraph(t.getFullName());
+                try {
+                    stacks.writeFolded(rep.getBaseDir() + getFoldedName(rep, t));
+                    graph.write(rep.getBaseDir() + getFlameGraphName(t), false);
+                    graph.write(rep.getBaseDir() + getIcicleName(t), true);
+                    ok[item] = true;
+                } catch (IOException e) {
+                    rep.printErr(3, "Error saving flame graph of " + t.getFullName() + ": " + e);
+                }
+            }
+        });
+
+        Chapter ch = new Chapter(rep, "Flame graphs");
+        new Para(ch)
+            .add("The method calls of each thread aggregated by call path. The width of a frame is ")
+            .add("the time spent in the method (including the methods called from it) on that call path, ")
+            .add(threadTime ? "measured using the thread time. " : "measured using the process time. ")
+            .add("In the flame graphs the callers are at the bottom, in the icicle charts at the top.");
+        new Hint(ch).add("Open the svg files in a browser to see the details of a frame and to zoom into it by clicking on it.");
+        for (int i = 0; i < threads.size(); i++) {
+            if (!ok[i]) continue;
+            ThreadInfo t = threads.get(i);
+            Chapter child = new Chapter(rep, t.getFullName());
+            ch.addChapter(child);
+            String fnFlame = getFlameGraphName(t);
+            String fnIcicle = getIcicleName(t);
+            String fnFolded = getFoldedName(rep, t);
+            new Block(child)
+                .add("Flame graph: ").add(new Link(fnFlame, fnFlame))
+                .add(", icicle chart: ").add(new Link(fnIcicle, fnIcicle))
+                .add(", folded stacks: ").add(new Link(fnFolded, fnFolded));
+            new Block(child).add(new Img(fnFlame));
+        }
+        if (ch.getChapterCount() > 0) {
+            rep.addChapter(ch);
+        }
+    }
+
+    private String getFlameGraphName(ThreadInfo t) {
+        return "tv_flame_" + t.id + ".svg";
+    }
+
+    private String getIcicleName(ThreadInfo t) {
+        return "tv_icicle_" + t.id + ".svg";
+    }
+
+    private String getFoldedName(Module br, ThreadInfo t) {
+        return br.getRelRawDir() + "thread_" + t.id + ".folded.txt";
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodInfo;
+import com.sonyericsson.chkbugreport.traceview.TraceModule.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.FlameGraph;
+import com.sonyericsson.chkbugreport.util.LongIntMap;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * The method calls of a thread aggregated by call path (the "folded stacks").
+ *
+ * <p>Each distinct call path is stored once, as a node of a tree: a path is identified
+ * by its parent path and the index of the last method, and these pairs are interned in
+ * a hash table ({@link LongIntMap}). All the runs with the same call path are merged into
+ * one node, and their exclusive time (the time not spent in the called methods) is summed
+ * up. This needs only one pass over the runs, so it's linear in the number of method calls.</p>
+ *
+ * <p>Node 0 is the root: it represents the thread itself and has no method.</p>
+ */
+public class FoldedStacks {
+
+    private static final int ROOT = 0;
+
+    private CallTree mTree;
+    private String mName;
+    private boolean mThreadTime;
+
+    private int mCount;
+    private int mParent[] = new int[256];
+    private int mMethod[] = new int[256];
+    private long mSelf[] = new long[256];
+    private long mTotal[];
+
+    /* (parent node, method index) -> node */
+    private LongIntMap mPaths = new LongIntMap();
+
+    /**
+     * Aggregates the method calls of a thread
+     * @param tree The call tree
+     * @param t The thread
+     * @param threadTime If true, the thread time is used, otherwise the process time
+     */
+    public FoldedStacks(CallTree tree, ThreadInfo t, boolean threadTime) {
+        mTree = tree;
+        mName = t.getFullName();
+        mThreadTime = threadTime;
+        newNode(-1, -1);
+        build(t);
+    }
+
+    private void build(ThreadInfo t) {
+        // The runs are visited in pre-order, the stack holds the runs (and their nodes) on
+        // the path to the current run
+        int stackRun[] = new int[64];
+        int stackNode[] = new int[64];
+        int sp = 0;
+        for (int run = t.firstCall; run != -1; run = mTree.next(run)) {
+            int parent = mTree.getParent(run);
+            while (sp > 0 && stackRun[sp - 1] != parent) {
+                sp--;
+            }
+            int parentNode = sp == 0 ? ROOT : stackNode[sp - 1];
+            int node = intern(parentNode, mTree.getMethod(run).index);
+            long dur = mThreadTime ? mTree.getLocalDuration(run) : mTree.getDuration(run);
+            mSelf[node] += dur;
+            if (sp > 0) {
+                // This time is not spent in the caller itself
+                mSelf[parentNode] -= dur;
+            }
+            if (sp == stackRun.length) {
+                stackRun = Arrays.copyOf(stackRun, sp * 2);
+                stackNode = Arrays.copyOf(stackNode, sp * 2);
+            }
+            stackRun[sp] = run;
+            stackNode[sp] = node;
+            sp++;
+        }
+
+        // Sum up the total times: the children are always created after their parents
+        mTotal = new long[mCount];
+        for (int n = mCount - 1; n >= 0; n--) {
+            mTotal[n] += Math.max(0, mSelf[n]);
+            if (n != ROOT) {
+                mTotal[mParent[n]] += mTotal[n];
+            }
+        }
+    }
+
+    private int newNode(int parent, int method) {
+        if (mCount == mParent.length) {
+            int size = mCount * 2;
+            mParent = Arrays.copyOf(mParent, size);
+            mMethod = Arrays.copyOf(mMethod, size);
+            mSelf = Arrays.copyOf(mSelf, size);
+        }
+        int ret = mCount++;
+        mParent[ret] = parent;
+        mMethod[ret] = method;
+        return ret;
+    }
+
+    private int intern(int parent, int method) {
+        long key = ((long)parent << 32) | (method & 0xffffffffL);
+        int node = mPaths.get(key);
+        if (node < 0) {
+            node = newNode(parent, method);
+            mPaths.put(key, node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the number of distinct call paths (including the root)
+     */
+    public int size() {
+        return mCount;
+    }
+
+    public int getParent(int node) {
+        return mParent[node];
+    }
+
+    /**
+     * Returns the last method of the call path, or null for the root
+     */
+    public MethodInfo getMethod(int node) {
+        return node == ROOT ? null : mTree.getMethodInfo(mMethod[node]);
+    }
+
+    /**
+     * Returns the time spent in the last method of the call path, excluding the called methods
+     */
+    public long getSelfTime(int node) {
+        return Math.max(0, mSelf[node]);
+    }
+
+    /**
+     * Returns the time spent in the last method of the call path, including the called methods
+     */
+    public long getTotalTime(int node) {
+        return mTotal[node];
+    }
+
+    /**
+     * Returns true if the thread time is used
+     */
+    public boolean isThreadTime() {
+        return mThreadTime;
+    }
+
+    /**
+     * Returns the name of a call path element
+     */
+    public String getName(int node) {
+        return node == ROOT ? mName : getMethod(node).shortName;
+    }
+
+    /**
+     * Saves the call paths in the folded stack format (one line per path, the method names
+     * separated by semicolons, followed by the exclusive time), which can be processed by
+     * the usual flame graph tools.
+     * @param path The full path of the file
+     */
+    public void writeFolded(String path) throws IOException {
+        PrintStream ps = new PrintStream(new BufferedOutputStream(new FileOutputStream(path)));
+        int nodes[] = new int[64];
+        StringBuilder sb = new StringBuilder();
+        for (int n = 1; n < mCount; n++) {
+            long self = getSelfTime(n);
+            if (self == 0) continue;
+            int len = 0;
+            for (int p = n; p != ROOT; p = mParent[p]) {
+                if (len == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, len * 2);
+                }
+                nodes[len++] = p;
+            }
+            sb.setLength(0);
+            while (len > 0) {
+                sb.append(getName(nodes[--len]));
+                if (len > 0) {
+                    sb.append(';');
+                }
+            }
+            sb.append(' ').append(self);
+            ps.println(sb);
+        }
+        ps.close();
+    }
+
+    /**
+     * Creates the flame graph of the call paths
+     * @param title The title of the graph
+     */
+    public FlameGraph createFlameGraph(String title) {
+        FlameGraph ret = new FlameGraph(title, "us");
+        // Leave out the paths which would be too narrow anyway (their children are even narrower)
+        long minValue = FlameGraph.getMinValue(mTotal[ROOT]);
+        int frames[] = new int[mCount];
+        for (int n = 0; n < mCount; n++) {
+            if (n != ROOT && (mTotal[n] < minValue || frames[mParent[n]] < 0)) {
+                frames[n] = -1;
+                continue;
+            }
+            frames[n] = ret.addFrame(n == ROOT ? -1 : frames[mParent[n]], getName(n), mTotal[n]);
+            if (n != ROOT) {
+                MethodInfo m = getMethod(n);
+                ret.setInfo(frames[n], m.name + "\nself: " + getSelfTime(n) + " us");
+            }
+        }
+        return ret;
+    }
+
+}
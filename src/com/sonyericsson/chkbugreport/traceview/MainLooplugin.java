@@ -27,19 +27,48 @@ import com.sonyericsson.chkbugreport.doc.Chapter;
 import com.sonyericsson.chkbugreport.doc.DocNode;
 import com.sonyericsson.chkbugreport.doc.Hint;
 import com.sonyericsson.chkbugreport.doc.HtmlNode;
+import com.sonyericsson.chkbugreport.doc.Img;
 import com.sonyericsson.chkbugreport.doc.Link;
 import com.sonyericsson.chkbugreport.doc.List;
 import com.sonyericsson.chkbugreport.doc.Para;
-import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodRun;
+import com.sonyericsson.chkbugreport.doc.Table;
+import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodInfo;
 import com.sonyericsson.chkbugreport.traceview.TraceModule.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.ChartCanvas;
+import com.sonyericsson.chkbugreport.util.ChartService;
 
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Vector;
 
 /**
  * This plugin analyzes the activity on the main loop and tries to detect bad behaviour.
+ *
+ * <p>It also reconstructs the frames drawn by the main thread, and checks them against
+ * one or more frame budgets (by default the ones of 60, 90 and 120 Hz displays, the
+ * budgets can be changed with {@link #META_FRAME_BUDGETS}). A frame is either a call of
+ * a frame root method (like Choreographer.doFrame) which draws, or, on older platforms,
+ * the measure, layout and other important calls running right before a draw call, and
+ * the draw itself. The time of each frame is split between the view phases and the
+ * lifecycle callbacks using an index of the important method calls.</p>
  */
 public class MainLooplugin extends Plugin {
 
+    /**
+     * Meta info: the frame budgets in ms (float[]). The janky frames and missed vsyncs are
+     * counted for each budget. The first budget is also the longest pause between the calls
+     * of a frame when the frames are rebuilt without frame root methods, and sets the
+     * minimum scale of the frame chart.
+     */
+    public static final String META_FRAME_BUDGETS = "traceview-frame-budgets";
+
+    /** The chart type of the frame chart (see {@link Module#setVectorCharts(String)}) */
+    public static final String CHART_FRAMES = "frames";
+
+    /** The budgets of 60, 90 and 120 Hz displays */
+    public static final float DEFAULT_FRAME_BUDGETS[] = { 16.6f, 11.1f, 8.3f };
+
     /* These values might need some adjustments */
     public static final int MAX_TIME_DRAW = 40;
     public static final int MAX_TIME_MEASURE = 50;
@@ -50,6 +79,7 @@ public class MainLooplugin extends Plugin {
     private static final String SIG_MEASURE = "android/view/View.measure";
     private static final String SIG_LAYOUT = "android/view/View.layout";
     private static final String SIG_DRAW = "android/view/ViewRoot.draw";
+    private static final String SIG_DRAW_IMPL = "android/view/ViewRootImpl.draw";
     private static final String SIG_INVALIDATE = "android/view/View.invalidate";
     private static final String SIG_ON_CREATE = "android/app/Instrumentation.callActivityOnCreate";
     private static final String SIG_ON_DESTROY = "android/app/Instrumentation.callActivityOnDestroy";
@@ -63,33 +93,80 @@ public class MainLooplugin extends Plugin {
     private static final String SIG_ON_SAVE_INSTANCE_STATE = "android/app/Instrumentation.callActivityOnSaveInstanceState";
     private static final String SIG_ON_PAUSE = "android/app/Instrumentation.callActivityOnPause";
     private static final String SIG_ON_USER_LEAVING = "android/app/Instrumentation.callActivityOnUserLeaving";
+    private static final String SIG_DO_FRAME = "android/view/Choreographer.doFrame";
+    private static final String SIG_TRAVERSALS = "android/view/ViewRoot.performTraversals";
+    private static final String SIG_TRAVERSALS_IMPL = "android/view/ViewRootImpl.performTraversals";
+
+    /* The kinds of the important methods */
+    private static final int KIND_NONE = 0;
+    private static final int KIND_MEASURE = 1;
+    private static final int KIND_LAYOUT = 2;
+    private static final int KIND_DRAW = 3;
+    private static final int KIND_INVALIDATE = 4;
+    private static final int KIND_CALLBACK = 5;
+    /* A frame root: not listed, but the important methods are searched inside it */
+    private static final int KIND_FRAME = 6;
+
+    /* The phases of a frame, the time of each frame is split between these */
+    private static final int PHASE_MEASURE = 0;
+    private static final int PHASE_LAYOUT = 1;
+    private static final int PHASE_DRAW = 2;
+    private static final int PHASE_CALLBACK = 3;
+    private static final int PHASE_OTHER = 4;
+    private static final int PHASE_COUNT = 5;
+    private static final String PHASE_NAMES[] = { "measure", "layout", "draw", "lifecycle callbacks", "other" };
+    private static final int PHASE_COLORS[] = { 0x4080ff, 0x40c040, 0xff8000, 0xc040c0, 0xa0a0a0 };
+    private static final int PHASE_OF_KIND[] = { PHASE_OTHER, PHASE_MEASURE, PHASE_LAYOUT, PHASE_DRAW, PHASE_OTHER, PHASE_CALLBACK, PHASE_OTHER };
+
+    private static final int PERCENTILES[] = { 50, 90, 99 };
+
+    private static final int CHART_W = 800;
+    private static final int CHART_H = 200;
+
+    /* An important method, with its label in the main thread activity list */
+    private static class Sig {
+        String name;
+        String label;
+        int kind;
+
+        public Sig(String name, String label, int kind) {
+            this.name = name;
+            this.label = label;
+            this.kind = kind;
+        }
+    }
 
-    private static final String SIGS_MLD[] = {
-        SIG_MEASURE,
-        SIG_LAYOUT,
-        SIG_DRAW,
-        SIG_INVALIDATE,
-
-        SIG_ON_CREATE,
-        SIG_ON_DESTROY,
-        SIG_ON_RESTORE_INSTANCE_STATE,
-        SIG_ON_POST_CREATE,
-        SIG_ON_NEW_INTENT,
-        SIG_ON_START,
-        SIG_ON_RESTART,
-        SIG_ON_RESUME,
-        SIG_ON_STOP,
-        SIG_ON_SAVE_INSTANCE_STATE,
-        SIG_ON_PAUSE,
-        SIG_ON_USER_LEAVING,
+    private static final Sig SIGS_MLD[] = {
+        new Sig(SIG_MEASURE, "MEASURE", KIND_MEASURE),
+        new Sig(SIG_LAYOUT, "LAYOUT", KIND_LAYOUT),
+        new Sig(SIG_DRAW, "DRAW", KIND_DRAW),
+        new Sig(SIG_DRAW_IMPL, "DRAW", KIND_DRAW),
+        new Sig(SIG_INVALIDATE, "INVALIDATE (first)", KIND_INVALIDATE),
+
+        new Sig(SIG_ON_CREATE, "onCreate", KIND_CALLBACK),
+        new Sig(SIG_ON_DESTROY, "onDestroy", KIND_CALLBACK),
+        new Sig(SIG_ON_RESTORE_INSTANCE_STATE, "onRestoreInstanceState", KIND_CALLBACK),
+        new Sig(SIG_ON_POST_CREATE, "onPostCreate", KIND_CALLBACK),
+        new Sig(SIG_ON_NEW_INTENT, "onNewIntent", KIND_CALLBACK),
+        new Sig(SIG_ON_START, "onStart", KIND_CALLBACK),
+        new Sig(SIG_ON_RESTART, "onRestart", KIND_CALLBACK),
+        new Sig(SIG_ON_RESUME, "onResume", KIND_CALLBACK),
+        new Sig(SIG_ON_STOP, "onStop", KIND_CALLBACK),
+        new Sig(SIG_ON_SAVE_INSTANCE_STATE, "onSaveInstanceState", KIND_CALLBACK),
+        new Sig(SIG_ON_PAUSE, "onPause", KIND_CALLBACK),
+        new Sig(SIG_ON_USER_LEAVING, "onUserLeaving", KIND_CALLBACK),
+
+        new Sig(SIG_DO_FRAME, null, KIND_FRAME),
+        new Sig(SIG_TRAVERSALS, null, KIND_FRAME),
+        new Sig(SIG_TRAVERSALS_IMPL, null, KIND_FRAME),
     };
 
     private static class SlowRun {
-        MethodRun run;
+        int run;
         int duration;
         int target;
 
-        public SlowRun(MethodRun run, int id, int dur, int target) {
+        public SlowRun(int run, int id, int dur, int target) {
             this.run = run;
             this.duration = dur;
             this.target = target;
@@ -98,12 +175,12 @@ public class MainLooplugin extends Plugin {
     }
 
     private static class DelayedDraw {
-        MethodRun run;
+        int run;
         int id;
         int delay;
         int target;
 
-        public DelayedDraw(MethodRun run, int id, int delay, int target) {
+        public DelayedDraw(int run, int id, int delay, int target) {
             this.run = run;
             this.id = id;
             this.delay = delay;
@@ -111,6 +188,89 @@ public class MainLooplugin extends Plugin {
         }
     }
 
+    /**
+     * The important method calls of the main thread, sorted by their start time. Since
+     * only the outermost calls are collected, the calls don't overlap, so the time spent
+     * in them during any interval can be found with a binary search.
+     */
+    private static class PhaseIndex {
+        int count;
+        long start[] = new long[64];
+        long end[] = new long[64];
+        int kind[] = new int[64];
+
+        void add(long from, long to, int k) {
+            if (count == start.length) {
+                start = Arrays.copyOf(start, count * 2);
+                end = Arrays.copyOf(end, count * 2);
+                kind = Arrays.copyOf(kind, count * 2);
+            }
+            start[count] = from;
+            end[count] = to;
+            kind[count] = k;
+            count++;
+        }
+
+        /**
+         * Returns the index of the first call which ends after the given time
+         */
+        int find(long time) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (end[mid] <= time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Adds the time spent in the calls during the given interval to the phases
+         */
+        void attribute(long from, long to, long phases[]) {
+            long other = to - from;
+            for (int i = find(from); i < count && start[i] < to; i++) {
+                long dt = Math.min(to, end[i]) - Math.max(from, start[i]);
+                if (dt <= 0) continue;
+                phases[PHASE_OF_KIND[kind[i]]] += dt;
+                other -= dt;
+            }
+            phases[PHASE_OTHER] += Math.max(0, other);
+        }
+
+        /**
+         * Returns true if there is a draw call during the given interval
+         */
+        boolean hasDraw(long from, long to) {
+            for (int i = find(from); i < count && start[i] < to; i++) {
+                if (kind[i] == KIND_DRAW) return true;
+            }
+            return false;
+        }
+    }
+
+    /* A frame drawn on the main thread (in process time) */
+    private static class Frame {
+        long start;
+        long end;
+        long phases[] = new long[PHASE_COUNT];
+
+        public Frame(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long getDuration() {
+            return end - start;
+        }
+    }
+
+    /* The anchors of the listed method runs */
+    private HashMap<Integer, Anchor> mAnchors = new HashMap<Integer, Anchor>();
+
     @Override
     public int getPrio() {
         return 80;
@@ -118,7 +278,7 @@ public class MainLooplugin extends Plugin {
 
     @Override
     public void reset() {
-        // NOP
+        mAnchors.clear();
     }
 
     @Override
@@ -132,9 +292,42 @@ public class MainLooplugin extends Plugin {
 
         // First of all, find the main loop
         ThreadInfo thread = rep.findThread(1);
+        if (thread == null) return;
+
+        // Collect the calls of the important methods (and of the frame roots)
+        int kinds[] = getMethodKinds(rep);
+        Vector<Integer> frameRoots = new Vector<Integer>();
+        Vector<Integer> runs = findMethodRuns(rep, thread, kinds, frameRoots);
 
         // Now run a few analyzers on it
-        checkLayoutAndDraw(rep, thread);
+        Chapter ch = checkLayoutAndDraw(rep, thread, kinds, runs);
+        checkFrames(rep, ch, kinds, runs, frameRoots);
+    }
+
+    /**
+     * Returns the kind of each method (by method index)
+     */
+    private int[] getMethodKinds(TraceModule rep) {
+        HashMap<String, Sig> sigs = new HashMap<String, Sig>();
+        for (Sig sig : SIGS_MLD) {
+            sigs.put(sig.name, sig);
+        }
+        Vector<MethodInfo> methods = rep.getMethodInfos();
+        int ret[] = new int[methods.size()];
+        for (MethodInfo m : methods) {
+            Sig sig = sigs.get(m.shortName);
+            ret[m.index] = sig == null ? KIND_NONE : sig.kind;
+        }
+        return ret;
+    }
+
+    private Sig findSig(String name) {
+        for (Sig sig : SIGS_MLD) {
+            if (sig.name.equals(name)) {
+                return sig;
+            }
+        }
+        return null;
     }
 
     /**
@@ -144,10 +337,12 @@ public class MainLooplugin extends Plugin {
      *
      * @param rep The report object
      * @param thread The main thread
+     * @param kinds The kind of each method (by method index)
+     * @param runs The calls to measure, layout, draw, etc
+     * @return The created chapter
      */
-    private void checkLayoutAndDraw(TraceModule rep, ThreadInfo thread) {
-        // First, collect all calls to measure, layout and draw
-        Vector<MethodRun> runs = findMethodRuns(rep, thread, SIGS_MLD, true);
+    private Chapter checkLayoutAndDraw(TraceModule rep, ThreadInfo thread, int kinds[], Vector<Integer> runs) {
+        CallTree calls = rep.getCallTree();
 
         // The collection of method runs which take too long time
         Vector<SlowRun> slowRuns = new Vector<SlowRun>();
@@ -168,36 +363,37 @@ public class MainLooplugin extends Plugin {
         int pendingLayout = -1;
         int pendingInvalidate = -1;
         int id = 0;
-        for (MethodRun run : runs) {
+        for (int run : runs) {
             id++;
-            String name = run.shortName;
-            int dur = (run.endLocalTime - run.startLocalTime) / 1000; // us -> ms
-            if (SIG_MEASURE.equals(name)) {
+            String name = calls.getMethod(run).shortName;
+            int dur = calls.getLocalDuration(run) / 1000; // us -> ms
+            int kind = kinds[calls.getMethod(run).index];
+            if (kind == KIND_MEASURE) {
                 String col = "";
                 if (dur > MAX_TIME_MEASURE) {
                     slowRuns.add(new SlowRun(run, id, dur, MAX_TIME_MEASURE));
                     col = "mta-red";
                 }
-                addMTAItem(body, id, "MEASURE", col, run);
-            } else if (SIG_LAYOUT.equals(name)) {
+                addMTAItem(calls, body, id, "MEASURE", col, run);
+            } else if (kind == KIND_LAYOUT) {
                 if (pendingLayout == -1) {
-                    pendingLayout = run.endLocalTime;
+                    pendingLayout = calls.getEndLocalTime(run);
                 }
                 String col = "";
                 if (dur > MAX_TIME_LAYOUT) {
                     slowRuns.add(new SlowRun(run, id, dur, MAX_TIME_LAYOUT));
                     col = "mta-red";
                 }
-                addMTAItem(body, id, "LAYOUT", col, run);
-            } else if (SIG_DRAW.equals(name)) {
+                addMTAItem(calls, body, id, "LAYOUT", col, run);
+            } else if (kind == KIND_DRAW) {
                 String col = "";
                 if (dur > MAX_TIME_DRAW) {
                     slowRuns.add(new SlowRun(run, id, dur, MAX_TIME_DRAW));
                     col = "mta-red";
                 }
-                addMTAItem(body, id, "DRAW", col, run);
+                addMTAItem(calls, body, id, "DRAW", col, run);
                 // Check how much time has elapsed since a layout or invalidate
-                int now = run.startLocalTime; // Let's use the start time for latency, since if draw is slow, that's handled separately
+                int now = calls.getStartLocalTime(run); // Let's use the start time for latency, since if draw is slow, that's handled separately
                 if (pendingInvalidate != -1) {
                     int delay = (now - pendingInvalidate) / 1000;
                     if (delay > MAX_DRAW_LATENCY) {
@@ -214,54 +410,32 @@ public class MainLooplugin extends Plugin {
                 }
                 // Reset
                 pendingInvalidate = pendingLayout = -1;
-            } else if (SIG_INVALIDATE.equals(name)) {
+            } else if (kind == KIND_INVALIDATE) {
                 if (pendingInvalidate == -1) {
-                    pendingInvalidate = run.endLocalTime;
-                    addMTAItem(body, id, "INVALIDATE (first)", "", run);
+                    pendingInvalidate = calls.getEndLocalTime(run);
+                    addMTAItem(calls, body, id, "INVALIDATE (first)", "", run);
                 }
-            } else if (SIG_ON_CREATE.equals(name)) {
-                addMTAItem(body, id, "onCreate", "", run);
-            } else if (SIG_ON_DESTROY.equals(name)) {
-                addMTAItem(body, id, "onDestroy", "", run);
-            } else if (SIG_ON_NEW_INTENT.equals(name)) {
-                addMTAItem(body, id, "onNewIntent", "", run);
-            } else if (SIG_ON_PAUSE.equals(name)) {
-                addMTAItem(body, id, "onPause", "", run);
-            } else if (SIG_ON_POST_CREATE.equals(name)) {
-                addMTAItem(body, id, "onPostCreate", "", run);
-            } else if (SIG_ON_RESTART.equals(name)) {
-                addMTAItem(body, id, "onRestart", "", run);
-            } else if (SIG_ON_RESTORE_INSTANCE_STATE.equals(name)) {
-                addMTAItem(body, id, "onRestoreInstanceState", "", run);
-            } else if (SIG_ON_RESUME.equals(name)) {
-                addMTAItem(body, id, "onResume", "", run);
-            } else if (SIG_ON_SAVE_INSTANCE_STATE.equals(name)) {
-                addMTAItem(body, id, "onSaveInstanceState", "", run);
-            } else if (SIG_ON_START.equals(name)) {
-                addMTAItem(body, id, "onStart", "", run);
-            } else if (SIG_ON_STOP.equals(name)) {
-                addMTAItem(body, id, "onStop", "", run);
-            } else if (SIG_ON_USER_LEAVING.equals(name)) {
-                addMTAItem(body, id, "onUserLeaving", "", run);
+            } else if (kind == KIND_CALLBACK) {
+                addMTAItem(calls, body, id, findSig(name).label, "", run);
             } else {
-                addMTAItem(body, id, name, "", run);
+                addMTAItem(calls, body, id, name, "", run);
             }
         }
 
         // We should check the delay of the draw even if the draw is missing
-        int now = getThreadDuration(thread);
+        int now = getThreadDuration(calls, thread);
         if (pendingInvalidate != -1) {
             int delay = (now - pendingInvalidate) / 1000;
             if (delay > MAX_DRAW_LATENCY) {
                 addMTANote(body, "Missing draw with high latency! Delay from invalidate: " + delay + "ms (should be below " + MAX_DRAW_LATENCY + "ms)");
-                delayedDraws.add(new DelayedDraw(null, id, delay, MAX_DRAW_LATENCY));
+                delayedDraws.add(new DelayedDraw(-1, id, delay, MAX_DRAW_LATENCY));
             }
         }
         if (pendingLayout != -1) {
             int delay = (now - pendingLayout) / 1000;
             if (delay > MAX_DRAW_LATENCY) {
                 addMTANote(body, "Missing draw with high latency! Delay from layout: " + delay + "ms (should be below " + MAX_DRAW_LATENCY + "ms)");
-                delayedDraws.add(new DelayedDraw(null, id, delay, MAX_DRAW_LATENCY));
+                delayedDraws.add(new DelayedDraw(-1, id, delay, MAX_DRAW_LATENCY));
             }
         }
 
@@ -272,15 +446,15 @@ public class MainLooplugin extends Plugin {
             new Para(bug).add("The following method calls on the main thread seems to take longer time than expected:");
             List list = new List(List.TYPE_UNORDERED, bug);
             for (SlowRun run : slowRuns) {
-                Anchor a = run.run.anchor;
+                Anchor a = mAnchors.get(run.run);
                 new DocNode(list)
-                    .add(new Link(a, run.run.shortName))
+                    .add(new Link(a, calls.getMethod(run.run).shortName))
                     .add(" (duration: " + run.duration + "ms, expected below " + run.target + "ms)</li>");
             }
         }
 
         // Create an error report from the delayed draw items
-        if (slowRuns.size() > 0) {
+        if (delayedDraws.size() > 0) {
             Bug bug = new Bug(Bug.PRIO_TRACEVIEW_DELAYED_DRAW, 0, "Delayed draw calls");
             rep.addBug(bug);
             new Para(bug).add("The following draw method calls on the main thread seems to come too late after either invalidate or layout:");
@@ -289,56 +463,287 @@ public class MainLooplugin extends Plugin {
             for (DelayedDraw dd : delayedDraws) {
                 if (dd.id == lastId) continue; // skip duplicates
                 lastId = dd.id;
-                Anchor a = dd.run.anchor;
+                Anchor a = mAnchors.get(dd.run);
                 new DocNode(list)
                     .add(new Link(a, SIG_DRAW))
                     .add(" (delay: " + dd.delay + "ms, expected below " + dd.target + "ms)</li>");
             }
         }
+        return ch;
     }
 
-    private int getThreadDuration(ThreadInfo thread) {
-        int cnt = thread.calls.size();
-        if (cnt == 0) return 0;
-        return thread.calls.get(cnt - 1).endLocalTime;
+    /**
+     * Reconstructs the frames drawn on the main thread, and checks them against the
+     * frame budgets.
+     * @param rep The report object
+     * @param parent The main thread activity chapter
+     * @param kinds The kind of each method (by method index)
+     * @param runs The calls to measure, layout, draw, etc
+     * @param frameRoots The outermost calls of the frame root methods
+     */
+    private void checkFrames(TraceModule rep, Chapter parent, int kinds[], Vector<Integer> runs, Vector<Integer> frameRoots) {
+        CallTree calls = rep.getCallTree();
+        float budgets[] = (float[])rep.getMetaInfo(META_FRAME_BUDGETS);
+        if (budgets == null) {
+            budgets = DEFAULT_FRAME_BUDGETS;
+        }
+        long primary = toUs(budgets[0]);
+
+        // Build the index of the important calls (using process time, since the
+        // frames are bound to the wall clock)
+        PhaseIndex index = new PhaseIndex();
+        for (int run : runs) {
+            index.add(calls.getStartTime(run), calls.getEndTime(run), kinds[calls.getMethod(run).index]);
+        }
+
+        // Find the frames: if the frame roots are called, each one which draws is a frame
+        Vector<Frame> frames = new Vector<Frame>();
+        for (int run : frameRoots) {
+            long start = calls.getStartTime(run);
+            long end = calls.getEndTime(run);
+            if (index.hasDraw(start, end)) {
+                frames.add(new Frame(start, end));
+            }
+        }
+        boolean fromFrameRoots = !frames.isEmpty();
+        if (!fromFrameRoots) {
+            // Otherwise a frame starts with the first important call (except invalidate)
+            // and ends with a draw. If there is a long pause between the calls, the earlier
+            // calls are not part of the frame.
+            long frameStart = -1, lastEnd = -1;
+            for (int i = 0; i < index.count; i++) {
+                if (index.kind[i] == KIND_INVALIDATE) continue;
+                if (frameStart < 0 || index.start[i] - lastEnd > primary) {
+                    frameStart = index.start[i];
+                }
+                lastEnd = index.end[i];
+                if (index.kind[i] == KIND_DRAW) {
+                    frames.add(new Frame(frameStart, lastEnd));
+                    frameStart = -1;
+                }
+            }
+        }
+        if (frames.isEmpty()) return;
+
+        // Split the time of the frames between the phases
+        int cnt = frames.size();
+        long durs[] = new long[cnt];
+        long phases[][] = new long[PHASE_COUNT][cnt];
+        for (int i = 0; i < cnt; i++) {
+            Frame f = frames.get(i);
+            index.attribute(f.start, f.end, f.phases);
+            durs[i] = f.getDuration();
+            for (int p = 0; p < PHASE_COUNT; p++) {
+                phases[p][i] = f.phases[p];
+            }
+        }
+
+        Chapter ch = new Chapter(rep, "Frame budget analysis");
+        parent.addChapter(ch);
+        new Para(ch)
+            .add("Found " + cnt + " frames drawn on the main thread. ")
+            .add(fromFrameRoots
+                    ? "Each call to a frame root method (like Choreographer.doFrame) which draws is a frame. "
+                    : "The frames were reconstructed from the measure, layout and draw calls (the calls before a draw belong to the same frame). ")
+            .add("The times below are measured using the process time. ")
+            .add("A frame is janky if it takes longer than the budget, and it misses one vsync for each additional budget it needs.");
+
+        // The budget table
+        Table t = new Table(Table.FLAG_NONE, ch);
+        t.addColumn("Budget (ms)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Refresh rate (Hz)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Janky frames", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Jank (%)", Table.FLAG_ALIGN_RIGHT);
+        t.addColumn("Missed vsyncs", Table.FLAG_ALIGN_RIGHT);
+        t.begin();
+        for (float budget : budgets) {
+            long b = toUs(budget);
+            int janky = 0;
+            long missed = 0;
+            for (long dur : durs) {
+                if (dur > b) {
+                    janky++;
+                    missed += (dur - 1) / b;
+                }
+            }
+            t.addData(String.format("%.1f", budget));
+            t.addData(String.format("%.0f", 1000 / budget));
+            t.addData(janky);
+            t.addData(String.format("%.1f", janky * 100.0f / cnt));
+            t.addData(missed);
+        }
+        t.end();
+
+        // The percentile table
+        new Para(ch).add("The distribution of the frame durations, and of the time spent in each phase of a frame (in ms):");
+        t = new Table(Table.FLAG_NONE, ch);
+        t.addColumn("", Table.FLAG_NONE);
+        for (int p : PERCENTILES) {
+            t.addColumn("p" + p, Table.FLAG_ALIGN_RIGHT);
+        }
+        t.addColumn("max", Table.FLAG_ALIGN_RIGHT);
+        t.begin();
+        addPercentiles(t, "Frame", durs);
+        for (int p = 0; p < PHASE_COUNT; p++) {
+            addPercentiles(t, PHASE_NAMES[p], phases[p]);
+        }
+        t.end();
+
+        // And the chart
+        final long fb[] = new long[budgets.length];
+        for (int i = 0; i < budgets.length; i++) {
+            fb[i] = toUs(budgets[i]);
+        }
+        final Vector<Frame> ff = frames;
+        String fn = "tv_frames." + ChartCanvas.getExtension(rep, CHART_FRAMES);
+        rep.getChartService().submit(fn, ChartCanvas.create(rep, CHART_FRAMES, CHART_W, CHART_H), new ChartService.Job() {
+            @Override
+            public void draw(ChartCanvas c) {
+                drawFrames(c, ff, fb);
+            }
+        });
+        new Para(ch).add("The timeline of the frames (if there are more frames than pixels, the longest frame is shown in each column):");
+        new Block(ch).add(new Img(fn));
+    }
+
+    private static long toUs(float ms) {
+        return Math.max(1, Math.round(ms * 1000));
+    }
+
+    private void addPercentiles(Table t, String name, long values[]) {
+        long sorted[] = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        t.addData(name);
+        for (int p : PERCENTILES) {
+            // Nearest rank
+            int idx = Math.max(0, (p * n + 99) / 100 - 1);
+            t.addData(String.format("%.1f", sorted[idx] / 1000.0f));
+        }
+        t.addData(String.format("%.1f", sorted[n - 1] / 1000.0f));
+    }
+
+    private void drawFrames(ChartCanvas c, Vector<Frame> frames, long budgets[]) {
+        int w = c.getWidth();
+        int h = c.getHeight();
+        int fh = c.getFontHeight();
+        int top = fh + 4; // room for the legend
+        int ch = h - top;
+        int cnt = frames.size();
+
+        // Scale: at least twice the primary budget, so the budget lines are visible
+        long max = 2 * budgets[0];
+        for (Frame f : frames) {
+            max = Math.max(max, f.getDuration());
+        }
+
+        c.setColor(Color.WHITE);
+        c.fillRect(0, 0, w, h);
+
+        // Each column shows the longest frame in it
+        int cols = Math.min(cnt, w);
+        int colW = w / cols;
+        for (int col = 0; col < cols; col++) {
+            int from = (int)((long)col * cnt / cols);
+            int to = (int)((long)(col + 1) * cnt / cols);
+            Frame f = frames.get(from);
+            for (int i = from + 1; i < to; i++) {
+                if (frames.get(i).getDuration() > f.getDuration()) {
+                    f = frames.get(i);
+                }
+            }
+            int x = col * colW;
+            int y = h;
+            long cum = 0;
+            for (int p = 0; p < PHASE_COUNT; p++) {
+                cum += f.phases[p];
+                int ny = h - (int)(cum * ch / max);
+                if (ny < y) {
+                    c.setColor(new Color(PHASE_COLORS[p]));
+                    c.fillRect(x, ny, Math.max(1, colW - (colW > 2 ? 1 : 0)), y - ny);
+                    y = ny;
+                }
+            }
+        }
+
+        // The budget lines (the labels are skipped if they would overlap)
+        c.setColor(Color.RED);
+        int lastLabelY = Integer.MAX_VALUE;
+        for (long b : budgets) {
+            int y = h - (int)(b * ch / max);
+            c.drawLine(0, y, w - 1, y);
+            if (Math.abs(lastLabelY - y) >= fh) {
+                String label = String.format("%.1fms", b / 1000.0f);
+                c.drawString(label, w - c.stringWidth(label) - 2, y - 2);
+                lastLabelY = y;
+            }
+        }
+
+        // The legend
+        int x = 2;
+        for (int p = 0; p < PHASE_COUNT; p++) {
+            c.setColor(new Color(PHASE_COLORS[p]));
+            c.fillRect(x, 2, fh - 2, fh - 2);
+            c.setColor(Color.BLACK);
+            c.drawString(PHASE_NAMES[p], x + fh, 2 + c.getAscent());
+            x += fh + c.stringWidth(PHASE_NAMES[p]) + 10;
+        }
+    }
+
+    private int getThreadDuration(CallTree calls, ThreadInfo thread) {
+        if (thread.lastCall == -1) return 0;
+        return calls.getEndLocalTime(thread.lastCall);
     }
 
     private void addMTANote(DocNode out, String msg) {
         new Block(out).addStyle("mta-note").add(msg);
     }
 
-    private void addMTAItem(DocNode out, int id, String string, String col, MethodRun run) {
+    private void addMTAItem(CallTree calls, DocNode out, int id, String string, String col, int run) {
         HtmlNode blk = new Block(out).addStyle("mta-item").addStyle(col);
-        blk.add(run.anchor = new Anchor("mta-item-" + id));
+        Anchor anchor = new Anchor("mta-item-" + id);
+        mAnchors.put(run, anchor);
+        blk.add(anchor);
         blk.add(String.format("[@%5d +%4dms] %s",
-                run.startLocalTime / 1000, (run.endLocalTime-run.startLocalTime) / 1000,
+                calls.getStartLocalTime(run) / 1000, calls.getLocalDuration(run) / 1000,
                 string));
     }
 
-    private Vector<MethodRun> findMethodRuns(TraceModule rep, ThreadInfo thread, String[] sigs, boolean matchShortName) {
-        Vector<MethodRun> runs = new Vector<TraceModule.MethodRun>();
-        for (MethodRun run : thread.calls) {
-            findMethodRuns(rep, runs, run, sigs, matchShortName);
-        }
-        return runs;
-    }
-
-    private void findMethodRuns(TraceModule rep, Vector<MethodRun> runs, MethodRun run,
-            String[] sigs, boolean matchShortName)
-    {
-        String name = matchShortName ? run.shortName : run.name;
-        for (String s : sigs) {
-            if (name.equals(s)) {
-                // Found it! Add to the list, and exit
+    /**
+     * Collects the outermost runs of the important methods on the thread (the calls made
+     * from inside an important method are not searched, except for the frame roots)
+     * @param kinds The kind of each method (by method index)
+     * @param frames If not null, the outermost frame root runs are collected here
+     */
+    private Vector<Integer> findMethodRuns(TraceModule rep, ThreadInfo thread, int kinds[], Vector<Integer> frames) {
+        CallTree calls = rep.getCallTree();
+        Vector<Integer> runs = new Vector<Integer>();
+        boolean inFrame = false;
+        int frameEnd = -1; // The run after the current frame root (-1 if it's the last one)
+        int run = thread.firstCall;
+        while (run != -1) {
+            if (inFrame && run == frameEnd) {
+                inFrame = false;
+            }
+            int kind = kinds[calls.getMethod(run).index];
+            if (kind == KIND_FRAME) {
+                // Not listed, but look inside
+                if (frames != null && !inFrame) {
+                    frames.add(run);
+                    frameEnd = calls.skip(run);
+                    inFrame = true;
+                }
+                run = calls.next(run);
+            } else if (kind != KIND_NONE) {
+                // Found it! Add to the list, and skip the children
                 runs.add(run);
-                return;
+                run = calls.skip(run);
+            } else {
+                // If not found, try the children
+                run = calls.next(run);
             }
         }
-
-        // If not found, try the children
-        for (MethodRun child : run.calls) {
-            findMethodRuns(rep, runs, child, sigs, matchShortName);
-        }
+        return runs;
     }
 
 }
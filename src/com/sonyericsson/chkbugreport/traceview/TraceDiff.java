@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodInfo;
+import com.sonyericsson.chkbugreport.traceview.TraceModule.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.FlameGraph;
+import com.sonyericsson.chkbugreport.util.LongIntMap;
+import com.sonyericsson.chkbugreport.util.ParallelLoop;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Compares two traces of the same scenario: a baseline and the current trace.
+ *
+ * <p>The methods are matched by their full name (the method ids are different in each
+ * trace). The call paths of both traces are merged into one tree, where the threads are
+ * matched by name and the methods by full name, so each node holds the time spent on
+ * that call path in both traces.</p>
+ *
+ * <p>If both traces contain the thread time, that is used, otherwise the process time.</p>
+ */
+public class TraceDiff {
+
+    /** The minimum share of the total time for a new or vanished call path to be reported */
+    public static final double HOT_PATH_RATIO = 0.01;
+
+    /* The merged call paths: node 0 is the root, its children are the threads */
+    private static final int ROOT = 0;
+
+    /* The indexes of the traces */
+    private static final int BASE = 0;
+    private static final int CUR = 1;
+
+    /** The statistics of a method in both traces */
+    public static class MethodDiff {
+        public String name;
+        public String shortName;
+        public long baseDur;
+        public long curDur;
+        public long baseExc;
+        public long curExc;
+        public int baseCalls;
+        public int curCalls;
+
+        public long getDurDelta() {
+            return curDur - baseDur;
+        }
+
+        public long getExcDelta() {
+            return curExc - baseExc;
+        }
+
+        public int getCallsDelta() {
+            return curCalls - baseCalls;
+        }
+
+        /**
+         * Returns true if the method was not called in the baseline
+         */
+        public boolean isNew() {
+            return baseCalls == 0;
+        }
+
+        /**
+         * Returns true if the method is not called anymore
+         */
+        public boolean isVanished() {
+            return curCalls == 0;
+        }
+    }
+
+    private TraceModule mBase;
+    private TraceModule mCur;
+    private boolean mThreadTime;
+    private Vector<MethodDiff> mMethods = new Vector<MethodDiff>();
+
+    private int mCount;
+    private int mParent[] = new int[256];
+    private int mName[] = new int[256];
+    private long mSelf[][] = new long[2][256];
+    private long mTotal[][] = new long[2][256];
+    /* (parent node, name id) -> node */
+    private LongIntMap mPaths = new LongIntMap();
+    /* The full names (for methods) and the labels of the path elements, by name id */
+    private HashMap<String, Integer> mNameIds = new HashMap<String, Integer>();
+    private Vector<String> mFullNames = new Vector<String>();
+    private Vector<String> mLabels = new Vector<String>();
+
+    /**
+     * Compares the two traces
+     * @param base The baseline trace
+     * @param cur The current trace
+     */
+    public TraceDiff(TraceModule base, TraceModule cur) {
+        mBase = base;
+        mCur = cur;
+        mThreadTime = base.hasThreadTime() && cur.hasThreadTime();
+        compareMethods();
+        comparePaths();
+    }
+
+    /**
+     * Returns true if the thread time is compared, false if the process time
+     */
+    public boolean isThreadTime() {
+        return mThreadTime;
+    }
+
+    public TraceModule getBase() {
+        return mBase;
+    }
+
+    public TraceModule getCurrent() {
+        return mCur;
+    }
+
+    private void compareMethods() {
+        HashMap<String, MethodDiff> map = new HashMap<String, MethodDiff>();
+        addMethods(map, mBase, BASE);
+        addMethods(map, mCur, CUR);
+        Collections.sort(mMethods, new Comparator<MethodDiff>() {
+            @Override
+            public int compare(MethodDiff o1, MethodDiff o2) {
+                long d1 = Math.abs(o1.getDurDelta());
+                long d2 = Math.abs(o2.getDurDelta());
+                if (d1 < d2) return 1;
+                if (d1 > d2) return -1;
+                return o1.name.compareTo(o2.name);
+            }
+        });
+    }
+
+    private void addMethods(HashMap<String, MethodDiff> map, TraceModule rep, int trace) {
+        for (MethodInfo m : rep.getMethodInfos()) {
+            int calls = m.nrCalls + m.nrRecCalls;
+            if (calls == 0) continue; // Declared, but not called
+            MethodDiff d = map.get(m.name);
+            if (d == null) {
+                d = new MethodDiff();
+                d.name = m.name;
+                d.shortName = m.shortName;
+                map.put(m.name, d);
+                mMethods.add(d);
+            }
+            long dur = mThreadTime ? m.durL : m.dur;
+            long exc = mThreadTime ? m.durExcL : m.durExc;
+            if (trace == BASE) {
+                d.baseDur += dur;
+                d.baseExc += exc;
+                d.baseCalls += calls;
+            } else {
+                d.curDur += dur;
+                d.curExc += exc;
+                d.curCalls += calls;
+            }
+        }
+    }
+
+    /**
+     * Returns the methods called in any of the traces, sorted by the absolute change
+     * of their duration (in descending order)
+     */
+    public Vector<MethodDiff> getMethodDiffs() {
+        return mMethods;
+    }
+
+    private void comparePaths() {
+        // Aggregate the threads of both traces in parallel
+        final Vector<ThreadInfo> threads = new Vector<ThreadInfo>();
+        final Vector<TraceModule> reps = new Vector<TraceModule>();
+        for (TraceModule rep : new TraceModule[] { mBase, mCur }) {
+            for (ThreadInfo t : rep.getThreadInfos()) {
+                threads.add(t);
+                reps.add(rep);
+            }
+        }
+        final FoldedStacks stacks[] = new FoldedStacks[threads.size()];
+        new ParallelLoop(mCur, "TraceDiff").run(stacks.length, new ParallelLoop.Body() {
+            @Override
+            public void run(int worker, int item) {
+                ThreadInfo t = threads.get(item);
+                if (t.firstCall == -1) return;
+                stacks[item] = new FoldedStacks(reps.get(item).getCallTree(), t, mThreadTime);
+            }
+        });
+
+        // Merge them by name
+        newNode(-1, -1);
+        for (int i = 0; i < stacks.length; i++) {
+            FoldedStacks fs = stacks[i];
+            if (fs == null) continue;
+            int trace = reps.get(i) == mBase ? BASE : CUR;
+            ThreadInfo t = threads.get(i);
+            int nodes[] = new int[fs.size()];
+            for (int n = 0; n < fs.size(); n++) {
+                if (n == 0) {
+                    nodes[n] = intern(ROOT, getNameId("\0" + t.name, t.name));
+                } else {
+                    MethodInfo m = fs.getMethod(n);
+                    nodes[n] = intern(nodes[fs.getParent(n)], getNameId(m.name, m.shortName));
+                }
+                mSelf[trace][nodes[n]] += fs.getSelfTime(n);
+                mTotal[trace][nodes[n]] += fs.getTotalTime(n);
+            }
+            stacks[i] = null; // Not needed anymore
+        }
+        for (int trace = 0; trace < 2; trace++) {
+            for (int n = 1; n < mCount; n++) {
+                if (mParent[n] == ROOT) {
+                    mTotal[trace][ROOT] += mTotal[trace][n];
+                }
+            }
+        }
+    }
+
+    private int getNameId(String key, String label) {
+        Integer id = mNameIds.get(key);
+        if (id == null) {
+            id = mFullNames.size();
+            mNameIds.put(key, id);
+            mFullNames.add(key.startsWith("\0") ? label : key);
+            mLabels.add(label);
+        }
+        return id;
+    }
+
+    private int newNode(int parent, int name) {
+        if (mCount == mParent.length) {
+            int size = mCount * 2;
+            mParent = Arrays.copyOf(mParent, size);
+            mName = Arrays.copyOf(mName, size);
+            for (int trace = 0; trace < 2; trace++) {
+                mSelf[trace] = Arrays.copyOf(mSelf[trace], size);
+                mTotal[trace] = Arrays.copyOf(mTotal[trace], size);
+            }
+        }
+        int ret = mCount++;
+        mParent[ret] = parent;
+        mName[ret] = name;
+        return ret;
+    }
+
+    private int intern(int parent, int name) {
+        long key = ((long)parent << 32) | name;
+        int node = mPaths.get(key);
+        if (node < 0) {
+            node = newNode(parent, name);
+            mPaths.put(key, node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the total time of all the threads in the baseline trace
+     */
+    public long getBaseTotal() {
+        return mTotal[BASE][ROOT];
+    }
+
+    /**
+     * Returns the total time of all the threads in the current trace
+     */
+    public long getCurTotal() {
+        return mTotal[CUR][ROOT];
+    }
+
+    public long getBaseTime(int node) {
+        return mTotal[BASE][node];
+    }
+
+    public long getCurTime(int node) {
+        return mTotal[CUR][node];
+    }
+
+    /**
+     * Returns the call path of a node, in the folded stack format (the thread name
+     * followed by the method names, separated by semicolons)
+     */
+    public String getPathName(int node) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = node; n != ROOT; n = mParent[n]) {
+            if (sb.length() > 0) {
+                sb.insert(0, ';');
+            }
+            sb.insert(0, mLabels.get(mName[n]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the call paths which take at least {@link #HOT_PATH_RATIO} of the total
+     * time in one trace, but don't appear in the other one. Only the topmost such path
+     * is returned (the paths starting with it are missing from the other trace as well).
+     * @param vanished If false, the paths appearing only in the current trace are returned,
+     *        if true, the paths appearing only in the baseline
+     * @return The nodes of the call paths, sorted by their time in descending order
+     */
+    public Vector<Integer> findHotPaths(boolean vanished) {
+        final long time[] = mTotal[vanished ? BASE : CUR];
+        long other[] = mTotal[vanished ? CUR : BASE];
+        long min = Math.max(1, (long)(time[ROOT] * HOT_PATH_RATIO));
+        Vector<Integer> ret = new Vector<Integer>();
+        for (int n = 1; n < mCount; n++) {
+            if (time[n] >= min && other[n] == 0 && (mParent[n] == ROOT || other[mParent[n]] != 0)) {
+                ret.add(n);
+            }
+        }
+        Collections.sort(ret, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long t1 = time[o1], t2 = time[o2];
+                if (t1 < t2) return 1;
+                if (t1 > t2) return -1;
+                return o1 - o2;
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Creates the differential flame graph. The frames are sized by the time spent in
+     * the current trace (so the vanished call paths are not shown), and colored by the
+     * change of the exclusive time: red if it increased, blue if it decreased, the
+     * stronger the bigger the change.
+     * @param title The title of the graph
+     */
+    public FlameGraph createFlameGraph(String title) {
+        FlameGraph ret = new FlameGraph(title, "us");
+        long cur[] = mTotal[CUR];
+        long minValue = FlameGraph.getMinValue(cur[ROOT]);
+        long maxDelta = 1;
+        for (int n = 1; n < mCount; n++) {
+            if (cur[n] >= minValue) {
+                maxDelta = Math.max(maxDelta, Math.abs(mSelf[CUR][n] - mSelf[BASE][n]));
+            }
+        }
+        int frames[] = new int[mCount];
+        for (int n = 0; n < mCount; n++) {
+            if (n != ROOT && (cur[n] < minValue || frames[mParent[n]] < 0)) {
+                frames[n] = -1;
+                continue;
+            }
+            String label = n == ROOT ? "All threads" : mLabels.get(mName[n]);
+            int f = frames[n] = ret.addFrame(n == ROOT ? -1 : frames[mParent[n]], label, cur[n]);
+            long selfDelta = mSelf[CUR][n] - mSelf[BASE][n];
+            String name = n == ROOT ? label : mFullNames.get(mName[n]);
+            ret.setInfo(f, name
+                    + "\ntotal: " + mTotal[BASE][n] + " -> " + cur[n] + " us (" + formatDelta(cur[n] - mTotal[BASE][n]) + ")"
+                    + "\nself: " + mSelf[BASE][n] + " -> " + mSelf[CUR][n] + " us (" + formatDelta(selfDelta) + ")");
+            ret.setColor(f, getDeltaColor(selfDelta, maxDelta));
+        }
+        return ret;
+    }
+
+    private static String formatDelta(long delta) {
+        return delta > 0 ? "+" + delta : Long.toString(delta);
+    }
+
+    private static int getDeltaColor(long delta, long maxDelta) {
+        if (delta == 0) {
+            return 0xdddddd;
+        }
+        // Keep some color even for the smallest changes
+        int c = 0xd0 - (int)(0xb0 * Math.abs(delta) / maxDelta);
+        if (delta > 0) {
+            return 0xff0000 | (c << 8) | c;
+        } else {
+            return (c << 16) | (c << 8) | 0xff;
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.Module;
+import com.sonyericsson.chkbugreport.Plugin;
+import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.doc.Block;
+import com.sonyericsson.chkbugreport.doc.Chapter;
+import com.sonyericsson.chkbugreport.doc.DocNode;
+import com.sonyericsson.chkbugreport.doc.Hint;
+import com.sonyericsson.chkbugreport.doc.Img;
+import com.sonyericsson.chkbugreport.doc.Link;
+import com.sonyericsson.chkbugreport.doc.Para;
+import com.sonyericsson.chkbugreport.doc.ShadedValue;
+import com.sonyericsson.chkbugreport.doc.Table;
+import com.sonyericsson.chkbugreport.traceview.TraceDiff.MethodDiff;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Compares the trace with the baseline trace (if one was specified), see {@link TraceDiff}.
+ */
+public class TraceDiffPlugin extends Plugin {
+
+    private static final int NR_LINES = 100;
+    private static final int NR_PATHS = 50;
+    private static final String FN_FLAME = "tv_diff_flame.svg";
+
+    @Override
+    public int getPrio() {
+        return 90;
+    }
+
+    @Override
+    public void reset() {
+        // NOP
+    }
+
+    @Override
+    public void load(Module br) {
+        // NOP
+    }
+
+    @Override
+    public void generate(Module br) {
+        TraceModule rep = (TraceModule)br;
+        TraceModule base = rep.getBaseline();
+        if (base == null) return;
+
+        TraceDiff diff = new TraceDiff(base, rep);
+        String unit = diff.isThreadTime() ? "thread time" : "process time";
+
+        Chapter ch = new Chapter(rep, "Comparison with baseline");
+        rep.addChapter(ch);
+        new Para(ch)
+            .add("The trace is compared with the baseline trace, matching the methods by their name and ")
+            .add("the threads by their name. The times are measured using the " + unit + " (in us). ")
+            .add("Total time of all threads: " + diff.getBaseTotal() + " us in the baseline, " + diff.getCurTotal() + " us now.");
+
+        // Methods
+        Chapter methodsCh = new Chapter(rep, "Method time deltas");
+        ch.addChapter(methodsCh);
+        Chapter fullCh = new Chapter(rep, "Method time deltas (full)");
+        rep.addExtraFile(fullCh);
+        new Block(methodsCh)
+            .add("Showing only " + NR_LINES + " lines, to see the full list, ")
+            .add(new Link(fullCh.getAnchor(), "click here"))
+            .add("!");
+        createMethodTable(diff, methodsCh, true);
+        createMethodTable(diff, fullCh, false);
+
+        // Hot paths
+        Chapter pathsCh = new Chapter(rep, "New and vanished hot paths");
+        ch.addChapter(pathsCh);
+        new Para(pathsCh)
+            .add("The call paths which take at least " + Math.round(TraceDiff.HOT_PATH_RATIO * 100) + "% of the total time ")
+            .add("in one trace, but are missing from the other one. Only the first element of a new or vanished ")
+            .add("branch is listed. The paths start with the thread name, the elements are separated by semicolons.");
+        createPathTable(diff, pathsCh, false);
+        createPathTable(diff, pathsCh, true);
+
+        // Differential flame graph
+        try {
+            diff.createFlameGraph("Differential flame graph").write(rep.getBaseDir() + FN_FLAME, false);
+            Chapter flameCh = new Chapter(rep, "Differential flame graph");
+            ch.addChapter(flameCh);
+            new Para(flameCh)
+                .add("The call paths of all threads in the current trace. The width of a frame is the time spent ")
+                .add("on that call path now, the color shows how the time spent in the method itself (excluding the ")
+                .add("called methods) changed: red frames got slower, blue frames got faster, gray frames didn't change. ")
+                .add("The vanished call paths are not shown.");
+            new Hint(flameCh).add("Open the svg file in a browser to see the times of a frame and to zoom into it by clicking on it.");
+            new Block(flameCh).add("Flame graph: ").add(new Link(FN_FLAME, FN_FLAME));
+            new Block(flameCh).add(new Img(FN_FLAME));
+        } catch (IOException e) {
+            rep.printErr(3, "Error saving differential flame graph: " + e);
+        }
+    }
+
+    private void createMethodTable(TraceDiff diff, Chapter ch, boolean limit) {
+        new Block(ch).add("[B] = baseline trace");
+        new Block(ch).add("[N] = current (new) trace");
+        Table t = new Table(Table.FLAG_SORT, ch);
+        t.addColumn("Method", "The name of method", Table.FLAG_NONE);
+        t.addColumn("Change", "Shows if the method is called only in the current trace (new) or only in the baseline trace (vanished)", Table.FLAG_NONE);
+        t.addColumn("Duration[B]", "The total duration of all (non-recursive) method calls, including the time spent when calling other methods, in the baseline trace.", Table.FLAG_NONE);
+        t.addColumn("Duration[N]", "The total duration of all (non-recursive) method calls, including the time spent when calling other methods, in the current trace.", Table.FLAG_NONE);
+        t.addColumn("Delta", "The change of the total duration.", Table.FLAG_NONE);
+        t.addColumn("Own dur[B]", "The total duration of all (non-recursive) method calls, excluding the time spent when calling other methods, in the baseline trace.", Table.FLAG_NONE);
+        t.addColumn("Own dur[N]", "The total duration of all (non-recursive) method calls, excluding the time spent when calling other methods, in the current trace.", Table.FLAG_NONE);
+        t.addColumn("Delta", "The change of the total duration, excluding the time spent when calling other methods.", Table.FLAG_NONE);
+        t.addColumn("Calls[B]", "The number of calls (including the recursive ones) in the baseline trace", Table.FLAG_NONE);
+        t.addColumn("Calls[N]", "The number of calls (including the recursive ones) in the current trace", Table.FLAG_NONE);
+        t.addColumn("Delta", "The change of the number of calls", Table.FLAG_NONE);
+        t.begin();
+
+        Vector<MethodDiff> methods = diff.getMethodDiffs();
+        int cnt = methods.size();
+        for (int i = 0; i < cnt; i++) {
+            if (i >= NR_LINES && limit) {
+                break;
+            }
+            MethodDiff m = methods.get(i);
+            t.addData(Util.escape(m.shortName));
+            t.addData(m.isNew() ? "new" : m.isVanished() ? "vanished" : "");
+            t.addData(new ShadedValue(m.baseDur));
+            t.addData(new ShadedValue(m.curDur));
+            t.addData(createDelta(m.getDurDelta()));
+            t.addData(new ShadedValue(m.baseExc));
+            t.addData(new ShadedValue(m.curExc));
+            t.addData(createDelta(m.getExcDelta()));
+            t.addData(m.baseCalls);
+            t.addData(m.curCalls);
+            t.addData(m.getCallsDelta() > 0 ? "+" + m.getCallsDelta() : Integer.toString(m.getCallsDelta()));
+        }
+        t.end();
+    }
+
+    private void createPathTable(TraceDiff diff, Chapter ch, boolean vanished) {
+        Vector<Integer> paths = diff.findHotPaths(vanished);
+        long total = vanished ? diff.getBaseTotal() : diff.getCurTotal();
+        String title = vanished ? "Vanished hot paths" : "New hot paths";
+        if (paths.isEmpty()) {
+            new Block(ch).add(title + ": none");
+            return;
+        }
+        new Block(ch).add(title + ":");
+        Table t = new Table(Table.FLAG_SORT, ch);
+        t.addColumn("Call path", "The call path, starting with the thread name", Table.FLAG_NONE);
+        t.addColumn("Duration", "The time spent on this call path (including the called methods) in the " + (vanished ? "baseline" : "current") + " trace", Table.FLAG_NONE);
+        t.addColumn("Share", "The time spent on this call path relative to the total time of all threads", Table.FLAG_NONE);
+        t.begin();
+        int cnt = Math.min(NR_PATHS, paths.size());
+        for (int i = 0; i < cnt; i++) {
+            int node = paths.get(i);
+            long dur = vanished ? diff.getBaseTime(node) : diff.getCurTime(node);
+            t.addData(Util.escape(diff.getPathName(node)));
+            t.addData(new ShadedValue(dur));
+            t.addData(String.format("%.1f%%", total == 0 ? 0.0f : dur * 100.0f / total));
+        }
+        t.end();
+    }
+
+    private DocNode createDelta(long delta) {
+        return new DocNode()
+            .add(delta > 0 ? "+" : delta < 0 ? "-" : "")
+            .add(new ShadedValue(Math.abs(delta)));
+    }
+
+}
@@ -20,17 +20,18 @@ package com.sonyericsson.chkbugreport.traceview;
 
 import com.sonyericsson.chkbugreport.Module;
 import com.sonyericsson.chkbugreport.Util;
-import com.sonyericsson.chkbugreport.doc.Anchor;
 import com.sonyericsson.chkbugreport.doc.Chapter;
 import com.sonyericsson.chkbugreport.doc.DocNode;
 import com.sonyericsson.chkbugreport.doc.Link;
 import com.sonyericsson.chkbugreport.doc.List;
 import com.sonyericsson.chkbugreport.doc.Para;
+import com.sonyericsson.chkbugreport.traceview.CallTree.MethodStats;
+import com.sonyericsson.chkbugreport.util.ParallelLoop;
+import com.sonyericsson.chkbugreport.util.TraceEventWriter;
+import com.sonyericsson.chkbugreport.util.VCDWriter;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -46,9 +47,9 @@ public class TraceModule extends Module {
     public static final int METHOD_EXIT = 1;
     public static final int METHOD_EXIT_W_EXC = 2;
 
-    private static final int CLOCK_THREAD_CPU = 0;
-    private static final int CLOCK_WALL = 1;
-    private static final int CLOCK_DUAL = 2;
+    static final int CLOCK_THREAD_CPU = 0;
+    static final int CLOCK_WALL = 1;
+    static final int CLOCK_DUAL = 2;
 
     // Threads
     public static class ThreadInfo {
@@ -57,9 +58,10 @@ public class TraceModule extends Module {
         public int timeOffs;
         public int timePause;
         public int timeLast;
-        public Vector<Integer> stack = new Vector<Integer>();
-        public Vector<MethodRun> calls = new Vector<MethodRun>();
-        public MethodRun currentCall;
+        /* The first and last top level run, and the currently running one (indexes in the call tree) */
+        public int firstCall = -1;
+        public int lastCall = -1;
+        public int currentCall = -1;
         public int lastLocatTime;
 
         public ThreadInfo(int id, String name) {
@@ -78,13 +80,13 @@ public class TraceModule extends Module {
     // Methods
     public static class MethodInfo {
         public int id;
+        /* The index in the sorted method list */
+        public int index;
         public String name;
         public String shortName;
         public char state;
-        public Vector<MethodRun> calls = new Vector<TraceModule.MethodRun>();
         public int nrCalls;
         public int nrRecCalls;
-        public int nesting;
         public int dur;
         public int durL;
         public int durExc;
@@ -94,42 +96,31 @@ public class TraceModule extends Module {
 
     private Vector<MethodInfo> mMethods = new Vector<MethodInfo>();
     private HashMap<Integer, MethodInfo> mMethodHash = new HashMap<Integer, MethodInfo>();
+    /* The ids of the methods, in the same (sorted) order as the methods */
+    private int mMethodIds[] = new int[0];
 
-    // Records
-    public static class TraceRecord {
-        int tid;
-        int mid;
-        int time;
-        int localTime;
-    }
-
-    private Vector<TraceRecord> mRecords = new Vector<TraceRecord>();
+    // Records (empty until the file is loaded)
+    private TraceRecords mRecords = new TraceRecords(1, CLOCK_THREAD_CPU, 9);
 
     // Method run records
-    public static class MethodRun {
-        public int mid;
-        public int tid;
-        public MethodRun caller;
-        public Vector<MethodRun> calls = new Vector<MethodRun>();
-        public int startTime, startLocalTime;
-        public int endTime, endLocalTime;
-        public int nrCalls;
-        public String name;
-        public String shortName;
-        public Anchor anchor;
-    }
+    private CallTree mCallTree = new CallTree(new MethodInfo[0]);
 
     private long mAbsStartTime = 0;
     private boolean mAbsTime = false;
-    private int mLastPrintTime = 0;
     private int mVersion;
     private int mClock;
+    private boolean mLoaded;
+
+    // The trace to compare with (if any)
+    private TraceModule mBaseline;
 
     {
         addPlugin(new StatsPlugin());
         addPlugin(new TreeViewPlugin());
         addPlugin(new TreePNGPlugin());
+        addPlugin(new FlameGraphPlugin());
         addPlugin(new MainLooplugin());
+        addPlugin(new TraceDiffPlugin());
     }
 
     public TraceModule(String fileName) {
@@ -144,15 +135,51 @@ public class TraceModule extends Module {
         return mThreads;
     }
 
-    public Vector<TraceRecord> getTraceRecords() {
+    public TraceRecords getTraceRecords() {
         return mRecords;
     }
 
+    public CallTree getCallTree() {
+        return mCallTree;
+    }
+
+    /**
+     * Returns true if the trace contains the thread (cpu) time, not only the process (wall) time
+     */
+    public boolean hasThreadTime() {
+        return mClock != CLOCK_WALL;
+    }
+
+    /**
+     * Returns true if the trace file was loaded successfully
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Sets the trace to compare this trace with (see {@link TraceDiffPlugin})
+     * @param base The baseline trace (already loaded)
+     * @param fileName The name of the baseline trace file
+     */
+    public void setBaseline(TraceModule base, String fileName) {
+        mBaseline = base;
+        addHeaderLine("Baseline trace: " + fileName);
+    }
+
+    /**
+     * Returns the trace to compare this trace with, or null if there is none
+     */
+    public TraceModule getBaseline() {
+        return mBaseline;
+    }
+
     @Override
     public void load(InputStream is) throws IOException {
         String buff;
 
         // Reset
+        mLoaded = false;
         mVersion = 0;
         mClock = CLOCK_THREAD_CPU;
 
@@ -266,6 +293,11 @@ public class TraceModule extends Module {
                 return 0;
             }
         });
+        mMethodIds = new int[mMethods.size()];
+        for (int i = 0; i < mMethods.size(); i++) {
+            mMethods.get(i).index = i;
+            mMethodIds[i] = mMethods.get(i).id;
+        }
 
         // Parse the tracing data header
         byte sig[] = new byte[4];
@@ -289,40 +321,12 @@ public class TraceModule extends Module {
         is.skip(delta - 16); // skip rest of the header
 
         // Parse the tracing data
-        try {
-            while (true) {
-                int size = 0;
-                TraceRecord t = new TraceRecord();
-                if (mVersion == 1) {
-                    t.tid = is.read();
-                    size += 1;
-                } else {
-                    t.tid = Util.read2LE(is);
-                    size += 2;
-                }
-                t.mid = Util.read4BE(is);
-                size += 4;
-                if (mClock == CLOCK_THREAD_CPU) {
-                    t.time = t.localTime = Util.read4BE(is);
-                    size += 4;
-                } else if (mClock == CLOCK_DUAL) {
-                    t.localTime = Util.read4BE(is);
-                    t.time = Util.read4BE(is);
-                    size += 8;
-                } else if (mClock == CLOCK_WALL) {
-                    // FIXME: do we even support this?
-                    t.localTime = 0;
-                    t.time = Util.read4BE(is);
-                    size += 8;
-                }
-                while (size < recSize) {
-                    is.read();
-                }
-                mRecords.add(t);
-            }
-        } catch (IOException e) {
-            // ignore, assume it's end of file
+        mRecords = new TraceRecords(mVersion, mClock, recSize);
+        if (recSize < mRecords.getUsedRecSize()) {
+            printErr(1, "Error parsing input file (invalid record size: " + recSize + ")!");
+            return;
         }
+        mRecords.read(is);
         printOut(1, String.format("Read %d records...", mRecords.size()));
 
         // Fix timestamps
@@ -330,9 +334,9 @@ public class TraceModule extends Module {
             ThreadInfo lastThread = null;
             System.out.println("Fixing timestamps...");
             int global_time = 0;
-            for (TraceRecord r : mRecords) {
-                int time = r.time;
-                int tid = r.tid;
+            for (int i = 0; i < mRecords.size(); i++) {
+                int time = mRecords.getTime(i);
+                int tid = mRecords.getTid(i);
 
                 // Check if thread has changed
                 ThreadInfo thread = findThread(tid);
@@ -349,123 +353,93 @@ public class TraceModule extends Module {
 
                 global_time = time + thread.timeOffs;
                 thread.timeLast = time;
-                r.time = global_time;
+                mRecords.setTime(i, global_time);
             }
         }
 
         // Collect MethodRun information
         printOut(1, "Collecting method run info...");
+        mCallTree = new CallTree(mMethods.toArray(new MethodInfo[mMethods.size()]));
+        CallTree tree = mCallTree;
         int lastTime = 0;
-        for (TraceRecord r : mRecords) {
-            lastTime = r.time;
-            int tid = r.tid;
-            int mid = r.mid;
+        for (int i = 0; i < mRecords.size(); i++) {
+            int time = mRecords.getTime(i);
+            int localTime = mRecords.getLocalTime(i);
+            lastTime = time;
+            int tid = mRecords.getTid(i);
+            int mid = mRecords.getMid(i);
             int act = mid & 3;
             mid &= 0xfffffffc;
 
             ThreadInfo thread = findThread(tid);
-            thread.lastLocatTime = r.localTime;
+            thread.lastLocatTime = localTime;
 
             if (act == METHOD_ENTRY) {
-                MethodRun run = new MethodRun();
-                run.startTime = r.time;
-                run.startLocalTime = r.localTime;
-                run.tid = tid;
-                run.mid = mid;
-                addRun(mid, run);
-                if (thread.currentCall == null) {
+                int run = tree.newRun(findMethodIndex(mid), time, localTime);
+                if (thread.currentCall == -1) {
                     // first call on the thread
-                    thread.calls.add(run);
+                    tree.addRoot(thread, run);
                 } else {
-                    thread.currentCall.calls.add(run);
+                    tree.addChild(thread.currentCall, run);
                 }
-                run.caller = thread.currentCall;
                 thread.currentCall = run;
             } else if (act == METHOD_EXIT || act == METHOD_EXIT_W_EXC) {
-                if (thread.currentCall == null) {
+                if (thread.currentCall == -1) {
                     // we don't have information about this method
                     // so create a new record, and assume 0 start time
-                    MethodRun run = new MethodRun();
-                    run.startTime = 0;
-                    run.startLocalTime = 0;
-                    run.tid = tid;
-                    run.mid = mid;
-                    addRun(mid, run);
+                    int run = tree.newRun(findMethodIndex(mid), 0, 0);
                     thread.currentCall = run;
 
-                    // Add all previous calls to this one
-                    for (MethodRun prev : thread.calls) {
-                        run.calls.add(prev);
-                    }
-
-                    // also we must reset the calls list
-                    thread.calls.clear();
-                    thread.calls.add(run);
+                    // Add all previous calls to this one, which becomes the only top level call
+                    tree.adoptRoots(thread, run);
                 }
 
-                thread.currentCall.endTime = r.time;
-                thread.currentCall.endLocalTime = r.localTime;
-                thread.currentCall = thread.currentCall.caller;
+                tree.setEnd(thread.currentCall, time, localTime);
+                thread.currentCall = tree.getParent(thread.currentCall);
             }
         }
 
         // Now, we might have some calls which are not finished
         // we need to set the end time for those
         for (ThreadInfo t : mThreads) {
-            MethodRun run = t.currentCall;
-            while (run != null) {
-                run.endTime = lastTime;
-                run.endLocalTime = t.lastLocatTime;
-                run = run.caller;
+            int run = t.currentCall;
+            while (run != -1) {
+                tree.setEnd(run, lastTime, t.lastLocatTime);
+                run = tree.getParent(run);
             }
         }
 
         // Collect MethodRun statistics
         printOut(1, "Collecting method run statistics...");
-        for (ThreadInfo t : mThreads) {
-            for (MethodRun run : t.calls) {
-                collectMethodStats(run);
-            }
-        }
+        collectStats();
 
+        mLoaded = true;
     }
 
-    private void collectMethodStats(MethodRun run) {
-        MethodInfo m = findMethod(run.mid);
-        int dur = run.endTime - run.startTime;
-        int durL = run.endLocalTime - run.startLocalTime;
-        int durC = 0;
-        int durLC = 0;
-        run.nrCalls = 1;
-        run.name = m.name;
-        run.shortName = m.shortName;
-
-        m.nesting++;
-        for (MethodRun ch : run.calls) {
-            durC += ch.endTime - ch.startTime;
-            durLC += ch.endLocalTime - ch.startLocalTime;
-            collectMethodStats(ch);
-            run.nrCalls += ch.nrCalls;
-        }
-        m.nesting--;
-
-        if (m.nesting == 0) {
-            m.nrCalls++;
-            m.dur += dur;
-            m.durL += durL;
-            m.maxDurL = Math.max(m.maxDurL, durL);
-            m.durExc += dur - durC;
-            m.durExcL += durL - durLC;
-        } else {
-            m.nrRecCalls++;
+    /**
+     * Collects the method statistics. The threads are processed in parallel, each
+     * worker into its own accumulator, which are merged at the end.
+     */
+    private void collectStats() {
+        final CallTree tree = mCallTree;
+        ParallelLoop loop = new ParallelLoop(this, "TraceStats");
+        final MethodStats stats[] = new MethodStats[loop.getWorkerCount()];
+        loop.run(mThreads.size(), new ParallelLoop.Body() {
+            @Override
+            public void run(int worker, int item) {
+                if (stats[worker] == null) {
+                    stats[worker] = tree.createStats();
+                }
+                tree.collectStats(mThreads.get(item), stats[worker]);
+            }
+        });
+        for (MethodStats s : stats) {
+            if (s != null) {
+                tree.mergeStats(s);
+            }
         }
     }
 
-    private void addRun(int mid, MethodRun run) {
-        MethodInfo m = findMethod(mid);
-        m.calls.add(run);
-    }
-
     public ThreadInfo findThread(int tid) {
         return mThreadHash.get(tid);
     }
@@ -474,119 +448,160 @@ public class TraceModule extends Module {
         return mMethodHash.get(mid);
     }
 
-    private void saveTraceVCD(int filterTid, String fn) throws IOException {
-        System.out.println("Writing " + fn + "...");
-
-        FileOutputStream fos = new FileOutputStream(getBaseDir() + fn);
-        PrintStream ps = new PrintStream(fos);
-        mLastPrintTime = 0;
-
-        // Write the VCD header
-        ps.println("$timescale 1us $end");
-        ps.println("$scope traceview $end");
-        if (filterTid == -1) {
-            for (ThreadInfo t : mThreads) {
-                ps.println(String.format("$var wire 1 t%d T-%s $end", t.id, t.name));
-            }
-            for (MethodInfo m : mMethods) {
-                ps.println(String.format("$var wire 1 m%08x M-%s $end", m.id, m.name));
-            }
-        } else {
-            for (MethodInfo m : mMethods) {
-                ps.println(String.format("$var wire 1 m%08x %s $end", m.id, m.name));
+    /**
+     * Returns the index of the method in the sorted method list, or -1 if not found
+     */
+    private int findMethodIndex(int mid) {
+        int lo = 0, hi = mMethodIds.length - 1;
+        while (lo <= hi) {
+            int mi = (lo + hi) >>> 1;
+            int id = mMethodIds[mi];
+            if (id < mid) {
+                lo = mi + 1;
+            } else if (id > mid) {
+                hi = mi - 1;
+            } else {
+                return mi;
             }
         }
-        ps.println("$upscope $end");
-        ps.println("$enddefinitions $end");
-        ps.println("#" + (mAbsTime ? mAbsStartTime : 0));
+        return -1;
+    }
 
+    /**
+     * Writes the VCD files of all the threads together and of each thread separately, in one
+     * pass over the records. The file of a thread uses the thread time, the common file the
+     * process time. The call stacks are the same in both, so they are followed only once.
+     * @return The writers (the common one first, then one per thread), already finished
+     */
+    private VCDWriter[] saveTraceVCDs() {
+        int threadCnt = mThreads.size();
+        int methodCnt = mMethods.size();
+        VCDWriter all = new VCDWriter(this, getRelRawDir() + "thread_all.vcd", "1us", "traceview");
+        VCDWriter outs[] = new VCDWriter[threadCnt];
+        int tidToIdx[] = new int[0x10000];
+        for (int i = 0; i < tidToIdx.length; i++) {
+            tidToIdx[i] = -1;
+        }
+
+        // Register the signals: in the common file the thread signals come first, followed
+        // by the methods, in the thread files there are only the methods (in the same order)
+        for (int i = 0; i < threadCnt; i++) {
+            ThreadInfo t = mThreads.get(i);
+            tidToIdx[t.id & 0xffff] = i;
+            all.addSignal("T-" + t.name, 1);
+            outs[i] = new VCDWriter(this, getRelRawDir() + "thread_" + t.id + ".vcd", "1us", "traceview");
+        }
+        for (MethodInfo m : mMethods) {
+            all.addSignal("M-" + m.name, 1);
+            for (VCDWriter out : outs) {
+                out.addSignal(m.name, 1);
+            }
+        }
         // TODO: guess initial value instead of assuming 0
-
-        if (filterTid == -1) {
-            for (ThreadInfo t : mThreads) {
-                ps.println(String.format("b0 t%d", t.id));
+        for (int sig = 0; sig < threadCnt + methodCnt; sig++) {
+            all.setInitialState(sig, '0');
+        }
+        for (VCDWriter out : outs) {
+            for (int sig = 0; sig < methodCnt; sig++) {
+                out.setInitialState(sig, '0');
             }
         }
-        for (MethodInfo m : mMethods) {
-            ps.println(String.format("b0 m%08x", m.id));
+        long offs = mAbsTime ? mAbsStartTime : 0;
+        System.out.println("Writing " + all.getFileName() + "...");
+        all.begin(offs, false);
+        for (VCDWriter out : outs) {
+            System.out.println("Writing " + out.getFileName() + "...");
+            out.begin(offs, false);
         }
 
-        // Reset thread stack traces
-        for (ThreadInfo t : mThreads) {
-            t.stack.clear();
-        }
+        // The call stacks of the threads (method indexes)
+        int stacks[][] = new int[threadCnt][16];
+        int sps[] = new int[threadCnt];
 
         // Generate the output
-        ThreadInfo lastThread = null;
-        ThreadInfo thread = null;
-        if (filterTid != -1) {
-            thread = findThread(filterTid);
-        }
-        for (TraceRecord r : mRecords) {
-            int time = (filterTid != -1) ? r.localTime : r.time;
-            int tid = r.tid;
-            int mid = r.mid;
-            int act = mid & 3;
-            mid &= 0xfffffffc;
-
-            if (filterTid != -1 && tid != filterTid) {
-                continue; // skip this, not interested in this thread
+        int lastThread = -1;
+        for (int i = 0; i < mRecords.size(); i++) {
+            int thread = tidToIdx[mRecords.getTid(i)];
+            int m = findMethodIndex(mRecords.getMid(i) & 0xfffffffc);
+            int act = mRecords.getMid(i) & 3;
+            if (thread < 0 || m < 0) {
+                continue; // unknown thread or method
             }
-
-            if (filterTid == -1) {
-                thread = findThread(tid);
-                // Check if thread has changed
-                if (thread != lastThread) {
-                    if (lastThread != null) {
-                        printSignal(ps, time, String.format("b0 t%d", lastThread.id));
-                        // Pause the method on top of the stack
-                        int prevMid = peekStack(lastThread);
-                        if (prevMid != -1) {
-                            printSignal(ps, time, String.format("bZ m%08x", prevMid));
-                        }
-                    }
-                    lastThread = thread;
-                    printSignal(ps, time, String.format("bX t%d", lastThread.id));
-                    // Resume method on top of stack
-                    int nextMid = peekStack(lastThread);
-                    if (nextMid != -1) {
-                        printSignal(ps, time, String.format("bX m%08x", nextMid));
+            VCDWriter out = outs[thread];
+            all.setTime(mRecords.getTime(i) + offs);
+            out.setTime(mRecords.getLocalTime(i) + offs);
+            int stack[] = stacks[thread];
+            int sp = sps[thread];
+
+            // Check if thread has changed
+            if (thread != lastThread) {
+                if (lastThread != -1) {
+                    all.setState(lastThread, '0');
+                    // Pause the method on top of the stack
+                    if (sps[lastThread] > 0) {
+                        all.setState(threadCnt + stacks[lastThread][sps[lastThread] - 1], 'Z');
                     }
                 }
+                lastThread = thread;
+                all.setState(thread, 'X');
+                // Resume method on top of stack
+                if (sp > 0) {
+                    all.setState(threadCnt + stack[sp - 1], 'X');
+                }
             }
 
             // Handle methods
             if (act == METHOD_ENTRY) {
                 // Pause last method on stack
-                int prevMid = peekStack(thread);
-                if (prevMid != -1) {
-                    printSignal(ps, time, String.format("bZ m%08x", prevMid));
+                if (sp > 0) {
+                    all.setState(threadCnt + stack[sp - 1], 'Z');
+                    out.setState(stack[sp - 1], 'Z');
                 }
                 // Save this method on stack
-                pushStack(thread, mid);
+                if (sp == stack.length) {
+                    int tmp[] = new int[sp * 2];
+                    System.arraycopy(stack, 0, tmp, 0, sp);
+                    stack = stacks[thread] = tmp;
+                }
+                stack[sp++] = m;
                 // Method enter
-                printSignal(ps, time, String.format("bX m%08x", mid));
+                all.setState(threadCnt + m, 'X');
+                out.setState(m, 'X');
             } else if (act == METHOD_EXIT || act == METHOD_EXIT_W_EXC) {
                 // Method exit or exception
-                printSignal(ps, time, String.format("b0 m%08x", mid));
+                all.setState(threadCnt + m, '0');
+                out.setState(m, '0');
                 // Pop it from stack
-                popStack(thread);
+                if (sp > 0) {
+                    sp--;
+                }
                 // Resume method on top of stack
-                int nextMid = peekStack(thread);
-                if (nextMid != -1) {
-                    printSignal(ps, time, String.format("bX m%08x", nextMid));
+                if (sp > 0) {
+                    all.setState(threadCnt + stack[sp - 1], 'X');
+                    out.setState(stack[sp - 1], 'X');
                 }
             }
+            sps[thread] = sp;
         }
 
-        ps.close();
-        fos.close();
+        VCDWriter ret[] = new VCDWriter[threadCnt + 1];
+        ret[0] = all;
+        System.arraycopy(outs, 0, ret, 1, threadCnt);
+        for (int i = 0; i < ret.length; i++) {
+            if (!ret[i].end()) {
+                ret[i] = null;
+            }
+        }
+        return ret;
     }
 
     @Override
     public void collectData() throws IOException {
         // Save the raw files
         generateVCD();
+        if (isTraceEventExport()) {
+            generateTraceEvents();
+        }
 
         // Run all the plugins
         runPlugins();
@@ -602,30 +617,46 @@ public class TraceModule extends Module {
         System.out.println("DONE!");
     }
 
-    private void generateVCD() throws IOException {
+    private void generateVCD() {
         Chapter ch = new Chapter(this, "VCD files");
         addChapter(ch);
         new Para(ch).add("Here are the generated VCD files, you can open them with GTKWave");
         List list = new List(List.TYPE_UNORDERED, ch);
 
-        // Save the complete one
-        String fn = getRelRawDir() + "thread_all.vcd";
-        saveTraceVCD(-1, fn);
-        new DocNode(list)
-            .add("All threads: ")
-            .add(new Link(fn, fn));
-
-        // Save individual threads
-        for (ThreadInfo t : mThreads) {
-            int tid = t.id;
-            fn = getRelRawDir() + "thread_" + tid + ".vcd";
-            saveTraceVCD(tid, fn);
+        // Save the complete one and the individual threads
+        VCDWriter outs[] = saveTraceVCDs();
+        for (int i = 0; i < outs.length; i++) {
+            if (outs[i] == null) continue;
+            String title = (i == 0) ? "All threads" : mThreads.get(i - 1).getFullName();
+            String fn = outs[i].getFileName();
             new DocNode(list)
-                .add(t.getFullName() + ": ")
+                .add(title + ": ")
                 .add(new Link(fn, fn));
         }
     }
 
+    private void generateTraceEvents() {
+        String fn = getRelRawDir() + "trace.json";
+        System.out.println("Writing " + fn + "...");
+        TraceEventWriter out = new TraceEventWriter(this, fn);
+        if (!out.begin()) return;
+        long offs = mAbsTime ? mAbsStartTime : 0;
+        for (ThreadInfo t : mThreads) {
+            out.threadName(0, t.id, t.getFullName());
+            for (int run = t.firstCall; run != -1; run = mCallTree.next(run)) {
+                out.complete(mCallTree.getMethod(run).name, "method", 0, t.id,
+                        mCallTree.getStartTime(run) + offs, mCallTree.getDuration(run));
+            }
+        }
+        if (!out.end()) return;
+
+        Chapter ch = new Chapter(this, "Trace event file");
+        addChapter(ch);
+        new Para(ch)
+            .add("The method calls of all threads saved as (you can open it in chrome://tracing or Perfetto): ")
+            .add(new Link(fn, fn));
+    }
+
     private String fixName(String name)
     {
         char chars[] = name.toCharArray();
@@ -638,42 +669,4 @@ public class TraceModule extends Module {
         return new String(chars);
     }
 
-    private void printSignal(PrintStream fo, int time, String text)
-    {
-        if (time != mLastPrintTime) {
-            mLastPrintTime = time;
-            if (mAbsTime) {
-                fo.println("#" + (time + mAbsStartTime));
-            } else {
-                fo.println("#" + time);
-            }
-        }
-        fo.println(text);
-    }
-
-    private int peekStack(ThreadInfo t)
-    {
-        int cnt = t.stack.size();
-        if (cnt == 0) {
-            return -1;
-        }
-        return t.stack.get(cnt - 1);
-    }
-
-    private void pushStack(ThreadInfo t, int mid)
-    {
-        t.stack.add(mid);
-    }
-
-    private int popStack(ThreadInfo t)
-    {
-        int cnt = t.stack.size();
-        if (cnt == 0) {
-            return -1;
-        }
-        int ret = t.stack.get(cnt - 1);
-        t.stack.remove(cnt - 1);
-        return ret;
-    }
-
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The records (method entries and exits) of a traceview file, stored in primitive columns.
+ *
+ * <p>The records are decoded in bulk (see {@link #read(InputStream)}): the data section is
+ * read in big blocks into a little endian {@link ByteBuffer}, and the fields are extracted
+ * from it directly, without creating an object per record.</p>
+ */
+public class TraceRecords {
+
+    private static final int BLOCK_SIZE = 0x100000;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int mVersion;
+    private int mClock;
+    private int mRecSize;
+
+    private int mCount;
+    private short mTid[];
+    private int mMid[];
+    private int mTime[];
+    private int mLocalTime[];
+
+    /**
+     * Creates an empty record list
+     * @param version The version of the file format (1, 2 or 3)
+     * @param clock The clock type, one of the TraceModule.CLOCK_* constants
+     * @param recSize The size of a record in the file (might contain extra fields which are skipped)
+     */
+    public TraceRecords(int version, int clock, int recSize) {
+        mVersion = version;
+        mClock = clock;
+        mRecSize = recSize;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the number of bytes of a record which are decoded
+     */
+    public int getUsedRecSize() {
+        return (mVersion == 1 ? 1 : 2) + 4 + (mClock == TraceModule.CLOCK_DUAL ? 8 : 4);
+    }
+
+    private void allocate(int capacity) {
+        short tid[] = new short[capacity];
+        int mid[] = new int[capacity];
+        int time[] = new int[capacity];
+        int localTime[] = new int[capacity];
+        if (mCount > 0) {
+            System.arraycopy(mTid, 0, tid, 0, mCount);
+            System.arraycopy(mMid, 0, mid, 0, mCount);
+            System.arraycopy(mTime, 0, time, 0, mCount);
+            System.arraycopy(mLocalTime, 0, localTime, 0, mCount);
+        }
+        mTid = tid;
+        mMid = mid;
+        mTime = time;
+        mLocalTime = localTime;
+    }
+
+    /**
+     * Reads all the records until the end of the stream. An incomplete record at
+     * the end is ignored.
+     * @param is The stream, positioned at the first record
+     * @throws IOException In case of read error
+     */
+    public void read(InputStream is) throws IOException {
+        if (mRecSize < getUsedRecSize()) {
+            throw new IOException("Invalid record size: " + mRecSize);
+        }
+
+        // Use the available size (if known) to avoid growing the columns
+        int avail = is.available();
+        if (avail > 0) {
+            int expected = mCount + avail / mRecSize;
+            if (expected > mTid.length) {
+                allocate(expected);
+            }
+        }
+
+        byte buff[] = new byte[Math.max(BLOCK_SIZE, mRecSize)];
+        ByteBuffer bb = ByteBuffer.wrap(buff);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        int len = 0;
+        while (true) {
+            int read = is.read(buff, len, buff.length - len);
+            if (read < 0) break;
+            len += read;
+            int cnt = len / mRecSize;
+            if (cnt == 0) continue;
+            decode(bb, cnt);
+            // Move the incomplete record to the beginning of the buffer
+            int used = cnt * mRecSize;
+            System.arraycopy(buff, used, buff, 0, len - used);
+            len -= used;
+        }
+    }
+
+    private void decode(ByteBuffer bb, int cnt) {
+        if (mCount + cnt > mTid.length) {
+            allocate(Math.max(mCount + cnt, mTid.length * 2));
+        }
+        int recSize = mRecSize;
+        boolean v1 = mVersion == 1;
+        int clock = mClock;
+        int pos = 0;
+        for (int i = mCount, end = mCount + cnt; i < end; i++, pos += recSize) {
+            int p = pos;
+            if (v1) {
+                mTid[i] = (short)(bb.get(p) & 0xff);
+                p += 1;
+            } else {
+                mTid[i] = bb.getShort(p);
+                p += 2;
+            }
+            mMid[i] = bb.getInt(p);
+            p += 4;
+            if (clock == TraceModule.CLOCK_DUAL) {
+                mLocalTime[i] = bb.getInt(p);
+                mTime[i] = bb.getInt(p + 4);
+            } else if (clock == TraceModule.CLOCK_THREAD_CPU) {
+                mTime[i] = mLocalTime[i] = bb.getInt(p);
+            } else {
+                mTime[i] = bb.getInt(p);
+            }
+        }
+        mCount += cnt;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getTid(int idx) {
+        return mTid[idx] & 0xffff;
+    }
+
+    /**
+     * Returns the method id, including the action in the lowest two bits
+     */
+    public int getMid(int idx) {
+        return mMid[idx];
+    }
+
+    public int getTime(int idx) {
+        return mTime[idx];
+    }
+
+    public void setTime(int idx, int time) {
+        mTime[idx] = time;
+    }
+
+    public int getLocalTime(int idx) {
+        return mLocalTime[idx];
+    }
+
+    public void setLocalTime(int idx, int time) {
+        mLocalTime[idx] = time;
+    }
+
+}
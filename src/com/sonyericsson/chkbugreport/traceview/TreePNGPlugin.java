@@ -27,19 +27,15 @@ import com.sonyericsson.chkbugreport.doc.Img;
 import com.sonyericsson.chkbugreport.doc.Para;
 import com.sonyericsson.chkbugreport.doc.Table;
 import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodInfo;
-import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodRun;
 import com.sonyericsson.chkbugreport.traceview.TraceModule.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.ParallelLoop;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Vector;
 
-import javax.imageio.ImageIO;
-
 public class TreePNGPlugin extends Plugin {
 
     private static final int TRACE_COUNT = 100;
@@ -55,6 +51,21 @@ public class TreePNGPlugin extends Plugin {
         public Graphics2D g;
     }
 
+    /* The runs waiting to be rendered (indexes in the call tree) */
+    private static class RunQueue {
+        int runs[] = new int[256];
+        int count;
+
+        void add(int run) {
+            if (count == runs.length) {
+                int tmp[] = new int[count * 2];
+                System.arraycopy(runs, 0, tmp, 0, count);
+                runs = tmp;
+            }
+            runs[count++] = run;
+        }
+    }
+
     @Override
     public int getPrio() {
         return 60;
@@ -77,24 +88,23 @@ public class TreePNGPlugin extends Plugin {
         Chapter ch = new Chapter(rep, "Trace charts");
         rep.addChapter(ch);
 
-        Vector<ThreadInfo> threads = rep.getThreadInfos();
-        for (ThreadInfo t : threads) {
-            int cnt = t.calls.size();
-            if (cnt == 0) continue;
-            int duration = t.calls.get(cnt-1).endLocalTime - t.calls.get(0).startLocalTime;
-
-            // Add main methods to the queue
-            LinkedHashMap<Integer, Chart> charts = new LinkedHashMap<Integer, Chart>();
-            Vector<MethodRun> queue = new Vector<MethodRun>();
-            for (int i = 0; i < cnt; i++) {
-                addToQueue(br, t.id, queue, charts, t.calls.get(i));
+        // Render the charts of the threads in parallel
+        final CallTree calls = rep.getCallTree();
+        final Vector<ThreadInfo> threads = rep.getThreadInfos();
+        final Vector<LinkedHashMap<Integer, Chart>> allCharts = new Vector<LinkedHashMap<Integer, Chart>>();
+        allCharts.setSize(threads.size());
+        new ParallelLoop(rep, "TraceCharts").run(threads.size(), new ParallelLoop.Body() {
+            @Override
+            public void run(int worker, int item) {
+                allCharts.set(item, renderCharts(calls, threads.get(item)));
             }
+        });
 
-            // Render queue (and also add new methods)
-            for (int i = 0; i < queue.size(); i++) {
-                MethodRun run = queue.get(i);
-                createTracePng(br, t.id, queue, charts, run, duration);
-            }
+        for (int idx = 0; idx < threads.size(); idx++) {
+            ThreadInfo t = threads.get(idx);
+            LinkedHashMap<Integer, Chart> charts = allCharts.get(idx);
+            if (charts == null) continue;
+            int duration = getDuration(calls, t);
 
             // Save images
             Chapter cc = new Chapter(rep, t.getFullName());
@@ -137,22 +147,50 @@ public class TreePNGPlugin extends Plugin {
         }
     }
 
-    private boolean addToQueue(Module rep, int tid, Vector<MethodRun> queue, LinkedHashMap<Integer, Chart> charts, MethodRun run) {
-        if (run.endLocalTime - run.startLocalTime < MIN_RUN_TIME) {
+    private int getDuration(CallTree calls, ThreadInfo t) {
+        return calls.getEndLocalTime(t.lastCall) - calls.getStartLocalTime(t.firstCall);
+    }
+
+    /**
+     * Renders the charts of the methods called on the thread. This is called from
+     * a worker thread, so it must not touch the report.
+     * @return The charts, or null if the thread has no method calls
+     */
+    private LinkedHashMap<Integer, Chart> renderCharts(CallTree calls, ThreadInfo t) {
+        if (t.firstCall == -1) return null;
+        int duration = getDuration(calls, t);
+
+        // Add main methods to the queue
+        LinkedHashMap<Integer, Chart> charts = new LinkedHashMap<Integer, Chart>();
+        RunQueue queue = new RunQueue();
+        for (int run = t.firstCall; run != -1; run = calls.getNextSibling(run)) {
+            addToQueue(calls, t.id, queue, charts, run);
+        }
+
+        // Render queue (and also add new methods)
+        for (int i = 0; i < queue.count; i++) {
+            createTracePng(calls, t.id, queue, charts, queue.runs[i], duration);
+        }
+        return charts;
+    }
+
+    private boolean addToQueue(CallTree calls, int tid, RunQueue queue, LinkedHashMap<Integer, Chart> charts, int run) {
+        if (calls.getLocalDuration(run) < MIN_RUN_TIME) {
             // Too short
             return false;
         }
-        Chart chart = charts.get(run.mid);
+        int mid = calls.getMid(run);
+        Chart chart = charts.get(mid);
         if (chart == null) {
             // method not used yet, so create an empty chart, if there is still space
             if (charts.size() >= TRACE_COUNT) {
                 return false;
             }
             chart = new Chart();
-            chart.mid = run.mid;
-            chart.fn = String.format("trace_%d_%d.png", tid, run.mid);
+            chart.mid = mid;
+            chart.fn = String.format("trace_%d_%d.png", tid, mid);
             createEmptyChart(chart);
-            charts.put(run.mid, chart);
+            charts.put(mid, chart);
         }
         queue.add(run);
         return true;
@@ -168,25 +206,23 @@ public class TreePNGPlugin extends Plugin {
         chart.g = g;
     }
 
-    private void createTracePng(Module rep, int tid, Vector<MethodRun> queue,
-            LinkedHashMap<Integer, Chart> charts, MethodRun run, int duration) {
+    private void createTracePng(CallTree calls, int tid, RunQueue queue,
+            LinkedHashMap<Integer, Chart> charts, int run, int duration) {
         // Setup initial data
-        int startTime = run.startLocalTime;
+        int startTime = calls.getStartLocalTime(run);
         int lastX = (int)(startTime * W / duration);
 
         // Render the trace
-        Chart chart = charts.get(run.mid);
+        Chart chart = charts.get(calls.getMid(run));
         if (chart == null) return; // something wrong
         Graphics2D g = chart.g;
 
         Color darkRed = new Color(0x800000);
-        int cnt = run.calls.size();
-        for (int i = 0; i < cnt; i++) {
-            MethodRun child = run.calls.get(i);
-            addToQueue(rep, tid, queue, charts, child);
+        for (int child = calls.getFirstChild(run); child != -1; child = calls.getNextSibling(child)) {
+            addToQueue(calls, tid, queue, charts, child);
 
             // Render the segment where this method was running
-            int x = (int)((child.startLocalTime) * W / duration);
+            int x = (int)((calls.getStartLocalTime(child)) * W / duration);
             if (lastX == x) {
                 g.setColor(darkRed);
                 g.fillRect(lastX, 0, 1, H);
@@ -197,14 +233,14 @@ public class TreePNGPlugin extends Plugin {
             lastX = x;
 
             // Render the segment where the child method was running
-            x = (int)(child.endLocalTime * W / duration);
+            x = (int)(calls.getEndLocalTime(child) * W / duration);
             g.setColor(Color.YELLOW);
             g.drawLine(lastX, H/2, x, H/2);
             lastX = x;
         }
 
         // Render the last segment where this method was running
-        int x = (int)((run.endLocalTime) * W / duration);
+        int x = (int)((calls.getEndLocalTime(run)) * W / duration);
         if (lastX == x) {
             g.setColor(darkRed);
             g.fillRect(lastX, 0, 1, H);
@@ -217,12 +253,7 @@ public class TreePNGPlugin extends Plugin {
 
     private void savePng(Chart chart, TraceModule rep) {
         // Save the image
-        try {
-            ImageIO.write(chart.img, "png", new File(rep.getBaseDir() + chart.fn));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        rep.getChartService().savePng(chart.fn, chart.img);
     }
 
-
 }
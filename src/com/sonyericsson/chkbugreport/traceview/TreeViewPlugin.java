@@ -27,9 +27,10 @@ import com.sonyericsson.chkbugreport.doc.DocNode;
 import com.sonyericsson.chkbugreport.doc.Hint;
 import com.sonyericsson.chkbugreport.doc.HtmlNode;
 import com.sonyericsson.chkbugreport.doc.Link;
-import com.sonyericsson.chkbugreport.traceview.TraceModule.MethodRun;
 import com.sonyericsson.chkbugreport.traceview.TraceModule.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.ParallelLoop;
 
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -61,17 +62,26 @@ public class TreeViewPlugin extends Plugin {
 
     @Override
     public void generate(Module br) {
-        TraceModule rep = (TraceModule)br;
+        final TraceModule rep = (TraceModule)br;
         Chapter ch = new Chapter(rep, "Trace tree files (lim. levels)");
         rep.addChapter(ch);
 
+        // Save the full trees of the threads in parallel
+        final Vector<ThreadInfo> threads = rep.getThreadInfos();
+        new ParallelLoop(rep, "TraceTree").run(threads.size(), new ParallelLoop.Body() {
+            @Override
+            public void run(int worker, int item) {
+                int tid = threads.get(item).id;
+                saveTraceTree(rep, tid, rep.getRelRawDir() + "thread_" + tid + ".tree.txt");
+            }
+        });
+
         // Save individual threads
-        for (ThreadInfo t : rep.getThreadInfos()) {
+        for (ThreadInfo t : threads) {
             Chapter child = new Chapter(rep, t.getFullName());
             ch.addChapter(child);
             int tid = t.id;
             String fn = br.getRelRawDir() + "thread_" + tid + ".tree.txt";
-            saveTraceTree(rep, tid, fn);
             new Block(child).add("Full trace: ").add(new Link(fn, fn));
             DocNode tree = new Block(child).addStyle("traceview-tree");
             saveTraceTreeHtml(rep, tid, tree, MAX_LEVELS, 0);
@@ -107,7 +117,7 @@ public class TreeViewPlugin extends Plugin {
 
     private void saveTraceTreeHtml(TraceModule rep, int tid, DocNode tree, int level, int mindur) {
         ThreadInfo thread = rep.findThread(tid);
-        if (thread.calls.size() == 0) return;
+        if (thread.firstCall == -1) return;
         nextId();
         String divId = getChildrenId();
         new Block(tree).add("Method calls on Thread-" + tid + " (" + thread.name + "):");
@@ -122,12 +132,12 @@ public class TreeViewPlugin extends Plugin {
             .add(new Button("Collapse all", "tvtrHide('" + divId + "')"));
         new Block(tree).add("# [duration in proc time, duration in thread time, nr calls] method name");
 
-        printTraceTreeHtml(rep, tree, "", thread.calls, level, mindur);
+        printTraceTreeHtml(rep, tree, "", thread.firstCall, level, mindur);
     }
 
-    private void printTraceTreeHtml(TraceModule rep, DocNode tree, String indent, Vector<MethodRun> calls, int level, int mindur) {
-        int cnt = calls.size();
-        if (cnt == 0) return;
+    private void printTraceTreeHtml(TraceModule rep, DocNode tree, String indent, int first, int level, int mindur) {
+        if (first == -1) return;
+        CallTree calls = rep.getCallTree();
         String divId = getChildrenId();
         HtmlNode list = new Block(tree).setId(divId);
         if (level != MAX_LEVELS) {
@@ -139,39 +149,35 @@ public class TreeViewPlugin extends Plugin {
             // If we have duration limit, things are a bit trickier
             if (mindur > 0) {
                 // We need two runs. First, find out the last visible child
-                int lastIdx = -1;
-                for (int i = 0; i < cnt; i++) {
-                    MethodRun child = calls.get(i);
-                    int dur = child.endLocalTime - child.startLocalTime;
-                    if (dur >= mindur) {
-                        lastIdx = i;
+                int last = -1;
+                for (int child = first; child != -1; child = calls.getNextSibling(child)) {
+                    if (calls.getLocalDuration(child) >= mindur) {
+                        last = child;
                     }
                 }
-                for (int i = 0; i < cnt; i++) {
-                    MethodRun child = calls.get(i);
-                    int dur = child.endLocalTime - child.startLocalTime;
-                    if (dur >= mindur) {
-                        printTraceTreeHtml(rep, list, indent, calls.get(i), (i < lastIdx), level - 1, mindur);
+                for (int child = first; child != -1; child = calls.getNextSibling(child)) {
+                    if (calls.getLocalDuration(child) >= mindur) {
+                        printTraceTreeHtml(rep, list, indent, child, (child != last), level - 1, mindur);
                     }
                 }
             } else {
-                for (int i = 0; i < cnt; i++) {
-                    printTraceTreeHtml(rep, list, indent, calls.get(i), (i < cnt - 1), level - 1, mindur);
+                for (int child = first; child != -1; child = calls.getNextSibling(child)) {
+                    printTraceTreeHtml(rep, list, indent, child, (calls.getNextSibling(child) != -1), level - 1, mindur);
                 }
             }
         }
     }
 
-    private void printTraceTreeHtml(TraceModule rep, DocNode tree, String indent, MethodRun run, boolean last, int level, int mindur) {
-        int dur = run.endTime - run.startTime;
-        int durL = run.endLocalTime - run.startLocalTime;
-        String name = rep.findMethod(run.mid).name;
+    private void printTraceTreeHtml(TraceModule rep, DocNode tree, String indent, int run, boolean last, int level, int mindur) {
+        CallTree calls = rep.getCallTree();
+        String name = calls.getMethod(run).name;
         nextId();
         String divId = getId();
         HtmlNode list = new Block(tree).addStyle("tv_tr").setId(divId);
-        list.add(indent + "+-[" + getDur(dur) + "," + getDur(durL) + "," + run.nrCalls + "] " + shadeName(name));
+        list.add(indent + "+-[" + getDur(calls.getDuration(run)) + "," + getDur(calls.getLocalDuration(run)) + ","
+                + calls.getNrCalls(run) + "] " + shadeName(name));
         String pref = last ? "|&nbsp;" : "&nbsp;&nbsp;";
-        printTraceTreeHtml(rep, tree, indent + pref, run.calls, level, mindur);
+        printTraceTreeHtml(rep, tree, indent + pref, calls.getFirstChild(run), level, mindur);
     }
 
     private void saveTraceTree(TraceModule rep, int tid, String fn) {
@@ -179,13 +185,13 @@ public class TreeViewPlugin extends Plugin {
 
         try {
             FileOutputStream fos = new FileOutputStream(rep.getBaseDir() + fn);
-            PrintStream ps = new PrintStream(fos);
+            PrintStream ps = new PrintStream(new BufferedOutputStream(fos));
 
             ThreadInfo thread = rep.findThread(tid);
             ps.println("Method calls on Thread-" + tid + " (" + thread.name + "):");
             ps.println("# [duration in proc time, duration in thread time, nr calls] method name");
 
-            printTraceTree(rep, ps, "", thread.calls);
+            printTraceTree(rep, ps, thread.firstCall);
 
             ps.close();
             fos.close();
@@ -194,22 +200,36 @@ public class TreeViewPlugin extends Plugin {
         }
     }
 
-    private void printTraceTree(TraceModule rep, PrintStream ps, String indent, Vector<MethodRun> calls) {
-        int cnt = calls.size();
-        for (int i = 0; i < cnt; i++) {
-            printTraceTree(rep, ps, indent, calls.get(i), (i < cnt - 1));
+    /**
+     * Prints the whole call tree of a thread. This is not recursive, since the full
+     * tree can be very deep.
+     */
+    private void printTraceTree(TraceModule rep, PrintStream ps, int run) {
+        CallTree calls = rep.getCallTree();
+        StringBuilder indent = new StringBuilder();
+        while (run != -1) {
+            ps.println(indent + "+-[" + getDur(calls.getDuration(run)) + "," + getDur(calls.getLocalDuration(run)) + ","
+                    + calls.getNrCalls(run) + "] " + calls.getMethod(run).name);
+            int child = calls.getFirstChild(run);
+            if (child != -1) {
+                // Step down
+                indent.append(calls.getNextSibling(run) != -1 ? "| " : "  ");
+                run = child;
+                continue;
+            }
+            // Step up until there is a next sibling
+            while (run != -1 && calls.getNextSibling(run) == -1) {
+                run = calls.getParent(run);
+                if (run != -1) {
+                    indent.setLength(indent.length() - 2);
+                }
+            }
+            if (run != -1) {
+                run = calls.getNextSibling(run);
+            }
         }
     }
 
-    private void printTraceTree(TraceModule rep, PrintStream ps, String indent, MethodRun run, boolean last) {
-        int dur = run.endTime - run.startTime;
-        int durL = run.endLocalTime - run.startLocalTime;
-        String name = rep.findMethod(run.mid).name;
-        ps.println(indent + "+-[" + getDur(dur) + "," + getDur(durL) + "," + run.nrCalls + "] " + name);
-        String pref = last ? "| " : "  ";
-        printTraceTree(rep, ps, indent + pref, run.calls);
-    }
-
     private String getDur(int dur) {
         if (dur > 1500) {
             return Integer.toString(dur / 1000) + "ms";
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.awt.Color;
+import java.io.IOException;
+
+/**
+ * A simple drawing surface used by the charts, so the same drawing code can produce
+ * either a raster (png) or a vector (svg) image.
+ *
+ * <p>Only the few primitives used by the charts are supported. The coordinates follow
+ * the java.awt.Graphics conventions, so the charts look the same with both backends.</p>
+ *
+ * <p>Since each primitive becomes an element in the svg file, the charts should not draw
+ * one primitive per event, but reduce the data to the chart resolution first
+ * (see {@link ColumnDecimator}).</p>
+ */
+public abstract class ChartCanvas {
+
+    protected int mWidth;
+    protected int mHeight;
+
+    protected ChartCanvas(int w, int h) {
+        mWidth = w;
+        mHeight = h;
+    }
+
+    /**
+     * Creates a new canvas for the given chart type. Depending on the settings of the
+     * module, this will be either a vector or a raster canvas.
+     * @param mod The module generating the report
+     * @param type The chart type (see {@link Module#setVectorCharts(String)})
+     * @param w The width of the chart
+     * @param h The height of the chart
+     * @return A new canvas
+     */
+    public static ChartCanvas create(Module mod, String type, int w, int h) {
+        if (mod.isVectorChart(type)) {
+            return new SvgCanvas(w, h);
+        }
+        return new PngCanvas(w, h);
+    }
+
+    /**
+     * Returns the file extension which should be used when saving the chart
+     * created for the given type, without the dot.
+     */
+    public static String getExtension(Module mod, String type) {
+        return mod.isVectorChart(type) ? SvgCanvas.EXT : PngCanvas.EXT;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Returns the file extension of the generated image, without the dot */
+    public abstract String getExtension();
+
+    /** Enables or disables the antialiasing of the shapes */
+    public abstract void setAntialias(boolean enable);
+
+    public abstract void setColor(Color c);
+
+    public abstract void fillRect(int x, int y, int w, int h);
+
+    public abstract void drawRect(int x, int y, int w, int h);
+
+    public abstract void drawLine(int x1, int y1, int x2, int y2);
+
+    /**
+     * Draws a line through the given points
+     * @param xs The x coordinates
+     * @param ys The y coordinates
+     * @param n The number of points to use from the arrays
+     */
+    public abstract void drawPolyline(int xs[], int ys[], int n);
+
+    /** Draws a filled circle with the given center and radius */
+    public abstract void fillCircle(int x, int y, int r);
+
+    /** Draws the text, the y coordinate is the baseline */
+    public abstract void drawString(String s, int x, int y);
+
+    public abstract int stringWidth(String s);
+
+    public abstract int getAscent();
+
+    public abstract int getDescent();
+
+    public abstract int getFontHeight();
+
+    /**
+     * Saves the image. This is called by the {@link ChartService}.
+     * @param path The full path of the file
+     */
+    public abstract void write(String path) throws IOException;
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders and saves the chart images on a pool of worker threads.
+ *
+ * <p>The plugins submit either an already drawn image (then only the encoding is done
+ * in the background), or a {@link Job} which draws the image on a {@link ChartCanvas}. In both cases the file name
+ * is returned immediately, so it can be used in the report right away. The module waits
+ * for all pending images in {@link #drain()} before finishing. The result of a single
+ * image can be queried with {@link #waitFor(String)}.</p>
+ *
+ * <p>The number of pending jobs is limited, so the images waiting to be encoded don't
+ * use up the memory.</p>
+ */
+public class ChartService {
+
+    private static final int MAX_PENDING_PER_THREAD = 4;
+
+    /**
+     * A chart which needs to be drawn. The draw method is called from a worker thread,
+     * so it must only read data which is not modified anymore.
+     */
+    public interface Job {
+        /**
+         * Draws the chart
+         * @param c The canvas to draw on
+         */
+        public void draw(ChartCanvas c);
+    }
+
+    private Module mMod;
+    private ExecutorService mPool;
+    private Semaphore mPending;
+    private int mMaxPending;
+    private HashMap<String, Future<Boolean>> mResults = new HashMap<String, Future<Boolean>>();
+
+    public ChartService(Module mod) {
+        mMod = mod;
+    }
+
+    /**
+     * Saves an already drawn image in png format. The image must not be modified after this call.
+     * @param fn The file name, relative to the base (data) directory of the report
+     * @param img The image to save
+     * @return The file name
+     */
+    public String savePng(String fn, BufferedImage img) {
+        return save(fn, new PngCanvas(img));
+    }
+
+    /**
+     * Saves an already drawn chart. The canvas must not be modified after this call.
+     * @param fn The file name, relative to the base (data) directory of the report
+     * @param canvas The canvas to save
+     * @return The file name
+     */
+    public String save(String fn, ChartCanvas canvas) {
+        return submit(fn, canvas, null);
+    }
+
+    /**
+     * Draws and saves an image on a worker thread
+     * @param fn The file name, relative to the base (data) directory of the report
+     * @param canvas The canvas to draw on
+     * @param job The job which draws the image, or null if it's already drawn
+     * @return The file name
+     */
+    public synchronized String submit(String fn, final ChartCanvas canvas, final Job job) {
+        if (mPool == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            mMaxPending = threads * MAX_PENDING_PER_THREAD;
+            mPending = new Semaphore(mMaxPending);
+            mPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int mNextId = 1;
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ChartService-" + mNextId++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        mPending.acquireUninterruptibly();
+        final String path = mMod.getBaseDir() + fn;
+        final Semaphore pending = mPending;
+        Future<Boolean> result = mPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    if (job != null) {
+                        job.draw(canvas);
+                    }
+                    canvas.write(path);
+                    return true;
+                } catch (Throwable e) {
+                    mMod.printErr(3, "Failed to create image " + path + ": " + e);
+                    return false;
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+        synchronized (mResults) {
+            mResults.put(fn, result);
+        }
+        return fn;
+    }
+
+    /**
+     * Waits until the given image is saved.
+     * @param fn The file name, as returned by {@link #submit(String, ChartCanvas, Job)}
+     * @return false if the image was submitted but could not be saved, true otherwise
+     * (also when the file was not created by this service)
+     */
+    public boolean waitFor(String fn) {
+        Future<Boolean> result;
+        synchronized (mResults) {
+            result = mResults.get(fn);
+        }
+        if (result == null) {
+            return true;
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits until all the submitted images are saved, and stops the worker threads.
+     */
+    public synchronized void drain() {
+        if (mPool == null) {
+            return;
+        }
+        // All the permits are available again only when every job has finished
+        mPending.acquireUninterruptibly(mMaxPending);
+        mPending.release(mMaxPending);
+        mPool.shutdown();
+        mPool = null;
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+/**
+ * Reduces a series of data points to the resolution of the chart.
+ *
+ * <p>For each pixel column only the first, the minimum, the maximum and the last value
+ * are kept, so the line drawn through the reduced points looks the same as the line
+ * drawn through all the points, but the number of drawn points is limited by the width
+ * of the chart, instead of the number of data points.</p>
+ */
+public class ColumnDecimator {
+
+    private int mWidth;
+    private int mFirst[];
+    private int mLast[];
+    private int mMin[];
+    private int mMax[];
+    private boolean mUsed[];
+    private int mCount;
+
+    public ColumnDecimator(int w) {
+        mWidth = w;
+        mFirst = new int[w];
+        mLast = new int[w];
+        mMin = new int[w];
+        mMax = new int[w];
+        mUsed = new boolean[w];
+    }
+
+    /**
+     * Adds a new data point. The points must be added in increasing x order.
+     * Points outside the chart are ignored.
+     */
+    public void add(int x, int y) {
+        if (x < 0 || x >= mWidth) return;
+        if (!mUsed[x]) {
+            mUsed[x] = true;
+            mFirst[x] = mMin[x] = mMax[x] = y;
+            mCount++;
+        } else {
+            mMin[x] = Math.min(mMin[x], y);
+            mMax[x] = Math.max(mMax[x], y);
+        }
+        mLast[x] = y;
+    }
+
+    /**
+     * Returns the number of columns which contain data
+     */
+    public int getColumnCount() {
+        return mCount;
+    }
+
+    /**
+     * Draws a line through the reduced data points
+     */
+    public void drawLine(ChartCanvas c) {
+        int xs[] = new int[mCount * 4];
+        int ys[] = new int[mCount * 4];
+        int n = 0;
+        for (int x = 0; x < mWidth; x++) {
+            if (!mUsed[x]) continue;
+            n = addPoint(xs, ys, n, x, mFirst[x]);
+            if (mMin[x] != mMax[x]) {
+                n = addPoint(xs, ys, n, x, mMin[x]);
+                n = addPoint(xs, ys, n, x, mMax[x]);
+            }
+            n = addPoint(xs, ys, n, x, mLast[x]);
+        }
+        if (n >= 2) {
+            c.drawPolyline(xs, ys, n);
+        }
+    }
+
+    private int addPoint(int xs[], int ys[], int n, int x, int y) {
+        if (n > 0 && xs[n - 1] == x && ys[n - 1] == y) {
+            return n; // Skip duplicates
+        }
+        xs[n] = x;
+        ys[n] = y;
+        return n + 1;
+    }
+
+    /**
+     * Draws a marker at the minimum and maximum value of each column
+     * @param c The canvas to draw on
+     * @param r The radius of the marker
+     */
+    public void drawMarkers(ChartCanvas c, int r) {
+        for (int x = 0; x < mWidth; x++) {
+            if (!mUsed[x]) continue;
+            c.fillCircle(x, mMin[x], r);
+            if (mMax[x] != mMin[x]) {
+                c.fillCircle(x, mMax[x], r);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Vector;
+
+/**
+ * Helper class to load a table into the report database.
+ *
+ * <p>The rows are inserted using a prepared statement, and the batch is executed
+ * each time it reaches the configured size (see {@link Module#getSQLBatchSize()}),
+ * so the memory usage doesn't grow with the table size. The indexes are created
+ * only after all the rows are inserted, since that is much faster than updating
+ * them after each row. Everything is committed in one transaction in {@link #finish()}.</p>
+ *
+ * <p>If any of the SQL operations fail, the error is logged and the rest of the
+ * calls are ignored.</p>
+ */
+public class DBTableWriter {
+
+    private Module mMod;
+    private Connection mConn;
+    private String mTable;
+    private Vector<String> mColumns = new Vector<String>();
+    private Vector<String> mIndexes = new Vector<String>();
+    private PreparedStatement mInsert;
+    private int mBatchSize;
+    private int mBatchCount;
+    private int mRowCount;
+
+    public DBTableWriter(Module mod, String table) {
+        mMod = mod;
+        mConn = mod.getSQLConnection();
+        mTable = table;
+        mBatchSize = mod.getSQLBatchSize();
+    }
+
+    /**
+     * Returns true if the table can be written (the database is available and no
+     * error happened so far)
+     */
+    public boolean isValid() {
+        return mConn != null;
+    }
+
+    public String getTableName() {
+        return mTable;
+    }
+
+    /**
+     * Adds a new column to the table. Must be called before {@link #create()}.
+     * @param spec The column specification, for example "pid int"
+     * @param index If true, an index will be created on this column after the data is loaded
+     */
+    public void addColumn(String spec, boolean index) {
+        mColumns.add(spec);
+        if (index) {
+            mIndexes.add(getColumnName(spec));
+        }
+    }
+
+    /**
+     * Creates the table and prepares the insert statement
+     */
+    public void create() {
+        if (mConn == null) return;
+        StringBuffer sqlCreate = new StringBuffer();
+        StringBuffer sqlInsert = new StringBuffer();
+        sqlCreate.append("CREATE TABLE ");
+        sqlCreate.append(mTable);
+        sqlCreate.append(" (");
+        sqlInsert.append("INSERT INTO ");
+        sqlInsert.append(mTable);
+        sqlInsert.append(" VALUES (");
+        for (int i = 0; i < mColumns.size(); i++) {
+            if (i > 0) {
+                sqlCreate.append(",");
+                sqlInsert.append(",");
+            }
+            sqlCreate.append(mColumns.get(i));
+            sqlInsert.append("?");
+        }
+        sqlCreate.append(")");
+        sqlInsert.append(")");
+        try {
+            Statement stat = mConn.createStatement();
+            stat.execute(sqlCreate.toString());
+            stat.close();
+            mInsert = mConn.prepareStatement(sqlInsert.toString());
+        } catch (SQLException e) {
+            abort(e);
+        }
+    }
+
+    public void setString(int idx, String value) {
+        if (mConn == null) return;
+        try {
+            mInsert.setString(idx + 1, value);
+        } catch (SQLException e) {
+            abort(e);
+        }
+    }
+
+    public void setInt(int idx, int value) {
+        if (mConn == null) return;
+        try {
+            mInsert.setInt(idx + 1, value);
+        } catch (SQLException e) {
+            abort(e);
+        }
+    }
+
+    public void setLong(int idx, long value) {
+        if (mConn == null) return;
+        try {
+            mInsert.setLong(idx + 1, value);
+        } catch (SQLException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Adds the current row to the batch, and executes the batch if it's full
+     */
+    public void endRow() {
+        if (mConn == null) return;
+        try {
+            mInsert.addBatch();
+            mRowCount++;
+            if (++mBatchCount >= mBatchSize) {
+                mInsert.executeBatch();
+                mBatchCount = 0;
+            }
+        } catch (SQLException e) {
+            abort(e);
+        }
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Flushes the pending rows, creates the indexes and commits the transaction
+     */
+    public void finish() {
+        if (mConn == null) return;
+        try {
+            if (mBatchCount > 0) {
+                mInsert.executeBatch();
+                mBatchCount = 0;
+            }
+            mInsert.close();
+            Statement stat = mConn.createStatement();
+            for (String col : mIndexes) {
+                stat.execute("CREATE INDEX " + mTable + "_" + col + " ON " + mTable + "(" + col + ")");
+            }
+            stat.close();
+            mConn.commit();
+        } catch (SQLException e) {
+            abort(e);
+        }
+        mConn = null;
+        mInsert = null;
+    }
+
+    private void abort(SQLException e) {
+        mMod.printErr(4, "Failed writing table '" + mTable + "' into the database: " + e);
+        mConn = null;
+        mInsert = null;
+    }
+
+    /**
+     * Extracts the column name from a column specification
+     * @param spec The column specification (for example "pid int")
+     * @return The column name (for example "pid")
+     */
+    public static String getColumnName(String spec) {
+        spec = spec.trim();
+        int idx = spec.indexOf(' ');
+        return idx < 0 ? spec : spec.substring(0, idx);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded queue of export tasks (for example writing CSV files or inserting rows into
+ * the report database), executed in order by a dedicated writer thread.
+ *
+ * <p>This way the plugins don't have to wait for the disk I/O while parsing and
+ * building the report. If the writer thread cannot keep up, {@link #post(Runnable)}
+ * blocks until there is free space in the queue, so the memory usage stays limited.</p>
+ *
+ * <p>Since the tasks are executed by a single thread in the same order as they were
+ * posted, all the database access must go through this queue.</p>
+ */
+public class ExportQueue {
+
+    private static final int CAPACITY = 4096;
+
+    private Module mMod;
+    private ArrayBlockingQueue<Runnable> mQueue = new ArrayBlockingQueue<Runnable>(CAPACITY);
+    private Thread mThread;
+    private boolean mStopped = false;
+
+    /* Special task used to stop the writer thread */
+    private final Runnable mStop = new Runnable() {
+        @Override
+        public void run() {
+            mStopped = true;
+        }
+    };
+
+    public ExportQueue(Module mod) {
+        mMod = mod;
+    }
+
+    /**
+     * Adds a new task to the queue. The writer thread is started when the first
+     * task is posted. This blocks if the queue is full.
+     * @param task The task to execute on the writer thread
+     */
+    public synchronized void post(Runnable task) {
+        if (mThread == null) {
+            mStopped = false;
+            mThread = new Thread("ExportQueue") {
+                @Override
+                public void run() {
+                    loop();
+                }
+            };
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        put(task);
+    }
+
+    /**
+     * Waits until all the queued tasks are executed, and stops the writer thread.
+     */
+    public synchronized void drain() {
+        if (mThread == null) {
+            return;
+        }
+        put(mStop);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    private void put(Runnable task) {
+        while (true) {
+            try {
+                mQueue.put(task);
+                return;
+            } catch (InterruptedException e) {
+                // Retry, we cannot drop the task
+            }
+        }
+    }
+
+    private void loop() {
+        while (!mStopped) {
+            Runnable task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                mMod.printErr(3, "Export task failed: " + t);
+                t.printStackTrace();
+            }
+        }
+    }
+
+}
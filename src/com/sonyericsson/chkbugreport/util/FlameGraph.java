@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Renders an aggregated call tree as an interactive svg flame graph (the callers at the
+ * bottom) or icicle chart (the callers at the top).
+ *
+ * <p>The width of each frame is proportional to its total (inclusive) value. The
+ * children of a frame are ordered by name, so the same call paths are at the same place
+ * in different graphs. Hovering a frame shows its details, clicking on it zooms into it,
+ * clicking on the title resets the zoom.</p>
+ *
+ * <p>The frames narrower than {@link #MIN_WIDTH} pixels are not drawn (together with
+ * their children), so the size of the svg file depends only on the chart size, not on
+ * the number of calls. The time of these frames is shown as a gap after the visible children
+ * of the parent frame, together with the parent's own time.</p>
+ */
+public class FlameGraph {
+
+    public static final int WIDTH = 1200;
+    /** The minimum width of a frame to be drawn (in pixels) */
+    public static final double MIN_WIDTH = 0.5;
+
+    private static final int PAD = 10;
+    private static final int FRAME_H = 16;
+    private static final int HEAD_H = 40;
+    private static final int FOOT_H = 10;
+    private static final int FONT_SIZE = 11;
+    private static final double CHAR_W = FONT_SIZE * 0.6;
+
+    private String mTitle;
+    private String mUnit;
+    private int mCount;
+    private int mParent[] = new int[64];
+    private String mNames[] = new String[64];
+    private String mInfos[] = new String[64];
+    private long mValues[] = new long[64];
+    private int mColors[] = new int[64];
+
+    /**
+     * Creates an empty graph
+     * @param title The title shown above the chart
+     * @param unit The unit of the values, shown in the details of the frames
+     */
+    public FlameGraph(String title, String unit) {
+        mTitle = title;
+        mUnit = unit;
+    }
+
+    /**
+     * Adds a new frame. The parent must be added before its children.
+     * @param parent The index of the parent frame, or -1 for the root frame
+     * @param name The name of the frame
+     * @param value The total value of the frame (including its children)
+     * @return The index of the frame
+     */
+    public int addFrame(int parent, String name, long value) {
+        if (mCount == mParent.length) {
+            int size = mCount * 2;
+            mParent = Arrays.copyOf(mParent, size);
+            mNames = Arrays.copyOf(mNames, size);
+            mInfos = Arrays.copyOf(mInfos, size);
+            mValues = Arrays.copyOf(mValues, size);
+            mColors = Arrays.copyOf(mColors, size);
+        }
+        int ret = mCount++;
+        mParent[ret] = parent;
+        mNames[ret] = name;
+        mValues[ret] = value;
+        mColors[ret] = -1;
+        return ret;
+    }
+
+    /**
+     * Sets an extra text shown in the details of the frame
+     */
+    public void setInfo(int frame, String info) {
+        mInfos[frame] = info;
+    }
+
+    /**
+     * Sets the color of the frame (as 0xRRGGBB). By default a warm color is generated
+     * from the name of the frame.
+     */
+    public void setColor(int frame, int rgb) {
+        mColors[frame] = rgb;
+    }
+
+    public int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the smallest value which is still drawn when the total value of the graph
+     * is the given one. The smaller frames can be left out already when building the graph.
+     */
+    public static long getMinValue(long total) {
+        return (long)(total * MIN_WIDTH / (WIDTH - 2 * PAD));
+    }
+
+    /**
+     * Saves the graph in svg format
+     * @param path The full path of the file
+     * @param icicle If true, the callers are at the top (icicle chart), otherwise at the bottom (flame graph)
+     */
+    public void write(String path, boolean icicle) throws IOException {
+        // Collect the children of each frame, ordered by name
+        int first[] = new int[mCount];
+        int next[] = new int[mCount];
+        Arrays.fill(first, -1);
+        Integer order[] = new Integer[mCount];
+        for (int i = 0; i < mCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                // Reverse order, since the frames are prepended to the child lists
+                return mNames[o2].compareTo(mNames[o1]);
+            }
+        });
+        for (int i = 0; i < mCount; i++) {
+            int f = order[i];
+            int p = mParent[f];
+            if (p >= 0) {
+                next[f] = first[p];
+                first[p] = f;
+            }
+        }
+
+        // Calculate the position of the visible frames
+        long total = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mParent[i] < 0) {
+                total += mValues[i];
+            }
+        }
+        int inner = WIDTH - 2 * PAD;
+        double scale = total > 0 ? (double)inner / total : 0;
+        long x[] = new long[mCount];
+        int depth[] = new int[mCount];
+        boolean visible[] = new boolean[mCount];
+        int maxDepth = 0;
+        long rootX = 0;
+        int stack[] = new int[64];
+        for (int root = 0; root < mCount; root++) {
+            if (mParent[root] >= 0) continue;
+            x[root] = rootX;
+            rootX += mValues[root];
+            if (mValues[root] * scale < MIN_WIDTH) continue;
+            // Pre-order traversal, the visible children are placed next to each other from the
+            // parent's position, the too narrow ones are left out (so it doesn't matter whether
+            // they were added to the graph or not)
+            int sp = 0;
+            stack[sp++] = root;
+            while (sp > 0) {
+                int f = stack[--sp];
+                visible[f] = true;
+                maxDepth = Math.max(maxDepth, depth[f]);
+                long cx = x[f];
+                for (int c = first[f]; c != -1; c = next[c]) {
+                    if (mValues[c] * scale < MIN_WIDTH) continue;
+                    x[c] = cx;
+                    depth[c] = depth[f] + 1;
+                    cx += mValues[c];
+                    if (sp == stack.length) {
+                        stack = Arrays.copyOf(stack, sp * 2);
+                    }
+                    stack[sp++] = c;
+                }
+            }
+        }
+
+        int h = HEAD_H + (maxDepth + 1) * FRAME_H + FOOT_H;
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), "UTF-8"));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\"");
+            out.write(" width=\"" + WIDTH + "\" height=\"" + h + "\" viewBox=\"0 0 " + WIDTH + " " + h + "\"");
+            out.write(" font-family=\"monospace\" font-size=\"" + FONT_SIZE + "px\" onload=\"init()\">\n");
+            writeScript(out, inner);
+            out.write("<rect x=\"0\" y=\"0\" width=\"" + WIDTH + "\" height=\"" + h + "\" fill=\"#f8f8f0\"/>\n");
+            out.write("<text id=\"title\" x=\"" + (WIDTH / 2) + "\" y=\"24\" text-anchor=\"middle\" font-size=\"15px\" cursor=\"pointer\">");
+            out.write(escape(mTitle));
+            out.write("<title>Click to reset the zoom</title></text>\n");
+            for (int f = 0; f < mCount; f++) {
+                if (!visible[f]) continue;
+                double fx = x[f] * scale;
+                double fw = mValues[f] * scale;
+                int y = icicle ? HEAD_H + depth[f] * FRAME_H : h - FOOT_H - (depth[f] + 1) * FRAME_H;
+                String name = mNames[f];
+                out.write("<g class=\"f\" data-x=\"" + fmt(fx / inner) + "\" data-w=\"" + fmt(fw / inner));
+                out.write("\" data-d=\"" + depth[f] + "\" data-n=\"" + escape(name) + "\"><title>");
+                out.write(escape(name));
+                out.write(" (" + mValues[f] + " " + mUnit);
+                if (total > 0) {
+                    out.write(", " + fmt(mValues[f] * 100.0 / total) + "%");
+                }
+                out.write(")");
+                if (mInfos[f] != null) {
+                    out.write("\n" + escape(mInfos[f]));
+                }
+                out.write("</title><rect x=\"" + fmt(PAD + fx) + "\" y=\"" + y + "\" width=\"" + fmt(fw));
+                out.write("\" height=\"" + (FRAME_H - 1) + "\" rx=\"2\" fill=\"" + color(f) + "\"/>");
+                out.write("<text x=\"" + fmt(PAD + fx + 3) + "\" y=\"" + (y + FRAME_H - 4) + "\">");
+                out.write(escape(fit(name, fw)));
+                out.write("</text></g>\n");
+            }
+            out.write("</svg>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeScript(Writer out, int inner) throws IOException {
+        out.write("<script type=\"text/ecmascript\"><![CDATA[\n");
+        out.write("var PAD = " + PAD + ", W = " + inner + ", CW = " + CHAR_W + ", frames;\n");
+        out.write("function init() {\n");
+        out.write("  frames = document.getElementsByClassName('f');\n");
+        out.write("  for (var i = 0; i < frames.length; i++) {\n");
+        out.write("    frames[i].onclick = function() { zoom(+this.getAttribute('data-x'), +this.getAttribute('data-w'), +this.getAttribute('data-d')); };\n");
+        out.write("  }\n");
+        out.write("  document.getElementById('title').onclick = function() { zoom(0, 1, 0); };\n");
+        out.write("}\n");
+        out.write("function fit(s, w) {\n");
+        out.write("  var n = Math.floor((w - 6) / CW);\n");
+        out.write("  if (n < 3) return '';\n");
+        out.write("  return s.length <= n ? s : s.substring(0, n - 2) + '..';\n");
+        out.write("}\n");
+        out.write("function zoom(x, w, d) {\n");
+        out.write("  var eps = 1e-9;\n");
+        out.write("  for (var i = 0; i < frames.length; i++) {\n");
+        out.write("    var f = frames[i], fx = +f.getAttribute('data-x'), fw = +f.getAttribute('data-w'), fd = +f.getAttribute('data-d');\n");
+        out.write("    var inside = fx >= x - eps && fx + fw <= x + w + eps && fd >= d;\n");
+        out.write("    var parent = fx <= x + eps && fx + fw >= x + w - eps && fd < d;\n");
+        out.write("    if (!inside && !parent) { f.style.display = 'none'; continue; }\n");
+        out.write("    f.style.display = '';\n");
+        out.write("    var nx = parent ? 0 : (fx - x) / w * W, nw = parent ? W : fw / w * W;\n");
+        out.write("    var r = f.getElementsByTagName('rect')[0], t = f.getElementsByTagName('text')[0];\n");
+        out.write("    r.setAttribute('x', PAD + nx);\n");
+        out.write("    r.setAttribute('width', nw);\n");
+        out.write("    t.setAttribute('x', PAD + nx + 3);\n");
+        out.write("    t.textContent = fit(f.getAttribute('data-n'), nw);\n");
+        out.write("  }\n");
+        out.write("}\n");
+        out.write("]]></script>\n");
+    }
+
+    private String color(int f) {
+        int rgb = mColors[f];
+        if (rgb < 0) {
+            // Warm colors, derived from the name, so the same method has the same color everywhere
+            int hash = mNames[f].hashCode();
+            int r = 205 + ((hash >>> 0) & 0xff) % 50;
+            int g = ((hash >>> 8) & 0xff) % 230;
+            int b = ((hash >>> 16) & 0xff) % 55;
+            rgb = (r << 16) | (g << 8) | b;
+        }
+        String s = Integer.toHexString(0x1000000 | rgb);
+        return "#" + s.substring(1);
+    }
+
+    private static String fit(String s, double w) {
+        int n = (int)((w - 6) / CHAR_W);
+        if (n < 3) return "";
+        return s.length() <= n ? s : s.substring(0, n - 2) + "..";
+    }
+
+    private static String fmt(double v) {
+        // Enough precision even when zooming into very small frames
+        long l = Math.round(v * 1000000);
+        StringBuilder sb = new StringBuilder();
+        if (l < 0) {
+            sb.append('-');
+            l = -l;
+        }
+        sb.append(l / 1000000);
+        long frac = l % 1000000;
+        if (frac != 0) {
+            String fs = Long.toString(1000000 + frac).substring(1);
+            int len = fs.length();
+            while (fs.charAt(len - 1) == '0') len--;
+            sb.append('.').append(fs, 0, len);
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                case '"': sb.append("&quot;"); break;
+                default: sb.append(c); break;
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A minimal streaming JSON writer.
+ *
+ * <p>The output is written directly to the underlying writer, nothing is buffered besides
+ * the nesting state. String values can be written in pieces (see {@link #beginString()}),
+ * so large texts don't have to be collected in memory first.</p>
+ */
+public class JsonWriter {
+
+    private static final int MAX_DEPTH = 256;
+
+    private Writer mOut;
+    /* For each nesting level: true if at least one element was written already */
+    private boolean mHasElem[] = new boolean[MAX_DEPTH];
+    private int mDepth = 0;
+    private boolean mAfterName = false;
+    private boolean mInString = false;
+
+    public JsonWriter(Writer out) {
+        mOut = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        separator();
+        writeString(name);
+        mOut.write(':');
+        mAfterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        writeString(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        separator();
+        mOut.write(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        separator();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            mOut.write("null");
+        } else {
+            mOut.write(Double.toString(value));
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        separator();
+        mOut.write(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        separator();
+        mOut.write("null");
+        return this;
+    }
+
+    /**
+     * Starts a string value which will be written in pieces using
+     * {@link #stringPart(char)} and {@link #stringPart(String)}.
+     * It must be closed with {@link #endString()}.
+     */
+    public JsonWriter beginString() throws IOException {
+        separator();
+        mOut.write('"');
+        mInString = true;
+        return this;
+    }
+
+    public JsonWriter stringPart(char c) throws IOException {
+        writeChar(c);
+        return this;
+    }
+
+    public JsonWriter stringPart(String s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            writeChar(s.charAt(i));
+        }
+        return this;
+    }
+
+    public JsonWriter endString() throws IOException {
+        mOut.write('"');
+        mInString = false;
+        return this;
+    }
+
+    public boolean isInString() {
+        return mInString;
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        separator();
+        mOut.write(c);
+        mHasElem[++mDepth] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        mOut.write(c);
+        mDepth--;
+        return this;
+    }
+
+    private void separator() throws IOException {
+        if (mAfterName) {
+            // The value belongs to the previously written name
+            mAfterName = false;
+            return;
+        }
+        if (mHasElem[mDepth]) {
+            mOut.write(',');
+        }
+        mHasElem[mDepth] = true;
+    }
+
+    private void writeString(String s) throws IOException {
+        mOut.write('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            writeChar(s.charAt(i));
+        }
+        mOut.write('"');
+    }
+
+    private void writeChar(char c) throws IOException {
+        switch (c) {
+            case '"':  mOut.write("\\\""); break;
+            case '\\': mOut.write("\\\\"); break;
+            case '\n': mOut.write("\\n"); break;
+            case '\r': mOut.write("\\r"); break;
+            case '\t': mOut.write("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    mOut.write("\\u00");
+                    mOut.write(HEX[c >> 4]);
+                    mOut.write(HEX[c & 0xf]);
+                } else {
+                    mOut.write(c);
+                }
+        }
+    }
+
+    private static final char HEX[] = "0123456789abcdef".toCharArray();
+
+}
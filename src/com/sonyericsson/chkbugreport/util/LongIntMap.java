@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from non-negative long keys to int values, using open addressing
+ * (linear probing) on primitive arrays, so no objects are allocated per entry.
+ * Useful when interning millions of keys, for example (parent, child) pairs.
+ */
+public class LongIntMap {
+
+    private static final long EMPTY = -1;
+
+    private long mKeys[];
+    private int mValues[];
+    private int mSize;
+
+    public LongIntMap() {
+        this(1024);
+    }
+
+    /**
+     * Creates a new map
+     * @param capacity The initial size of the table (must be a power of two)
+     */
+    public LongIntMap(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    /**
+     * Returns the value stored for the key, or -1 if the key is not in the map
+     */
+    public int get(long key) {
+        int mask = mKeys.length - 1;
+        int pos = hash(key) & mask;
+        while (mKeys[pos] != EMPTY) {
+            if (mKeys[pos] == key) {
+                return mValues[pos];
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Stores the value for the key, replacing the old value (if any)
+     * @param key The key (must not be negative)
+     * @param value The value
+     */
+    public void put(long key, int value) {
+        int mask = mKeys.length - 1;
+        int pos = hash(key) & mask;
+        while (mKeys[pos] != EMPTY) {
+            if (mKeys[pos] == key) {
+                mValues[pos] = value;
+                return;
+            }
+            pos = (pos + 1) & mask;
+        }
+        mKeys[pos] = key;
+        mValues[pos] = value;
+        if (++mSize * 2 > mKeys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Returns the number of keys in the map
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private void rehash() {
+        long oldKeys[] = mKeys;
+        int oldValues[] = mValues;
+        mKeys = new long[oldKeys.length * 2];
+        mValues = new int[oldKeys.length * 2];
+        Arrays.fill(mKeys, EMPTY);
+        int mask = mKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int pos = hash(oldKeys[i]) & mask;
+            while (mKeys[pos] != EMPTY) {
+                pos = (pos + 1) & mask;
+            }
+            mKeys[pos] = oldKeys[i];
+            mValues[pos] = oldValues[i];
+        }
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int)(key ^ (key >>> 32));
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent work items (for example the processing of each thread of a trace)
+ * on all the available cores, and waits until all of them are finished.
+ *
+ * <p>The items are picked up one by one by the worker threads, so items with very
+ * different sizes are still balanced well. Each worker has an index (from 0 to
+ * {@link #getWorkerCount()} - 1), which can be used to keep per worker data (like
+ * partial statistics) without any locking, to be merged after {@link #run(int, Body)}
+ * has returned.</p>
+ *
+ * <p>If an item fails, the error is logged and the rest of the items are still processed.</p>
+ */
+public class ParallelLoop {
+
+    /**
+     * The work to do for each item. It's called from the worker threads, so it must
+     * only modify data which belongs to the item or to the worker.
+     */
+    public interface Body {
+        /**
+         * Processes one item
+         * @param worker The index of the worker thread running this item
+         * @param item The index of the item
+         */
+        public void run(int worker, int item);
+    }
+
+    private Module mMod;
+    private String mName;
+    private int mWorkers;
+
+    /**
+     * Creates a new loop which uses as many threads as the number of available cores
+     * @param mod The module, used to log the errors
+     * @param name The name of the loop, used for the thread names and in the error messages
+     */
+    public ParallelLoop(Module mod, String name) {
+        mMod = mod;
+        mName = name;
+        mWorkers = Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns the maximum number of worker threads
+     */
+    public int getWorkerCount() {
+        return mWorkers;
+    }
+
+    /**
+     * Processes all the items, and returns when every item is finished
+     * @param count The number of items
+     * @param body The work to do for each item
+     */
+    public void run(final int count, final Body body) {
+        int workers = Math.min(mWorkers, count);
+        if (workers <= 1) {
+            // Not worth starting new threads
+            for (int i = 0; i < count; i++) {
+                runItem(body, 0, i);
+            }
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        Thread threads[] = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            final int worker = w;
+            threads[w] = new Thread(mName + "-" + (w + 1)) {
+                @Override
+                public void run() {
+                    int item;
+                    while ((item = next.getAndIncrement()) < count) {
+                        runItem(body, worker, item);
+                    }
+                }
+            };
+            threads[w].start();
+        }
+        for (Thread t : threads) {
+            while (true) {
+                try {
+                    t.join();
+                    break;
+                } catch (InterruptedException e) {
+                    // Retry, the results are needed
+                }
+            }
+        }
+    }
+
+    private void runItem(Body body, int worker, int item) {
+        try {
+            body.run(worker, item);
+        } catch (Throwable t) {
+            mMod.printErr(3, mName + " failed on item " + item + ": " + t);
+            t.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Raster implementation of the chart canvas, simply drawing into a BufferedImage.
+ */
+public class PngCanvas extends ChartCanvas {
+
+    public static final String EXT = "png";
+
+    private BufferedImage mImg;
+    private Graphics2D mG;
+    private FontMetrics mFm;
+
+    public PngCanvas(int w, int h) {
+        this(new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * Wraps an already existing image
+     */
+    public PngCanvas(BufferedImage img) {
+        super(img.getWidth(), img.getHeight());
+        mImg = img;
+    }
+
+    /**
+     * Returns the graphics of the image, created on demand.
+     */
+    public Graphics2D getGraphics() {
+        if (mG == null) {
+            mG = (Graphics2D)mImg.getGraphics();
+            mFm = mG.getFontMetrics();
+        }
+        return mG;
+    }
+
+    public BufferedImage getImage() {
+        return mImg;
+    }
+
+    @Override
+    public String getExtension() {
+        return EXT;
+    }
+
+    @Override
+    public void setAntialias(boolean enable) {
+        getGraphics().setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                enable ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+    }
+
+    @Override
+    public void setColor(Color c) {
+        getGraphics().setColor(c);
+    }
+
+    @Override
+    public void fillRect(int x, int y, int w, int h) {
+        getGraphics().fillRect(x, y, w, h);
+    }
+
+    @Override
+    public void drawRect(int x, int y, int w, int h) {
+        getGraphics().drawRect(x, y, w, h);
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        getGraphics().drawLine(x1, y1, x2, y2);
+    }
+
+    @Override
+    public void drawPolyline(int[] xs, int[] ys, int n) {
+        getGraphics().drawPolyline(xs, ys, n);
+    }
+
+    @Override
+    public void fillCircle(int x, int y, int r) {
+        getGraphics().fillArc(x - r, y - r, 2*r+1, 2*r+1, 0, 360);
+    }
+
+    @Override
+    public void drawString(String s, int x, int y) {
+        getGraphics().drawString(s, x, y);
+    }
+
+    @Override
+    public int stringWidth(String s) {
+        getGraphics();
+        return mFm.stringWidth(s);
+    }
+
+    @Override
+    public int getAscent() {
+        getGraphics();
+        return mFm.getAscent();
+    }
+
+    @Override
+    public int getDescent() {
+        getGraphics();
+        return mFm.getDescent();
+    }
+
+    @Override
+    public int getFontHeight() {
+        getGraphics();
+        return mFm.getHeight();
+    }
+
+    @Override
+    public void write(String path) throws IOException {
+        ImageIO.write(mImg, EXT, new File(path));
+    }
+
+}
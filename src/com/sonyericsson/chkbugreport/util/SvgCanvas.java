@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Vector implementation of the chart canvas, generating an svg file.
+ *
+ * <p>The elements are collected in memory and written out when the chart is saved.
+ * The pixel coordinates are shifted by half a pixel, so the 1 pixel wide lines are
+ * as sharp as in the png version. The text is measured with the same font metrics
+ * as in the raster version, so the layout of the chart doesn't change.</p>
+ */
+public class SvgCanvas extends ChartCanvas {
+
+    public static final String EXT = "svg";
+
+    private StringBuilder mBody = new StringBuilder();
+    private String mColor = "#000000";
+    private String mOpacity = "";
+    private boolean mAntialias = false;
+    private FontMetrics mFm;
+    private Font mFont;
+
+    public SvgCanvas(int w, int h) {
+        super(w, h);
+        // Use a dummy image to measure the text
+        BufferedImage tmp = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = (Graphics2D)tmp.getGraphics();
+        mFont = g.getFont();
+        mFm = g.getFontMetrics();
+        g.dispose();
+        mBody.append("<g shape-rendering=\"crispEdges\">\n");
+    }
+
+    @Override
+    public String getExtension() {
+        return EXT;
+    }
+
+    @Override
+    public void setAntialias(boolean enable) {
+        if (enable != mAntialias) {
+            mAntialias = enable;
+            mBody.append("</g>\n<g shape-rendering=\"");
+            mBody.append(enable ? "geometricPrecision" : "crispEdges");
+            mBody.append("\">\n");
+        }
+    }
+
+    @Override
+    public void setColor(Color c) {
+        mColor = String.format("#%06x", c.getRGB() & 0xffffff);
+        int alpha = c.getAlpha();
+        if (alpha == 255) {
+            mOpacity = "";
+        } else {
+            mOpacity = " opacity=\"" + (alpha / 255.0f) + "\"";
+        }
+    }
+
+    @Override
+    public void fillRect(int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) return;
+        mBody.append("<rect x=\"").append(x).append("\" y=\"").append(y);
+        mBody.append("\" width=\"").append(w).append("\" height=\"").append(h);
+        mBody.append("\" fill=\"").append(mColor).append('"').append(mOpacity).append("/>\n");
+    }
+
+    @Override
+    public void drawRect(int x, int y, int w, int h) {
+        if (w < 0 || h < 0) return;
+        mBody.append("<rect x=\"");
+        appendCenter(x);
+        mBody.append("\" y=\"");
+        appendCenter(y);
+        mBody.append("\" width=\"").append(w).append("\" height=\"").append(h);
+        mBody.append("\" fill=\"none\"");
+        appendStroke();
+        mBody.append("/>\n");
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        mBody.append("<line x1=\"");
+        appendCenter(x1);
+        mBody.append("\" y1=\"");
+        appendCenter(y1);
+        mBody.append("\" x2=\"");
+        appendCenter(x2);
+        mBody.append("\" y2=\"");
+        appendCenter(y2);
+        mBody.append('"');
+        appendStroke();
+        mBody.append(" stroke-linecap=\"square\"/>\n");
+    }
+
+    @Override
+    public void drawPolyline(int[] xs, int[] ys, int n) {
+        if (n <= 0) return;
+        mBody.append("<polyline points=\"");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                mBody.append(' ');
+            }
+            appendCenter(xs[i]);
+            mBody.append(',');
+            appendCenter(ys[i]);
+        }
+        mBody.append("\" fill=\"none\"");
+        appendStroke();
+        mBody.append(" stroke-linejoin=\"round\"/>\n");
+    }
+
+    @Override
+    public void fillCircle(int x, int y, int r) {
+        mBody.append("<circle cx=\"");
+        appendCenter(x);
+        mBody.append("\" cy=\"");
+        appendCenter(y);
+        mBody.append("\" r=\"").append(r).append("\" fill=\"").append(mColor).append('"');
+        mBody.append(mOpacity).append("/>\n");
+    }
+
+    @Override
+    public void drawString(String s, int x, int y) {
+        mBody.append("<text x=\"").append(x).append("\" y=\"").append(y);
+        mBody.append("\" fill=\"").append(mColor).append('"').append(mOpacity).append('>');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<': mBody.append("&lt;"); break;
+                case '>': mBody.append("&gt;"); break;
+                case '&': mBody.append("&amp;"); break;
+                default: mBody.append(c); break;
+            }
+        }
+        mBody.append("</text>\n");
+    }
+
+    private void appendStroke() {
+        mBody.append(" stroke=\"").append(mColor).append('"');
+        if (mOpacity.length() > 0) {
+            mBody.append(" stroke-").append(mOpacity.substring(1));
+        }
+    }
+
+    /**
+     * Appends the center of the given pixel (v + 0.5), so one pixel wide lines are not blurred
+     */
+    private void appendCenter(int v) {
+        if (v >= 0) {
+            mBody.append(v).append(".5");
+        } else {
+            // -3 + 0.5 = -2.5
+            mBody.append('-').append(-(v + 1)).append(".5");
+        }
+    }
+
+    @Override
+    public int stringWidth(String s) {
+        return mFm.stringWidth(s);
+    }
+
+    @Override
+    public int getAscent() {
+        return mFm.getAscent();
+    }
+
+    @Override
+    public int getDescent() {
+        return mFm.getDescent();
+    }
+
+    @Override
+    public int getFontHeight() {
+        return mFm.getHeight();
+    }
+
+    @Override
+    public void write(String path) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), "UTF-8"));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\"");
+            out.write(" width=\"" + mWidth + "\" height=\"" + mHeight + "\"");
+            out.write(" viewBox=\"0 0 " + mWidth + " " + mHeight + "\"");
+            out.write(" font-family=\"sans-serif\" font-size=\"" + mFont.getSize() + "px\">\n");
+            out.append(mBody);
+            out.write("</g>\n</svg>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.util.Arrays;
+
+/**
+ * Interns strings (for example method and file names) and assigns a small int id to
+ * each distinct one, so repeating names are stored only once and can be compared by id.
+ *
+ * <p>The strings can be looked up using a range of a longer string (like a line of
+ * the input), in which case a new string is created only the first time the name is
+ * seen. The ids are assigned in increasing order starting from 0, and remain valid as
+ * long as the table exists.</p>
+ */
+public class SymbolTable {
+
+    private String mSymbols[];
+    private int mHashes[];
+    private int mSize;
+    /* The hash table: id + 1 of the symbols, 0 if empty */
+    private int mTable[];
+
+    public SymbolTable() {
+        mSymbols = new String[256];
+        mHashes = new int[256];
+        mTable = new int[512];
+    }
+
+    /**
+     * Returns the id of the string, adding it to the table if needed
+     */
+    public int intern(String s) {
+        return intern(s, 0, s.length());
+    }
+
+    /**
+     * Returns the id of the given part of the string, adding it to the table if needed
+     * @param s The string containing the name
+     * @param from The start of the name (inclusive)
+     * @param to The end of the name (exclusive)
+     * @return The id of the name
+     */
+    public int intern(String s, int from, int to) {
+        int hash = hash(s, from, to);
+        int mask = mTable.length - 1;
+        int pos = hash & mask;
+        while (mTable[pos] != 0) {
+            int id = mTable[pos] - 1;
+            if (mHashes[id] == hash && matches(mSymbols[id], s, from, to)) {
+                return id;
+            }
+            pos = (pos + 1) & mask;
+        }
+        if (mSize == mSymbols.length) {
+            mSymbols = Arrays.copyOf(mSymbols, mSize * 2);
+            mHashes = Arrays.copyOf(mHashes, mSize * 2);
+        }
+        int id = mSize++;
+        mSymbols[id] = (from == 0 && to == s.length()) ? s : s.substring(from, to);
+        mHashes[id] = hash;
+        mTable[pos] = id + 1;
+        if (mSize * 2 > mTable.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the string, or -1 if it's not in the table
+     */
+    public int find(String s) {
+        int hash = hash(s, 0, s.length());
+        int mask = mTable.length - 1;
+        int pos = hash & mask;
+        while (mTable[pos] != 0) {
+            int id = mTable[pos] - 1;
+            if (mHashes[id] == hash && mSymbols[id].equals(s)) {
+                return id;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the string with the given id
+     */
+    public String get(int id) {
+        return mSymbols[id];
+    }
+
+    /**
+     * Returns the number of strings in the table
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private void rehash() {
+        mTable = new int[mTable.length * 2];
+        int mask = mTable.length - 1;
+        for (int id = 0; id < mSize; id++) {
+            int pos = mHashes[id] & mask;
+            while (mTable[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            mTable[pos] = id + 1;
+        }
+    }
+
+    private static boolean matches(String sym, String s, int from, int to) {
+        return sym.length() == to - from && sym.regionMatches(0, s, from, to - from);
+    }
+
+    private static int hash(String s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        // Spread the bits, since the low bits are used to index the table
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+/**
+ * Writes a trace event file (the JSON format used by chrome://tracing and Perfetto).
+ *
+ * <p>The events are written directly to the file while they are generated (only a fixed
+ * size buffer is used), so the size of the trace doesn't affect the memory usage. The
+ * events don't have to be ordered by time, but the nested duration events of the same
+ * thread must be properly nested.</p>
+ *
+ * <p>All the timestamps and durations are in microseconds.</p>
+ *
+ * <p>If writing the file fails, the error is logged and the rest of the calls are ignored.</p>
+ */
+public class TraceEventWriter {
+
+    private static final int BUFF_SIZE = 0x10000;
+
+    private Module mMod;
+    private String mFn;
+    private JsonWriter mOut;
+    private int mCount;
+
+    /**
+     * Creates a new writer
+     * @param mod The module
+     * @param fn The file name, relative to the base directory of the report
+     */
+    public TraceEventWriter(Module mod, String fn) {
+        mMod = mod;
+        mFn = fn;
+    }
+
+    /**
+     * Returns the name of the generated file, relative to the base directory of the report
+     */
+    public String getFileName() {
+        return mFn;
+    }
+
+    /**
+     * Returns the number of events written so far
+     */
+    public int getEventCount() {
+        return mCount;
+    }
+
+    /**
+     * Creates the file and starts the event list
+     * @return false if the file cannot be created
+     */
+    public boolean begin() {
+        try {
+            FileOutputStream fos = new FileOutputStream(mMod.getBaseDir() + mFn);
+            mOut = new JsonWriter(new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"), BUFF_SIZE));
+            mOut.beginObject();
+            mOut.name("displayTimeUnit").value("ms");
+            mOut.name("traceEvents").beginArray();
+            return true;
+        } catch (IOException e) {
+            abort(e);
+            return false;
+        }
+    }
+
+    /**
+     * Sets the name of a process (shown as the name of the group of the threads)
+     */
+    public void processName(int pid, String name) {
+        metadata("process_name", pid, 0, name);
+    }
+
+    /**
+     * Sets the name of a thread (shown as the name of its track)
+     */
+    public void threadName(int pid, int tid, String name) {
+        metadata("thread_name", pid, tid, name);
+    }
+
+    private void metadata(String type, int pid, int tid, String name) {
+        if (mOut == null) return;
+        try {
+            mOut.beginObject();
+            mOut.name("name").value(type);
+            mOut.name("ph").value("M");
+            mOut.name("pid").value(pid);
+            mOut.name("tid").value(tid);
+            mOut.name("args").beginObject();
+            mOut.name("name").value(name);
+            mOut.endObject();
+            mOut.endObject();
+            mCount++;
+        } catch (IOException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Writes a complete duration event
+     * @param name The name of the event
+     * @param cat The category of the event
+     * @param pid The process id
+     * @param tid The thread id
+     * @param ts The start time
+     * @param dur The duration
+     */
+    public void complete(String name, String cat, int pid, int tid, long ts, long dur) {
+        complete(name, cat, pid, tid, ts, dur, null, 0);
+    }
+
+    /**
+     * Writes a complete duration event with one numeric argument
+     * @param name The name of the event
+     * @param cat The category of the event
+     * @param pid The process id
+     * @param tid The thread id
+     * @param ts The start time
+     * @param dur The duration
+     * @param argName The name of the argument, or null if there is no argument
+     * @param argValue The value of the argument
+     */
+    public void complete(String name, String cat, int pid, int tid, long ts, long dur, String argName, long argValue) {
+        if (mOut == null) return;
+        try {
+            mOut.beginObject();
+            mOut.name("name").value(name);
+            mOut.name("cat").value(cat);
+            mOut.name("ph").value("X");
+            mOut.name("ts").value(ts);
+            mOut.name("dur").value(dur);
+            mOut.name("pid").value(pid);
+            mOut.name("tid").value(tid);
+            if (argName != null) {
+                mOut.name("args").beginObject();
+                mOut.name(argName).value(argValue);
+                mOut.endObject();
+            }
+            mOut.endObject();
+            mCount++;
+        } catch (IOException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Finishes the event list and closes the file
+     * @return true if the file was saved successfully
+     */
+    public boolean end() {
+        if (mOut == null) return false;
+        try {
+            mOut.endArray();
+            mOut.endObject();
+            mOut.close();
+            mOut = null;
+        } catch (IOException e) {
+            abort(e);
+            return false;
+        }
+        return true;
+    }
+
+    private void abort(IOException e) {
+        mMod.printErr(3, "Error saving trace event file " + mFn + ": " + e);
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e1) {
+                // Ignore
+            }
+            mOut = null;
+        }
+    }
+
+}
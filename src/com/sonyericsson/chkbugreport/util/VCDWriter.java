@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2012 Sony Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import com.sonyericsson.chkbugreport.Module;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a VCD (value change dump) file incrementally, which can be opened with GTKWave.
+ *
+ * <p>The signals are registered with {@link #addSignal(String, int)}, which allocates
+ * the shortest possible identifier for each of them. The values are set one by one, in
+ * chronological order, but only the changes are written: setting the same value again
+ * doesn't produce any output, and the timestamp is written only when at least one signal
+ * changes at that time. Vector values are written without the leading zeroes.</p>
+ *
+ * <p>If the signals are not known before the first value change (for example when a trace
+ * is processed while it's read), the header can be deferred: the value changes are written
+ * to a temporary file, and the header is prepended to them in {@link #end()}.</p>
+ *
+ * <p>If the module is configured to compress the VCD files (see {@link Module#isVCDCompressed()}),
+ * the file is saved in gzip format (GTKWave can open it directly), and ".gz" is appended
+ * to the file name.</p>
+ *
+ * <p>If writing the file fails, the error is logged and the rest of the calls are ignored.</p>
+ */
+public class VCDWriter {
+
+    /** The first and last printable characters which can be used in the identifiers */
+    private static final int ID_FIRST = '!';
+    private static final int ID_LAST = '~';
+
+    /* The last value of a signal is either a number (>= 0), or a state character (< 0) */
+    private static final long UNSET = Long.MIN_VALUE;
+
+    private Module mMod;
+    private String mFn;
+    private String mTimeScale;
+    private String mScope;
+    private boolean mCompress;
+
+    private int mCount = 0;
+    private String mNames[] = new String[16];
+    private int mBits[] = new int[16];
+    private byte mIds[][] = new byte[16][];
+    private long mInitial[] = new long[16];
+    private long mLast[] = new long[16];
+
+    private long mStartTime;
+    private long mTime;
+    private long mLastTime;
+    private boolean mDeferHeader;
+    private File mBodyFile;
+    private OutputStream mOut;
+    private byte mBuff[] = new byte[0x10000];
+    private int mBuffLen = 0;
+    private char mDigits[] = new char[20];
+
+    /**
+     * Creates a new writer
+     * @param mod The module
+     * @param fn The file name, relative to the base directory of the report
+     * @param timeScale The time unit, for example "1us"
+     * @param scope The name of the scope containing the signals
+     */
+    public VCDWriter(Module mod, String fn, String timeScale, String scope) {
+        mMod = mod;
+        mCompress = mod.isVCDCompressed();
+        mFn = mCompress ? fn + ".gz" : fn;
+        mTimeScale = timeScale;
+        mScope = scope;
+    }
+
+    /**
+     * Returns the name of the generated file, relative to the base directory of the report
+     */
+    public String getFileName() {
+        return mFn;
+    }
+
+    /**
+     * Registers a new signal. Unless the header is deferred, this must be called before {@link #begin}.
+     * @param name The name of the signal (must not contain spaces, see {@link com.sonyericsson.chkbugreport.Util#fixVCDName})
+     * @param bits The width of the signal
+     * @return The signal index, used when setting the values
+     */
+    public int addSignal(String name, int bits) {
+        if (mCount == mNames.length) {
+            int size = mCount * 2;
+            String names[] = new String[size];
+            System.arraycopy(mNames, 0, names, 0, mCount);
+            mNames = names;
+            int tmpBits[] = new int[size];
+            System.arraycopy(mBits, 0, tmpBits, 0, mCount);
+            mBits = tmpBits;
+            byte ids[][] = new byte[size][];
+            System.arraycopy(mIds, 0, ids, 0, mCount);
+            mIds = ids;
+            long tmp[] = new long[size];
+            System.arraycopy(mInitial, 0, tmp, 0, mCount);
+            mInitial = tmp;
+            tmp = new long[size];
+            System.arraycopy(mLast, 0, tmp, 0, mCount);
+            mLast = tmp;
+        }
+        int sig = mCount++;
+        mNames[sig] = name;
+        mBits[sig] = bits;
+        mIds[sig] = genId(sig);
+        mInitial[sig] = UNSET;
+        mLast[sig] = UNSET;
+        return sig;
+    }
+
+    /**
+     * Generates the identifier of a signal, using all the printable characters
+     */
+    private static byte[] genId(int idx) {
+        int base = ID_LAST - ID_FIRST + 1;
+        int len = 1;
+        for (int tmp = idx / base; tmp > 0; tmp /= base) {
+            len++;
+        }
+        byte ret[] = new byte[len];
+        for (int i = 0; i < len; i++) {
+            ret[i] = (byte)(ID_FIRST + idx % base);
+            idx /= base;
+        }
+        return ret;
+    }
+
+    public int getSignalCount() {
+        return mCount;
+    }
+
+    /**
+     * Sets the initial value of a vector signal, which is written in the header
+     */
+    public void setInitialValue(int sig, int value) {
+        setInitial(sig, value);
+    }
+
+    /**
+     * Sets the initial state (for example '0', '1', 'X' or 'Z') of a signal, which is written in the header
+     */
+    public void setInitialState(int sig, char state) {
+        setInitial(sig, -state);
+    }
+
+    private void setInitial(int sig, long value) {
+        mInitial[sig] = value;
+        if (mLast[sig] == UNSET) {
+            mLast[sig] = value;
+        }
+    }
+
+    /**
+     * Starts writing the file.
+     * If the header is not deferred, the initial values must be set before calling this.
+     * @param startTime The time of the initial values
+     * @param deferHeader If true, new signals can be added and the initial values can be
+     * set until {@link #end()} is called
+     * @return false if the file cannot be created
+     */
+    public boolean begin(long startTime, boolean deferHeader) {
+        mStartTime = startTime;
+        mTime = startTime;
+        mLastTime = startTime;
+        mDeferHeader = deferHeader;
+        try {
+            if (deferHeader) {
+                mBodyFile = new File(mMod.getBaseDir() + mFn + ".tmp");
+                mOut = new FileOutputStream(mBodyFile);
+            } else {
+                mOut = openOutput();
+                writeHeader();
+            }
+            return true;
+        } catch (IOException e) {
+            abort(e);
+            return false;
+        }
+    }
+
+    private OutputStream openOutput() throws IOException {
+        OutputStream os = new FileOutputStream(mMod.getBaseDir() + mFn);
+        if (mCompress) {
+            os = new GZIPOutputStream(os, 0x10000);
+        }
+        return os;
+    }
+
+    private void writeHeader() throws IOException {
+        write("$timescale " + mTimeScale + " $end\n");
+        write("$scope " + mScope + " $end\n");
+        for (int sig = 0; sig < mCount; sig++) {
+            write("$var wire " + mBits[sig] + " ");
+            write(mIds[sig]);
+            write(" " + mNames[sig] + " $end\n");
+        }
+        write("$upscope $end\n");
+        write("$enddefinitions $end\n");
+        write('#');
+        write(mStartTime);
+        write('\n');
+        for (int sig = 0; sig < mCount; sig++) {
+            if (mInitial[sig] != UNSET) {
+                writeChange(sig, mInitial[sig]);
+            }
+        }
+    }
+
+    /**
+     * Sets the current time. This must not decrease.
+     */
+    public void setTime(long time) {
+        mTime = time;
+    }
+
+    /**
+     * Sets the value of a vector signal at the current time
+     */
+    public void setValue(int sig, int value) {
+        change(sig, value);
+    }
+
+    /**
+     * Sets the state (for example '0', '1', 'X' or 'Z') of a signal at the current time
+     */
+    public void setState(int sig, char state) {
+        change(sig, -state);
+    }
+
+    private void change(int sig, long value) {
+        if (mOut == null || mLast[sig] == value) return;
+        mLast[sig] = value;
+        try {
+            if (mTime != mLastTime) {
+                mLastTime = mTime;
+                write('#');
+                write(mTime);
+                write('\n');
+            }
+            writeChange(sig, value);
+        } catch (IOException e) {
+            abort(e);
+        }
+    }
+
+    private void writeChange(int sig, long value) throws IOException {
+        if (mBits[sig] == 1) {
+            // Scalar value change: the value is directly followed by the identifier
+            write(value < 0 ? (char)-value : (value == 0 ? '0' : '1'));
+        } else {
+            write('b');
+            if (value < 0) {
+                write((char)-value);
+            } else {
+                // Leading zeroes can be omitted
+                int bit = 63 - Long.numberOfLeadingZeros(value);
+                if (bit < 0) {
+                    write('0');
+                }
+                for (; bit >= 0; bit--) {
+                    write(((value >> bit) & 1) == 0 ? '0' : '1');
+                }
+            }
+            write(' ');
+        }
+        write(mIds[sig]);
+        write('\n');
+    }
+
+    /**
+     * Finishes the file. In case of deferred header, the header is written now, followed
+     * by the value changes.
+     * @return true if the file was saved successfully
+     */
+    public boolean end() {
+        if (mOut == null) {
+            cleanup();
+            return false;
+        }
+        try {
+            flush();
+            mOut.close();
+            mOut = null;
+            if (mDeferHeader) {
+                mOut = openOutput();
+                writeHeader();
+                flush();
+                InputStream is = new FileInputStream(mBodyFile);
+                try {
+                    int len;
+                    while ((len = is.read(mBuff)) > 0) {
+                        mOut.write(mBuff, 0, len);
+                    }
+                } finally {
+                    is.close();
+                }
+                mOut.close();
+                mOut = null;
+            }
+        } catch (IOException e) {
+            abort(e);
+            return false;
+        } finally {
+            cleanup();
+        }
+        return true;
+    }
+
+    private void cleanup() {
+        if (mBodyFile != null) {
+            mBodyFile.delete();
+            mBodyFile = null;
+        }
+    }
+
+    private void abort(IOException e) {
+        mMod.printErr(3, "Error saving vcd file " + mFn + ": " + e);
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e1) {
+                // Ignore
+            }
+            mOut = null;
+        }
+    }
+
+    private void flush() throws IOException {
+        mOut.write(mBuff, 0, mBuffLen);
+        mBuffLen = 0;
+    }
+
+    private void write(char c) throws IOException {
+        if (mBuffLen == mBuff.length) {
+            flush();
+        }
+        mBuff[mBuffLen++] = (byte)c;
+    }
+
+    private void write(byte data[]) throws IOException {
+        for (byte b : data) {
+            write((char)b);
+        }
+    }
+
+    private void write(String s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    private void write(long value) throws IOException {
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int len = 0;
+        do {
+            mDigits[len++] = (char)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (len > 0) {
+            write(mDigits[--len]);
+        }
+    }
+
+}